@@ -57,6 +57,16 @@ public interface CompilationContext extends DiagnosticContext {
 
     <T> void submitTask(T item, Consumer<T> itemConsumer);
 
+    /**
+     * Determine whether the current thread is processing the task queue, in which case any task it submits is run
+     * before the queue becomes quiescent.
+     *
+     * @return {@code true} if the current thread is processing the task queue, or {@code false} otherwise
+     */
+    default boolean isProcessingQueue() {
+        return false;
+    }
+
     default void enqueue(ExecutableElement element) {
         Facts.get(this).discover(element, ExecutableReachabilityFacts.IS_INVOKED);
     }
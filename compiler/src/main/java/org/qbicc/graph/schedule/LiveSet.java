@@ -0,0 +1,144 @@
+package org.qbicc.graph.schedule;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.qbicc.graph.Value;
+
+/**
+ * An immutable set of live values, stored as a bit set over a dense numbering of the live values of one method.
+ * All of the live sets of a method share the numbering, so each distinct set costs one {@code long} per 64 values.
+ */
+final class LiveSet extends AbstractSet<Value> {
+    private final Numbering numbering;
+    private final long[] bits;
+    private final int size;
+    private int hashCode;
+
+    LiveSet(Numbering numbering, BitSet bits) {
+        this.numbering = numbering;
+        this.bits = bits.toLongArray();
+        this.size = bits.cardinality();
+    }
+
+    @Override
+    public Iterator<Value> iterator() {
+        return new Iterator<Value>() {
+            private int next = nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next != -1;
+            }
+
+            @Override
+            public Value next() {
+                int idx = next;
+                if (idx == -1) throw new NoSuchElementException();
+                next = nextSetBit(idx + 1);
+                return numbering.values[idx];
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Integer idx = numbering.numbers.get(o);
+        return idx != null && get(idx.intValue());
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = this.hashCode;
+        if (hashCode == 0) {
+            hashCode = super.hashCode();
+            this.hashCode = hashCode;
+        }
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof LiveSet ls && ls.numbering == numbering) {
+            return Arrays.equals(bits, ls.bits);
+        }
+        return super.equals(o);
+    }
+
+    private boolean get(int idx) {
+        int word = idx >>> 6;
+        return word < bits.length && (bits[word] & 1L << idx) != 0;
+    }
+
+    private int nextSetBit(int idx) {
+        int word = idx >>> 6;
+        if (word >= bits.length) {
+            return -1;
+        }
+        long w = bits[word] & -1L << idx;
+        for (;;) {
+            if (w != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(w);
+            }
+            if (++ word == bits.length) {
+                return -1;
+            }
+            w = bits[word];
+        }
+    }
+
+    /**
+     * The dense numbering of the live values of a method.
+     * Numbers are only ever added, so a live set remains valid as more values are numbered.
+     */
+    static final class Numbering {
+        private final Map<Value, Integer> numbers = new HashMap<>();
+        private Value[] values = new Value[16];
+
+        /**
+         * Get the number of the given value, numbering it if it is not yet numbered.
+         *
+         * @param value the value (must not be {@code null})
+         * @return the number of the value
+         */
+        int number(Value value) {
+            Integer existing = numbers.get(value);
+            if (existing != null) {
+                return existing.intValue();
+            }
+            int idx = numbers.size();
+            if (idx == values.length) {
+                values = Arrays.copyOf(values, idx << 1);
+            }
+            values[idx] = value;
+            numbers.put(value, Integer.valueOf(idx));
+            return idx;
+        }
+
+        /**
+         * Get the number of the given value, if it is numbered.
+         *
+         * @param value the value (must not be {@code null})
+         * @return the number of the value, or {@code -1} if it is not numbered
+         */
+        int find(Value value) {
+            Integer existing = numbers.get(value);
+            return existing == null ? -1 : existing.intValue();
+        }
+    }
+}
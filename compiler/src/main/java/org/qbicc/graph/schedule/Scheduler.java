@@ -3,6 +3,7 @@ package org.qbicc.graph.schedule;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -56,7 +57,8 @@ public final class Scheduler {
         private final Map<Node, BlockInfo> earliestMapping = new HashMap<>();
         private final Map<Node, BlockInfo> lateMapping = new HashMap<>();
         private final Map<Node, Set<Node>> dependents = new HashMap<>();
-        private final Map<Set<Value>, Set<Value>> valueSetCache = new HashMap<>();
+        private final LiveSet.Numbering liveNumbering = new LiveSet.Numbering();
+        private final Map<BitSet, Set<Value>> liveSetCache = new HashMap<>();
 
         Context(final BasicBlock entryBlock) {
             this.entryBlock = entryBlock;
@@ -343,12 +345,12 @@ public final class Scheduler {
             }
             // finally, go back and build the live-out sets
             computeLiveSetsByUse();
-            Set<Value> live = new HashSet<>();
+            BitSet live = new BitSet();
             for (BlockInfo bi : allBlocks) {
                 BasicBlock block = bi.block;
                 live.clear();
-                live.addAll(bi.liveOut);
-                Set<Value> liveOut = Util.getCachedSet(valueSetCache, bi.liveOut);
+                live.or(bi.liveOut);
+                Set<Value> liveOut = getLiveSet(live);
                 // set the live-in and live-out sets of each node
                 final List<Node> instructions = block.getInstructions();
                 ListIterator<Node> li = instructions.listIterator(instructions.size());
@@ -360,26 +362,53 @@ public final class Scheduler {
                         // keep it alive to the start of the block.
                     } if (node instanceof Value v) {
                         // this is where it was defined, thus we can remove it from the live set.
-                        live.remove(v);
+                        kill(live, v);
                     } else if (node instanceof Invoke inv) {
                         // special case!
-                        live.remove(inv.getReturnValue());
+                        kill(live, inv.getReturnValue());
                     }
                     // add any values consumed by this node to the live set
                     final int cnt = node.getValueDependencyCount();
                     for (int i = 0; i < cnt; i ++) {
                         final Value val = node.getValueDependency(i);
                         if (! (val instanceof Literal)) {
-                            live.add(val);
+                            live.set(liveNumbering.number(val));
                         }
                     }
                     // the live-out set of the previous node is the live-in set of this node
-                    liveOut = Util.getCachedSet(valueSetCache, live);
+                    liveOut = getLiveSet(live);
                     node.setLiveIns(liveOut);
                 }
             }
         }
 
+        private void kill(BitSet live, Value value) {
+            int idx = liveNumbering.find(value);
+            if (idx != -1) {
+                live.clear(idx);
+            }
+        }
+
+        /**
+         * Get the shared immutable live set with the given members.
+         * The given bit set can be modified after this call.
+         *
+         * @param live the live value numbers (must not be {@code null})
+         * @return the live set (not {@code null})
+         */
+        private Set<Value> getLiveSet(BitSet live) {
+            if (live.isEmpty()) {
+                return Set.of();
+            }
+            Set<Value> cached = liveSetCache.get(live);
+            if (cached == null) {
+                BitSet copy = (BitSet) live.clone();
+                cached = new LiveSet(liveNumbering, copy);
+                liveSetCache.put(copy, cached);
+            }
+            return cached;
+        }
+
         private void buildSequence(final Node node, final Set<Node> visited, final Map<BasicBlock, List<Node>> sequences, final Map<BasicBlock, Map<Slot, BlockParameter>> blockParameters, final ArrayDeque<BlockParameter> cleanups) {
             if (visited.add(node)) {
                 if (node instanceof OrderedNode on) {
@@ -423,11 +452,12 @@ public final class Scheduler {
                 // killed in the block
                 return;
             }
-            if (bi.liveIn.contains(value)) {
+            final int vi = liveNumbering.number(value);
+            if (bi.liveIn.get(vi)) {
                 // propagation already done
                 return;
             }
-            bi.liveIn.add(value);
+            bi.liveIn.set(vi);
             if (value instanceof BlockParameter bp && bp.getPinnedBlock() == b) {
                 // do not propagate ϕ defs
                 return;
@@ -435,7 +465,7 @@ public final class Scheduler {
             for (BasicBlock incoming : b.getIncoming()) {
                 final int pi = incoming.getIndex();
                 BlockInfo p = allBlocks[pi - 1];
-                p.liveOut.add(value);
+                p.liveOut.set(vi);
                 upAndMark(pi, value);
             }
         }
@@ -453,7 +483,9 @@ public final class Scheduler {
                         if (! t.isImplicitOutboundArgument(slot, successor)) {
                             final Value out = t.getOutboundArgument(slot);
                             if (! (out instanceof Literal)) {
-                                if (bi.liveOut.add(out)) {
+                                final int oi = liveNumbering.number(out);
+                                if (! bi.liveOut.get(oi)) {
+                                    bi.liveOut.set(oi);
                                     upAndMark(b.getIndex(), out);
                                 }
                             }
@@ -3,7 +3,6 @@ package org.qbicc.graph.schedule;
 import java.util.AbstractSet;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.function.IntFunction;
@@ -14,44 +13,6 @@ import io.smallrye.common.constraint.Assert;
 public final class Util {
     private Util() {}
 
-    /**
-     * Get an immutable, cached copy of the given (possibly mutable) set from the given cache.
-     * The given set can be modified after this call.
-     *
-     * @param setCache the set cache (must not be {@code null})
-     * @param set the set to copy (must not be {@code null})
-     * @return the copied set (not {@code null})
-     */
-    public static <E> Set<E> getCachedSet(Map<Set<E>, Set<E>> setCache, Set<E> set) {
-        if (set.isEmpty()) {
-            return Set.of();
-        }
-        Set<E> cached = setCache.get(set);
-        if (cached == null) {
-            cached = Util.copyOfTrusted(set);
-            final Set<E> appearing = setCache.putIfAbsent(cached, cached);
-            if (appearing != null) {
-                cached = appearing;
-            }
-        }
-        return cached;
-    }
-
-    /**
-     * Copy the given set to an immutable set, without constructing an intermediate {@code HashSet}.
-     *
-     * @param orig the original set (must not be {@code null})
-     * @return the immutable copy (not {@code null})
-     * @param <E> the element type
-     */
-    public static <E> Set<E> copyOfTrusted(Set<E> orig) {
-        if (orig.isEmpty()) {
-            return Set.of();
-        } else {
-            return Set.of((E[])orig.toArray(Object[]::new));
-        }
-    }
-
     /**
      * Create an instance of a tiny (immutable) set implementation that adds an item to an existing (immutable) set.
      * If the original set already contains the item, it is returned as-is.
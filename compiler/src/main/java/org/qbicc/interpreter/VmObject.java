@@ -48,4 +48,13 @@ public interface VmObject {
      * @throws IllegalArgumentException if the field does not belong on this instance
      */
     int indexOf(FieldElement field) throws IllegalArgumentException;
+
+    /**
+     * Mark this object as visited by a heap trace.  Each trace uses a distinct epoch, so that the marks of earlier
+     * traces need not be cleared.
+     *
+     * @param epoch the epoch of the trace
+     * @return {@code true} if this call marked the object, or {@code false} if it was already marked in this epoch
+     */
+    boolean mark(int epoch);
 }
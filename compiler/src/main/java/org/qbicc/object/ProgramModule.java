@@ -387,4 +387,10 @@ public final class ProgramModule {
             return functions.get(fnIndex);
         }
     }
+
+    public int getFunctionCount() {
+        synchronized (this) {
+            return functions.size();
+        }
+    }
 }
@@ -0,0 +1,208 @@
+package org.qbicc.driver;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.smallrye.common.constraint.Assert;
+import org.jboss.logging.Logger;
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+
+/**
+ * The fingerprints of an incremental build, persisted to {@code incremental.manifest} in the output directory.
+ * <p>
+ * A fingerprint is recorded for the bytes of every class which is loaded from the class path, and for the generated
+ * code of every output module, which also captures the set of reachable types for which code is generated. At the
+ * end of a successful build the fingerprints are compared with those of the previous build to report the changed
+ * classes and the cone of modules whose code changed as a result, and are then written for the next build. Modules
+ * whose code did not change are reused by the back end instead of being compiled again.
+ * <p>
+ * This is not an incremental rebuild: every phase, including the generation of every module, still runs over the
+ * whole program, and the fingerprints are only compared once the build is complete.
+ */
+public final class BuildFingerprints {
+    private static final Logger log = Logger.getLogger("org.qbicc.driver.incremental");
+    private static final AttachmentKey<BuildFingerprints> KEY = new AttachmentKey<>();
+    private static final HexFormat HEX = HexFormat.of();
+    private static final String MANIFEST = "incremental.manifest";
+    private static final String CLASS = "class";
+    private static final String MODULE = "module";
+
+    private final Path manifest;
+    private final Map<String, String> previousClasses;
+    private final Map<String, String> previousModules;
+    private final Map<String, String> classes = new ConcurrentHashMap<>();
+    private final Map<String, String> modules = new ConcurrentHashMap<>();
+
+    private BuildFingerprints(Path manifest, Map<String, String> previousClasses, Map<String, String> previousModules) {
+        this.manifest = manifest;
+        this.previousClasses = previousClasses;
+        this.previousModules = previousModules;
+    }
+
+    /**
+     * Get the fingerprints of the current build.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @return the fingerprints, or {@code null} if the build is not incremental
+     */
+    public static BuildFingerprints get(CompilationContext ctxt) {
+        return ctxt.getAttachment(KEY);
+    }
+
+    static BuildFingerprints load(BaseDiagnosticContext ctxt, Path outputDir) {
+        Path manifest = outputDir.resolve(MANIFEST);
+        Map<String, String> previousClasses = new TreeMap<>();
+        Map<String, String> previousModules = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length != 3) {
+                    throw new IOException("Malformed manifest line: " + line);
+                }
+                switch (fields[0]) {
+                    case CLASS -> previousClasses.put(fields[1], fields[2]);
+                    case MODULE -> previousModules.put(fields[1], fields[2]);
+                    default -> throw new IOException("Malformed manifest line: " + line);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            log.debugf("No previous build found in %s", outputDir);
+        } catch (IOException e) {
+            // start over
+            ctxt.warning("Failed to read incremental build manifest %s: %s", manifest, e);
+            previousClasses.clear();
+            previousModules.clear();
+        }
+        BuildFingerprints fingerprints = new BuildFingerprints(manifest, previousClasses, previousModules);
+        ctxt.putAttachment(KEY, fingerprints);
+        return fingerprints;
+    }
+
+    /**
+     * Record the bytes of a class which was loaded from the class path.
+     *
+     * @param name the internal name of the class (must not be {@code null})
+     * @param bytes the class bytes (must not be {@code null}; its position is not changed)
+     */
+    void recordClass(String name, ByteBuffer bytes) {
+        MessageDigest digest = newDigest();
+        digest.update(bytes.duplicate());
+        classes.put(name, HEX.formatHex(digest.digest()));
+    }
+
+    /**
+     * Record the fingerprint of the code generated for an output module.
+     *
+     * @param name the name of the module, which must be stable between builds (must not be {@code null})
+     * @param fingerprint the fingerprint of the generated code (must not be {@code null})
+     * @return {@code true} if the previous build generated identical code for the module, or {@code false} otherwise
+     */
+    public boolean recordModule(String name, String fingerprint) {
+        Assert.checkNotNullParam("name", name);
+        Assert.checkNotNullParam("fingerprint", fingerprint);
+        modules.put(name, fingerprint);
+        return fingerprint.equals(previousModules.get(name));
+    }
+
+    /**
+     * Report the changes since the previous build, and write the fingerprints of this build for the next one.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    void finish(CompilationContext ctxt) {
+        Set<String> changedClasses = changed(previousClasses, classes);
+        Set<String> changedModules = changed(previousModules, modules);
+        if (previousClasses.isEmpty()) {
+            log.infof("Incremental build: no previous build, %d classes and %d modules recorded", Integer.valueOf(classes.size()), Integer.valueOf(modules.size()));
+        } else {
+            log.infof("Incremental build: %d of %d classes changed, generated code of %d of %d modules changed",
+                Integer.valueOf(changedClasses.size()), Integer.valueOf(classes.size()),
+                Integer.valueOf(changedModules.size()), Integer.valueOf(modules.size()));
+            if (log.isDebugEnabled()) {
+                for (String name : changedClasses) {
+                    log.debugf("  changed class: %s", name);
+                }
+                for (String name : changedModules) {
+                    log.debugf("  changed module: %s", name);
+                }
+            }
+        }
+        Path tmp = null;
+        try {
+            Files.createDirectories(manifest.getParent());
+            tmp = Files.createTempFile(manifest.getParent(), MANIFEST, ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                write(writer, CLASS, classes);
+                write(writer, MODULE, modules);
+            }
+            try {
+                Files.move(tmp, manifest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch (IOException e) {
+            ctxt.warning("Failed to write incremental build manifest %s: %s", manifest, e);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static Set<String> changed(Map<String, String> previous, Map<String, String> current) {
+        Set<String> changed = new TreeSet<>();
+        for (Map.Entry<String, String> entry : current.entrySet()) {
+            if (! Objects.equals(previous.get(entry.getKey()), entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String name : previous.keySet()) {
+            if (! current.containsKey(name)) {
+                changed.add(name);
+            }
+        }
+        return changed;
+    }
+
+    private static void write(BufferedWriter writer, String kind, Map<String, String> fingerprints) throws IOException {
+        for (Map.Entry<String, String> entry : new TreeMap<>(fingerprints).entrySet()) {
+            writer.write(kind);
+            writer.write(' ');
+            writer.write(entry.getKey());
+            writer.write(' ');
+            writer.write(entry.getValue());
+            writer.newLine();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package org.qbicc.driver;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.MaximumMetric;
+import org.qbicc.plugin.metrics.Metrics;
+import org.qbicc.plugin.metrics.Timer;
+
+/**
+ * The automatic recording of build metrics by the driver.
+ * <p>
+ * When enabled, the driver records the following:
+ * <ul>
+ *     <li>The time spent in each phase on the driver thread, broken down by hook (the {@code phases} timer)</li>
+ *     <li>The time spent in each basic block builder, by phase and {@linkplain BuilderStage stage} (the
+ *     {@code builders} timer)</li>
+ *     <li>The number of elements built and of nodes created in each phase</li>
+ *     <li>The peak heap usage in each phase, sampled periodically and at each phase and hook boundary</li>
+ * </ul>
+ * At the end of the build, all recorded metrics (including those recorded by plugins) are written to
+ * {@code metrics.json} in the output directory and summarized to the log.
+ * <p>
+ * Builder timing works by placing a proxy in front of every basic block builder, which makes building significantly
+ * slower; the proportions of builder times remain meaningful but absolute build times will not be representative.
+ */
+final class BuildMetrics {
+    private static final Logger log = Logger.getLogger("org.qbicc.driver.metrics");
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    // the metrics are established by start(), before any compiler thread can use them
+    private CompilationContext ctxt;
+    private Timer phasesTimer;
+    private Timer buildersTimer;
+    private CountMetric elementsMetric;
+    private CountMetric nodesMetric;
+    private MaximumMetric heapMetric;
+    // only accessed from the driver thread
+    private Timer.StopWatch phaseStopWatch;
+    private volatile Phase currentPhase;
+    private Thread sampler;
+
+    BuildMetrics() {}
+
+    /**
+     * Establish the root metrics and start the background memory sampler.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    void start(CompilationContext ctxt) {
+        this.ctxt = ctxt;
+        Metrics metrics = Metrics.get(ctxt);
+        phasesTimer = metrics.getOrCreateRootTimer("phases");
+        buildersTimer = metrics.getOrCreateRootTimer("builders");
+        elementsMetric = metrics.getOrCreateRootCountMetric("elements built");
+        nodesMetric = metrics.getOrCreateRootCountMetric("nodes created");
+        heapMetric = metrics.getOrCreateRootMaximumMetric("peak heap used");
+        Thread sampler = new Thread(this::runSampler, "qbicc metrics sampler");
+        sampler.setDaemon(true);
+        this.sampler = sampler;
+        sampler.start();
+    }
+
+    /**
+     * Stop the phase timer and the memory sampler, and report all metrics.
+     *
+     * @param outputDir the output directory to write the report into (must not be {@code null})
+     */
+    void finish(Path outputDir) {
+        endPhase();
+        Thread sampler = this.sampler;
+        if (sampler != null) {
+            sampler.interrupt();
+            this.sampler = null;
+        }
+        Metrics metrics = Metrics.get(ctxt);
+        Path report = outputDir.resolve("metrics.json");
+        try {
+            Files.createDirectories(outputDir);
+            Files.writeString(report, metrics.formatAllAsJson(new StringBuilder()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            log.warnf(e, "Failed to write metrics report to %s", report);
+        }
+        if (log.isInfoEnabled()) {
+            log.infof("Build metrics (written to %s):%n%s", report, metrics.formatAll(new StringBuilder()));
+        }
+    }
+
+    /**
+     * Begin timing the given phase on the driver thread, ending the timing of the previous phase if any.
+     *
+     * @param phase the phase being entered (must not be {@code null})
+     */
+    void enterPhase(Phase phase) {
+        endPhase();
+        currentPhase = phase;
+        sampleHeap(phase);
+        phaseStopWatch = phasesTimer.getOrAddChild(phase.toString()).startTimedTryBlock();
+    }
+
+    private void endPhase() {
+        Timer.StopWatch stopWatch = phaseStopWatch;
+        if (stopWatch != null) {
+            phaseStopWatch = null;
+            stopWatch.close();
+            Phase phase = currentPhase;
+            if (phase != null) {
+                sampleHeap(phase);
+            }
+        }
+    }
+
+    /**
+     * Wrap a hook so that its run time is recorded within its phase.
+     *
+     * @param phase the phase of the hook (must not be {@code null})
+     * @param kind the hook kind, {@code "pre"} or {@code "post"} (must not be {@code null})
+     * @param index the index of the hook within its list
+     * @param hook the hook to wrap (must not be {@code null})
+     * @return the wrapped hook (not {@code null})
+     */
+    static Consumer<CompilationContext> timedHook(Phase phase, String kind, int index, Consumer<CompilationContext> hook) {
+        String name = kind + "-hook #" + index + " (" + hookName(hook) + ")";
+        return ctxt -> {
+            BuildMetrics buildMetrics = Driver.get(ctxt).buildMetrics;
+            Timer timer = buildMetrics.phasesTimer.getOrAddChild(phase.toString(), name);
+            try {
+                timer.acceptTimed(hook, ctxt);
+            } finally {
+                buildMetrics.sampleHeap(phase);
+            }
+        };
+    }
+
+    private static String hookName(Object hook) {
+        String name = hook.getClass().getName();
+        // lambdas and method references are named for their defining class
+        int idx = name.indexOf("$$Lambda");
+        if (idx != -1) {
+            name = name.substring(0, idx);
+        }
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Wrap a basic block builder factory so that the time spent in the builder it produces is recorded.
+     *
+     * @param phase the phase of the factory (must not be {@code null})
+     * @param stage the builder stage of the factory (must not be {@code null})
+     * @param factory the factory to wrap (must not be {@code null})
+     * @return the wrapped factory (not {@code null})
+     */
+    BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> timedFactory(Phase phase, BuilderStage stage, BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> factory) {
+        String phaseName = phase.toString();
+        String stageName = stage.name();
+        return (fc, delegate) -> {
+            BasicBlockBuilder builder = factory.apply(fc, delegate);
+            if (builder == delegate) {
+                // factory chose not to participate
+                return builder;
+            }
+            Class<?> builderClass = builder.getClass();
+            String builderName = builderClass.isAnonymousClass() ? builderClass.getName() : builderClass.getSimpleName();
+            return timedBuilder(buildersTimer.getOrAddChild(phaseName, stageName, builderName), null, builder);
+        };
+    }
+
+    /**
+     * Wrap the terminal basic block builder of a phase so that element and node creation is counted.
+     *
+     * @param phase the phase of the builder (must not be {@code null})
+     * @param builder the builder to wrap (must not be {@code null})
+     * @return the wrapped builder (not {@code null})
+     */
+    BasicBlockBuilder countingBuilder(Phase phase, BasicBlockBuilder builder) {
+        elementsMetric.getOrAddChild(phase.toString()).add(1);
+        return timedBuilder(buildersTimer.getOrAddChild(phase.toString(), "(base)"), nodesMetric.getOrAddChild(phase.toString()), builder);
+    }
+
+    private static BasicBlockBuilder timedBuilder(Timer timer, CountMetric nodeCount, BasicBlockBuilder builder) {
+        // the simple builder deduplicates values and some factories return an argument or an existing node unchanged,
+        // so only count each node the first time it comes back from the builder
+        Set<Node> seen = nodeCount == null ? null : Collections.newSetFromMap(new IdentityHashMap<>());
+        InvocationHandler handler = (proxy, method, args) -> {
+            Object result;
+            try {
+                result = timer.applyTimed(BuildMetrics::invoke, method, new Object[] { builder, args });
+            } catch (UndeclaredInvocationException e) {
+                throw e.getCause();
+            }
+            if (nodeCount != null && result instanceof Node node && isCreated(node, args) && seen.add(node)) {
+                nodeCount.add(1);
+            }
+            return result;
+        };
+        BasicBlockBuilder proxy = (BasicBlockBuilder) Proxy.newProxyInstance(BasicBlockBuilder.class.getClassLoader(), new Class<?>[] { BasicBlockBuilder.class }, handler);
+        // make sure that calls which restart at the top of the chain are also timed
+        proxy.setFirstBuilder(proxy);
+        return proxy;
+    }
+
+    private static boolean isCreated(Node node, Object[] args) {
+        if (node instanceof Literal) {
+            // literals come from the shared literal factory
+            return false;
+        }
+        if (args != null) {
+            for (Object arg : args) {
+                if (arg == node) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Object invoke(Method method, Object[] targetAndArgs) {
+        try {
+            return method.invoke(targetAndArgs[0], (Object[]) targetAndArgs[1]);
+        } catch (InvocationTargetException e) {
+            throw new UndeclaredInvocationException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void sampleHeap(Phase phase) {
+        heapMetric.getOrAddChild(phase.toString()).observe(memoryBean.getHeapMemoryUsage().getUsed());
+    }
+
+    private void runSampler() {
+        for (;;) {
+            Phase phase = currentPhase;
+            if (phase != null) {
+                sampleHeap(phase);
+            }
+            try {
+                Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Carries an exception thrown by a builder through the timer without wrapping it in another exception type.
+     */
+    static final class UndeclaredInvocationException extends RuntimeException {
+        UndeclaredInvocationException(Throwable cause) {
+            super(null, cause, false, false);
+        }
+    }
+}
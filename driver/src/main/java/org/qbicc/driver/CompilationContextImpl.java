@@ -2,11 +2,9 @@ package org.qbicc.driver;
 
 import java.nio.ByteBuffer;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -73,7 +71,7 @@ final class CompilationContextImpl implements CompilationContext {
     private final LiteralFactory literalFactory;
     private final BaseDiagnosticContext baseDiagnosticContext;
     private final ConcurrentMap<VmClassLoader, ClassContext> classLoaderContexts = new ConcurrentHashMap<>();
-    final Queue<Object> queue = new ArrayDeque<>();
+    private final TaskQueue queue;
     final Set<ExecutableElement> entryPoints = ConcurrentHashMap.newKeySet();
     final ClassContext bootstrapClassContext;
     final Function<VmClassLoader, ClassContext> platformClassContextFactory;
@@ -112,6 +110,7 @@ final class CompilationContextImpl implements CompilationContext {
         this.typeBuilderFactories = builder.typeBuilderFactories;
         this.nativeMethodConfigurator = builder.nativeMethodConfigurator;
         implicitSection = Section.defineSection(this, 0, IMPLICIT_SECTION_NAME, Segment.DATA);
+        queue = new TaskQueue(this);
         handleNewClassContext(bootstrapClassContext);
         // last!
         this.vm = builder.vmFactory.apply(this);
@@ -312,11 +311,13 @@ final class CompilationContextImpl implements CompilationContext {
 
     @Override
     public <T> void submitTask(T item, Consumer<T> itemConsumer) {
-        synchronized (queue) {
-            queue.add(item);
-            queue.add(itemConsumer);
-            queue.notify();
-        }
+        TaskQueue.Worker worker = Thread.currentThread() instanceof CompilerThread ct && ct.context == this ? ct.worker : null;
+        queue.submit(worker, item, itemConsumer);
+    }
+
+    @Override
+    public boolean isProcessingQueue() {
+        return Thread.currentThread() instanceof CompilerThread ct && ct.context == this && ct.worker != null;
     }
 
     @Override
@@ -774,57 +775,22 @@ final class CompilationContextImpl implements CompilationContext {
         return copier;
     }
 
-    int waiting;
-
     void processQueue() {
         synchronized (this) {
-            waiting = 0;
+            queue.start(activeThreads);
         }
-        runParallelTask(ctxt -> {
-            Object item;
-            Consumer<?> consumer;
-            for (;;) {
-                synchronized (queue) {
-                    item = queue.poll();
-                    if (item == null) {
-                        waiting++;
-                        if (waiting == activeThreads) {
-                            // no elements left! let everyone know
-                            queue.notifyAll();
-                            return;
-                        }
-                        for (;;) {
-                            try {
-                                queue.wait();
-                            } catch (InterruptedException ignored) {
-                                // safe to ignore
-                            }
-                            item = queue.poll();
-                            if (item != null) {
-                                break;
-                            }
-                            if (waiting == activeThreads) {
-                                // awoken from sleep to exit
-                                return;
-                            }
-                        }
-                        waiting--;
-                    }
-                    consumer = (Consumer<?>) queue.poll();
-                }
-                assert consumer != null;
-                try {
-                    safeAccept(consumer, item);
-                } catch (Throwable e) {
-                    log.error("An exception was thrown from a queue processing task", e);
-                    if (item instanceof Locatable loc) {
-                        error(loc.getLocation(), "Exception while processing queue task %s for %s: %s", consumer, item, e);
-                    } else {
-                        error("Exception while processing queue task %s for %s: %s", consumer, item, e);
-                    }
+        runParallelTask(ctxt -> queue.drain(worker -> ((CompilerThread) Thread.currentThread()).worker = worker, (item, consumer) -> {
+            try {
+                safeAccept(consumer, item);
+            } catch (Throwable e) {
+                log.error("An exception was thrown from a queue processing task", e);
+                if (item instanceof Locatable loc) {
+                    error(loc.getLocation(), "Exception while processing queue task %s for %s: %s", consumer, item, e);
+                } else {
+                    error("Exception while processing queue task %s for %s: %s", consumer, item, e);
                 }
             }
-        });
+        }));
     }
 
     static <T> void safeAccept(Consumer<T> consumer, Object item) {
@@ -835,7 +801,7 @@ final class CompilationContextImpl implements CompilationContext {
         ThreadGroup threadGroup = new ThreadGroup("qbicc compiler thread group");
         Thread[] threads = new Thread[threadCnt];
         for (int i = 0; i < threadCnt; i ++) {
-            threads[i] = new Thread(threadGroup, threadTask, "qbicc compiler thread " + (i + 1) + "/" + threadCnt, stackSize, false);
+            threads[i] = new CompilerThread(this, threadGroup, threadTask, "qbicc compiler thread " + (i + 1) + "/" + threadCnt, stackSize);
         }
         // now start them all
         for (int i = 0; i < threadCnt; i ++) {
@@ -907,6 +873,17 @@ final class CompilationContextImpl implements CompilationContext {
         return methodType;
     }
 
+    static final class CompilerThread extends Thread {
+        final CompilationContextImpl context;
+        // only accessed from this thread
+        TaskQueue.Worker worker;
+
+        CompilerThread(CompilationContextImpl context, ThreadGroup group, Runnable task, String name, long stackSize) {
+            super(group, task, name, stackSize, false);
+            this.context = context;
+        }
+    }
+
     static final class Builder {
         BaseDiagnosticContext baseDiagnosticContext;
         Platform platform;
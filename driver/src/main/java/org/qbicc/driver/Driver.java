@@ -34,6 +34,7 @@ import org.qbicc.graph.schedule.Scheduler;
 import org.qbicc.interpreter.Vm;
 import org.qbicc.machine.arch.Platform;
 import org.qbicc.machine.object.ObjectFileProvider;
+import org.qbicc.machine.probe.CProbeCache;
 import org.qbicc.machine.tool.CToolChain;
 import org.qbicc.runtime.ExtModifier;
 import org.qbicc.runtime.SafePointBehavior;
@@ -59,6 +60,7 @@ public class Driver implements Closeable {
     public static final AttachmentKey<CToolChain> C_TOOL_CHAIN_KEY = new AttachmentKey<>();
     public static final AttachmentKey<LlvmToolChain> LLVM_TOOL_KEY = new AttachmentKey<>();
     public static final AttachmentKey<ObjectFileProvider> OBJ_PROVIDER_TOOL_KEY = new AttachmentKey<>();
+    public static final AttachmentKey<CProbeCache> C_PROBE_CACHE_KEY = new AttachmentKey<>();
 
     final BaseDiagnosticContext initialContext;
     final CompilationContextImpl compilationContext;
@@ -88,6 +90,8 @@ public class Driver implements Closeable {
     final long stackSize;
     final Consumer<ClassContext> classContextListener;
     final int optLevel;
+    final BuildMetrics buildMetrics;
+    final BuildFingerprints fingerprints;
 
     Driver(final Builder builder) {
         initialContext = Assert.checkNotNullParam("builder.initialContext", builder.initialContext);
@@ -105,6 +109,10 @@ public class Driver implements Closeable {
         if (objectFileProvider != null) {
             initialContext.putAttachment(OBJ_PROVIDER_TOOL_KEY, objectFileProvider);
         }
+        CProbeCache probeCache = builder.probeCache;
+        if (probeCache != null) {
+            initialContext.putAttachment(C_PROBE_CACHE_KEY, probeCache);
+        }
         // type system
         final TypeSystem typeSystem = builder.typeSystem;
         final LiteralFactory literalFactory = LiteralFactory.create(typeSystem);
@@ -134,28 +142,31 @@ public class Driver implements Closeable {
         this.bootModules = bootModules;
         this.appClassPath = List.copyOf(builder.appClassPath);
 
+        buildMetrics = builder.recordMetrics ? new BuildMetrics() : null;
+        fingerprints = builder.incremental ? BuildFingerprints.load(initialContext, outputDir) : null;
+
         // ADD phase
-        preAddHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.ADD, List.of()));
+        preAddHooks = constructHooks(builder, builder.preHooks, Phase.ADD, "pre");
         // (no copiers)
         addBuilderFactory = constructFactory(builder, Phase.ADD);
-        postAddHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.ADD, List.of()));
+        postAddHooks = constructHooks(builder, builder.postHooks, Phase.ADD, "post");
 
         // ANALYZE phase
-        preAnalyzeHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.ANALYZE, List.of()));
+        preAnalyzeHooks = constructHooks(builder, builder.preHooks, Phase.ANALYZE, "pre");
         addToAnalyzeCopiers = constructCopiers(builder, Phase.ANALYZE);
         analyzeBuilderFactory = constructFactory(builder, Phase.ANALYZE);
-        postAnalyzeHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.ANALYZE, List.of()));
+        postAnalyzeHooks = constructHooks(builder, builder.postHooks, Phase.ANALYZE, "post");
 
         // LOWER phase
-        preLowerHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.LOWER, List.of()));
+        preLowerHooks = constructHooks(builder, builder.preHooks, Phase.LOWER, "pre");
         analyzeToLowerCopiers = constructCopiers(builder, Phase.LOWER);
         lowerBuilderFactory = constructFactory(builder, Phase.LOWER);
-        postLowerHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.LOWER, List.of()));
+        postLowerHooks = constructHooks(builder, builder.postHooks, Phase.LOWER, "post");
 
         // GENERATE phase
-        preGenerateHooks = List.copyOf(builder.preHooks.getOrDefault(Phase.GENERATE, List.of()));
+        preGenerateHooks = constructHooks(builder, builder.preHooks, Phase.GENERATE, "pre");
         // (no builder factory)
-        postGenerateHooks = List.copyOf(builder.postHooks.getOrDefault(Phase.GENERATE, List.of()));
+        postGenerateHooks = constructHooks(builder, builder.postHooks, Phase.GENERATE, "post");
 
         List<BiFunction<? super ClassContext, DescriptorTypeResolver, DescriptorTypeResolver>> resolverFactories = new ArrayList<>(builder.resolverFactories);
         Collections.reverse(resolverFactories);
@@ -248,20 +259,49 @@ public class Driver implements Closeable {
         };
     }
 
-    private static BiFunction<BasicBlockBuilder.FactoryContext, ExecutableElement, BasicBlockBuilder> constructFactory(final Builder builder, final Phase phase) {
-        BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> addWrapper = assembleFactories(builder.builderFactories.getOrDefault(phase, Map.of()));
+    private static List<Consumer<CompilationContext>> constructHooks(final Builder builder, final Map<Phase, List<Consumer<CompilationContext>>> hooks, final Phase phase, final String kind) {
+        List<Consumer<CompilationContext>> list = hooks.getOrDefault(phase, List.of());
+        if (! builder.recordMetrics) {
+            return List.copyOf(list);
+        }
+        List<Consumer<CompilationContext>> timed = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i ++) {
+            timed.add(BuildMetrics.timedHook(phase, kind, i, list.get(i)));
+        }
+        return List.copyOf(timed);
+    }
+
+    private BiFunction<BasicBlockBuilder.FactoryContext, ExecutableElement, BasicBlockBuilder> constructFactory(final Builder builder, final Phase phase) {
+        BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> addWrapper = assembleFactories(phase, builder.builderFactories.getOrDefault(phase, Map.of()));
+        BuildMetrics buildMetrics = this.buildMetrics;
+        if (buildMetrics != null) {
+            return (ctxt, executableElement) -> addWrapper.apply(ctxt, buildMetrics.countingBuilder(phase, BasicBlockBuilder.simpleBuilder(executableElement)));
+        }
         return (ctxt, executableElement) -> addWrapper.apply(ctxt, BasicBlockBuilder.simpleBuilder(executableElement));
     }
 
-    private static BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(Map<BuilderStage, List<BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder>>> map) {
+    private BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(Phase phase, Map<BuilderStage, List<BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder>>> map) {
         return assembleFactories(List.of(
-            assembleFactories(map.getOrDefault(BuilderStage.TRANSFORM, List.of())),
-            assembleFactories(map.getOrDefault(BuilderStage.CORRECT, List.of())),
-            assembleFactories(map.getOrDefault(BuilderStage.OPTIMIZE, List.of())),
-            assembleFactories(map.getOrDefault(BuilderStage.INTEGRITY, List.of()))
+            assembleFactories(phase, BuilderStage.TRANSFORM, map),
+            assembleFactories(phase, BuilderStage.CORRECT, map),
+            assembleFactories(phase, BuilderStage.OPTIMIZE, map),
+            assembleFactories(phase, BuilderStage.INTEGRITY, map)
         ));
     }
 
+    private BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(Phase phase, BuilderStage stage, Map<BuilderStage, List<BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder>>> map) {
+        List<BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder>> list = map.getOrDefault(stage, List.of());
+        BuildMetrics buildMetrics = this.buildMetrics;
+        if (buildMetrics != null) {
+            List<BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder>> timed = new ArrayList<>(list.size());
+            for (BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> factory : list) {
+                timed.add(buildMetrics.timedFactory(phase, stage, factory));
+            }
+            list = timed;
+        }
+        return assembleFactories(list);
+    }
+
     private static BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder> assembleFactories(List<BiFunction<? super BasicBlockBuilder.FactoryContext, BasicBlockBuilder, BasicBlockBuilder>> list) {
         if (list.isEmpty()) {
             return (c, b) -> b;
@@ -336,6 +376,9 @@ public class Driver implements Closeable {
                     continue;
                 }
                 buffer = resource.getBuffer();
+                if (fingerprints != null) {
+                    fingerprints.recordClass(name, buffer);
+                }
                 ClassFile classFile = ClassFile.of(classContext, buffer);
                 DefinedTypeDefinition.Builder builder = classContext.newTypeBuilder();
                 classFile.accept(builder);
@@ -419,12 +462,18 @@ public class Driver implements Closeable {
     public boolean execute() {
         // start threads
         int threadCnt = (int) Math.max(1, ((float)Runtime.getRuntime().availableProcessors()) * threadsPerCpu);
+        if (buildMetrics != null) {
+            buildMetrics.start(compilationContext);
+        }
         compilationContext.startThreads(threadCnt, stackSize);
         try {
             return execute0();
         } finally {
             // shut down threads
             compilationContext.exitThreads();
+            if (buildMetrics != null) {
+                buildMetrics.finish(outputDir);
+            }
         }
     }
 
@@ -445,12 +494,19 @@ public class Driver implements Closeable {
         }
     }
 
+    private void enterPhase(Phase phase) {
+        phase.setCurrent(compilationContext);
+        if (buildMetrics != null) {
+            buildMetrics.enterPhase(phase);
+        }
+    }
+
     boolean execute0() {
         CompilationContextImpl compilationContext = this.compilationContext;
 
         // ADD phase
 
-        Phase.ADD.setCurrent(compilationContext);
+        enterPhase(Phase.ADD);
 
         for (Consumer<CompilationContext> hook : preAddHooks) {
             try {
@@ -509,7 +565,7 @@ public class Driver implements Closeable {
         // ANALYZE phase
 
         for (int i = 0; i < 1 << optLevel; i ++) {
-            Phase.ANALYZE.setCurrent(compilationContext);
+            enterPhase(Phase.ANALYZE);
 
             compilationContext.setBlockFactory(analyzeBuilderFactory);
             compilationContext.setCopier(addToAnalyzeCopiers);
@@ -560,7 +616,7 @@ public class Driver implements Closeable {
 
         // LOWER phase
 
-        Phase.LOWER.setCurrent(compilationContext);
+        enterPhase(Phase.LOWER);
 
         compilationContext.setBlockFactory(lowerBuilderFactory);
         compilationContext.setCopier(analyzeToLowerCopiers);
@@ -608,7 +664,7 @@ public class Driver implements Closeable {
 
         // GENERATE phase
 
-        Phase.GENERATE.setCurrent(compilationContext);
+        enterPhase(Phase.GENERATE);
 
         compilationContext.setCopier(null);
 
@@ -642,6 +698,10 @@ public class Driver implements Closeable {
 
         Phase.complete(compilationContext);
 
+        if (fingerprints != null && compilationContext.errors() == 0) {
+            fingerprints.finish(compilationContext);
+        }
+
         return compilationContext.errors() == 0;
     }
 
@@ -685,6 +745,7 @@ public class Driver implements Closeable {
         CToolChain toolChain;
         LlvmToolChain llvmToolChain;
         ObjectFileProvider objectFileProvider;
+        CProbeCache probeCache;
 
         float threadsPerCpu = 2.0f;
         // 16 MB is the default stack size
@@ -693,6 +754,8 @@ public class Driver implements Closeable {
         String mainClass;
         Consumer<ClassContext> classContextListener = Functions.discardingConsumer();
         int optLevel = 1;
+        boolean recordMetrics;
+        boolean incremental;
 
         Builder() {}
 
@@ -846,6 +909,15 @@ public class Driver implements Closeable {
             return objectFileProvider;
         }
 
+        public CProbeCache getProbeCache() {
+            return probeCache;
+        }
+
+        public Builder setProbeCache(final CProbeCache probeCache) {
+            this.probeCache = probeCache;
+            return this;
+        }
+
         public Builder setObjectFileProvider(final ObjectFileProvider objectFileProvider) {
             this.objectFileProvider = objectFileProvider;
             return this;
@@ -890,6 +962,40 @@ public class Driver implements Closeable {
             return this;
         }
 
+        public boolean isRecordMetrics() {
+            return recordMetrics;
+        }
+
+        /**
+         * Set whether the driver should record timings, counts, and memory usage for each phase, hook, and builder,
+         * and write them to {@code metrics.json} in the output directory at the end of the build.  Recording
+         * builder timings slows the build down considerably.
+         *
+         * @param recordMetrics {@code true} to record metrics, {@code false} otherwise
+         * @return this builder
+         */
+        public Builder setRecordMetrics(boolean recordMetrics) {
+            this.recordMetrics = recordMetrics;
+            return this;
+        }
+
+        public boolean isIncremental() {
+            return incremental;
+        }
+
+        /**
+         * Set whether the driver should compare the class files and generated modules of the build with those of the
+         * previous build in the same output directory, and record them for the next build.
+         *
+         * @param incremental {@code true} to record build fingerprints, {@code false} otherwise
+         * @return this builder
+         * @see BuildFingerprints
+         */
+        public Builder setIncremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
         public Driver build() {
             return new Driver(this);
         }
@@ -0,0 +1,253 @@
+package org.qbicc.driver;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.plugin.metrics.CountMetric;
+import org.qbicc.plugin.metrics.MaximumMetric;
+import org.qbicc.plugin.metrics.Metrics;
+import org.qbicc.plugin.metrics.Timer;
+
+/**
+ * A work-stealing queue of compilation tasks.
+ * <p>
+ * Each compiler thread which is draining the queue owns a deque of tasks.  Tasks submitted by a draining thread are
+ * pushed on to the tail of its own deque, and each thread takes tasks from the tail of its own deque, so that in the
+ * common case no two threads contend for the same lock.  A thread whose deque is empty steals from the head of
+ * another thread's deque.  Tasks submitted by any other thread (for example, entry points enqueued by the driver) are
+ * placed on a shared injection deque.
+ * <p>
+ * The queue is quiescent when the number of submitted-but-not-completed tasks reaches zero, at which point every
+ * draining thread returns.
+ */
+final class TaskQueue {
+    private final ArrayDeque<Task> injected = new ArrayDeque<>();
+    /**
+     * The number of tasks which have been submitted but not yet completed.
+     */
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private final Object idleLock = new Object();
+    private volatile int idleCount;
+    private volatile Worker[] workers = new Worker[0];
+
+    private final CountMetric tasksMetric;
+    private final CountMetric stealsMetric;
+    private final MaximumMetric depthMetric;
+    private final Timer idleTimer;
+
+    TaskQueue(CompilationContext ctxt) {
+        Metrics metrics = Metrics.get(ctxt);
+        tasksMetric = metrics.getOrCreateRootCountMetric("scheduler tasks");
+        stealsMetric = metrics.getOrCreateRootCountMetric("scheduler steals");
+        depthMetric = metrics.getOrCreateRootMaximumMetric("scheduler peak queue depth");
+        idleTimer = metrics.getOrCreateRootTimer("scheduler idle");
+    }
+
+    /**
+     * Submit a task.
+     *
+     * @param worker the worker of the current thread, or {@code null} if the current thread is not draining this queue
+     * @param item the item to process
+     * @param consumer the item consumer
+     */
+    void submit(Worker worker, Object item, Consumer<?> consumer) {
+        // increment before publishing so that the count never reads zero while a task is queued
+        pending.getAndIncrement();
+        Task task = new Task(item, consumer);
+        int depth;
+        if (worker != null) {
+            depth = worker.push(task);
+        } else {
+            synchronized (injected) {
+                injected.addLast(task);
+                depth = injected.size();
+            }
+        }
+        depthMetric.observe(depth);
+        if (idleCount > 0) {
+            synchronized (idleLock) {
+                idleLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Prepare to drain the queue with the given number of threads.  Must not be called while the queue is being drained.
+     *
+     * @param threadCount the number of threads which will call {@link #drain}
+     */
+    void start(int threadCount) {
+        Worker[] workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i ++) {
+            workers[i] = new Worker(i);
+        }
+        nextWorker.set(0);
+        this.workers = workers;
+    }
+
+    /**
+     * Drain the queue on the current thread, returning once the queue is quiescent.  Each thread which was accounted
+     * for in {@link #start} must call this method exactly once.
+     *
+     * @param binder the action which associates the worker with the current thread so that it may be passed to
+     *      {@link #submit}; it is called with {@code null} before this method returns
+     * @param taskRunner the action which runs each task
+     */
+    void drain(Consumer<Worker> binder, TaskRunner taskRunner) {
+        Worker[] workers = this.workers;
+        Worker self = workers[nextWorker.getAndIncrement()];
+        binder.accept(self);
+        try {
+            for (;;) {
+                Task task = self.pop();
+                if (task == null) {
+                    task = pollInjected();
+                    if (task == null) {
+                        task = steal(workers, self);
+                        if (task == null) {
+                            if (! awaitWork(workers)) {
+                                return;
+                            }
+                            continue;
+                        }
+                    }
+                }
+                try {
+                    taskRunner.run(task.item, task.consumer);
+                } finally {
+                    self.completed ++;
+                    if (pending.decrementAndGet() == 0) {
+                        // quiescent; wake everyone so they can exit
+                        synchronized (idleLock) {
+                            idleLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        } finally {
+            binder.accept(null);
+            tasksMetric.add(self.completed);
+            stealsMetric.add(self.steals);
+        }
+    }
+
+    private Task pollInjected() {
+        synchronized (injected) {
+            return injected.pollFirst();
+        }
+    }
+
+    private Task steal(Worker[] workers, Worker self) {
+        int cnt = workers.length;
+        if (cnt > 1) {
+            int start = ThreadLocalRandom.current().nextInt(cnt);
+            for (int i = 0; i < cnt; i ++) {
+                Worker victim = workers[(start + i) % cnt];
+                if (victim != self) {
+                    Task task = victim.steal();
+                    if (task != null) {
+                        self.steals ++;
+                        return task;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean hasWork(Worker[] workers) {
+        synchronized (injected) {
+            if (! injected.isEmpty()) {
+                return true;
+            }
+        }
+        for (Worker worker : workers) {
+            if (worker.hasWork()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for work to become available.
+     *
+     * @return {@code true} if there may be work available, or {@code false} if the queue is quiescent
+     */
+    private boolean awaitWork(Worker[] workers) {
+        if (pending.get() == 0) {
+            return false;
+        }
+        try (Timer.StopWatch sw = idleTimer.startTimedTryBlock()) {
+            synchronized (idleLock) {
+                // announce before checking for work, so that a submitter which published work we did not see will wake us
+                idleCount ++;
+                try {
+                    while (pending.get() != 0 && ! hasWork(workers)) {
+                        try {
+                            idleLock.wait();
+                        } catch (InterruptedException ignored) {
+                            // safe to ignore
+                        }
+                    }
+                } finally {
+                    idleCount --;
+                }
+            }
+        }
+        return pending.get() != 0;
+    }
+
+    interface TaskRunner {
+        void run(Object item, Consumer<?> consumer);
+    }
+
+    record Task(Object item, Consumer<?> consumer) {}
+
+    static final class Worker {
+        private final ArrayDeque<Task> deque = new ArrayDeque<>();
+        private final int index;
+        // owner-only counters
+        long completed;
+        long steals;
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        int push(Task task) {
+            synchronized (deque) {
+                deque.addLast(task);
+                return deque.size();
+            }
+        }
+
+        Task pop() {
+            synchronized (deque) {
+                return deque.pollLast();
+            }
+        }
+
+        Task steal() {
+            synchronized (deque) {
+                return deque.pollFirst();
+            }
+        }
+
+        boolean hasWork() {
+            synchronized (deque) {
+                return ! deque.isEmpty();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "worker " + index;
+        }
+    }
+}
@@ -17,7 +17,9 @@ import org.qbicc.tests.snippets.ResourceLoading;
 import org.qbicc.tests.snippets.RuntimeChecks;
 import org.qbicc.tests.snippets.SelectorTest;
 import org.qbicc.tests.snippets.ServiceLoading;
+import org.qbicc.tests.snippets.StackTraceThroughput;
 import org.qbicc.tests.snippets.Synchronized;
+import org.qbicc.tests.snippets.TimeToSafePoint;
 import org.qbicc.tests.snippets.TryCatch;
 
 /**
@@ -51,9 +53,11 @@ public final class TestRunner {
             case "snippet-RuntimeChecks" -> RuntimeChecks.main(testArgs);
             case "snippet-SelectorTest" -> SelectorTest.main(testArgs);
             case "snippet-ServiceLoading" -> ServiceLoading.main(testArgs);
+            case "snippet-StackTraceThroughput" -> StackTraceThroughput.main(testArgs);
             case "snippet-TryCatch" -> TryCatch.main(testArgs);
             case "snippet-ClassLiteralTests" -> ClassLiteralTests.main(testArgs);
             case "snippet-Synchronized" -> Synchronized.main(testArgs);
+            case "snippet-TimeToSafePoint" -> TimeToSafePoint.main(testArgs);
             default -> {
                 System.err.printf("Unknown test name \"%s\"%n", test);
                 System.exit(1);
@@ -0,0 +1,45 @@
+package org.qbicc.tests.snippets;
+
+/**
+ * A microbenchmark of the throughput of throwing exceptions and filling in their stack traces, which looks up the
+ * call site of every frame on the stack.
+ */
+public class StackTraceThroughput {
+    static final int DEPTH = 32;
+    static final int ITERATIONS = 20_000;
+
+    static int depthSink;
+
+    static void recurse(int depth) {
+        if (depth == 0) {
+            throw new IllegalStateException("bottom");
+        }
+        recurse(depth - 1);
+        // prevent tail call elimination
+        depthSink = depth;
+    }
+
+    static int throwAndCatch() {
+        try {
+            recurse(DEPTH);
+        } catch (IllegalStateException e) {
+            return e.getStackTrace().length;
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) {
+        // warm up
+        int frames = 0;
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            frames = throwAndCatch();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            frames = throwAndCatch();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(frames > DEPTH ? "Y" : "N");
+        System.out.printf("throw and fill stack trace: %d ns per throw (%d frames)%n", Long.valueOf(elapsed / ITERATIONS), Integer.valueOf(frames));
+    }
+}
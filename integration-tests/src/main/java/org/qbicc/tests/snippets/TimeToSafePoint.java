@@ -0,0 +1,67 @@
+package org.qbicc.tests.snippets;
+
+/**
+ * A microbenchmark of the time taken to bring a thread which is running a call-free loop to a safepoint.
+ * <p>
+ * A worker thread spins in a loop without calls, while the main thread repeatedly requests a garbage collection,
+ * which must stop every thread. Without loop polls, the collection would wait for the loop to end.
+ */
+public class TimeToSafePoint {
+    static final int ROUNDS = 10;
+
+    static volatile boolean started;
+    static volatile boolean stop;
+    static volatile long sink;
+
+    // a loop with an unknown bound, which is strip-mined
+    static long countedLoop(int limit) {
+        long sum = 0;
+        for (int i = 0; i < limit; i++) {
+            sum += i ^ (sum >>> 7);
+        }
+        return sum;
+    }
+
+    // a loop which is not counted, which polls on every iteration
+    static long uncountedLoop() {
+        long sum = 0;
+        while (! stop) {
+            sum += sum >>> 3 | 1;
+        }
+        return sum;
+    }
+
+    static long measure(Runnable body) throws InterruptedException {
+        started = false;
+        stop = false;
+        Thread worker = new Thread(() -> {
+            started = true;
+            body.run();
+        });
+        worker.start();
+        while (! started) {
+            Thread.onSpinWait();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            System.gc();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        stop = true;
+        worker.join();
+        return best / 1000;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        long counted = measure(() -> {
+            while (! stop) {
+                sink = countedLoop(Integer.MAX_VALUE);
+            }
+        });
+        long uncounted = measure(() -> sink = uncountedLoop());
+        System.out.println("Y");
+        System.out.printf("time to safepoint (strip-mined loop): %d us%n", Long.valueOf(counted));
+        System.out.printf("time to safepoint (polled loop): %d us%n", Long.valueOf(uncounted));
+    }
+}
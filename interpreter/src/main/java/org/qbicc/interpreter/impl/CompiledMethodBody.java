@@ -0,0 +1,15 @@
+package org.qbicc.interpreter.impl;
+
+/**
+ * A method body which has been translated to JVM bytecode by {@link MethodBodyCompiler}.
+ */
+interface CompiledMethodBody {
+    /**
+     * Execute the method body in the given frame, whose parameters have already been bound.
+     *
+     * @param frame the frame (must not be {@code null})
+     * @param thread the current thread (must not be {@code null})
+     * @return the return value of the method
+     */
+    Object execute(Frame frame, VmThreadImpl thread);
+}
@@ -4,10 +4,9 @@ import static org.qbicc.graph.atomic.AccessModes.*;
 
 import java.lang.invoke.VarHandle;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.locks.Lock;
 
@@ -187,6 +186,13 @@ import org.qbicc.type.descriptor.MethodDescriptor;
 
 final strictfp class Frame implements ActionVisitor<VmThreadImpl, Void>, ValueVisitor<VmThreadImpl, Object>, TerminatorVisitor<VmThreadImpl, BasicBlock> {
     static final Object MISSING = new Object();
+    /**
+     * The value of a primitive slot which is held only in {@link #longs} or {@link #doubles}.
+     */
+    static final Object PRIMITIVE = new Object();
+
+    private static final long[] NO_LONGS = new long[0];
+    private static final double[] NO_DOUBLES = new double[0];
 
     /**
      * The calling frame.
@@ -209,9 +215,24 @@ final strictfp class Frame implements ActionVisitor<VmThreadImpl, Void>, ValueVi
     final MemoryPointer memoryPointer;
 
     /**
-     * Frame values.
+     * The layout of the frame value slots.
+     */
+    final FrameLayout layout;
+
+    /**
+     * Frame values, indexed by slot.
      */
-    final Map<Value, Object> values = new HashMap<>();
+    final Object[] values;
+
+    /**
+     * Integer and boolean frame values, indexed by the primitive index of their slot.
+     */
+    final long[] longs;
+
+    /**
+     * Floating point frame values, indexed by the primitive index of their slot.
+     */
+    final double[] doubles;
 
     /**
      * Current block.
@@ -238,11 +259,19 @@ final strictfp class Frame implements ActionVisitor<VmThreadImpl, Void>, ValueVi
      */
     VmThrowable exception;
 
-    Frame(Frame enclosing, ExecutableElement element, MemoryPointer memoryPointer) {
+    Frame(Frame enclosing, ExecutableElement element, FrameLayout layout, MemoryPointer memoryPointer) {
         this.enclosing = enclosing;
         this.depth = enclosing == null ? 0 : enclosing.depth + 1;
         this.element = element;
+        this.layout = layout;
         this.memoryPointer = memoryPointer;
+        Object[] values = new Object[layout.getSlotCount()];
+        Arrays.fill(values, MISSING);
+        this.values = values;
+        int longCount = layout.getLongCount();
+        this.longs = longCount == 0 ? NO_LONGS : new long[longCount];
+        int doubleCount = layout.getDoubleCount();
+        this.doubles = doubleCount == 0 ? NO_DOUBLES : new double[doubleCount];
     }
 
     /////////////////////
@@ -1829,7 +1858,7 @@ final strictfp class Frame implements ActionVisitor<VmThreadImpl, Void>, ValueVi
     @Override
     public BasicBlock visit(VmThreadImpl thread, Invoke node) {
         try {
-            values.put(node.getReturnValue(), call(thread, node.getTarget(), node.getReceiver(), require(node.getArguments())));
+            setValue(node.getReturnValue(), call(thread, node.getTarget(), node.getReceiver(), require(node.getArguments())));
             return node.getResumeTarget();
         } catch (Thrown t) {
             this.exception = t.getThrowable();
@@ -2341,7 +2370,7 @@ final strictfp class Frame implements ActionVisitor<VmThreadImpl, Void>, ValueVi
         Value address = node.getAddress();
         // replace it
         Pointer replacement = memoryPointer.offsetInBytes(lve.getOffset(), false);
-        values.put(address, replacement);
+        setValue(address, replacement);
         return null;
     }
 
@@ -2783,7 +2812,91 @@ final strictfp class Frame implements ActionVisitor<VmThreadImpl, Void>, ValueVi
         if (value instanceof Literal) {
             return value.accept(this, null);
         }
-        return values.getOrDefault(value, MISSING);
+        int slot = layout.getSlot(value);
+        if (slot == -1) {
+            return MISSING;
+        }
+        Object v = values[slot];
+        if (v == PRIMITIVE) {
+            // box it once, for consumers which are not evaluated directly on the primitive
+            v = boxSlot(slot);
+            values[slot] = v;
+        }
+        return v;
+    }
+
+    private Object boxSlot(int slot) {
+        FrameLayout layout = this.layout;
+        int index = layout.getPrimitiveIndex(slot);
+        ValueType type = layout.getType(slot);
+        return layout.getKind(slot) == FrameLayout.KIND_LONG ? box(longs[index], type) : box(doubles[index], type);
+    }
+
+    void setValue(Value value, Object v) {
+        int slot = layout.getSlot(value);
+        if (slot != -1) {
+            setSlot(slot, v);
+        } else if (value.getScheduleIndex() >= 0) {
+            // scheduled, so it may be read later, but it has nowhere to live
+            throw new IllegalStateException("No frame slot for scheduled value " + value);
+        }
+        // otherwise the value is never read (for example, an unused block parameter), so there is nothing to store
+    }
+
+    /**
+     * Set the value of the given slot.  The value of a primitive slot is also stored in the {@code long[]} or
+     * {@code double[]} of the frame.  Integer values of up to 32 bits are stored as {@link #unboxInt} would read them,
+     * 64-bit integer values as {@link Number#longValue()}, and booleans as 0 or 1.  A 64-bit integer value
+     * may also be a pointer, which is only stored as an object.
+     *
+     * @param slot the slot number
+     * @param v the value to store
+     */
+    void setSlot(int slot, Object v) {
+        FrameLayout layout = this.layout;
+        byte kind = layout.getKind(slot);
+        if (kind == FrameLayout.KIND_LONG) {
+            ValueType type = layout.getType(slot);
+            long longVal;
+            if (v instanceof Boolean boo) {
+                longVal = boo.booleanValue() ? 1 : 0;
+            } else if (v instanceof Character ch) {
+                longVal = ch.charValue();
+            } else if (v instanceof Number num) {
+                if (isBool(type)) {
+                    longVal = num.byteValue() != 0 ? 1 : 0;
+                } else if (isInt64(type)) {
+                    longVal = num.longValue();
+                } else if (type instanceof UnsignedIntegerType uit) {
+                    longVal = switch (uit.getMinBits()) {
+                        case 8 -> num.byteValue() & 0xff;
+                        case 16 -> num.shortValue() & 0xffff;
+                        default -> num.intValue();
+                    };
+                } else {
+                    longVal = num.intValue();
+                }
+            } else {
+                values[slot] = v;
+                return;
+            }
+            longs[layout.getPrimitiveIndex(slot)] = longVal;
+        } else if (kind == FrameLayout.KIND_DOUBLE && v instanceof Number num) {
+            doubles[layout.getPrimitiveIndex(slot)] = num.doubleValue();
+        }
+        values[slot] = v;
+    }
+
+    /**
+     * Determine whether the given primitive slot holds a number which is present in the {@code long[]} or
+     * {@code double[]} of the frame.
+     *
+     * @param slot the slot number
+     * @return {@code true} if the primitive value is present
+     */
+    boolean hasPrimitive(int slot) {
+        Object v = values[slot];
+        return v == PRIMITIVE || v instanceof Number || v instanceof Boolean || v instanceof Character;
     }
 
     private static IllegalStateException missingRequired() {
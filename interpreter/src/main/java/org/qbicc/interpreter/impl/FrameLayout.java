@@ -0,0 +1,207 @@
+package org.qbicc.interpreter.impl;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Value;
+import org.qbicc.type.BooleanType;
+import org.qbicc.type.FloatType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.definition.MethodBody;
+
+/**
+ * The layout of the value slots of an interpreter frame for a single scheduled method body.
+ * <p>
+ * Every scheduled value of a method body is assigned a dense slot number, which is the sum of the instruction
+ * counts of all the blocks which precede its block (by block index) plus its schedule index within its block.  This
+ * allows frame values to be stored in a flat array rather than a hash table.  The layout is computed once per method
+ * body and shared by every frame which executes it.
+ * <p>
+ * Slots of integer, boolean and floating point values are additionally given an index into a {@code long[]} or
+ * {@code double[]} of the frame, so that primitive values can be stored without being boxed.  Integer and boolean
+ * values are held in {@linkplain Frame#setSlot canonical form}.
+ */
+final class FrameLayout {
+    private static final int[] NO_BASES = new int[0];
+
+    /**
+     * The slot holds an object only.
+     */
+    static final byte KIND_OBJECT = 0;
+    /**
+     * The slot holds an integer or boolean value, which is also stored in the frame's {@code long[]}.
+     */
+    static final byte KIND_LONG = 1;
+    /**
+     * The slot holds a floating point value, which is also stored in the frame's {@code double[]}.
+     */
+    static final byte KIND_DOUBLE = 2;
+
+    /**
+     * The first slot of each block, indexed by block index, or -1 if the block is not part of the method body.
+     */
+    private final int[] blockBases;
+    private final int slotCount;
+    /**
+     * The kind of each slot.
+     */
+    private final byte[] kinds;
+    /**
+     * The index of each primitive slot in the {@code long[]} or {@code double[]} of the frame, or -1 for object slots.
+     */
+    private final int[] primitiveIndices;
+    /**
+     * The type of the value of each primitive slot, or {@code null} for object slots.
+     */
+    private final ValueType[] types;
+    private final int longCount;
+    private final int doubleCount;
+
+    private FrameLayout(int[] blockBases, int slotCount, byte[] kinds, int[] primitiveIndices, ValueType[] types, int longCount, int doubleCount) {
+        this.blockBases = blockBases;
+        this.slotCount = slotCount;
+        this.kinds = kinds;
+        this.primitiveIndices = primitiveIndices;
+        this.types = types;
+        this.longCount = longCount;
+        this.doubleCount = doubleCount;
+    }
+
+    static FrameLayout of(MethodBody body) {
+        BasicBlock entryBlock = body.getEntryBlock();
+        int[] blockBases = NO_BASES;
+        int slotCount = 0;
+        ArrayDeque<BasicBlock> blocks = new ArrayDeque<>();
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        work.add(entryBlock);
+        for (BasicBlock block = work.poll(); block != null; block = work.poll()) {
+            int index = block.getIndex();
+            if (index >= blockBases.length) {
+                int oldLength = blockBases.length;
+                blockBases = Arrays.copyOf(blockBases, Math.max(index + 1, oldLength << 1));
+                Arrays.fill(blockBases, oldLength, blockBases.length, -1);
+            } else if (blockBases[index] != -1) {
+                // already visited
+                continue;
+            }
+            blockBases[index] = slotCount;
+            slotCount += block.getInstructions().size();
+            blocks.add(block);
+            Terminator t = block.getTerminator();
+            int cnt = t.getSuccessorCount();
+            for (int i = 0; i < cnt; i ++) {
+                work.add(t.getSuccessor(i));
+            }
+        }
+        byte[] kinds = new byte[slotCount];
+        int[] primitiveIndices = new int[slotCount];
+        ValueType[] types = new ValueType[slotCount];
+        int longCount = 0;
+        int doubleCount = 0;
+        int slot = 0;
+        for (BasicBlock block : blocks) {
+            for (Node node : block.getInstructions()) {
+                primitiveIndices[slot] = -1;
+                if (node instanceof Value value) {
+                    ValueType type = value.getType();
+                    if (type instanceof IntegerType || type instanceof BooleanType) {
+                        kinds[slot] = KIND_LONG;
+                        primitiveIndices[slot] = longCount++;
+                        types[slot] = type;
+                    } else if (type instanceof FloatType) {
+                        kinds[slot] = KIND_DOUBLE;
+                        primitiveIndices[slot] = doubleCount++;
+                        types[slot] = type;
+                    }
+                }
+                slot ++;
+            }
+        }
+        return new FrameLayout(blockBases, slotCount, kinds, primitiveIndices, types, longCount, doubleCount);
+    }
+
+    /**
+     * Get the number of value slots needed by a frame with this layout.
+     *
+     * @return the slot count
+     */
+    int getSlotCount() {
+        return slotCount;
+    }
+
+    /**
+     * Get the number of {@code long} slots needed by a frame with this layout.
+     *
+     * @return the {@code long} slot count
+     */
+    int getLongCount() {
+        return longCount;
+    }
+
+    /**
+     * Get the number of {@code double} slots needed by a frame with this layout.
+     *
+     * @return the {@code double} slot count
+     */
+    int getDoubleCount() {
+        return doubleCount;
+    }
+
+    /**
+     * Get the kind of the given slot.
+     *
+     * @param slot the slot number
+     * @return one of {@link #KIND_OBJECT}, {@link #KIND_LONG} or {@link #KIND_DOUBLE}
+     */
+    byte getKind(int slot) {
+        return kinds[slot];
+    }
+
+    /**
+     * Get the index of the given primitive slot in the frame's {@code long[]} or {@code double[]}.
+     *
+     * @param slot the slot number
+     * @return the primitive index, or -1 if the slot is an object slot
+     */
+    int getPrimitiveIndex(int slot) {
+        return primitiveIndices[slot];
+    }
+
+    /**
+     * Get the type of the value of the given primitive slot.
+     *
+     * @param slot the slot number
+     * @return the value type, or {@code null} if the slot is an object slot
+     */
+    ValueType getType(int slot) {
+        return types[slot];
+    }
+
+    /**
+     * Get the slot of the given value.
+     *
+     * @param value the value (must not be {@code null})
+     * @return the slot number, or -1 if the value is not scheduled in this method body
+     */
+    int getSlot(Value value) {
+        int scheduleIndex = value.getScheduleIndex();
+        if (scheduleIndex < 0) {
+            return -1;
+        }
+        BasicBlock block = value.getScheduledBlock();
+        if (block == null) {
+            return -1;
+        }
+        int index = block.getIndex();
+        int[] blockBases = this.blockBases;
+        if (index >= blockBases.length) {
+            return -1;
+        }
+        int base = blockBases[index];
+        return base == -1 ? -1 : base + scheduleIndex;
+    }
+}
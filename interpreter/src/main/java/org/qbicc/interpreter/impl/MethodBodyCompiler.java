@@ -0,0 +1,721 @@
+package org.qbicc.interpreter.impl;
+
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.logging.Logger;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.qbicc.graph.Action;
+import org.qbicc.graph.ActionVisitor;
+import org.qbicc.graph.Add;
+import org.qbicc.graph.And;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BinaryValue;
+import org.qbicc.graph.BlockParameter;
+import org.qbicc.graph.If;
+import org.qbicc.graph.Invoke;
+import org.qbicc.graph.InvokeNoReturn;
+import org.qbicc.graph.IsEq;
+import org.qbicc.graph.IsGe;
+import org.qbicc.graph.IsGt;
+import org.qbicc.graph.IsLe;
+import org.qbicc.graph.IsLt;
+import org.qbicc.graph.IsNe;
+import org.qbicc.graph.Multiply;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Or;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Sub;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.TerminatorVisitor;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.ValueVisitor;
+import org.qbicc.graph.Xor;
+import org.qbicc.graph.literal.FloatLiteral;
+import org.qbicc.graph.literal.IntegerLiteral;
+import org.qbicc.interpreter.VmThrowable;
+import org.qbicc.type.FloatType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.SignedIntegerType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * The second execution tier of the interpreter, which translates the scheduled graph of a frequently executed method
+ * body into the body of a hidden JVM class.
+ * <p>
+ * The generated code performs exactly the same steps as the interpreter loop in {@link VmInvokableImpl}, but with
+ * the block structure turned into JVM control flow and with each node evaluated by a direct call to the
+ * corresponding {@code Frame.visit} method.  Node and block references are loaded as class data constants and frame
+ * slots are resolved at translation time.  This removes the per-node dispatch and bookkeeping of the interpreter loop,
+ * and gives each node its own call site so that the host JIT can profile and inline it separately.
+ * <p>
+ * Integer and floating point arithmetic, integer comparisons and conditional branches whose inputs live in primitive
+ * frame slots are instead evaluated directly on the {@code long[]} and {@code double[]} of the frame, so that they do
+ * not box.  A 64-bit integer slot may hold a pointer, so such operations check their inputs first and fall back to
+ * the {@code visit} method.
+ */
+final class MethodBodyCompiler {
+    private static final Logger log = Logger.getLogger("org.qbicc.interpreter.compiler");
+
+    /**
+     * The largest number of nodes that will be translated; larger bodies would risk exceeding the JVM method size limit.
+     */
+    private static final int MAX_NODES = 2000;
+
+    private static final String GEN_NAME = "org/qbicc/interpreter/impl/GenMethodBody";
+    private static final String FRAME_NAME = Type.getInternalName(Frame.class);
+    private static final String OBJECT_DESC = Type.getDescriptor(Object.class);
+    private static final String NODE_DESC = Type.getDescriptor(Node.class);
+    private static final String VALUE_DESC = Type.getDescriptor(Value.class);
+    private static final String THROWABLE_DESC = Type.getDescriptor(VmThrowable.class);
+    private static final String BLOCK_DESC = Type.getDescriptor(BasicBlock.class);
+    private static final String EXECUTE_DESC = Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Frame.class), Type.getType(VmThreadImpl.class));
+    private static final String REQUIRE_DESC = Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(Value.class));
+    private static final String SET_SLOT_DESC = Type.getMethodDescriptor(Type.VOID_TYPE, Type.INT_TYPE, Type.getType(Object.class));
+    private static final String HAS_PRIMITIVE_DESC = Type.getMethodDescriptor(Type.BOOLEAN_TYPE, Type.INT_TYPE);
+
+    private static final Handle CLASS_DATA_AT_HANDLE = new Handle(
+        Opcodes.H_INVOKESTATIC,
+        "java/lang/invoke/MethodHandles",
+        "classDataAt",
+        "(" +
+            Type.getDescriptor(MethodHandles.Lookup.class) +
+            Type.getDescriptor(String.class) +
+            Type.getDescriptor(Class.class) +
+            "I" +
+        ")" + OBJECT_DESC,
+        false
+    );
+
+    // local variable indices of the generated method
+    private static final int L_FRAME = 1;
+    private static final int L_THREAD = 2;
+    private static final int L_VALUES = 3;
+    private static final int L_NEXT = 4;
+    private static final int L_LONGS = 5;
+    private static final int L_DOUBLES = 6;
+
+    private static final Map<Class<?>, Method> visitMethods = new HashMap<>();
+
+    private final ExecutableElement element;
+    private final FrameLayout layout;
+    private final List<Object> classData = new ArrayList<>();
+    // nodes have structural equality, so constants must be tracked by identity
+    private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+    private final Map<BasicBlock, Label> labels = new LinkedHashMap<>();
+
+    private MethodBodyCompiler(ExecutableElement element, FrameLayout layout) {
+        this.element = element;
+        this.layout = layout;
+    }
+
+    /**
+     * Translate the given element's method body.
+     *
+     * @param element the element whose method body should be translated (must not be {@code null})
+     * @param layout the frame layout of the method body (must not be {@code null})
+     * @return the compiled method body, or {@code null} if the method body cannot be translated
+     */
+    static CompiledMethodBody compile(ExecutableElement element, FrameLayout layout) {
+        try {
+            return new MethodBodyCompiler(element, layout).compile();
+        } catch (RuntimeException | LinkageError e) {
+            // just keep interpreting
+            log.debugf(e, "Failed to compile %s", element);
+            return null;
+        }
+    }
+
+    private CompiledMethodBody compile() {
+        MethodBody body = element.getMethodBody();
+        List<BasicBlock> blocks = new ArrayList<>();
+        int nodeCount = 0;
+        Set<BasicBlock> visited = new LinkedHashSet<>();
+        ArrayDeque<BasicBlock> work = new ArrayDeque<>();
+        work.add(body.getEntryBlock());
+        for (BasicBlock block = work.poll(); block != null; block = work.poll()) {
+            if (visited.add(block)) {
+                blocks.add(block);
+                nodeCount += block.getInstructions().size();
+                if (nodeCount > MAX_NODES) {
+                    log.debugf("Not compiling %s: method body is too large", element);
+                    return null;
+                }
+                labels.put(block, new Label());
+                Terminator t = block.getTerminator();
+                int cnt = t.getSuccessorCount();
+                for (int i = 0; i < cnt; i ++) {
+                    work.add(t.getSuccessor(i));
+                }
+            }
+        }
+
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V17, Opcodes.ACC_SUPER | Opcodes.ACC_FINAL, GEN_NAME, null, "java/lang/Object", new String[] { Type.getInternalName(CompiledMethodBody.class) });
+
+        MethodVisitor ctor = cw.visitMethod(0, "<init>", "()V", null, null);
+        ctor.visitCode();
+        ctor.visitVarInsn(Opcodes.ALOAD, 0);
+        ctor.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        ctor.visitInsn(Opcodes.RETURN);
+        ctor.visitMaxs(0, 0);
+        ctor.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "execute", EXECUTE_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME_NAME, "values", "[" + OBJECT_DESC);
+        mv.visitVarInsn(Opcodes.ASTORE, L_VALUES);
+        mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME_NAME, "longs", "[J");
+        mv.visitVarInsn(Opcodes.ASTORE, L_LONGS);
+        mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME_NAME, "doubles", "[D");
+        mv.visitVarInsn(Opcodes.ASTORE, L_DOUBLES);
+        for (BasicBlock block : blocks) {
+            emitBlock(mv, block);
+        }
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        MethodHandles.Lookup hiddenClassLookup;
+        try {
+            hiddenClassLookup = MethodHandles.lookup().defineHiddenClassWithClassData(cw.toByteArray(), List.copyOf(classData), false);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Unexpected illegal access", e);
+        }
+        try {
+            return (CompiledMethodBody) hiddenClassLookup.findConstructor(hiddenClassLookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private void emitBlock(MethodVisitor mv, BasicBlock block) {
+        mv.visitLabel(labels.get(block));
+        Terminator t = block.getTerminator();
+        for (Node node : block.getInstructions()) {
+            if (node == t) {
+                break;
+            }
+            // only execute values and actions; terminators are handled below
+            if (node instanceof Value value) {
+                int slot = slotOf(value);
+                if (value instanceof BlockParameter && slot != -1 && layout.getKind(slot) != FrameLayout.KIND_OBJECT) {
+                    // already stored by the incoming edge; evaluating it would only box the primitive
+                    continue;
+                }
+                if (slot == -1 || ! emitPrimitive(mv, value, slot)) {
+                    emitValue(mv, value, slot);
+                }
+            } else if (node instanceof Action) {
+                setIp(mv, node);
+                emitVisit(mv, node, ActionVisitor.class, Action.class);
+                mv.visitInsn(Opcodes.POP);
+            }
+        }
+        if (t instanceof If if_ && emitIf(mv, if_)) {
+            return;
+        }
+        setIp(mv, t);
+        emitVisit(mv, t, TerminatorVisitor.class, Terminator.class);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(BasicBlock.class));
+        mv.visitVarInsn(Opcodes.ASTORE, L_NEXT);
+        Label notReturning = new Label();
+        mv.visitVarInsn(Opcodes.ALOAD, L_NEXT);
+        mv.visitJumpInsn(Opcodes.IFNONNULL, notReturning);
+        // we're returning
+        mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        mv.visitFieldInsn(Opcodes.GETFIELD, FRAME_NAME, "output", OBJECT_DESC);
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitLabel(notReturning);
+        Set<BasicBlock> successors = new LinkedHashSet<>();
+        int cnt = t.getSuccessorCount();
+        for (int i = 0; i < cnt; i ++) {
+            successors.add(t.getSuccessor(i));
+        }
+        for (BasicBlock next : successors) {
+            Label notThis = new Label();
+            mv.visitVarInsn(Opcodes.ALOAD, L_NEXT);
+            mv.visitLdcInsn(constant(next, BLOCK_DESC));
+            mv.visitJumpInsn(Opcodes.IF_ACMPNE, notThis);
+            emitEdge(mv, t, next);
+            mv.visitJumpInsn(Opcodes.GOTO, labels.get(next));
+            mv.visitLabel(notThis);
+        }
+        mv.visitTypeInsn(Opcodes.NEW, "java/lang/IllegalStateException");
+        mv.visitInsn(Opcodes.DUP);
+        mv.visitLdcInsn("Illegal instruction");
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "(Ljava/lang/String;)V", false);
+        mv.visitInsn(Opcodes.ATHROW);
+    }
+
+    /**
+     * Emit the transfer of outbound values from the given terminator to the parameters of the given successor.
+     */
+    private void emitEdge(MethodVisitor mv, Terminator t, BasicBlock next) {
+        // register outbound values
+        for (Slot slot : t.getOutboundArgumentNames()) {
+            BlockParameter param = next.getBlockParameter(slot);
+            if (param != null) {
+                emitSetFromRequired(mv, param, t.getOutboundArgument(slot));
+            }
+        }
+        // special: Invoke
+        if (t instanceof Invoke inv && next == inv.getResumeTarget()) {
+            BlockParameter bp = next.getBlockParameter(Slot.result());
+            if (bp != null) {
+                emitSetFromRequired(mv, bp, inv.getReturnValue());
+            }
+        } else if (t instanceof Invoke || t instanceof InvokeNoReturn) {
+            BlockParameter bp = next.getBlockParameter(Slot.thrown());
+            if (bp != null) {
+                int slot = slotOf(bp);
+                if (slot != -1) {
+                    mv.visitVarInsn(Opcodes.ALOAD, L_VALUES);
+                    pushInt(mv, slot);
+                    mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+                    mv.visitFieldInsn(Opcodes.GETFIELD, FRAME_NAME, "exception", THROWABLE_DESC);
+                    mv.visitInsn(Opcodes.AASTORE);
+                }
+            }
+            mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+            mv.visitInsn(Opcodes.ACONST_NULL);
+            mv.visitFieldInsn(Opcodes.PUTFIELD, FRAME_NAME, "exception", THROWABLE_DESC);
+        }
+    }
+
+    private void emitSetFromRequired(MethodVisitor mv, BlockParameter param, Value value) {
+        int slot = slotOf(param);
+        if (slot != -1) {
+            byte kind = layout.getKind(slot);
+            int valueSlot = value.getScheduleIndex() >= 0 ? slotOf(value) : -1;
+            if (kind != FrameLayout.KIND_OBJECT && valueSlot != -1 && layout.getKind(valueSlot) == kind) {
+                // copy the primitive and its object form (if any) without boxing
+                boolean isLong = kind == FrameLayout.KIND_LONG;
+                mv.visitVarInsn(Opcodes.ALOAD, isLong ? L_LONGS : L_DOUBLES);
+                pushInt(mv, layout.getPrimitiveIndex(slot));
+                mv.visitVarInsn(Opcodes.ALOAD, isLong ? L_LONGS : L_DOUBLES);
+                pushInt(mv, layout.getPrimitiveIndex(valueSlot));
+                mv.visitInsn(isLong ? Opcodes.LALOAD : Opcodes.DALOAD);
+                mv.visitInsn(isLong ? Opcodes.LASTORE : Opcodes.DASTORE);
+                mv.visitVarInsn(Opcodes.ALOAD, L_VALUES);
+                pushInt(mv, slot);
+                mv.visitVarInsn(Opcodes.ALOAD, L_VALUES);
+                pushInt(mv, valueSlot);
+                mv.visitInsn(Opcodes.AALOAD);
+                mv.visitInsn(Opcodes.AASTORE);
+                return;
+            }
+            emitStoreStart(mv, slot);
+        }
+        mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        mv.visitLdcInsn(constant(value, VALUE_DESC));
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "require", REQUIRE_DESC, false);
+        if (slot != -1) {
+            emitStoreEnd(mv, slot);
+        } else {
+            mv.visitInsn(Opcodes.POP);
+        }
+    }
+
+    /**
+     * Emit the evaluation of the given value by its {@code visit} method, storing the result into the given slot.
+     */
+    private void emitValue(MethodVisitor mv, Value value, int slot) {
+        setIp(mv, value);
+        if (slot != -1) {
+            emitStoreStart(mv, slot);
+            emitVisit(mv, value, ValueVisitor.class, Value.class);
+            emitStoreEnd(mv, slot);
+        } else {
+            emitVisit(mv, value, ValueVisitor.class, Value.class);
+            mv.visitInsn(Opcodes.POP);
+        }
+    }
+
+    /**
+     * Emit the part of a store of an object into the given slot which precedes the pushing of the object.
+     */
+    private void emitStoreStart(MethodVisitor mv, int slot) {
+        if (layout.getKind(slot) == FrameLayout.KIND_OBJECT) {
+            mv.visitVarInsn(Opcodes.ALOAD, L_VALUES);
+        } else {
+            // primitive slots must also have their primitive form stored
+            mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        }
+        pushInt(mv, slot);
+    }
+
+    /**
+     * Emit the part of a store of an object into the given slot which follows the pushing of the object.
+     */
+    private void emitStoreEnd(MethodVisitor mv, int slot) {
+        if (layout.getKind(slot) == FrameLayout.KIND_OBJECT) {
+            mv.visitInsn(Opcodes.AASTORE);
+        } else {
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "setSlot", SET_SLOT_DESC, false);
+        }
+    }
+
+    /**
+     * Emit the evaluation of the given value directly on primitive frame slots, if it is a supported operation whose
+     * inputs are all literals or primitive slots.
+     *
+     * @return {@code true} if the value was emitted, or {@code false} if it must be evaluated by its {@code visit} method
+     */
+    private boolean emitPrimitive(MethodVisitor mv, Value value, int slot) {
+        if (! (value instanceof BinaryValue bv)) {
+            return false;
+        }
+        Value left = bv.getLeftInput();
+        Value right = bv.getRightInput();
+        ValueType inputType = left.getType();
+        if (! inputType.equals(right.getType()) || ! isPrimitiveInput(left) || ! isPrimitiveInput(right)) {
+            return false;
+        }
+        int opcode;
+        boolean compare = false;
+        if (inputType instanceof IntegerType it) {
+            int bits = it.getMinBits();
+            boolean wide = bits == 64;
+            boolean unsigned32 = bits == 32 && ! (it instanceof SignedIntegerType);
+            if (value instanceof Add) {
+                opcode = wide ? Opcodes.LADD : Opcodes.IADD;
+            } else if (value instanceof Sub) {
+                opcode = wide ? Opcodes.LSUB : Opcodes.ISUB;
+            } else if (value instanceof Multiply) {
+                opcode = wide ? Opcodes.LMUL : Opcodes.IMUL;
+            } else if (value instanceof And && bits >= 32) {
+                opcode = wide ? Opcodes.LAND : Opcodes.IAND;
+            } else if (value instanceof Or && bits >= 32) {
+                opcode = wide ? Opcodes.LOR : Opcodes.IOR;
+            } else if (value instanceof Xor && bits >= 32) {
+                opcode = wide ? Opcodes.LXOR : Opcodes.IXOR;
+            } else if (wide) {
+                // 64-bit comparisons have pointer semantics
+                return false;
+            } else if (value instanceof IsEq) {
+                opcode = Opcodes.IF_ICMPEQ;
+                compare = true;
+            } else if (value instanceof IsNe) {
+                opcode = Opcodes.IF_ICMPNE;
+                compare = true;
+            } else if (unsigned32) {
+                // narrower unsigned values are zero-extended, so only these need an unsigned comparison
+                return false;
+            } else if (value instanceof IsLt) {
+                opcode = Opcodes.IF_ICMPLT;
+                compare = true;
+            } else if (value instanceof IsLe) {
+                opcode = Opcodes.IF_ICMPLE;
+                compare = true;
+            } else if (value instanceof IsGt) {
+                opcode = Opcodes.IF_ICMPGT;
+                compare = true;
+            } else if (value instanceof IsGe) {
+                opcode = Opcodes.IF_ICMPGE;
+                compare = true;
+            } else {
+                return false;
+            }
+            Label generic = null;
+            if (wide) {
+                generic = new Label();
+                emitPrimitiveCheck(mv, left, generic);
+                emitPrimitiveCheck(mv, right, generic);
+            }
+            mv.visitVarInsn(Opcodes.ALOAD, L_LONGS);
+            pushInt(mv, layout.getPrimitiveIndex(slot));
+            pushLongInput(mv, left, it);
+            pushLongInput(mv, right, it);
+            if (compare) {
+                Label isTrue = new Label();
+                Label done = new Label();
+                mv.visitJumpInsn(opcode, isTrue);
+                mv.visitInsn(Opcodes.LCONST_0);
+                mv.visitJumpInsn(Opcodes.GOTO, done);
+                mv.visitLabel(isTrue);
+                mv.visitInsn(Opcodes.LCONST_1);
+                mv.visitLabel(done);
+            } else {
+                mv.visitInsn(opcode);
+                if (! wide) {
+                    emitTruncate(mv, it);
+                    mv.visitInsn(Opcodes.I2L);
+                }
+            }
+            mv.visitInsn(Opcodes.LASTORE);
+            emitPrimitiveMarker(mv, slot);
+            if (generic != null) {
+                Label done = new Label();
+                mv.visitJumpInsn(Opcodes.GOTO, done);
+                mv.visitLabel(generic);
+                emitValue(mv, value, slot);
+                mv.visitLabel(done);
+            }
+            return true;
+        } else if (inputType instanceof FloatType ft) {
+            boolean wide = ft.getMinBits() == 64;
+            if (value instanceof Add) {
+                opcode = wide ? Opcodes.DADD : Opcodes.FADD;
+            } else if (value instanceof Sub) {
+                opcode = wide ? Opcodes.DSUB : Opcodes.FSUB;
+            } else if (value instanceof Multiply) {
+                opcode = wide ? Opcodes.DMUL : Opcodes.FMUL;
+            } else {
+                return false;
+            }
+            mv.visitVarInsn(Opcodes.ALOAD, L_DOUBLES);
+            pushInt(mv, layout.getPrimitiveIndex(slot));
+            pushDoubleInput(mv, left, wide);
+            pushDoubleInput(mv, right, wide);
+            mv.visitInsn(opcode);
+            if (! wide) {
+                mv.visitInsn(Opcodes.F2D);
+            }
+            mv.visitInsn(Opcodes.DASTORE);
+            emitPrimitiveMarker(mv, slot);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Emit a conditional branch on a condition which lives in a primitive slot.
+     *
+     * @return {@code true} if the branch was emitted, or {@code false} if it must be evaluated by its {@code visit} method
+     */
+    private boolean emitIf(MethodVisitor mv, If if_) {
+        Value cond = if_.getCondition();
+        if (! isPrimitiveInput(cond) || cond instanceof IntegerLiteral) {
+            return false;
+        }
+        BasicBlock trueBranch = if_.getTrueBranch();
+        BasicBlock falseBranch = if_.getFalseBranch();
+        Label isFalse = new Label();
+        mv.visitVarInsn(Opcodes.ALOAD, L_LONGS);
+        pushInt(mv, layout.getPrimitiveIndex(slotOf(cond)));
+        mv.visitInsn(Opcodes.LALOAD);
+        mv.visitInsn(Opcodes.LCONST_0);
+        mv.visitInsn(Opcodes.LCMP);
+        mv.visitJumpInsn(Opcodes.IFEQ, isFalse);
+        emitEdge(mv, if_, trueBranch);
+        mv.visitJumpInsn(Opcodes.GOTO, labels.get(trueBranch));
+        mv.visitLabel(isFalse);
+        emitEdge(mv, if_, falseBranch);
+        mv.visitJumpInsn(Opcodes.GOTO, labels.get(falseBranch));
+        return true;
+    }
+
+    /**
+     * Determine whether the given input is a literal or lives in a primitive slot.
+     */
+    private boolean isPrimitiveInput(Value input) {
+        if (input instanceof IntegerLiteral || input instanceof FloatLiteral) {
+            return true;
+        }
+        if (input.getScheduleIndex() < 0) {
+            return false;
+        }
+        int slot = slotOf(input);
+        return slot != -1 && layout.getKind(slot) != FrameLayout.KIND_OBJECT;
+    }
+
+    /**
+     * Emit a jump to the given label if the given input's slot does not hold its primitive value.
+     */
+    private void emitPrimitiveCheck(MethodVisitor mv, Value input, Label notPrimitive) {
+        if (! (input instanceof IntegerLiteral)) {
+            mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+            pushInt(mv, slotOf(input));
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "hasPrimitive", HAS_PRIMITIVE_DESC, false);
+            mv.visitJumpInsn(Opcodes.IFEQ, notPrimitive);
+        }
+    }
+
+    /**
+     * Push the given integer input, as an {@code int} if the type is narrower than 64 bits or as a {@code long} otherwise.
+     */
+    private void pushLongInput(MethodVisitor mv, Value input, IntegerType type) {
+        boolean wide = type.getMinBits() == 64;
+        if (input instanceof IntegerLiteral lit) {
+            if (wide) {
+                mv.visitLdcInsn(Long.valueOf(lit.longValue()));
+            } else {
+                mv.visitLdcInsn(Integer.valueOf(truncate(lit.intValue(), type)));
+            }
+        } else {
+            mv.visitVarInsn(Opcodes.ALOAD, L_LONGS);
+            pushInt(mv, layout.getPrimitiveIndex(slotOf(input)));
+            mv.visitInsn(Opcodes.LALOAD);
+            if (! wide) {
+                mv.visitInsn(Opcodes.L2I);
+            }
+        }
+    }
+
+    /**
+     * Push the given floating point input, as a {@code float} or as a {@code double} if {@code wide} is {@code true}.
+     */
+    private void pushDoubleInput(MethodVisitor mv, Value input, boolean wide) {
+        if (input instanceof FloatLiteral lit) {
+            if (wide) {
+                mv.visitLdcInsn(Double.valueOf(lit.doubleValue()));
+            } else {
+                mv.visitLdcInsn(Float.valueOf(lit.floatValue()));
+            }
+        } else {
+            mv.visitVarInsn(Opcodes.ALOAD, L_DOUBLES);
+            pushInt(mv, layout.getPrimitiveIndex(slotOf(input)));
+            mv.visitInsn(Opcodes.DALOAD);
+            if (! wide) {
+                mv.visitInsn(Opcodes.D2F);
+            }
+        }
+    }
+
+    /**
+     * Emit the truncation of the {@code int} on the stack to the canonical form of the given type (see
+     * {@link Frame#setSlot}).
+     */
+    private static void emitTruncate(MethodVisitor mv, IntegerType type) {
+        boolean signed = type instanceof SignedIntegerType;
+        switch (type.getMinBits()) {
+            case 8 -> {
+                if (signed) {
+                    mv.visitInsn(Opcodes.I2B);
+                } else {
+                    mv.visitIntInsn(Opcodes.SIPUSH, 0xff);
+                    mv.visitInsn(Opcodes.IAND);
+                }
+            }
+            case 16 -> mv.visitInsn(signed ? Opcodes.I2S : Opcodes.I2C);
+            default -> {}
+        }
+    }
+
+    /**
+     * Truncate the given {@code int} to the canonical form of the given type (see {@link Frame#setSlot}).
+     */
+    private static int truncate(int value, IntegerType type) {
+        boolean signed = type instanceof SignedIntegerType;
+        return switch (type.getMinBits()) {
+            case 8 -> signed ? (byte) value : value & 0xff;
+            case 16 -> signed ? (short) value : value & 0xffff;
+            default -> value;
+        };
+    }
+
+    /**
+     * Emit a store of the marker indicating that the given slot's value is present only in primitive form.
+     */
+    private static void emitPrimitiveMarker(MethodVisitor mv, int slot) {
+        mv.visitVarInsn(Opcodes.ALOAD, L_VALUES);
+        pushInt(mv, slot);
+        mv.visitFieldInsn(Opcodes.GETSTATIC, FRAME_NAME, "PRIMITIVE", OBJECT_DESC);
+        mv.visitInsn(Opcodes.AASTORE);
+    }
+
+    /**
+     * Get the frame slot of the given value, or {@code -1} if the value is never scheduled and so is never read.
+     */
+    private int slotOf(Value value) {
+        int slot = layout.getSlot(value);
+        if (slot == -1 && value.getScheduleIndex() >= 0) {
+            throw new IllegalStateException("No frame slot for scheduled value " + value);
+        }
+        return slot;
+    }
+
+    private void setIp(MethodVisitor mv, Node node) {
+        mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+        mv.visitLdcInsn(constant(node, NODE_DESC));
+        mv.visitFieldInsn(Opcodes.PUTFIELD, FRAME_NAME, "ip", NODE_DESC);
+    }
+
+    /**
+     * Emit a call to evaluate the given node, leaving the result on the stack.  If {@code Frame} has a specific
+     * {@code visit} method for the node's class, it is called directly; otherwise the node's {@code accept} method is
+     * called.
+     */
+    private void emitVisit(MethodVisitor mv, Node node, Class<?> visitorType, Class<?> nodeType) {
+        Method method = findVisitMethod(node.getClass());
+        if (method != null) {
+            mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+            mv.visitVarInsn(Opcodes.ALOAD, L_THREAD);
+            mv.visitLdcInsn(constant(node, Type.getDescriptor(method.getParameterTypes()[1])));
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME_NAME, "visit", Type.getMethodDescriptor(method), false);
+        } else {
+            mv.visitLdcInsn(constant(node, Type.getDescriptor(nodeType)));
+            mv.visitVarInsn(Opcodes.ALOAD, L_FRAME);
+            mv.visitVarInsn(Opcodes.ALOAD, L_THREAD);
+            mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, Type.getInternalName(nodeType), "accept", Type.getMethodDescriptor(Type.getType(Object.class), Type.getType(visitorType), Type.getType(Object.class)), true);
+        }
+    }
+
+    private static Method findVisitMethod(Class<?> nodeClass) {
+        synchronized (visitMethods) {
+            if (visitMethods.containsKey(nodeClass)) {
+                return visitMethods.get(nodeClass);
+            }
+            Method method;
+            try {
+                method = Frame.class.getDeclaredMethod("visit", VmThreadImpl.class, nodeClass);
+                if (! Modifier.isPublic(method.getModifiers()) || method.isBridge()) {
+                    method = null;
+                }
+            } catch (NoSuchMethodException e) {
+                method = null;
+            }
+            visitMethods.put(nodeClass, method);
+            return method;
+        }
+    }
+
+    private ConstantDynamic constant(Object object, String descriptor) {
+        Integer index = constantIndices.get(object);
+        if (index == null) {
+            index = Integer.valueOf(classData.size());
+            classData.add(object);
+            constantIndices.put(object, index);
+        }
+        return new ConstantDynamic(ConstantDescs.DEFAULT_NAME, descriptor, CLASS_DATA_AT_HANDLE, index);
+    }
+
+    private static void pushInt(MethodVisitor mv, int value) {
+        if (value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(Integer.valueOf(value));
+        }
+    }
+}
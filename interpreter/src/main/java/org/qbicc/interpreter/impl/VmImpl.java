@@ -88,6 +88,11 @@ import org.qbicc.type.methodhandle.MethodHandleConstant;
 import org.qbicc.type.methodhandle.MethodMethodHandleConstant;
 
 public final class VmImpl implements Vm {
+    /**
+     * The default number of invocations after which an interpreted method is compiled to JVM bytecode.
+     */
+    public static final int DEFAULT_COMPILE_THRESHOLD = 1000;
+
     private final CompilationContext ctxt;
     private final Map<GlobalVariableElement, Memory> globals = new ConcurrentHashMap<>();
     private final Map<String, VmStringImpl> interned = new ConcurrentHashMap<>();
@@ -178,6 +183,8 @@ public final class VmImpl implements Vm {
 
     volatile VmObject mainThreadGroup;
 
+    private volatile int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+
     final Set<VmThreadImpl> startedThreads = ConcurrentHashMap.newKeySet();
 
     VmImpl(final CompilationContext ctxt, Consumer<VmObject> manualInitializers) {
@@ -1278,6 +1285,21 @@ public final class VmImpl implements Vm {
         return new VmImpl(Assert.checkNotNullParam("ctxt", ctxt), manualInitializer);
     }
 
+    /**
+     * Set the number of invocations after which an interpreted method is compiled to JVM bytecode.
+     *
+     * @param compileThreshold the invocation count threshold, or 0 to disable compilation
+     * @return this VM
+     */
+    public VmImpl setCompileThreshold(int compileThreshold) {
+        this.compileThreshold = Assert.checkMinimumParameter("compileThreshold", 0, compileThreshold);
+        return this;
+    }
+
+    int getCompileThreshold() {
+        return compileThreshold;
+    }
+
     public VmImpl setPropertyDefines(List<String> propDefines) {
         this.propertyDefines = propDefines;
         return this;
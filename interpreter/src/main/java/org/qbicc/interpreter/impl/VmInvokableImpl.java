@@ -43,15 +43,19 @@ final class VmInvokableImpl implements VmInvokable {
 
     private final ExecutableElement element;
     private final ValueType frameMemoryType;
+    private final FrameLayout frameLayout;
     @SuppressWarnings("unused") // VarHandle
     private volatile long count;
+    private volatile CompiledMethodBody compiledBody;
 
     VmInvokableImpl(ExecutableElement element) {
         this.element = element;
         TypeSystem ts = element.getEnclosingType().getContext().getTypeSystem();
         final StructType.Builder builder = StructType.builder(ts);
         // find local variables
-        findLocalVars(element.getMethodBody().getEntryBlock().getTerminator(), builder, new HashSet<>(), new HashSet<>());
+        MethodBody body = element.getMethodBody();
+        findLocalVars(body.getEntryBlock().getTerminator(), builder, new HashSet<>(), new HashSet<>());
+        frameLayout = FrameLayout.of(body);
         if (builder.getMemberCountSoFar() == 0) {
             frameMemoryType = ts.getVoidType();
         } else {
@@ -98,8 +102,10 @@ final class VmInvokableImpl implements VmInvokable {
 
     Object run(VmThreadImpl thread, VmObject target, List<Object> args) {
         long invCnt = ((long) countHandle.getAndAdd(this, 1)) + 1;
-        if (false && invCnt == 100) {
-            thread.getVM().getCompilationContext().info(element, "Excessive invocation count (JIT candidate)");
+        int threshold = thread.vm.getCompileThreshold();
+        if (invCnt == threshold) {
+            // only the thread which reaches the threshold compiles; everyone else keeps interpreting until it is done
+            compiledBody = MethodBodyCompiler.compile(element, frameLayout);
         }
         if (args.size() != element.getType().getParameterTypes().size()) {
             throw new Thrown(thread.vm.linkageErrorClass.newInstance("Parameter count mismatch"));
@@ -109,14 +115,14 @@ final class VmInvokableImpl implements VmInvokable {
         }
         Frame caller = thread.currentFrame;
         Memory memory = thread.getVM().allocate(frameMemoryType, 1);
-        Frame frame = new Frame(caller, element, new MemoryPointer(frameMemoryType.getPointer(), memory));
+        Frame frame = new Frame(caller, element, frameLayout, new MemoryPointer(frameMemoryType.getPointer(), memory));
         thread.currentFrame = frame;
         // bind inputs
         MethodBody body = element.getMethodBody();
         if (! element.isStatic()) {
             BlockParameter bp = body.getEntryBlock().getBlockParameter(Slot.this_());
             if (bp != null) {
-                frame.values.put(bp, target);
+                frame.setValue(bp, target);
             }
         }
         if (element instanceof InvokableElement) {
@@ -128,82 +134,97 @@ final class VmInvokableImpl implements VmInvokable {
                 }
                 BlockParameter bp = body.getEntryBlock().getBlockParameter(body.getParameterSlot(i));
                 if (bp != null) {
-                    frame.values.put(bp, arg);
+                    frame.setValue(bp, arg);
                 }
             }
         }
         try {
-            frame.block = body.getEntryBlock();
-            ArrayDeque<BasicBlock> prev = new ArrayDeque<>(20) {
-                @Override
-                public void addLast(BasicBlock basicBlock) {
-                    if (size() == 20) {
-                        removeFirst();
-                    }
-                    super.addLast(basicBlock);
-                }
-            };
-            for (;;) {
-                prev.addLast(frame.block); // for debugging
-                List<Node> nodes = frame.block.getInstructions();
-                for (Node node : nodes) {
-                    frame.ip = node;
-                    // only execute values and actions; terminators are handled below
-                    if (frame.ip instanceof Value value) {
-                        frame.values.put(value, value.accept(frame, thread));
-                    } else if (frame.ip instanceof Action action) {
-                        action.accept(frame, thread);
-                    }
+            CompiledMethodBody compiledBody = this.compiledBody;
+            if (compiledBody != null) {
+                return compiledBody.execute(frame, thread);
+            }
+            return interpret(frame, thread);
+        } catch (IllegalStateException | UnsupportedOperationException t) {
+            // capture exception from frame state
+            VmThrowableClassImpl internalErrorClass = (VmThrowableClassImpl) thread.vm.getBootstrapClassLoader().loadClass("java/lang/InternalError");
+            throw new Thrown(internalErrorClass.newInstance("Internal error: " + t));
+        } finally {
+            frame.releaseLocks();
+            thread.currentFrame = caller;
+        }
+    }
+
+    /**
+     * Execute the method body of the given frame by walking its scheduled nodes, starting at the entry block.
+     *
+     * @param frame the frame, whose parameters have already been bound (must not be {@code null})
+     * @param thread the current thread
+     * @return the return value of the method
+     */
+    static Object interpret(Frame frame, VmThreadImpl thread) {
+        frame.block = frame.element.getMethodBody().getEntryBlock();
+        ArrayDeque<BasicBlock> prev = new ArrayDeque<>(20) {
+            @Override
+            public void addLast(BasicBlock basicBlock) {
+                if (size() == 20) {
+                    removeFirst();
                 }
-                Terminator t = frame.block.getTerminator();
-                frame.ip = t;
-                // keep it simple for now
-                BasicBlock next = t.accept(frame, thread);
-                if (next == null) {
-                    // we're returning
-                    return frame.output;
+                super.addLast(basicBlock);
+            }
+        };
+        for (;;) {
+            prev.addLast(frame.block); // for debugging
+            List<Node> nodes = frame.block.getInstructions();
+            for (Node node : nodes) {
+                frame.ip = node;
+                // only execute values and actions; terminators are handled below
+                if (frame.ip instanceof Value value) {
+                    frame.setValue(value, value.accept(frame, thread));
+                } else if (frame.ip instanceof Action action) {
+                    action.accept(frame, thread);
                 }
-                // register outbound values
-                for (Slot slot : t.getOutboundArgumentNames()) {
-                    BlockParameter param = next.getBlockParameter(slot);
-                    if (param != null) {
-                        Value value = t.getOutboundArgument(slot);
-                        frame.values.put(param, frame.require(value));
-                    }
+            }
+            Terminator t = frame.block.getTerminator();
+            frame.ip = t;
+            // keep it simple for now
+            BasicBlock next = t.accept(frame, thread);
+            if (next == null) {
+                // we're returning
+                return frame.output;
+            }
+            // register outbound values
+            for (Slot slot : t.getOutboundArgumentNames()) {
+                BlockParameter param = next.getBlockParameter(slot);
+                if (param != null) {
+                    Value value = t.getOutboundArgument(slot);
+                    frame.setValue(param, frame.require(value));
                 }
-                // special: Invoke
-                if (t instanceof Invoke inv) {
-                    if (next == inv.getResumeTarget()) {
-                        BlockParameter bp = next.getBlockParameter(Slot.result());
-                        if (bp != null) {
-                            // todo: frame.returnVal maybe
-                            frame.values.put(bp, frame.require(inv.getReturnValue()));
-                        }
-                    } else {
-                        assert next == inv.getCatchBlock();
-                        BlockParameter bp = next.getBlockParameter(Slot.thrown());
-                        if (bp != null) {
-                            frame.values.put(bp, frame.exception);
-                        }
-                        frame.exception = null;
+            }
+            // special: Invoke
+            if (t instanceof Invoke inv) {
+                if (next == inv.getResumeTarget()) {
+                    BlockParameter bp = next.getBlockParameter(Slot.result());
+                    if (bp != null) {
+                        // todo: frame.returnVal maybe
+                        frame.setValue(bp, frame.require(inv.getReturnValue()));
                     }
-                } else if (t instanceof InvokeNoReturn inv) {
+                } else {
                     assert next == inv.getCatchBlock();
                     BlockParameter bp = next.getBlockParameter(Slot.thrown());
                     if (bp != null) {
-                        frame.values.put(bp, frame.exception);
+                        frame.setValue(bp, frame.exception);
                     }
                     frame.exception = null;
                 }
-                frame.block = next;
+            } else if (t instanceof InvokeNoReturn inv) {
+                assert next == inv.getCatchBlock();
+                BlockParameter bp = next.getBlockParameter(Slot.thrown());
+                if (bp != null) {
+                    frame.setValue(bp, frame.exception);
+                }
+                frame.exception = null;
             }
-        } catch (IllegalStateException | UnsupportedOperationException t) {
-            // capture exception from frame state
-            VmThrowableClassImpl internalErrorClass = (VmThrowableClassImpl) thread.vm.getBootstrapClassLoader().loadClass("java/lang/InternalError");
-            throw new Thrown(internalErrorClass.newInstance("Internal error: " + t));
-        } finally {
-            frame.releaseLocks();
-            thread.currentFrame = caller;
+            frame.block = next;
         }
     }
 }
@@ -34,6 +34,7 @@ import org.qbicc.type.definition.element.FieldElement;
 class VmObjectImpl implements VmObject, Referenceable {
     private static final VarHandle lockHandle = ConstantBootstraps.fieldVarHandle(MethodHandles.lookup(), "lock", VarHandle.class, VmObjectImpl.class, Lock.class);
     private static final VarHandle condHandle = ConstantBootstraps.fieldVarHandle(MethodHandles.lookup(), "cond", VarHandle.class, VmObjectImpl.class, Condition.class);
+    private static final VarHandle markHandle = ConstantBootstraps.fieldVarHandle(MethodHandles.lookup(), "mark", VarHandle.class, VmObjectImpl.class, int.class);
     private static final long MAX_MILLIS = Long.MAX_VALUE / 1_000_000L;
 
     /**
@@ -58,6 +59,11 @@ class VmObjectImpl implements VmObject, Referenceable {
      * A general object attachment used by VM-side implementations.
      */
     volatile Object attachment;
+    /**
+     * The epoch of the last heap trace which visited this object.
+     */
+    @SuppressWarnings("unused") // markHandle
+    volatile int mark;
 
     /**
      * Construct a new instance.
@@ -134,6 +140,18 @@ class VmObjectImpl implements VmObject, Referenceable {
         return member.getOffset();
     }
 
+    @Override
+    public boolean mark(int epoch) {
+        int old;
+        do {
+            old = (int) markHandle.getVolatile(this);
+            if (old == epoch) {
+                return false;
+            }
+        } while (! markHandle.compareAndSet(this, old, epoch));
+        return true;
+    }
+
     public void setRefField(LoadedTypeDefinition owner, String name, VmObject value) {
         getMemory().storeRef(indexOf(owner.findField(name)), value, SinglePlain);
     }
@@ -0,0 +1,260 @@
+package org.qbicc.interpreter.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.BlockParameter;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Value;
+import org.qbicc.test.AbstractCompilerTestCase;
+import org.qbicc.type.FloatType;
+import org.qbicc.type.IntegerType;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.definition.element.MethodElement;
+import org.qbicc.type.definition.element.ParameterElement;
+import org.qbicc.type.descriptor.BaseTypeDescriptor;
+import org.qbicc.type.descriptor.ClassTypeDescriptor;
+import org.qbicc.type.descriptor.MethodDescriptor;
+import org.qbicc.type.generic.BaseTypeSignature;
+import org.qbicc.type.generic.ClassSignature;
+import org.qbicc.type.generic.MethodSignature;
+
+/**
+ * Tests that a method body translated by {@link MethodBodyCompiler} computes the same results as the interpreter loop.
+ */
+public final class MethodBodyCompilerTest extends AbstractCompilerTestCase {
+
+    @Test
+    public void testLoopMatchesInterpreter() {
+        // int sum(int n, int unused) { int s = 0; for (int i = 0; i < n; i ++) s += i * 3; return s; }
+        final MethodElement element = makeMethod("sum", (bbb, n, unused) -> {
+            final IntegerType s32 = ts.getSignedInteger32Type();
+            final BlockLabel loop = new BlockLabel();
+            final BlockLabel body = new BlockLabel();
+            final BlockLabel exit = new BlockLabel();
+            bbb.goto_(loop, Map.of(Slot.temp(0), lf.literalOf(0), Slot.temp(1), lf.literalOf(0)));
+            bbb.begin(loop);
+            final Value i = bbb.addParam(loop, Slot.temp(0), s32);
+            final Value s = bbb.addParam(loop, Slot.temp(1), s32);
+            bbb.if_(bbb.isLt(i, n), body, exit, Map.of());
+            bbb.begin(body);
+            bbb.goto_(loop, Map.of(Slot.temp(0), bbb.add(i, lf.literalOf(1)), Slot.temp(1), bbb.add(s, bbb.multiply(i, lf.literalOf(3)))));
+            bbb.begin(exit);
+            bbb.return_(s);
+        });
+        final FrameLayout layout = FrameLayout.of(element.getMethodBody());
+        final CompiledMethodBody compiled = MethodBodyCompiler.compile(element, layout);
+        assertNotNull(compiled);
+        for (int n : new int[] { -1, 0, 1, 2, 10, 1000 }) {
+            final Object expected = VmInvokableImpl.interpret(bind(element, layout, n, 0), null);
+            assertEquals(Integer.valueOf(3 * (n * (n - 1) / 2) * (n > 0 ? 1 : 0)), expected);
+            assertEquals(expected, compiled.execute(bind(element, layout, n, 0), null));
+        }
+    }
+
+    @Test
+    public void testBranchesMatchInterpreter() {
+        // int max(int a, int b) { return a < b ? b : a; }
+        final MethodElement element = makeMethod("max", (bbb, a, b) -> {
+            final BlockLabel join = new BlockLabel();
+            final BlockLabel less = new BlockLabel();
+            final BlockLabel notLess = new BlockLabel();
+            bbb.if_(bbb.isLt(a, b), less, notLess, Map.of());
+            bbb.begin(less);
+            bbb.goto_(join, Slot.temp(0), b);
+            bbb.begin(notLess);
+            bbb.goto_(join, Slot.temp(0), a);
+            bbb.begin(join);
+            bbb.return_(bbb.addParam(join, Slot.temp(0), ts.getSignedInteger32Type()));
+        });
+        final FrameLayout layout = FrameLayout.of(element.getMethodBody());
+        final CompiledMethodBody compiled = MethodBodyCompiler.compile(element, layout);
+        assertNotNull(compiled);
+        final int[][] inputs = { { 1, 2 }, { 2, 1 }, { -5, -5 }, { Integer.MIN_VALUE, Integer.MAX_VALUE } };
+        for (int[] input : inputs) {
+            final Object expected = VmInvokableImpl.interpret(bind(element, layout, input[0], input[1]), null);
+            assertEquals(Integer.valueOf(Math.max(input[0], input[1])), expected);
+            assertEquals(expected, compiled.execute(bind(element, layout, input[0], input[1]), null));
+        }
+    }
+
+    @Test
+    public void testNarrowAndWideArithmeticMatchesInterpreter() {
+        // int mix(int n, int unused) {
+        //     long h = 7; char c = 1; byte b = 0; double d = 0;
+        //     for (int i = 0; i < n; i ++) { h = h * 31 ^ i; c = (char) (c * 7 + 3); b = (byte) (b + 100); d = d * 0.5 + 1.0; }
+        //     return (int) h + c + b + (int) d;
+        // }
+        final MethodElement element = makeMethod("mix", (bbb, n, unused) -> {
+            final IntegerType s8 = ts.getSignedInteger8Type();
+            final IntegerType s32 = ts.getSignedInteger32Type();
+            final IntegerType s64 = ts.getSignedInteger64Type();
+            final IntegerType u16 = ts.getUnsignedInteger16Type();
+            final FloatType f64 = ts.getFloat64Type();
+            final BlockLabel loop = new BlockLabel();
+            final BlockLabel body = new BlockLabel();
+            final BlockLabel exit = new BlockLabel();
+            bbb.goto_(loop, Map.of(
+                Slot.temp(0), lf.literalOf(0),
+                Slot.temp(1), lf.literalOf(7L),
+                Slot.temp(2), lf.literalOf(u16, 1),
+                Slot.temp(3), lf.literalOf(s8, 0),
+                Slot.temp(4), lf.literalOf(0.0)
+            ));
+            bbb.begin(loop);
+            final Value i = bbb.addParam(loop, Slot.temp(0), s32);
+            final Value h = bbb.addParam(loop, Slot.temp(1), s64);
+            final Value c = bbb.addParam(loop, Slot.temp(2), u16);
+            final Value b = bbb.addParam(loop, Slot.temp(3), s8);
+            final Value d = bbb.addParam(loop, Slot.temp(4), f64);
+            bbb.if_(bbb.isLt(i, n), body, exit, Map.of());
+            bbb.begin(body);
+            bbb.goto_(loop, Map.of(
+                Slot.temp(0), bbb.add(i, lf.literalOf(1)),
+                Slot.temp(1), bbb.xor(bbb.multiply(h, lf.literalOf(31L)), bbb.extend(i, s64)),
+                Slot.temp(2), bbb.add(bbb.multiply(c, lf.literalOf(u16, 7)), lf.literalOf(u16, 3)),
+                Slot.temp(3), bbb.add(b, lf.literalOf(s8, 100)),
+                Slot.temp(4), bbb.add(bbb.multiply(d, lf.literalOf(0.5)), lf.literalOf(1.0))
+            ));
+            bbb.begin(exit);
+            final Value sum = bbb.add(bbb.add(bbb.truncate(h, s32), bbb.extend(c, s32)), bbb.add(bbb.extend(b, s32), bbb.fpToInt(d, s32)));
+            bbb.return_(sum);
+        });
+        final FrameLayout layout = FrameLayout.of(element.getMethodBody());
+        assertTrue(layout.getLongCount() > 0);
+        assertTrue(layout.getDoubleCount() > 0);
+        final CompiledMethodBody compiled = MethodBodyCompiler.compile(element, layout);
+        assertNotNull(compiled);
+        for (int n : new int[] { 0, 1, 2, 3, 17, 1000 }) {
+            long h = 7;
+            char c = 1;
+            byte b = 0;
+            double d = 0;
+            for (int i = 0; i < n; i ++) {
+                h = h * 31 ^ i;
+                c = (char) (c * 7 + 3);
+                b = (byte) (b + 100);
+                d = d * 0.5 + 1.0;
+            }
+            final Object expected = VmInvokableImpl.interpret(bind(element, layout, n, 0), null);
+            assertEquals(Integer.valueOf((int) h + c + b + (int) d), expected);
+            assertEquals(expected, compiled.execute(bind(element, layout, n, 0), null));
+        }
+    }
+
+    @Test
+    public void testCompiledArithmeticDoesNotAllocate() {
+        // the same loop as testLoopMatchesInterpreter, whose values quickly leave the range of the boxing cache
+        final MethodElement element = makeMethod("sum", (bbb, n, unused) -> {
+            final IntegerType s32 = ts.getSignedInteger32Type();
+            final BlockLabel loop = new BlockLabel();
+            final BlockLabel body = new BlockLabel();
+            final BlockLabel exit = new BlockLabel();
+            bbb.goto_(loop, Map.of(Slot.temp(0), lf.literalOf(0), Slot.temp(1), lf.literalOf(0)));
+            bbb.begin(loop);
+            final Value i = bbb.addParam(loop, Slot.temp(0), s32);
+            final Value s = bbb.addParam(loop, Slot.temp(1), s32);
+            bbb.if_(bbb.isLt(i, n), body, exit, Map.of());
+            bbb.begin(body);
+            bbb.goto_(loop, Map.of(Slot.temp(0), bbb.add(i, lf.literalOf(1)), Slot.temp(1), bbb.add(s, bbb.multiply(i, lf.literalOf(3)))));
+            bbb.begin(exit);
+            bbb.return_(s);
+        });
+        final FrameLayout layout = FrameLayout.of(element.getMethodBody());
+        final CompiledMethodBody compiled = MethodBodyCompiler.compile(element, layout);
+        assertNotNull(compiled);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final int n = 100_000;
+        // resolve constants and warm up
+        compiled.execute(bind(element, layout, n, 0), null);
+        VmInvokableImpl.interpret(bind(element, layout, n, 0), null);
+
+        final Frame interpretedFrame = bind(element, layout, n, 0);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        final Object expected = VmInvokableImpl.interpret(interpretedFrame, null);
+        final long interpretedBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+        final Frame compiledFrame = bind(element, layout, n, 0);
+        before = threads.getCurrentThreadAllocatedBytes();
+        final Object actual = compiled.execute(compiledFrame, null);
+        final long compiledBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+        assertEquals(expected, actual);
+        // the interpreter boxes every intermediate value; the compiled body only boxes its result
+        assertTrue(interpretedBytes >= (long) n * 16, "interpreted: " + interpretedBytes + " bytes");
+        assertTrue(compiledBytes < n / 10, "compiled: " + compiledBytes + " bytes");
+    }
+
+    /**
+     * Make a fresh frame for the given element with its two parameters bound, as {@code VmInvokableImpl.run} does.
+     */
+    private static Frame bind(MethodElement element, FrameLayout layout, int arg0, int arg1) {
+        final Frame frame = new Frame(null, element, layout, null);
+        final MethodBody body = element.getMethodBody();
+        final int[] args = { arg0, arg1 };
+        for (int i = 0; i < args.length; i ++) {
+            final BlockParameter bp = body.getEntryBlock().getBlockParameter(body.getParameterSlot(i));
+            if (bp != null) {
+                frame.setValue(bp, Integer.valueOf(args[i]));
+            }
+        }
+        return frame;
+    }
+
+    interface BodyGenerator {
+        void generate(BasicBlockBuilder bbb, Value arg0, Value arg1);
+    }
+
+    private static MethodElement makeMethod(String name, BodyGenerator generator) {
+        final DefinedTypeDefinition.Builder typeBuilder = DefinedTypeDefinition.Builder.basic();
+        typeBuilder.setContext(bootClassContext);
+        typeBuilder.setName("TestClass");
+        typeBuilder.setDescriptor(ClassTypeDescriptor.synthesize(bootClassContext, "TestClass"));
+        typeBuilder.setModifiers(ClassFile.ACC_SUPER | ClassFile.ACC_PUBLIC);
+        typeBuilder.setSignature(ClassSignature.synthesize(bootClassContext, null, List.of()));
+        typeBuilder.setSimpleName("TestClass");
+        typeBuilder.setInitializer((index, enclosing, builder) -> builder.build(), 0);
+        final DefinedTypeDefinition enclosingType = typeBuilder.build();
+        final MethodDescriptor descriptor = MethodDescriptor.synthesize(bootClassContext, BaseTypeDescriptor.I, List.of(BaseTypeDescriptor.I, BaseTypeDescriptor.I));
+        final MethodElement.Builder builder = MethodElement.builder(name, descriptor, 0);
+        builder.setEnclosingType(enclosingType);
+        builder.setSignature(MethodSignature.synthesize(bootClassContext, descriptor));
+        builder.setModifiers(ClassFile.ACC_STATIC);
+        builder.setParameters(List.of(makeParameter(enclosingType, "arg0", 0), makeParameter(enclosingType, "arg1", 1)));
+        builder.setMethodBodyFactory((index, e) -> {
+            final IntegerType s32 = ts.getSignedInteger32Type();
+            final BasicBlockBuilder bbb = BasicBlockBuilder.simpleBuilder(e);
+            final BlockLabel entry = new BlockLabel();
+            bbb.begin(entry);
+            final Value arg0 = bbb.addParam(entry, Slot.funcParam(0), s32);
+            final Value arg1 = bbb.addParam(entry, Slot.funcParam(1), s32);
+            generator.generate(bbb, arg0, arg1);
+            bbb.finish();
+            final BasicBlock entryBlock = BlockLabel.getTargetOf(entry);
+            return MethodBody.of(entryBlock, List.of(Slot.funcParam(0), Slot.funcParam(1)));
+        }, 0);
+        final MethodElement element = builder.build();
+        assertTrue(element.tryCreateMethodBody());
+        return element;
+    }
+
+    private static ParameterElement makeParameter(DefinedTypeDefinition enclosingType, String name, int index) {
+        final ParameterElement.Builder builder = ParameterElement.builder(name, BaseTypeDescriptor.I, index);
+        builder.setEnclosingType(enclosingType);
+        builder.setTypeParameterContext(enclosingType);
+        builder.setSignature(BaseTypeSignature.I);
+        builder.setType(ts.getSignedInteger32Type());
+        return builder.build();
+    }
+}
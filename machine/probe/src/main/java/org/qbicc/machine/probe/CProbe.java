@@ -1,6 +1,8 @@
 package org.qbicc.machine.probe;
 
 import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -72,11 +74,51 @@ public final class CProbe {
      * @throws IOException if communications with or execution of the compiler failed
      */
     public Result run(CToolChain toolChain, ObjectFileProvider objectFileProvider, DiagnosticContext errorReporter) throws IOException {
+        return run(toolChain, objectFileProvider, errorReporter, null);
+    }
+
+    /**
+     * Run the probe, using the given cache to avoid running the compiler if an identical probe was run before.
+     *
+     * @param toolChain the C tool chain to use (must not be {@code null})
+     * @param objectFileProvider the object file provider to use (must not be {@code null})
+     * @param errorReporter the context to report errors to, or {@code null} to skip error reporting
+     * @param cache the probe result cache, or {@code null} to always run the compiler
+     * @return the result, or {@code null} if the compilation failed
+     * @throws IOException if communications with or execution of the compiler failed
+     */
+    public Result run(CToolChain toolChain, ObjectFileProvider objectFileProvider, DiagnosticContext errorReporter, CProbeCache cache) throws IOException {
         final CCompilerInvoker inv = toolChain.newCompilerInvoker();
-        StringBuilder b = new StringBuilder();
+        StringBuilder b = appendSource(new StringBuilder());
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = cache.keyOf(toolChain, inv, objectFileProvider, b);
+            Result cached = cache.retrieve(cacheKey, this);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Result result = run(inv, b, objectFileProvider, errorReporter);
+        if (result != null && cacheKey != null) {
+            cache.store(cacheKey, this, result);
+        }
+        return result;
+    }
+
+    /**
+     * Append the C source of this probe to the given string builder.
+     *
+     * @param b the string builder (must not be {@code null})
+     * @return the same string builder
+     */
+    StringBuilder appendSource(StringBuilder b) {
         for (Step item : items) {
             item.appendTo(b);
         }
+        return b;
+    }
+
+    private Result run(CCompilerInvoker inv, StringBuilder b, ObjectFileProvider objectFileProvider, DiagnosticContext errorReporter) throws IOException {
         inv.setSource(InputSource.from(b));
         final Path path = Files.createTempFile("qbicc-probe-", "." + objectFileProvider.getObjectType().objectSuffix());
         try (Closeable c = ProbeUtil.deleting(path)) {
@@ -152,6 +194,107 @@ public final class CProbe {
         }
     }
 
+    /**
+     * Write a result of this probe.  The result is written in the order of the probed items, so it can only be read
+     * back by an identical probe.
+     *
+     * @param result the result to write (must not be {@code null})
+     * @param out the output to write to (must not be {@code null})
+     * @throws IOException if writing failed
+     */
+    void writeResult(Result result, DataOutput out) throws IOException {
+        out.writeBoolean(result.byteOrder == ByteOrder.BIG_ENDIAN);
+        for (String name : constants) {
+            ConstantInfo info = result.constantInfos.get(name);
+            out.writeBoolean(info.defined);
+            out.writeBoolean(info.signed);
+            out.writeBoolean(info.unsigned);
+            out.writeBoolean(info.floating);
+            out.writeBoolean(info.bool);
+            if (info.value == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(info.value.length);
+                out.write(info.value);
+            }
+            out.writeBoolean(info.symbol != null);
+            if (info.symbol != null) {
+                out.writeUTF(info.symbol);
+            }
+        }
+        for (String name : functionNames) {
+            out.writeUTF(result.functionInfos.get(name).resolvedName);
+        }
+        for (Type type : types) {
+            writeTypeInfo(result.typeInfos.get(type), out);
+            Map<String, Type.Info> memberInfo = result.memberInfos.get(type);
+            for (String memberName : type.getMembers()) {
+                writeTypeInfo(memberInfo.get(memberName), out);
+            }
+        }
+    }
+
+    private static void writeTypeInfo(Type.Info info, DataOutput out) throws IOException {
+        out.writeLong(info.size);
+        out.writeLong(info.align);
+        out.writeLong(info.offset);
+        out.writeBoolean(info.signed);
+        out.writeBoolean(info.unsigned);
+        out.writeBoolean(info.floating);
+    }
+
+    /**
+     * Read a result of this probe which was written by {@link #writeResult}.
+     *
+     * @param in the input to read from (must not be {@code null})
+     * @return the result (not {@code null})
+     * @throws IOException if reading failed
+     */
+    Result readResult(DataInput in) throws IOException {
+        ByteOrder byteOrder = in.readBoolean() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        final Map<String, ConstantInfo> constantInfos = new HashMap<>(constants.size());
+        for (String name : constants) {
+            boolean defined = in.readBoolean();
+            boolean signed = in.readBoolean();
+            boolean unsigned = in.readBoolean();
+            boolean floating = in.readBoolean();
+            boolean bool = in.readBoolean();
+            int size = in.readInt();
+            byte[] value = null;
+            if (size >= 0) {
+                value = new byte[size];
+                in.readFully(value);
+            }
+            String symbol = in.readBoolean() ? in.readUTF() : null;
+            constantInfos.put(name, new ConstantInfo(defined, value, symbol, byteOrder, signed, unsigned, floating, bool));
+        }
+        final Map<String, FunctionInfo> functionInfos = new HashMap<>(functionNames.size());
+        for (String name : functionNames) {
+            functionInfos.put(name, new FunctionInfo(in.readUTF()));
+        }
+        final Map<Type, Type.Info> typeInfos = new HashMap<>(types.size());
+        final Map<Type, Map<String, Type.Info>> memberInfos = new HashMap<>();
+        for (Type type : types) {
+            typeInfos.put(type, readTypeInfo(in));
+            Map<String, Type.Info> memberInfo = new HashMap<>(type.getMembers().size());
+            for (String memberName : type.getMembers()) {
+                memberInfo.put(memberName, readTypeInfo(in));
+            }
+            memberInfos.put(type, memberInfo);
+        }
+        return new Result(typeInfos, memberInfos, functionInfos, constantInfos, byteOrder);
+    }
+
+    private static Type.Info readTypeInfo(DataInput in) throws IOException {
+        long size = in.readLong();
+        long align = in.readLong();
+        long offset = in.readLong();
+        boolean signed = in.readBoolean();
+        boolean unsigned = in.readBoolean();
+        boolean floating = in.readBoolean();
+        return new Type.Info(size, align, offset, signed, unsigned, floating);
+    }
+
 
     public static final class Builder {
         private final List<Step> items = new ArrayList<>();
@@ -167,6 +310,23 @@ public final class CProbe {
             include("<limits.h>");
         }
 
+        Builder(List<Step> preamble) {
+            items.addAll(preamble);
+        }
+
+        /**
+         * Get the steps of this builder, which must consist only of preprocessor directives.
+         *
+         * @return the preprocessor steps (not {@code null})
+         * @throws IllegalArgumentException if anything has been probed with this builder
+         */
+        List<Step> getPreamble() {
+            if (! types.isEmpty() || ! constants.isEmpty() || ! functionNames.isEmpty()) {
+                throw new IllegalArgumentException("Probe preamble must consist only of preprocessor directives");
+            }
+            return List.copyOf(items);
+        }
+
         // top level steps
 
         public Builder include(String include) {
@@ -0,0 +1,258 @@
+package org.qbicc.machine.probe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import io.smallrye.common.constraint.Assert;
+import org.jboss.logging.Logger;
+import org.qbicc.context.DiagnosticContext;
+import org.qbicc.machine.object.ObjectFileProvider;
+import org.qbicc.machine.tool.CToolChain;
+
+/**
+ * A service which coalesces probe requests into combined probe compilations.
+ * <p>
+ * A request consists of a <em>preamble</em> (the includes, defines, and undefines which must precede the probed
+ * items) and an action which adds the probed items to a probe builder. Requests with identical preambles are collected
+ * into a pending batch. The first time the result of any request in a batch is needed, the batch is closed and all of
+ * its requests are compiled together as a single translation unit, and the combined result is given to every request
+ * in the batch. Requests submitted after a batch is closed are collected into a new batch.
+ * <p>
+ * The contents of a batch depend on the timing of the threads which submit requests, so the probe cache is consulted
+ * for each request on its own rather than for the combined translation unit: each request is keyed on the source of
+ * a probe containing only its preamble and its own items.  Only the requests which miss the cache are compiled, in
+ * the order of their probe source so that the combined translation unit does not depend on submission order, and
+ * the combined result is stored for each of them.
+ * <p>
+ * A single bad request (for example, a constant which is not defined on the target) causes the combined compilation
+ * to fail, so a failed batch is split in half and each half is retried, until each failing request is isolated.
+ * An isolated failing request is run on its own when its result is needed, so that errors are reported against it.
+ */
+public final class CProbeBatcher {
+    private static final Logger log = Logger.getLogger("org.qbicc.machine.probe.stats");
+
+    private final CToolChain toolChain;
+    private final ObjectFileProvider objectFileProvider;
+    private final CProbeCache cache;
+    private final ConcurrentHashMap<String, Batch> openBatches = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong compileCount = new AtomicLong();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param toolChain the C tool chain to use (must not be {@code null})
+     * @param objectFileProvider the object file provider to use (must not be {@code null})
+     * @param cache the probe result cache, or {@code null} to always run the compiler
+     */
+    public CProbeBatcher(CToolChain toolChain, ObjectFileProvider objectFileProvider, CProbeCache cache) {
+        this.toolChain = Assert.checkNotNullParam("toolChain", toolChain);
+        this.objectFileProvider = Assert.checkNotNullParam("objectFileProvider", objectFileProvider);
+        this.cache = cache;
+    }
+
+    /**
+     * Submit a probe request.  The probe is not run until the result of this request or of another request in the
+     * same batch is needed.
+     *
+     * @param preamble a builder containing the preprocessor directives of the probe (must not be {@code null})
+     * @param probe the action which adds the probed items to a builder (must not be {@code null})
+     * @return the request (not {@code null})
+     * @throws IllegalArgumentException if the preamble builder contains probed items
+     */
+    public Request submit(CProbe.Builder preamble, Consumer<CProbe.Builder> probe) {
+        Assert.checkNotNullParam("probe", probe);
+        List<CProbe.Step> steps = Assert.checkNotNullParam("preamble", preamble).getPreamble();
+        StringBuilder b = new StringBuilder();
+        for (CProbe.Step step : steps) {
+            step.appendTo(b);
+        }
+        String key = b.toString();
+        // render the request on its own, for ordering and for its cache key
+        CProbe.Builder standaloneBuilder = new CProbe.Builder(steps);
+        probe.accept(standaloneBuilder);
+        CProbe standalone = standaloneBuilder.build();
+        String source = standalone.appendSource(new StringBuilder()).toString();
+        requestCount.incrementAndGet();
+        for (;;) {
+            Batch batch = openBatches.computeIfAbsent(key, k -> new Batch(k, steps));
+            synchronized (batch) {
+                if (! batch.closed) {
+                    Request request = new Request(batch, probe, standalone, source);
+                    batch.requests.add(request);
+                    return request;
+                }
+            }
+            // closed before we could join it
+            openBatches.remove(key, batch);
+        }
+    }
+
+    /**
+     * Get the number of probe requests which have been submitted.
+     *
+     * @return the request count
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Get the number of combined probe compilations which have been run.  Requests which are satisfied from the cache
+     * are not compiled.
+     *
+     * @return the compilation count
+     */
+    public long getCompileCount() {
+        return compileCount.get();
+    }
+
+    public void reportStats() {
+        log.debugf("Ran %,d probe request(s) in %,d batched probe compilation(s)", Long.valueOf(requestCount.get()), Long.valueOf(compileCount.get()));
+    }
+
+    private CProbe.Result run(List<CProbe.Step> preamble, List<Request> requests, DiagnosticContext errorReporter) throws IOException {
+        CProbe.Builder builder = new CProbe.Builder(preamble);
+        for (Request request : requests) {
+            request.probe.accept(builder);
+        }
+        compileCount.incrementAndGet();
+        return builder.build().run(toolChain, objectFileProvider, errorReporter, null);
+    }
+
+    private void runGroup(List<CProbe.Step> preamble, List<Request> requests) throws IOException {
+        CProbe.Result result = run(preamble, requests, null);
+        if (result != null) {
+            for (Request request : requests) {
+                request.result = result;
+                if (cache != null) {
+                    // the combined result contains everything the request's own probe needs to write its entry
+                    cache.store(request.cacheKey, request.standalone, result);
+                }
+            }
+        } else if (requests.size() > 1) {
+            // isolate the bad request(s)
+            int mid = requests.size() >>> 1;
+            runGroup(preamble, requests.subList(0, mid));
+            runGroup(preamble, requests.subList(mid, requests.size()));
+        }
+        // otherwise, the single request failed and will be retried on its own to report errors
+    }
+
+    final class Batch {
+        private final String key;
+        private final List<CProbe.Step> preamble;
+        // protected by this
+        private final List<Request> requests = new ArrayList<>();
+        // protected by this
+        private boolean closed;
+        private final FutureTask<Void> task = new FutureTask<>(this::runBatch);
+
+        Batch(String key, List<CProbe.Step> preamble) {
+            this.key = key;
+            this.preamble = preamble;
+        }
+
+        private Void runBatch() throws IOException {
+            List<Request> requests;
+            synchronized (this) {
+                closed = true;
+                requests = List.copyOf(this.requests);
+            }
+            openBatches.remove(key, this);
+            List<Request> misses = new ArrayList<>(requests.size());
+            for (Request request : requests) {
+                if (cache != null) {
+                    request.cacheKey = cache.keyOf(toolChain, toolChain.newCompilerInvoker(), objectFileProvider, request.source);
+                    CProbe.Result cached = cache.retrieve(request.cacheKey, request.standalone);
+                    if (cached != null) {
+                        request.result = cached;
+                        continue;
+                    }
+                }
+                misses.add(request);
+            }
+            if (! misses.isEmpty()) {
+                misses.sort(Comparator.comparing(request -> request.source));
+                runGroup(preamble, misses);
+            }
+            return null;
+        }
+
+        void await() throws IOException {
+            // only the first caller actually runs the task; the rest wait for it
+            task.run();
+            boolean intr = false;
+            try {
+                for (;;) try {
+                    task.get();
+                    return;
+                } catch (InterruptedException e) {
+                    intr = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException ioe) {
+                        throw new IOException(ioe.getMessage(), ioe);
+                    } else if (cause instanceof RuntimeException re) {
+                        throw re;
+                    } else if (cause instanceof Error err) {
+                        throw err;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            } finally {
+                if (intr) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * A submitted probe request.
+     */
+    public final class Request {
+        private final Batch batch;
+        private final Consumer<CProbe.Builder> probe;
+        // a probe of this request alone
+        private final CProbe standalone;
+        // the source of the standalone probe
+        private final String source;
+        // written by the batch task before it completes
+        private String cacheKey;
+        // written by the batch task before it completes
+        private CProbe.Result result;
+
+        Request(Batch batch, Consumer<CProbe.Builder> probe, CProbe standalone, String source) {
+            this.batch = batch;
+            this.probe = probe;
+            this.standalone = standalone;
+            this.source = source;
+        }
+
+        /**
+         * Get the result of this request, running its batch if needed.  The returned result may also contain the
+         * results of other requests in the same batch.
+         *
+         * @param errorReporter the context to report errors to, or {@code null} to skip error reporting
+         * @return the result, or {@code null} if the compilation of this request failed
+         * @throws IOException if communications with or execution of the compiler failed
+         */
+        public CProbe.Result getResult(DiagnosticContext errorReporter) throws IOException {
+            batch.await();
+            CProbe.Result result = this.result;
+            if (result == null && errorReporter != null) {
+                // run it again on its own, so that the errors are reported against this request alone
+                return run(batch.preamble, List.of(this), errorReporter);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.qbicc.machine.probe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.smallrye.common.constraint.Assert;
+import org.jboss.logging.Logger;
+import org.qbicc.machine.object.ObjectFileProvider;
+import org.qbicc.machine.tool.CCompilerInvoker;
+import org.qbicc.machine.tool.CToolChain;
+
+/**
+ * A persistent cache of probe results.
+ * <p>
+ * Entries are keyed on a digest of the generated probe source along with the identity of the C tool chain, the
+ * include paths and defined symbols given to the compiler, and the object file type. Because the key is derived
+ * from content alone, the cache directory may be shared between builds, including concurrently running builds:
+ * entries are written to a temporary file and atomically moved into place.
+ * <p>
+ * Only successful probe results are cached, so that compilation failures are always reported.
+ */
+public final class CProbeCache {
+    private static final Logger log = Logger.getLogger("org.qbicc.machine.probe.cache");
+    private static final HexFormat HEX = HexFormat.of();
+    /**
+     * The version of the entry format; change it whenever the format or the probe source generation changes.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Construct a new instance.
+     *
+     * @param directory the cache directory, which need not exist yet (must not be {@code null})
+     */
+    public CProbeCache(Path directory) {
+        this.directory = Assert.checkNotNullParam("directory", directory).toAbsolutePath();
+    }
+
+    /**
+     * Get the cache directory.
+     *
+     * @return the cache directory (not {@code null})
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    String keyOf(CToolChain toolChain, CCompilerInvoker invoker, ObjectFileProvider objectFileProvider, CharSequence source) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder b = new StringBuilder();
+        b.append("version=").append(FORMAT_VERSION).append('\n');
+        b.append("tool-chain=").append(toolChain.getClass().getName()).append(' ');
+        b.append(toolChain.getImplementationName()).append(' ').append(toolChain.getVersion()).append('\n');
+        b.append("platform=").append(toolChain.getPlatform()).append('\n');
+        b.append("object-type=").append(objectFileProvider.getObjectType()).append('\n');
+        int cnt = invoker.getIncludePathCount();
+        for (int i = 0; i < cnt; i ++) {
+            b.append("include=").append(invoker.getIncludePath(i)).append('\n');
+        }
+        cnt = invoker.getDefinedSymbolCount();
+        for (int i = 0; i < cnt; i ++) {
+            b.append("define=").append(invoker.getDefinedSymbol(i)).append('=').append(invoker.getDefinedSymbolValue(i)).append('\n');
+        }
+        b.append('\0').append(source);
+        return HEX.formatHex(digest.digest(b.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Attempt to read the cached result for the given key.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param probe the probe whose result is being read (must not be {@code null})
+     * @return the cached result, or {@code null} if the probe must be run
+     */
+    CProbe.Result retrieve(String key, CProbe probe) {
+        Path entry = entryPath(key);
+        try (InputStream is = Files.newInputStream(entry)) {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+            if (dis.readInt() == FORMAT_VERSION) {
+                CProbe.Result result = probe.readResult(dis);
+                hits.incrementAndGet();
+                return result;
+            }
+        } catch (NoSuchFileException ignored) {
+            // plain miss
+        } catch (IOException e) {
+            log.debugf(e, "Failed to read cached probe result %s", entry);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a probe result into the cache. Failure to store is not fatal to the build.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param probe the probe which produced the result (must not be {@code null})
+     * @param result the result to store (must not be {@code null})
+     */
+    void store(String key, CProbe probe, CProbe.Result result) {
+        Path entry = entryPath(key);
+        Path tmp = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            try (OutputStream os = Files.newOutputStream(tmp)) {
+                DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+                dos.writeInt(FORMAT_VERSION);
+                probe.writeResult(result, dos);
+                dos.flush();
+            }
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch (IOException e) {
+            log.debugf(e, "Failed to store probe result %s in cache", entry);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of probes whose results were found in the cache.
+     *
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of probes whose results were not found in the cache.
+     *
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void reportStats() {
+        log.debugf("Probe cache %s: %,d hit(s), %,d miss(es)", directory, Long.valueOf(hits.get()), Long.valueOf(misses.get()));
+    }
+
+    private Path entryPath(String key) {
+        // fan out to keep directory sizes reasonable
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".probe");
+    }
+}
@@ -2,6 +2,7 @@ package org.qbicc.machine.probe;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.List;
 
@@ -13,6 +14,7 @@ import org.qbicc.machine.tool.ToolProvider;
 import org.qbicc.machine.tool.ToolUtil;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  *
@@ -96,4 +98,87 @@ public class TestProbes {
         assertTrue(result.getConstantInfo("INT8_MAX").isDefined());
         assertEquals(Byte.MAX_VALUE, result.getConstantInfo("INT8_MAX").getValueAsInt());
     }
+
+    @Test
+    public void testCachedProbe(@TempDir Path cacheDir) throws Exception {
+        final CProbe.Type struct_iovec = CProbe.Type.builder()
+            .setName("iovec")
+            .setQualifier(Qualifier.STRUCT)
+            .addMember("iov_base")
+            .addMember("iov_len")
+            .build();
+        final CProbe probe = CProbe.builder()
+            .define("_DEFAULT_SOURCE")
+            .define("_BSD_SOURCE")
+            .include("<sys/uio.h>")
+            .include("<stdint.h>")
+            .probeType(struct_iovec)
+            .probeConstant("INT8_MAX")
+            .build();
+        final CProbeCache cache = new CProbeCache(cacheDir);
+        final CProbe.Result first = probe.run(compiler, objectFileProvider, null, cache);
+        assertNotNull(first);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // a fresh cache instance must see the persisted result
+        final CProbeCache cache2 = new CProbeCache(cacheDir);
+        final CProbe.Result second = probe.run(compiler, objectFileProvider, null, cache2);
+        assertNotNull(second);
+        assertEquals(1, cache2.getHits());
+        assertEquals(0, cache2.getMisses());
+        assertEquals(first.getTypeInfo(struct_iovec).getSize(), second.getTypeInfo(struct_iovec).getSize());
+        assertEquals(first.getTypeInfo(struct_iovec).getAlign(), second.getTypeInfo(struct_iovec).getAlign());
+        assertEquals(first.getTypeInfoOfMember(struct_iovec, "iov_len").getOffset(), second.getTypeInfoOfMember(struct_iovec, "iov_len").getOffset());
+        assertEquals(first.getByteOrder(), second.getByteOrder());
+        assertEquals(Byte.MAX_VALUE, second.getConstantInfo("INT8_MAX").getValueAsInt());
+    }
+
+    @Test
+    public void testBatchedProbes() throws Exception {
+        final CProbeBatcher batcher = new CProbeBatcher(compiler, objectFileProvider, null);
+        final CProbe.Type int16_t = CProbe.Type.builder().setName("int16_t").build();
+        final CProbe.Type no_such_type = CProbe.Type.builder().setName("no_such_type").setQualifier(Qualifier.STRUCT).addMember("nope").build();
+        final CProbeBatcher.Request r1 = batcher.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeConstant("INT8_MAX"));
+        final CProbeBatcher.Request r2 = batcher.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeType(int16_t));
+        final CProbeBatcher.Request r3 = batcher.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeType(no_such_type));
+        final CProbe.Result result1 = r1.getResult(null);
+        assertNotNull(result1);
+        assertEquals(Byte.MAX_VALUE, result1.getConstantInfo("INT8_MAX").getValueAsInt());
+        final CProbe.Result result2 = r2.getResult(null);
+        assertNotNull(result2);
+        assertEquals(2, result2.getTypeInfo(int16_t).getSize());
+        // the bad request is isolated without spoiling the others
+        assertNull(r3.getResult(null));
+        assertEquals(3, batcher.getRequestCount());
+        // all three, then {r1} and {r2, r3}, then {r2} and {r3}
+        assertEquals(5, batcher.getCompileCount());
+        // a request made after the batch ran starts a new batch
+        final CProbeBatcher.Request r4 = batcher.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeConstant("INT16_MAX"));
+        assertEquals(Short.MAX_VALUE, r4.getResult(null).getConstantInfo("INT16_MAX").getValueAsInt());
+        assertEquals(6, batcher.getCompileCount());
+    }
+
+    @Test
+    public void testBatchedProbesCachedPerRequest(@TempDir Path cacheDir) throws Exception {
+        final CProbe.Type int16_t = CProbe.Type.builder().setName("int16_t").build();
+        final CProbeBatcher batcher = new CProbeBatcher(compiler, objectFileProvider, new CProbeCache(cacheDir));
+        final CProbeBatcher.Request r1 = batcher.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeConstant("INT8_MAX"));
+        final CProbeBatcher.Request r2 = batcher.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeType(int16_t));
+        assertNotNull(r1.getResult(null));
+        assertNotNull(r2.getResult(null));
+        assertEquals(1, batcher.getCompileCount());
+        // a later build batches differently: the cached requests are not compiled again, in any combination
+        final CProbeCache cache2 = new CProbeCache(cacheDir);
+        final CProbeBatcher batcher2 = new CProbeBatcher(compiler, objectFileProvider, cache2);
+        final CProbeBatcher.Request r3 = batcher2.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeConstant("INT16_MAX"));
+        final CProbeBatcher.Request r4 = batcher2.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeType(int16_t));
+        final CProbeBatcher.Request r5 = batcher2.submit(CProbe.builder().include("<stdint.h>"), b -> b.probeConstant("INT8_MAX"));
+        assertEquals(Short.MAX_VALUE, r3.getResult(null).getConstantInfo("INT16_MAX").getValueAsInt());
+        assertEquals(2, r4.getResult(null).getTypeInfo(int16_t).getSize());
+        assertEquals(Byte.MAX_VALUE, r5.getResult(null).getConstantInfo("INT8_MAX").getValueAsInt());
+        assertEquals(2, cache2.getHits());
+        assertEquals(1, cache2.getMisses());
+        // only the new request was compiled
+        assertEquals(1, batcher2.getCompileCount());
+    }
 }
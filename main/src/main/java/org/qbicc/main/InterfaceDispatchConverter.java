@@ -0,0 +1,19 @@
+package org.qbicc.main;
+
+import java.util.Locale;
+
+import org.qbicc.plugin.dispatch.InterfaceDispatch;
+import picocli.CommandLine;
+
+/**
+ * A picocli converter for the interface dispatch strategy, which accepts the strategy names in any case.
+ */
+public final class InterfaceDispatchConverter implements CommandLine.ITypeConverter<InterfaceDispatch> {
+    public InterfaceDispatch convert(String value) throws IllegalArgumentException {
+        try {
+            return InterfaceDispatch.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.TypeConversionException("Interface dispatch must be one of \"searched\" or \"colored\"");
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.qbicc.main;
+
+import org.qbicc.plugin.llvm.LLVMConfiguration;
+import picocli.CommandLine;
+
+/**
+ * A picocli converter for the LLVM partition count, which is either a non-negative number or {@code auto}.
+ */
+public final class LlvmPartitionsConverter implements CommandLine.ITypeConverter<Integer> {
+    public Integer convert(String value) throws IllegalArgumentException {
+        if (value.equalsIgnoreCase("auto")) {
+            return Integer.valueOf(LLVMConfiguration.PARTITIONS_AUTO);
+        }
+        int partitions = Integer.parseInt(value);
+        if (partitions < 0) {
+            throw new CommandLine.TypeConversionException("Partition count must be non-negative or \"auto\"");
+        }
+        return Integer.valueOf(partitions);
+    }
+}
@@ -66,6 +66,7 @@ import org.qbicc.interpreter.impl.VmImpl;
 import org.qbicc.machine.arch.Cpu;
 import org.qbicc.machine.arch.Platform;
 import org.qbicc.machine.object.ObjectFileProvider;
+import org.qbicc.machine.probe.CProbeCache;
 import org.qbicc.machine.tool.CToolChain;
 import org.qbicc.machine.vfs.AbsoluteVirtualPath;
 import org.qbicc.machine.vfs.VFSUtils;
@@ -84,8 +85,11 @@ import org.qbicc.plugin.correctness.DeferenceBasicBlockBuilder;
 import org.qbicc.plugin.correctness.RuntimeChecksBasicBlockBuilder;
 import org.qbicc.plugin.correctness.StaticChecksBasicBlockBuilder;
 import org.qbicc.plugin.dispatch.DevirtualizingBasicBlockBuilder;
+import org.qbicc.plugin.dispatch.GuardedDevirtualizingBasicBlockBuilder;
 import org.qbicc.plugin.dispatch.DispatchTableBuilder;
 import org.qbicc.plugin.dispatch.DispatchTableEmitter;
+import org.qbicc.plugin.dispatch.InterfaceDispatch;
+import org.qbicc.plugin.dispatch.ReceiverTypes;
 import org.qbicc.plugin.dot.DotGenerator;
 import org.qbicc.plugin.gc.common.AbstractGc;
 import org.qbicc.plugin.gc.common.GcBasicBlockBuilder;
@@ -129,6 +133,7 @@ import org.qbicc.plugin.native_.FunctionTypeResolver;
 import org.qbicc.plugin.native_.InternalNativeTypeResolver;
 import org.qbicc.plugin.native_.NativeBasicBlockBuilder;
 import org.qbicc.plugin.native_.NativeBindingMethodConfigurator;
+import org.qbicc.plugin.native_.NativeProbes;
 import org.qbicc.plugin.native_.NativeTypeBuilder;
 import org.qbicc.plugin.native_.NativeTypeResolver;
 import org.qbicc.plugin.native_.NativeXtorLoweringHook;
@@ -136,10 +141,15 @@ import org.qbicc.plugin.native_.PointerBasicBlockBuilder;
 import org.qbicc.plugin.native_.PointerTypeResolver;
 import org.qbicc.plugin.native_.StructMemberAccessBasicBlockBuilder;
 import org.qbicc.plugin.objectmonitor.ObjectMonitorBasicBlockBuilder;
+import org.qbicc.plugin.objectmonitor.ThinLockBasicBlockBuilder;
+import org.qbicc.plugin.objectmonitor.ThinLocking;
 import org.qbicc.plugin.opt.BlockParameterOptimizingVisitor;
 import org.qbicc.plugin.opt.FinalFieldLoadOptimizer;
 import org.qbicc.plugin.opt.GotoRemovingVisitor;
 import org.qbicc.plugin.opt.InliningBasicBlockBuilder;
+import org.qbicc.plugin.opt.InliningReport;
+import org.qbicc.plugin.opt.LockCoarseningVisitor;
+import org.qbicc.plugin.opt.LockElisionReport;
 import org.qbicc.plugin.opt.LocalMemoryTrackingBasicBlockBuilder;
 import org.qbicc.plugin.opt.LocalOptBasicBlockBuilder;
 import org.qbicc.plugin.opt.ea.EscapeAnalysisDotGenerator;
@@ -152,6 +162,9 @@ import org.qbicc.plugin.patcher.AccessorTypeBuilder;
 import org.qbicc.plugin.patcher.Patcher;
 import org.qbicc.plugin.patcher.PatcherResolverBasicBlockBuilder;
 import org.qbicc.plugin.patcher.PatcherTypeResolver;
+import org.qbicc.plugin.profile.ProfileInstrumentation;
+import org.qbicc.plugin.profile.ProfileInstrumentingBasicBlockBuilder;
+import org.qbicc.plugin.profile.ProfileLoader;
 import org.qbicc.plugin.reachability.ReachabilityAnnotationTypeBuilder;
 import org.qbicc.plugin.reachability.ReachabilityBlockBuilder;
 import org.qbicc.plugin.reachability.ReachabilityFactsSetup;
@@ -166,6 +179,7 @@ import org.qbicc.plugin.reflection.ReflectiveElementTypeBuilder;
 import org.qbicc.plugin.reflection.VarHandleResolvingBasicBlockBuilder;
 import org.qbicc.plugin.serialization.BuildtimeHeap;
 import org.qbicc.plugin.serialization.ClassObjectSerializer;
+import org.qbicc.plugin.serialization.HeapLiteralSerializer;
 import org.qbicc.plugin.serialization.InitialHeapLiteralSerializingVisitor;
 import org.qbicc.plugin.serialization.MethodDataStringsSerializer;
 import org.qbicc.plugin.serialization.StringInternTableEmitter;
@@ -218,9 +232,20 @@ public class Main implements Callable<DiagnosticContext> {
     private final boolean optPhis;
     private final boolean optGotos;
     private final boolean optInlining;
+    private final boolean optGuardedDevirtualization;
+    private final boolean optThinLocks;
     private final boolean optEscapeAnalysis;
     private final Platform platform;
     private final boolean smallTypeIds;
+    private final int interpreterCompileThreshold;
+    private final Path probeCacheDirectory;
+    private final boolean recordMetrics;
+    private final boolean incremental;
+    private final InterfaceDispatch interfaceDispatch;
+    private final boolean compactMethodData;
+    private final Path profileData;
+    private final boolean inliningReport;
+    private final boolean profileInstrument;
     private final List<Path> librarySearchPaths;
     private final List<URL> qbiccYamlFeatures;
     private final List<QbiccFeature> qbiccFeatures;
@@ -246,12 +271,23 @@ public class Main implements Callable<DiagnosticContext> {
         compileOutput = builder.compileOutput;
         optMemoryTracking = builder.optMemoryTracking;
         optInlining = builder.optInlining;
+        optGuardedDevirtualization = builder.optGuardedDevirtualization;
+        optThinLocks = builder.optThinLocks;
         optPhis = builder.optPhis;
         optGotos = builder.optGotos;
-        optEscapeAnalysis = false && builder.optEscapeAnalysis;
+        optEscapeAnalysis = builder.optEscapeAnalysis;
         optLevel = builder.optLevel;
         platform = builder.platform;
         smallTypeIds = builder.smallTypeIds;
+        interpreterCompileThreshold = builder.interpreterCompileThreshold;
+        probeCacheDirectory = builder.probeCacheDirectory;
+        recordMetrics = builder.recordMetrics;
+        incremental = builder.incremental;
+        interfaceDispatch = builder.interfaceDispatch;
+        compactMethodData = builder.compactMethodData;
+        profileData = builder.profileData;
+        inliningReport = builder.inliningReport;
+        profileInstrument = builder.profileInstrument;
         backend = builder.backend;
         ArrayList<ClassPathEntry> bootPaths = new ArrayList<>(builder.bootPathsPrepend.size() + 6 + builder.bootPathsAppend.size());
         bootPaths.addAll(builder.bootPathsPrepend);
@@ -309,6 +345,8 @@ public class Main implements Callable<DiagnosticContext> {
         final Driver.Builder builder = Driver.builder();
         builder.setInitialContext(initialContext);
         builder.setOptLevel(optLevel);
+        builder.setRecordMetrics(recordMetrics);
+        builder.setIncremental(incremental);
         // {@code true} if we are building using llvm, {@code false} otherwise
         boolean llvm = backend.equals(Backend.llvm);
         // {@code true} if we are targeting wasm, {@code false} otherwise
@@ -339,6 +377,7 @@ public class Main implements Callable<DiagnosticContext> {
             builder.setTargetPlatform(target);
             ObjectFileProvider objectFileProvider;
             CToolChain toolChain;
+            CProbeCache probeCache = null;
             if (wasm) {
                 toolChain = null;
                 objectFileProvider = null;
@@ -357,11 +396,15 @@ public class Main implements Callable<DiagnosticContext> {
                 }
                 toolChain = toolChains.next();
                 builder.setToolChain(toolChain);
+                if (probeCacheDirectory != null) {
+                    probeCache = new CProbeCache(probeCacheDirectory);
+                    builder.setProbeCache(probeCache);
+                }
             }
             // probe the basic system sizes
             try {
                 PlatformTypeSystemLoader platformTypeSystemLoader = new PlatformTypeSystemLoader(
-                    platform, toolChain, objectFileProvider, initialContext,
+                    platform, toolChain, objectFileProvider, probeCache, initialContext,
                     PlatformTypeSystemLoader.ReferenceType.POINTER,
                     smallTypeIds);
                 TypeSystem typeSystem = platformTypeSystemLoader.load();
@@ -378,7 +421,7 @@ public class Main implements Callable<DiagnosticContext> {
                     VmImpl vm = VmImpl.create(cc,
                         new BasicHeaderManualInitializer(cc)
                     );
-                    return vm.setPropertyDefines(this.propertyDefines);
+                    return vm.setPropertyDefines(this.propertyDefines).setCompileThreshold(interpreterCompileThreshold);
                 });
                 ServiceLoader<DriverPlugin> loader = ServiceLoader.load(DriverPlugin.class);
                 Iterator<DriverPlugin> iterator = loader.iterator();
@@ -410,6 +453,10 @@ public class Main implements Callable<DiagnosticContext> {
                         builder.setLlvmToolChain(llvmToolChain);
                         final VersionIterator vi = VersionScheme.BASIC.iterate(llvmToolChain.getVersion());
                         vi.next();
+                        if (incremental && llvmConfigurationBuilder.getObjectCacheDirectory() == null) {
+                            // keep unchanged modules in the output directory for the next build
+                            llvmConfigurationBuilder.setObjectCacheDirectory(outputPath.resolve("incremental").resolve("objects"));
+                        }
                         tempLlVmConfiguration = llvmConfigurationBuilder.setMajorVersion(vi.getNumberPartAsInt()).build();
                     }
                 }
@@ -462,6 +509,18 @@ public class Main implements Callable<DiagnosticContext> {
                         builder.addPreHook(Phase.ADD, UnwindExceptionStrategy::get);
                     }
                     builder.addPreHook(Phase.ADD, GcCommon::registerIntrinsics);
+                    if (optThinLocks) {
+                        builder.addPreHook(Phase.ADD, ThinLocking::register);
+                    }
+                    if (profileData != null) {
+                        builder.addPreHook(Phase.ADD, new ProfileLoader(profileData));
+                    }
+                    if (profileInstrument) {
+                        builder.addPreHook(Phase.ADD, ProfileInstrumentation::loadRuntimeSupport);
+                        if (optInlining) {
+                            builder.addPreHook(Phase.ADD, ctxt -> ctxt.warning("Inlining is disabled in instrumented builds"));
+                        }
+                    }
                     builder.addPreHook(Phase.ADD, ctxt -> AbstractGc.install(ctxt, gc));
                     builder.addPreHook(Phase.ADD, compilationContext -> compilationContext.getVm().initialize());
                     builder.addPreHook(Phase.ADD, VIO::get);
@@ -552,7 +611,13 @@ public class Main implements Callable<DiagnosticContext> {
                             RuntimeResourceManager.get(ctxt).findAndSerializeResources();
                         });
                     });
+                    if (optGuardedDevirtualization && ! profileInstrument) {
+                        builder.addPostHook(Phase.ADD, ReceiverTypes::snapshot);
+                    }
 
+                    if (profileInstrument) {
+                        builder.addPreHook(Phase.ANALYZE, ProfileInstrumentation::enterAnalyzePass);
+                    }
                     builder.addPreHook(Phase.ANALYZE, ReachabilityInfo::reportStats);
                     builder.addPreHook(Phase.ANALYZE, ReachabilityInfo::clear);
                     builder.addPreHook(Phase.ANALYZE, ReachabilityFactsSetup::setupAnalyze);
@@ -581,6 +646,9 @@ public class Main implements Callable<DiagnosticContext> {
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, FinalFieldLoadOptimizer::new);
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, ThreadLocalBasicBlockBuilder::new);
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, DevirtualizingBasicBlockBuilder::new);
+                    if (optGuardedDevirtualization && ! profileInstrument) {
+                        builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, GuardedDevirtualizingBasicBlockBuilder::createIfNeeded);
+                    }
                     if (optMemoryTracking) {
                         builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, LocalMemoryTrackingBasicBlockBuilder::new);
                     }
@@ -588,8 +656,16 @@ public class Main implements Callable<DiagnosticContext> {
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.TRANSFORM, InvalidCastsCleanupBasicBlockBuilder::new);
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.CORRECT, NumericalConversionBasicBlockBuilder::new);
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.OPTIMIZE, LocalOptBasicBlockBuilder::new);
-                    if (optInlining) {
+                    if (optInlining && ! profileInstrument) {
                         builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.OPTIMIZE, InliningBasicBlockBuilder::createIfNeeded);
+                        if (inliningReport) {
+                            builder.addPreHook(Phase.ANALYZE, InliningReport::enable);
+                            builder.addPreHook(Phase.LOWER, InliningReport::writeReport);
+                        }
+                        builder.addPreHook(Phase.LOWER, InliningReport::reportStats);
+                    }
+                    if (profileInstrument) {
+                        builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.INTEGRITY, ProfileInstrumentingBasicBlockBuilder::createIfNeeded);
                     }
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.INTEGRITY, ReachabilityBlockBuilder::new);
                     builder.addBuilderFactory(Phase.ANALYZE, BuilderStage.INTEGRITY, StaticChecksBasicBlockBuilder::new);
@@ -602,13 +678,16 @@ public class Main implements Callable<DiagnosticContext> {
                     }
 
                     builder.addPreHook(Phase.LOWER, ReachabilityInfo::reportStats);
-                    builder.addPreHook(Phase.LOWER, new DispatchTableBuilder());
+                    builder.addPreHook(Phase.LOWER, new DispatchTableBuilder(interfaceDispatch));
                     builder.addPreHook(Phase.LOWER, new SupersDisplayBuilder());
                     builder.addPreHook(Phase.LOWER, ReachabilityFactsSetup::setupLower);
                     builder.addPreHook(Phase.LOWER, ReachabilityRoots::processRootsForLower);
                     builder.addPreHook(Phase.LOWER, new ClassObjectSerializer());
+                    builder.addPreHook(Phase.LOWER, new HeapLiteralSerializer());
                     if (optEscapeAnalysis) {
                         builder.addCopyFactory(Phase.LOWER, EscapeAnalysisOptimizeVisitor::new);
+                        builder.addCopyFactory(Phase.LOWER, LockCoarseningVisitor::new);
+                        builder.addPostHook(Phase.LOWER, LockElisionReport::reportStats);
                     }
                     builder.addPreHook(Phase.LOWER, new ElementReachableAdapter(new FunctionLoweringElementHandler()));
                     if (outputDot) {
@@ -641,7 +720,11 @@ public class Main implements Callable<DiagnosticContext> {
                     builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, InstanceOfCheckCastBasicBlockBuilder::new);
                     builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, InitCheckLoweringBasicBlockBuilder::new);
                     builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, ObjectAccessLoweringBuilder::new);
-                    builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, ObjectMonitorBasicBlockBuilder::new);
+                    if (optThinLocks) {
+                        builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, ThinLockBasicBlockBuilder::new);
+                    } else {
+                        builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, ObjectMonitorBasicBlockBuilder::new);
+                    }
                     if (llvm) {
                         builder.addBuilderFactory(Phase.LOWER, BuilderStage.TRANSFORM, (ctxt, delegate) -> new LLVMCompatibleBasicBlockBuilder(ctxt, delegate, llvmConfiguration));
                     } else if (wasm) {
@@ -658,12 +741,17 @@ public class Main implements Callable<DiagnosticContext> {
                     builder.addBuilderFactory(Phase.LOWER, BuilderStage.INTEGRITY, LowerVerificationBasicBlockBuilder::new);
                     builder.addBuilderFactory(Phase.LOWER, BuilderStage.INTEGRITY, StaticChecksBasicBlockBuilder::new);
                     builder.addPostHook(Phase.LOWER, NativeXtorLoweringHook::process);
+                    builder.addPostHook(Phase.LOWER, MethodDataStringsSerializer::serializeStrings);
                     builder.addPostHook(Phase.LOWER, BuildtimeHeap::reportStats);
+                    builder.addPostHook(Phase.LOWER, NativeProbes::reportStats);
 
                     builder.addPreHook(Phase.GENERATE, ReachabilityFactsSetup::setupGenerate);
                     builder.addPreHook(Phase.GENERATE, new StringInternTableEmitter());
                     builder.addPreHook(Phase.GENERATE, new SupersDisplayEmitter());
                     builder.addPreHook(Phase.GENERATE, new DispatchTableEmitter());
+                    if (profileInstrument) {
+                        builder.addPreHook(Phase.GENERATE, ProfileInstrumentation::emitTables);
+                    }
                     builder.addPreHook(Phase.GENERATE, BuildtimeHeap::emitEndMarkers);
 
                     if (llvm) {
@@ -684,7 +772,11 @@ public class Main implements Callable<DiagnosticContext> {
                     }
                     if (executable) {
                         // todo: have a flag for callSiteTable vs shadow stack
-                        builder.addPostHook(Phase.GENERATE, CallSiteTable::writeCallSiteTable);
+                        if (compactMethodData) {
+                            builder.addPostHook(Phase.GENERATE, CallSiteTable::writeCompactCallSiteTable);
+                        } else {
+                            builder.addPostHook(Phase.GENERATE, CallSiteTable::writeCallSiteTable);
+                        }
                     }
                     if (llvm) {
                         // todo: have a flag for callSiteTable vs shadow stack
@@ -699,6 +791,9 @@ public class Main implements Callable<DiagnosticContext> {
                         MainMethod.get(ctxt).setMainClass(mainClass);
                         driver.execute();
                     }
+                    if (probeCache != null) {
+                        probeCache.reportStats();
+                    }
                 }
             } catch (IOException e) {
                 initialContext.error(e, "Failed to probe system types from tool chain");
@@ -887,11 +982,22 @@ public class Main implements Callable<DiagnosticContext> {
             .setCompileOutput(optionsProcessor.compileOutput)
             .setOptMemoryTracking(optionsProcessor.optArgs.optMemoryTracking)
             .setOptInlining(optionsProcessor.optArgs.optInlining)
+            .setOptGuardedDevirtualization(optionsProcessor.optArgs.optGuardedDevirtualization)
+            .setOptThinLocks(optionsProcessor.optArgs.optThinLocks)
             .setOptGotos(optionsProcessor.optArgs.optGotos)
             .setOptPhis(optionsProcessor.optArgs.optPhis)
             .setOptEscapeAnalysis(optionsProcessor.optArgs.optEscapeAnalysis)
             .setOptLevel(optionsProcessor.optArgs.optLevel)
             .setSmallTypeIds(optionsProcessor.smallTypeIds)
+            .setInterpreterCompileThreshold(optionsProcessor.interpreterCompile ? optionsProcessor.interpreterCompileThreshold : 0)
+            .setProbeCacheDirectory(optionsProcessor.probeCacheDirectory)
+            .setRecordMetrics(optionsProcessor.recordMetrics)
+            .setIncremental(optionsProcessor.incremental)
+            .setInterfaceDispatch(optionsProcessor.interfaceDispatch)
+            .setCompactMethodData(optionsProcessor.compactMethodData)
+            .setProfileData(optionsProcessor.profileData)
+            .setInliningReport(optionsProcessor.optArgs.inliningReport)
+            .setProfileInstrument(optionsProcessor.profileInstrument)
             .setBackend(Objects.requireNonNullElse(optionsProcessor.backend, platform.cpu() == Cpu.wasm32 ? Backend.wasm : Backend.llvm))
             .setGraphGenConfig(optionsProcessor.graphGenConfig)
             .setLlvmConfigurationBuilder(LLVMConfiguration.builder()
@@ -902,6 +1008,8 @@ public class Main implements Callable<DiagnosticContext> {
                 .setPlatform(platform)
                 .setReferenceStrategy(platform.isWasm() ? ReferenceStrategy.POINTER : ReferenceStrategy.POINTER_AS1)
                 .addLlcOptions(optionsProcessor.llvmArgs.llcOptions)
+                .setObjectCacheDirectory(optionsProcessor.llvmArgs.objectCacheDirectory)
+                .setPartitions(optionsProcessor.llvmArgs.partitions)
                 .setStatepointEnabled(! platform.isWasm()))
             .setPlatform(platform)
             .addLibrarySearchPaths(splitPathString(System.getenv("LIBRARY_PATH")))
@@ -1042,6 +1150,33 @@ public class Main implements Callable<DiagnosticContext> {
         @CommandLine.Option(names = "--small-type-ids", negatable = true, defaultValue = "false", description = "Use narrow (16-bit) type ID values if true, wide (32-bit) type ID values if false")
         private boolean smallTypeIds;
 
+        @CommandLine.Option(names = "--interpreter-compile", negatable = true, defaultValue = "true", description = "Enable/disable compiling frequently executed build-time methods to JVM bytecode")
+        private boolean interpreterCompile;
+
+        @CommandLine.Option(names = "--interpreter-compile-threshold", defaultValue = "" + VmImpl.DEFAULT_COMPILE_THRESHOLD, description = "Number of invocations after which a build-time method is compiled to JVM bytecode")
+        private int interpreterCompileThreshold;
+
+        @CommandLine.Option(names = "--probe-cache", description = "Directory of a persistent cache of C probe results, keyed on the probe source and C tool chain")
+        private Path probeCacheDirectory;
+
+        @CommandLine.Option(names = "--metrics", negatable = true, defaultValue = "false", description = "Record per-phase, per-hook, and per-builder metrics and write them to metrics.json in the output directory")
+        private boolean recordMetrics;
+
+        @CommandLine.Option(names = "--incremental", negatable = true, defaultValue = "false", description = "Compare the build with the previous build in the same output directory and reuse the object files of modules whose generated code did not change (all phases still run)")
+        private boolean incremental;
+
+        @CommandLine.Option(names = "--interface-dispatch", converter = InterfaceDispatchConverter.class, defaultValue = "searched", description = "Interface dispatch strategy: \"searched\" itable dictionaries or \"colored\" selector tables")
+        private InterfaceDispatch interfaceDispatch;
+
+        @CommandLine.Option(names = "--compact-method-data", negatable = true, defaultValue = "false", description = "Encode the stack walking source table compactly, to be decoded on first use at run time")
+        private boolean compactMethodData;
+
+        @CommandLine.Option(names = "--profile-data", description = "Execution profile recorded by an instrumented build, used to guide optimization")
+        private Path profileData;
+
+        @CommandLine.Option(names = "--profile-instrument", negatable = true, defaultValue = "false", description = "Instrument the program to write an execution profile for --profile-data when it exits")
+        private boolean profileInstrument;
+
         @CommandLine.Option(names = "--backend", description = "The backend type to use. Valid values: ${COMPLETION-CANDIDATES}")
         private Backend backend;
 
@@ -1080,6 +1215,12 @@ public class Main implements Callable<DiagnosticContext> {
             boolean optMemoryTracking;
             @CommandLine.Option(names = "--opt-inlining", negatable = true, defaultValue = "false", description = "Enable/disable inliner")
             boolean optInlining;
+            @CommandLine.Option(names = "--opt-guarded-devirtualization", negatable = true, defaultValue = "false", description = "Enable/disable devirtualization of calls with a likely receiver type behind a type check")
+            boolean optGuardedDevirtualization;
+            @CommandLine.Option(names = "--opt-thin-locks", negatable = true, defaultValue = "false", description = "Enable/disable inline locking of uncontended object monitors")
+            boolean optThinLocks;
+            @CommandLine.Option(names = "--inlining-report", negatable = true, defaultValue = "false", description = "Write every inlining decision to inlining-report.txt in the output directory")
+            boolean inliningReport;
             @CommandLine.Option(names = "--no-opt-phis", negatable = true, defaultValue = "true", description = "Enable/disable `phi` elimination")
             boolean optPhis;
             @CommandLine.Option(names = "--no-opt-gotos", negatable = true, defaultValue = "true", description = "Enable/disable `goto` elimination")
@@ -1095,6 +1236,10 @@ public class Main implements Callable<DiagnosticContext> {
             boolean emitIr;
             @CommandLine.Option(names = "--llvm-llc-option", split = ",", description = "Pass options to the LLVM llc command")
             private List<String> llcOptions = new ArrayList<String>();
+            @CommandLine.Option(names = "--llvm-object-cache", description = "Directory of a persistent cache of compiled object files, keyed on the content of the generated IR")
+            private Path objectCacheDirectory;
+            @CommandLine.Option(names = "--llvm-partitions", converter = LlvmPartitionsConverter.class, defaultValue = "0", description = "Number of LLVM compilation units to pack the program into, or \"auto\" (0 compiles each class separately)")
+            private int partitions;
         }
 
         public CmdResult process(String[] args) {
@@ -1189,12 +1334,23 @@ public class Main implements Callable<DiagnosticContext> {
         private boolean compileOutput = true;
         private boolean optMemoryTracking = false;
         private boolean optInlining = false;
+        private boolean optGuardedDevirtualization = false;
+        private boolean optThinLocks = false;
         private boolean optPhis = true;
         private boolean optGotos = true;
         private boolean optEscapeAnalysis = false;
         private GraphGenConfig graphGenConfig;
         private boolean outputDot = false;
         private boolean smallTypeIds = false;
+        private int interpreterCompileThreshold = VmImpl.DEFAULT_COMPILE_THRESHOLD;
+        private Path probeCacheDirectory;
+        private boolean recordMetrics = false;
+        private boolean incremental = false;
+        private InterfaceDispatch interfaceDispatch = InterfaceDispatch.SEARCHED;
+        private boolean compactMethodData = false;
+        private Path profileData;
+        private boolean inliningReport = false;
+        private boolean profileInstrument = false;
         private Backend backend = Backend.llvm;
         private List<Path> librarySearchPaths = List.of();
         private List<URL> qbiccYamlFeatures = new ArrayList<>();
@@ -1373,6 +1529,16 @@ public class Main implements Callable<DiagnosticContext> {
             return this;
         }
 
+        public Builder setOptGuardedDevirtualization(boolean optGuardedDevirtualization) {
+            this.optGuardedDevirtualization = optGuardedDevirtualization;
+            return this;
+        }
+
+        public Builder setOptThinLocks(boolean optThinLocks) {
+            this.optThinLocks = optThinLocks;
+            return this;
+        }
+
         public Builder setOptPhis(boolean optPhis) {
             this.optPhis = optPhis;
             return this;
@@ -1398,6 +1564,51 @@ public class Main implements Callable<DiagnosticContext> {
             return this;
         }
 
+        public Builder setInterpreterCompileThreshold(int interpreterCompileThreshold) {
+            this.interpreterCompileThreshold = Assert.checkMinimumParameter("interpreterCompileThreshold", 0, interpreterCompileThreshold);
+            return this;
+        }
+
+        public Builder setProbeCacheDirectory(Path probeCacheDirectory) {
+            this.probeCacheDirectory = probeCacheDirectory;
+            return this;
+        }
+
+        public Builder setRecordMetrics(boolean recordMetrics) {
+            this.recordMetrics = recordMetrics;
+            return this;
+        }
+
+        public Builder setIncremental(boolean incremental) {
+            this.incremental = incremental;
+            return this;
+        }
+
+        public Builder setInterfaceDispatch(InterfaceDispatch interfaceDispatch) {
+            this.interfaceDispatch = Assert.checkNotNullParam("interfaceDispatch", interfaceDispatch);
+            return this;
+        }
+
+        public Builder setCompactMethodData(boolean compactMethodData) {
+            this.compactMethodData = compactMethodData;
+            return this;
+        }
+
+        public Builder setProfileData(Path profileData) {
+            this.profileData = profileData;
+            return this;
+        }
+
+        public Builder setInliningReport(boolean inliningReport) {
+            this.inliningReport = inliningReport;
+            return this;
+        }
+
+        public Builder setProfileInstrument(boolean profileInstrument) {
+            this.profileInstrument = profileInstrument;
+            return this;
+        }
+
         public Builder addLibrarySearchPaths(List<Path> librarySearchPaths) {
             if (librarySearchPaths != null && !librarySearchPaths.isEmpty()) {
                 if (this.librarySearchPaths.isEmpty()) {
@@ -11,6 +11,7 @@ import org.qbicc.context.DiagnosticContext;
 import org.qbicc.machine.arch.Platform;
 import org.qbicc.machine.object.ObjectFileProvider;
 import org.qbicc.machine.probe.CProbe;
+import org.qbicc.machine.probe.CProbeCache;
 import org.qbicc.machine.tool.CToolChain;
 import org.qbicc.type.TypeSystem;
 
@@ -50,6 +51,7 @@ public class PlatformTypeSystemLoader {
     private final Platform platform;
     private final CToolChain toolChain;
     private final ObjectFileProvider objectFileProvider;
+    private final CProbeCache probeCache;
     private final DiagnosticContext initialContext;
     private final ReferenceType referenceType;
     private final boolean smallTypeIds;
@@ -59,12 +61,14 @@ public class PlatformTypeSystemLoader {
         Platform platform,
         CToolChain toolChain,
         ObjectFileProvider objectFileProvider,
+        CProbeCache probeCache,
         DiagnosticContext initialContext,
         ReferenceType referenceType,
         boolean smallTypeIds) {
         this.platform = platform;
         this.toolChain = toolChain;
         this.objectFileProvider = objectFileProvider;
+        this.probeCache = probeCache;
         this.initialContext = initialContext;
         this.smallTypeIds = smallTypeIds;
         this.referenceType = referenceType;
@@ -112,7 +116,7 @@ public class PlatformTypeSystemLoader {
 
     TypeSystem fromProbe() throws IOException {
         CProbe probe = makeProbe();
-        CProbe.Result probeResult = probe.run(toolChain, objectFileProvider, initialContext);
+        CProbe.Result probeResult = probe.run(toolChain, objectFileProvider, initialContext, probeCache);
         if (probeResult == null) {
             initialContext.error("Type system probe compiler execution failed");
         } else {
@@ -29,6 +29,7 @@ import org.qbicc.machine.arch.Platform;
 import org.qbicc.main.ClassPathEntry;
 import org.qbicc.main.DefaultArtifactRequestor;
 import org.qbicc.main.Main;
+import org.qbicc.plugin.dispatch.InterfaceDispatch;
 import org.qbicc.plugin.llvm.LLVMConfiguration;
 import org.qbicc.plugin.llvm.ReferenceStrategy;
 
@@ -62,6 +63,15 @@ public class QbiccCompileMojo extends AbstractMojo {
     @Parameter(defaultValue = "false")
     private boolean optInlining;
 
+    @Parameter(defaultValue = "false")
+    private boolean optGuardedDevirtualization;
+
+    @Parameter(defaultValue = "false")
+    private boolean optThinLocks;
+
+    @Parameter(property = "qbicc.inlining-report")
+    private boolean inliningReport;
+
     @Parameter(defaultValue = "true")
     private boolean optPhis;
 
@@ -92,6 +102,33 @@ public class QbiccCompileMojo extends AbstractMojo {
     @Parameter
     private List<String> llcOptions;
 
+    @Parameter(property = "qbicc.llvm-object-cache")
+    private File llvmObjectCache;
+
+    @Parameter(property = "qbicc.llvm-partitions")
+    private String llvmPartitions;
+
+    @Parameter(property = "qbicc.probe-cache")
+    private File probeCache;
+
+    @Parameter(property = "qbicc.metrics")
+    private boolean metrics;
+
+    @Parameter(property = "qbicc.incremental")
+    private boolean incremental;
+
+    @Parameter(property = "qbicc.interface-dispatch", defaultValue = "SEARCHED")
+    private InterfaceDispatch interfaceDispatch;
+
+    @Parameter(property = "qbicc.compact-method-data")
+    private boolean compactMethodData;
+
+    @Parameter(property = "qbicc.profile-data")
+    private File profileData;
+
+    @Parameter(property = "qbicc.profile-instrument")
+    private boolean profileInstrument;
+
     @Component
     private RepositorySystem repoSystem;
 
@@ -131,9 +168,23 @@ public class QbiccCompileMojo extends AbstractMojo {
         builder.setOptEscapeAnalysis(optEscapeAnalysis);
         builder.setOptGotos(optGotos);
         builder.setOptInlining(optInlining);
+        builder.setOptGuardedDevirtualization(optGuardedDevirtualization);
+        builder.setOptThinLocks(optThinLocks);
         builder.setOptPhis(optPhis);
         builder.setOptLevel(optLevel);
         builder.setClassPathResolver(this::resolveClassPath);
+        if (probeCache != null) {
+            builder.setProbeCacheDirectory(probeCache.toPath());
+        }
+        builder.setRecordMetrics(metrics);
+        builder.setIncremental(incremental);
+        builder.setInterfaceDispatch(interfaceDispatch);
+        builder.setCompactMethodData(compactMethodData);
+        if (profileData != null) {
+            builder.setProfileData(profileData.toPath());
+        }
+        builder.setInliningReport(inliningReport);
+        builder.setProfileInstrument(profileInstrument);
         List<File> librarySearchPaths = this.librarySearchPaths;
         if (librarySearchPaths != null && ! librarySearchPaths.isEmpty()) {
             List<Path> pathList = new ArrayList<>(librarySearchPaths.size());
@@ -159,6 +210,8 @@ public class QbiccCompileMojo extends AbstractMojo {
             .setEmitIr(emitLlvmIr)
             .setEmitAssembly(emitAsm)
             .addLlcOptions(llcOptions == null ? List.of() : llcOptions)
+            .setObjectCacheDirectory(llvmObjectCache == null ? null : llvmObjectCache.toPath())
+            .setPartitions(parseLlvmPartitions(llvmPartitions))
         );
         final Map<Diagnostic.Level, List<Diagnostic>> map = new EnumMap<>(Diagnostic.Level.class);
         builder.setDiagnosticsHandler(new Consumer<Iterable<Diagnostic>>() {
@@ -205,6 +258,25 @@ public class QbiccCompileMojo extends AbstractMojo {
         result.forEach(consumer);
     }
 
+    private static int parseLlvmPartitions(String value) throws MojoExecutionException {
+        if (value == null) {
+            return 0;
+        }
+        if (value.equalsIgnoreCase("auto")) {
+            return LLVMConfiguration.PARTITIONS_AUTO;
+        }
+        int partitions;
+        try {
+            partitions = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException("Invalid llvmPartitions value \"" + value + "\": expected a non-negative integer or \"auto\"", e);
+        }
+        if (partitions < 0) {
+            throw new MojoExecutionException("Invalid llvmPartitions value \"" + value + "\": the partition count must be non-negative or \"auto\"");
+        }
+        return partitions;
+    }
+
     private static <E> List<E> newList(final Object ignored) {
         return new ArrayList<>();
     }
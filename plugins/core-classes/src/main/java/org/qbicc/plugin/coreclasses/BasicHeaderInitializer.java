@@ -19,7 +19,11 @@ public class BasicHeaderInitializer {
     }
 
     public static void initializeArrayHeader(final CompilationContext ctxt, final BasicBlockBuilder bb, final Value handle, final Value typeId, final Value size) {
-        initializeArrayHeader(ctxt, bb, CoreClasses.get(ctxt), handle, typeId, size);
+        initializeArrayHeader(ctxt, bb, CoreClasses.get(ctxt), handle, typeId, size, false);
+    }
+
+    public static void initializeArrayHeader(final CompilationContext ctxt, final BasicBlockBuilder bb, final Value handle, final Value typeId, final Value size, boolean stackAlloc) {
+        initializeArrayHeader(ctxt, bb, CoreClasses.get(ctxt), handle, typeId, size, stackAlloc);
     }
 
     public static void initializeRefArrayHeader(CompilationContext ctxt, BasicBlockBuilder bb, final Value handle, Value elemTypeId, Value dimensions, final Value size) {
@@ -35,14 +39,14 @@ public class BasicHeaderInitializer {
         bb.store(bb.instanceFieldOf(handle, coreClasses.getObjectTypeIdField()), typeId, SinglePlain);
     }
 
-    private static void initializeArrayHeader(final CompilationContext ctxt, final BasicBlockBuilder bb, final CoreClasses coreClasses, final Value handle, final Value typeId, final Value size) {
-        initializeObjectHeader(ctxt, bb, coreClasses, handle, typeId, false);
+    private static void initializeArrayHeader(final CompilationContext ctxt, final BasicBlockBuilder bb, final CoreClasses coreClasses, final Value handle, final Value typeId, final Value size, boolean stackAlloc) {
+        initializeObjectHeader(ctxt, bb, coreClasses, handle, typeId, stackAlloc);
         bb.store(bb.instanceFieldOf(handle, coreClasses.getArrayLengthField()), size, SinglePlain);
     }
 
     private static void initializeRefArrayHeader(final CompilationContext ctxt, final BasicBlockBuilder bb, final CoreClasses coreClasses, final Value handle, Value elemTypeId, Value dimensions, final Value size) {
         LiteralFactory lf = ctxt.getLiteralFactory();
-        initializeArrayHeader(ctxt, bb, coreClasses, handle, lf.literalOfType(coreClasses.getReferenceArrayTypeDefinition().load().getClassType()), size);
+        initializeArrayHeader(ctxt, bb, coreClasses, handle, lf.literalOfType(coreClasses.getReferenceArrayTypeDefinition().load().getClassType()), size, false);
         InstanceFieldElement dimsField = coreClasses.getRefArrayDimensionsField();
         bb.store(bb.instanceFieldOf(handle, dimsField), dimensions, SinglePlain);
         bb.store(bb.instanceFieldOf(handle, coreClasses.getRefArrayElementTypeIdField()), elemTypeId, SinglePlain);
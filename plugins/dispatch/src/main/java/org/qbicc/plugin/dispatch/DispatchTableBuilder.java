@@ -9,10 +9,21 @@ import org.qbicc.type.definition.LoadedTypeDefinition;
 import java.util.function.Consumer;
 
 public class DispatchTableBuilder implements Consumer<CompilationContext>  {
+    private final InterfaceDispatch interfaceDispatch;
+
+    public DispatchTableBuilder() {
+        this(InterfaceDispatch.SEARCHED);
+    }
+
+    public DispatchTableBuilder(InterfaceDispatch interfaceDispatch) {
+        this.interfaceDispatch = interfaceDispatch;
+    }
+
     @Override
     public void accept(CompilationContext ctxt) {
         ReachabilityInfo info = ReachabilityInfo.get(ctxt);
         DispatchTables tables = DispatchTables.get(ctxt);
+        tables.setInterfaceDispatch(interfaceDispatch);
 
         // Starting from java.lang.Object walk down the live class hierarchy and
         //  compute vtable layouts that contain just the dispatchable methods.
@@ -32,14 +43,21 @@ public class DispatchTableBuilder implements Consumer<CompilationContext>  {
         DispatchTables.VTableInfo mhInfo = tables.getVTableInfo(mh);
         info.visitReachableSubclassesPreOrder(mh, c -> tables.adjustVTableForSigPloySubclass(c, mhInfo));
 
-        // Synthesize GlobalVariable for vtables[] and itable_dict[]
+        // Synthesize GlobalVariable for vtables[] and itable_dict[] or selector_row[]
         tables.buildVTablesGlobal(jlo);
-        tables.buildITablesGlobal(jlo);
+        if (interfaceDispatch == InterfaceDispatch.COLORED) {
+            tables.buildSelectorRowsGlobal(jlo);
+        } else {
+            tables.buildITablesGlobal(jlo);
+        }
 
         // Synthesize GlobalVariable for rtinit[]
         tables.buildRTInitGlobal(jlo);
 
         // Now build the interface dispatching structures for the dispatchable methods
         info.visitReachableInterfaces(tables::buildFilteredITableForInterface);
+
+        // Color the interface selectors (also when searching, so that the stats can compare the strategies)
+        tables.assignSelectorColors(jlo);
     }
 }
@@ -3,12 +3,15 @@ package org.qbicc.plugin.dispatch;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 import io.smallrye.common.constraint.Assert;
 import org.jboss.logging.Logger;
@@ -39,6 +42,7 @@ import org.qbicc.type.definition.element.GlobalVariableElement;
 import org.qbicc.type.definition.element.InitializerElement;
 import org.qbicc.type.definition.element.MethodElement;
 import org.qbicc.type.descriptor.BaseTypeDescriptor;
+import org.qbicc.type.descriptor.MethodDescriptor;
 import org.qbicc.type.generic.BaseTypeSignature;
 
 public class DispatchTables {
@@ -47,6 +51,12 @@ public class DispatchTables {
 
     private static final AttachmentKey<DispatchTables> KEY = new AttachmentKey<>();
 
+    /**
+     * The number of type IDs which are assigned to types other than the reachable classes: the poison type, void,
+     * 8 primitive types, the array base class, 8 primitive arrays and the reference array.
+     */
+    private static final int NON_CLASS_TYPE_IDS = 20;
+
     private final CompilationContext ctxt;
     private final Map<LoadedTypeDefinition, VTableInfo> vtables = new ConcurrentHashMap<>();
     private final Map<LoadedTypeDefinition, ITableInfo> itables = new ConcurrentHashMap<>();
@@ -55,7 +65,12 @@ public class DispatchTables {
     private GlobalVariableElement vtablesGlobal;
     private GlobalVariableElement itablesGlobal;
     private GlobalVariableElement rtinitsGlobal;
+    private GlobalVariableElement selectorRowsGlobal;
     private StructType itableDictType;
+    private InterfaceDispatch interfaceDispatch = InterfaceDispatch.SEARCHED;
+    // written only by the dispatch table builder hook
+    private final Map<Selector, Integer> selectorColors = new HashMap<>();
+    private int colorCount;
 
     // Used to accumulate statistics
     private int emittedVTableCount;
@@ -64,6 +79,11 @@ public class DispatchTables {
     private int emittedClassITableBytes;
     private int emittedClassITableDictBytes;
     private int emittedClassITableDictCount;
+    private int emittedSelectorRowCount;
+    private int emittedSelectorRowBytes;
+    private int interfaceDispatchClassCount;
+    private long searchedProbeSum;
+    private int searchedTableBytes;
 
     private DispatchTables(final CompilationContext ctxt) {
         this.ctxt = ctxt;
@@ -87,6 +107,14 @@ public class DispatchTables {
 
     public ITableInfo getITableInfo(LoadedTypeDefinition cls) { return itables.get(cls); }
 
+    public InterfaceDispatch getInterfaceDispatch() {
+        return interfaceDispatch;
+    }
+
+    void setInterfaceDispatch(InterfaceDispatch interfaceDispatch) {
+        this.interfaceDispatch = Assert.checkNotNullParam("interfaceDispatch", interfaceDispatch);
+    }
+
     void buildFilteredVTable(LoadedTypeDefinition cls) {
         tlog.debugf("Building VTable for %s", cls.getDescriptor());
         ReachabilityInfo reachabilityInfo = ReachabilityInfo.get(ctxt);
@@ -203,15 +231,93 @@ public class DispatchTables {
         itables.put(cls, new ITableInfo(itable, itableType, cls));
     }
 
+    /**
+     * Assign a color to every interface selector, such that no concrete class implements two selectors of the same
+     * color.  Selectors are colored greedily, most widely implemented first, with the lowest color which is not
+     * already used by any of their implementing classes.
+     *
+     * @param jlo the class {@code java.lang.Object}
+     */
+    void assignSelectorColors(LoadedTypeDefinition jlo) {
+        Map<Selector, List<LoadedTypeDefinition>> implementors = new HashMap<>();
+        Consumer<LoadedTypeDefinition> collector = cls -> {
+            if (cls.isAbstract() && ! cls.isFinal()) {
+                return;
+            }
+            for (Selector selector : getImplementedSelectors(cls)) {
+                implementors.computeIfAbsent(selector, k -> new ArrayList<>()).add(cls);
+            }
+        };
+        collector.accept(jlo);
+        ReachabilityInfo.get(ctxt).visitReachableSubclassesPreOrder(jlo, collector);
+
+        List<Selector> selectors = new ArrayList<>(implementors.keySet());
+        selectors.sort(Comparator.<Selector>comparingInt(sel -> implementors.get(sel).size()).reversed().thenComparing(Selector::toString));
+        Map<LoadedTypeDefinition, BitSet> usedColors = new HashMap<>();
+        BitSet forbidden = new BitSet();
+        int colorCount = 0;
+        for (Selector selector : selectors) {
+            List<LoadedTypeDefinition> classes = implementors.get(selector);
+            forbidden.clear();
+            for (LoadedTypeDefinition cls : classes) {
+                BitSet used = usedColors.get(cls);
+                if (used != null) {
+                    forbidden.or(used);
+                }
+            }
+            int color = forbidden.nextClearBit(0);
+            for (LoadedTypeDefinition cls : classes) {
+                usedColors.computeIfAbsent(cls, k -> new BitSet()).set(color);
+            }
+            selectorColors.put(selector, Integer.valueOf(color));
+            colorCount = Math.max(colorCount, color + 1);
+        }
+        this.colorCount = colorCount;
+        slog.debugf("Colored %d interface selectors implemented by %d classes with %d colors", selectors.size(), usedColors.size(), colorCount);
+    }
+
+    private Set<Selector> getImplementedSelectors(LoadedTypeDefinition cls) {
+        Set<Selector> selectors = new HashSet<>();
+        cls.forEachInterfaceFullImplementedSet(i -> {
+            ITableInfo iti = itables.get(i);
+            if (iti != null) {
+                for (MethodElement m : iti.getItable()) {
+                    selectors.add(Selector.of(m));
+                }
+            }
+        });
+        return selectors;
+    }
+
+    /**
+     * Get the color, and thus the index into the selector table of every class, of the given interface method.
+     *
+     * @param target the interface method (must not be {@code null})
+     * @return the color, or -1 if no reachable class implements the method
+     */
+    public int getSelectorColor(MethodElement target) {
+        Integer color = selectorColors.get(Selector.of(target));
+        return color == null ? -1 : color.intValue();
+    }
+
     public void registerRuntimeInitializer(InitializerElement init) {
         runtimeInitializers.add(init);
     }
 
+    /**
+     * Get the length of a global table which is indexed by type ID.
+     * Invariant: typeIds are assigned from 1...N, where N is the number of reachable classes as computed by RTA
+     * plus {@link #NON_CLASS_TYPE_IDS}.
+     *
+     * @return the table length
+     */
+    private int getTypeIdTableLength() {
+        return vtables.size() + NON_CLASS_TYPE_IDS;
+    }
+
     void buildVTablesGlobal(DefinedTypeDefinition containingType) {
         GlobalVariableElement.Builder builder = GlobalVariableElement.builder("qbicc_vtables_array", BaseTypeDescriptor.V);
-        // Invariant: typeIds are assigned from 1...N, where N is the number of reachable classes as computed by RTA
-        // plus 20 for the poison type, void, 8 primitive types, the array base class, 8 primitive arrays and reference array.
-        builder.setType(ctxt.getTypeSystem().getArrayType(ctxt.getTypeSystem().getVoidType().getPointer().getPointer(), vtables.size()+20));  //TODO: communicate this +20 better
+        builder.setType(ctxt.getTypeSystem().getArrayType(ctxt.getTypeSystem().getVoidType().getPointer().getPointer(), getTypeIdTableLength()));
         builder.setEnclosingType(containingType);
         builder.setSignature(BaseTypeSignature.V);
         builder.setSection(ctxt.getImplicitSection());
@@ -226,15 +332,23 @@ public class DispatchTables {
             ts.getPointerAlignment(), () -> List.of(itableMember, typeIdMember));
 
         GlobalVariableElement.Builder builder = GlobalVariableElement.builder("qbicc_itable_dicts_array", BaseTypeDescriptor.V);
-        // Invariant: typeIds are assigned from 1...N, where N is the number of reachable classes as computed by RTA
-        // plus 20 for the poison type, void, 8 primitive types, the array base class, 8 primitive arrays and reference array.
-        builder.setType(ts.getArrayType(ts.getArrayType(itableDictType, 0).getPointer(), vtables.size()+20));  //TODO: communicate this +20 better
+        builder.setType(ts.getArrayType(ts.getArrayType(itableDictType, 0).getPointer(), getTypeIdTableLength()));
         builder.setEnclosingType(containingType);
         builder.setSignature(BaseTypeSignature.V);
         builder.setSection(ctxt.getImplicitSection());
         itablesGlobal = builder.build();
     }
 
+    void buildSelectorRowsGlobal(DefinedTypeDefinition containingType) {
+        TypeSystem ts = ctxt.getTypeSystem();
+        GlobalVariableElement.Builder builder = GlobalVariableElement.builder("qbicc_selector_rows_array", BaseTypeDescriptor.V);
+        builder.setType(ts.getArrayType(ts.getArrayType(ts.getVoidType().getPointer(), 0).getPointer(), getTypeIdTableLength()));
+        builder.setEnclosingType(containingType);
+        builder.setSignature(BaseTypeSignature.V);
+        builder.setSection(ctxt.getImplicitSection());
+        selectorRowsGlobal = builder.build();
+    }
+
     void buildRTInitGlobal(DefinedTypeDefinition containingType) {
         TypeSystem ts = ctxt.getTypeSystem();
         FunctionType initType = ctxt.getFunctionTypeForInitializer();
@@ -328,52 +442,35 @@ public class DispatchTables {
 
         classesWithITables.add(cls);
 
+        // account for both strategies, so that the stats can compare them
+        int dictBytes = (myITables.size() + 1) * (ctxt.getTypeSystem().getPointerSize() + ctxt.getTypeSystem().getTypeIdSize());
+        for (ITableInfo itableInfo : myITables) {
+            dictBytes += itableInfo.getItable().length * ctxt.getTypeSystem().getPointerSize();
+        }
+        interfaceDispatchClassCount += 1;
+        searchedProbeSum += myITables.size() + 1;
+        searchedTableBytes += dictBytes;
+
+        if (interfaceDispatch == InterfaceDispatch.COLORED) {
+            emitSelectorRow(cls);
+            return;
+        }
+
         LiteralFactory lf = ctxt.getLiteralFactory();
         TypeSystem ts = ctxt.getTypeSystem();
         ModuleSection cSection = ctxt.getImplicitSection(cls);
         ProgramModule programModule = cSection.getProgramModule();
 
         ArrayList<Literal> itableLiterals = new ArrayList<>(myITables.size() + 1);
-        RuntimeMethodFinder methodFinder = RuntimeMethodFinder.get(ctxt);
-        ReachabilityInfo reachabilityInfo = ReachabilityInfo.get(ctxt);
         for (ITableInfo itableInfo : myITables) {
             MethodElement[] itable = itableInfo.getItable();
             LoadedTypeDefinition currentInterface = itableInfo.getInterface();
 
             HashMap<StructType.Member, Literal> valueMap = new HashMap<>();
             for (int i = 0; i < itable.length; i++) {
-                MethodElement methImpl = cls.resolveMethodElementVirtual(cls.getContext(), itable[i].getName(), itable[i].getDescriptor());
-                FunctionType implType = ctxt.getFunctionTypeForElement(methImpl);
-                if (methImpl == null) {
-                    MethodElement icceStub = methodFinder.getMethod("raiseIncompatibleClassChangeError");
-                    Function icceImpl = ctxt.getExactFunction(icceStub);
-                    Literal iceeLiteral = lf.literalOf(programModule.declareFunction(icceImpl));
-                    valueMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(iceeLiteral, implType.getPointer()));
-                } else if (methImpl.isAbstract()) {
-                    MethodElement ameStub = methodFinder.getMethod("raiseAbstractMethodError");
-                    Function ameImpl = ctxt.getExactFunction(ameStub);
-                    Literal ameLiteral = lf.literalOf(programModule.declareFunction(ameImpl));
-                    valueMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(ameLiteral, implType.getPointer()));
-                } else if (methImpl.isNative()) {
-                    MethodElement uleStub = methodFinder.getMethod("raiseUnsatisfiedLinkErrorDispatchStub");
-                    Function uleImpl = ctxt.getExactFunction(uleStub);
-                    Literal uleLiteral = lf.literalOf(programModule.declareFunction(uleImpl));
-                    valueMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(uleLiteral, implType.getPointer()));
-                } else if (!reachabilityInfo.isInvokableInstanceMethod(methImpl)) {
-                    MethodElement uceStub = methodFinder.getMethod("raiseUnreachableCodeError");
-                    Function uceImpl = ctxt.getExactFunction(uceStub);
-                    Literal uceLiteral = lf.literalOf(programModule.declareFunction(uceImpl));
-                    valueMap.put(itableInfo.getType().getMember(i), lf.bitcastLiteral(uceLiteral, implType.getPointer()));
-                } else {
-                    Function impl = ctxt.getExactFunctionIfExists(methImpl);
-                    if (impl == null) {
-                        ctxt.error(methImpl, "Missing method implementation for itable of %s", cls.getInternalName());
-                    } else {
-                        if (!methImpl.getEnclosingType().load().equals(cls)) {
-                            programModule.declareFunction(methImpl, impl.getName(), implType);
-                        }
-                        valueMap.put(itableInfo.getType().getMember(i), ctxt.getLiteralFactory().literalOf(impl));
-                    }
+                Literal literal = getDispatchTarget(cls, programModule, itable[i]);
+                if (literal != null) {
+                    valueMap.put(itableInfo.getType().getMember(i), literal);
                 }
             }
 
@@ -399,7 +496,102 @@ public class DispatchTables {
         emittedClassITableDictBytes += (myITables.size() + 1) * itableDictType.getSize();
     }
 
+    /**
+     * Get the literal to place in a dispatch table of the given class for the given interface method.
+     *
+     * @param cls the concrete class
+     * @param programModule the program module of the class
+     * @param selector the interface method
+     * @return the function literal, or {@code null} if the implementation is missing (an error is reported)
+     */
+    private Literal getDispatchTarget(LoadedTypeDefinition cls, ProgramModule programModule, MethodElement selector) {
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        RuntimeMethodFinder methodFinder = RuntimeMethodFinder.get(ctxt);
+        ReachabilityInfo reachabilityInfo = ReachabilityInfo.get(ctxt);
+        MethodElement methImpl = cls.resolveMethodElementVirtual(cls.getContext(), selector.getName(), selector.getDescriptor());
+        FunctionType implType = ctxt.getFunctionTypeForElement(methImpl);
+        if (methImpl == null) {
+            MethodElement icceStub = methodFinder.getMethod("raiseIncompatibleClassChangeError");
+            Function icceImpl = ctxt.getExactFunction(icceStub);
+            Literal iceeLiteral = lf.literalOf(programModule.declareFunction(icceImpl));
+            return lf.bitcastLiteral(iceeLiteral, implType.getPointer());
+        } else if (methImpl.isAbstract()) {
+            MethodElement ameStub = methodFinder.getMethod("raiseAbstractMethodError");
+            Function ameImpl = ctxt.getExactFunction(ameStub);
+            Literal ameLiteral = lf.literalOf(programModule.declareFunction(ameImpl));
+            return lf.bitcastLiteral(ameLiteral, implType.getPointer());
+        } else if (methImpl.isNative()) {
+            MethodElement uleStub = methodFinder.getMethod("raiseUnsatisfiedLinkErrorDispatchStub");
+            Function uleImpl = ctxt.getExactFunction(uleStub);
+            Literal uleLiteral = lf.literalOf(programModule.declareFunction(uleImpl));
+            return lf.bitcastLiteral(uleLiteral, implType.getPointer());
+        } else if (!reachabilityInfo.isInvokableInstanceMethod(methImpl)) {
+            MethodElement uceStub = methodFinder.getMethod("raiseUnreachableCodeError");
+            Function uceImpl = ctxt.getExactFunction(uceStub);
+            Literal uceLiteral = lf.literalOf(programModule.declareFunction(uceImpl));
+            return lf.bitcastLiteral(uceLiteral, implType.getPointer());
+        } else {
+            Function impl = ctxt.getExactFunctionIfExists(methImpl);
+            if (impl == null) {
+                ctxt.error(methImpl, "Missing method implementation for itable of %s", cls.getInternalName());
+                return null;
+            } else {
+                if (!methImpl.getEnclosingType().load().equals(cls)) {
+                    programModule.declareFunction(methImpl, impl.getName(), implType);
+                }
+                return lf.literalOf(impl);
+            }
+        }
+    }
+
+    private Literal getIncompatibleClassChangeStub(ProgramModule programModule) {
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        MethodElement icceStub = RuntimeMethodFinder.get(ctxt).getMethod("raiseIncompatibleClassChangeError");
+        Function icceImpl = ctxt.getExactFunction(icceStub);
+        return lf.bitcastLiteral(lf.literalOf(programModule.declareFunction(icceImpl)), ctxt.getTypeSystem().getVoidType().getPointer());
+    }
+
+    private void emitSelectorRow(LoadedTypeDefinition cls) {
+        if (colorCount == 0) {
+            return;
+        }
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        TypeSystem ts = ctxt.getTypeSystem();
+        ModuleSection cSection = ctxt.getImplicitSection(cls);
+        ProgramModule programModule = cSection.getProgramModule();
+        Literal[] row = new Literal[colorCount];
+        // unused colors raise IncompatibleClassChangeError
+        Arrays.fill(row, getIncompatibleClassChangeStub(programModule));
+        cls.forEachInterfaceFullImplementedSet(i -> {
+            ITableInfo iti = itables.get(i);
+            if (iti != null) {
+                for (MethodElement m : iti.getItable()) {
+                    int color = getSelectorColor(m);
+                    Literal literal = getDispatchTarget(cls, programModule, m);
+                    if (color != -1 && literal != null) {
+                        row[color] = lf.bitcastLiteral(literal, ts.getVoidType().getPointer());
+                    }
+                }
+            }
+        });
+        cSection.addData(null, getSelectorRowName(cls), lf.literalOf(ts.getArrayType(ts.getVoidType().getPointer(), colorCount), List.of(row)));
+        emittedSelectorRowCount += 1;
+        emittedSelectorRowBytes += colorCount * ts.getPointerSize();
+    }
+
+    private static String getSelectorRowName(LoadedTypeDefinition cls) {
+        String rowName = "qbicc_selector_row_for_" + cls.getInternalName().replace('/', '.');
+        if (cls.isHidden()) {
+            rowName += "~" + ENCODER.encodeToString(cls.getDigest()) + '.' + cls.getHiddenClassIndex();
+        }
+        return rowName;
+    }
+
     void emitITableTable(LoadedTypeDefinition jlo) {
+        if (interfaceDispatch == InterfaceDispatch.COLORED) {
+            emitSelectorRowTable(jlo);
+            return;
+        }
         ArrayType itablesGlobalType = ((ArrayType) itablesGlobal.getType());
         ModuleSection section = ctxt.getImplicitSection(jlo);
         Literal[] itableLiterals = new Literal[(int) itablesGlobalType.getElementCount()];
@@ -425,6 +617,49 @@ public class DispatchTables {
         slog.debugf("Root itable_dict[] has %d slots (%d bytes)", itableLiterals.length, itableLiterals.length * ctxt.getTypeSystem().getPointerSize());
         slog.debugf("Emitted %d itables with combined size of %d bytes", emittedClassITableCount, emittedClassITableBytes);
         slog.debugf("Emitted %d class itable dictionaries with combined size of %d bytes", emittedClassITableDictCount, emittedClassITableDictBytes);
+        reportInterfaceDispatchStats();
+    }
+
+    private void emitSelectorRowTable(LoadedTypeDefinition jlo) {
+        ArrayType rowsGlobalType = (ArrayType) selectorRowsGlobal.getType();
+        ModuleSection section = ctxt.getImplicitSection(jlo);
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        TypeSystem ts = ctxt.getTypeSystem();
+        ArrayType rowType = ts.getArrayType(ts.getVoidType().getPointer(), 0);
+        // classes which implement no interfaces share a row of IncompatibleClassChangeError stubs
+        Literal[] sharedRow = new Literal[colorCount];
+        Arrays.fill(sharedRow, getIncompatibleClassChangeStub(section.getProgramModule()));
+        Data sharedRowData = section.addData(null, "qbicc_selector_row_icce", lf.literalOf(ts.getArrayType(ts.getVoidType().getPointer(), colorCount), List.of(sharedRow)));
+        sharedRowData.setLinkage(Linkage.PRIVATE);
+        Literal sharedRowLiteral = lf.bitcastLiteral(lf.literalOf(sharedRowData), (WordType) rowsGlobalType.getElementType());
+        Literal[] rowLiterals = new Literal[(int) rowsGlobalType.getElementCount()];
+        Arrays.fill(rowLiterals, sharedRowLiteral);
+        for (LoadedTypeDefinition cls : classesWithITables) {
+            int typeId = cls.getTypeId();
+            Assert.assertTrue(rowLiterals[typeId] == sharedRowLiteral);
+            DataDeclaration decl = section.getProgramModule().declareData(null, getSelectorRowName(cls), rowType);
+            rowLiterals[typeId] = lf.literalOf(decl);
+        }
+        section.addData(null, selectorRowsGlobal.getName(), lf.literalOf(rowsGlobalType, List.of(rowLiterals)));
+        slog.debugf("Root selector_row[] has %d slots (%d bytes)", rowLiterals.length, rowLiterals.length * ts.getPointerSize());
+        slog.debugf("Emitted %d selector rows of %d colors with combined size of %d bytes", emittedSelectorRowCount, colorCount, emittedSelectorRowBytes + colorCount * ts.getPointerSize());
+        reportInterfaceDispatchStats();
+    }
+
+    private void reportInterfaceDispatchStats() {
+        if (! slog.isDebugEnabled() || interfaceDispatchClassCount == 0) {
+            return;
+        }
+        int pointerSize = ctxt.getTypeSystem().getPointerSize();
+        // searched: load the dictionary, then load a type ID for each probe, then load the itable and the method
+        double searchedLoads = 1 + (double) searchedProbeSum / (2 * interfaceDispatchClassCount) + 2;
+        // colored: load the row, then load the method; the interface check (when not folded) loads the receiver's
+        // interface bits independently of the row
+        int coloredLoads = 2;
+        int coloredBytes = (interfaceDispatchClassCount + 1) * colorCount * pointerSize;
+        slog.debugf("Interface dispatch strategy is %s", interfaceDispatch);
+        slog.debugf("  searched: %d bytes of tables for %d classes, %.2f dependent loads per dispatch on average", Integer.valueOf(searchedTableBytes), Integer.valueOf(interfaceDispatchClassCount), Double.valueOf(searchedLoads));
+        slog.debugf("  colored:  %d bytes of tables for %d classes (%d colors), %d dependent loads per dispatch", coloredBytes, interfaceDispatchClassCount, colorCount, coloredLoads);
     }
 
     void emitRTInitTable(LoadedTypeDefinition jlo) {
@@ -453,6 +688,10 @@ public class DispatchTables {
         return itablesGlobal;
     }
 
+    public GlobalVariableElement getSelectorRowsGlobal() {
+        return selectorRowsGlobal;
+    }
+
     public GlobalVariableElement getRTInitsGlobal() {
         return rtinitsGlobal;
     }
@@ -491,6 +730,21 @@ public class DispatchTables {
         return 0;
     }
 
+    /**
+     * An interface method selector; interface methods with the same name and descriptor share an implementation in
+     * any given class, and thus share a color.
+     */
+    record Selector(String name, MethodDescriptor descriptor) {
+        static Selector of(MethodElement method) {
+            return new Selector(method.getName(), method.getDescriptor());
+        }
+
+        @Override
+        public String toString() {
+            return name + descriptor;
+        }
+    }
+
     public static final class VTableInfo {
         private final MethodElement[] vtable;
         private final StructType type;
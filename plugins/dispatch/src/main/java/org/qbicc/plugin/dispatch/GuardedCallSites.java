@@ -0,0 +1,68 @@
+package org.qbicc.plugin.dispatch;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.context.PhaseAttachmentKey;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * The call sites which were guarded by guarded devirtualization, by the method body which contains them.
+ * <p>
+ * The dispatched fallback of a guarded call keeps the location of the original call site, so it would be guarded again
+ * by every later ANALYZE pass, nesting a guard which can never succeed inside the failed one. Each pass therefore
+ * records the sites which it guarded, and leaves alone the sites which the previous pass guarded.
+ * The sites are recorded per pass, so that several copies of one call site which are inlined into the same method
+ * by a single pass are all guarded.
+ */
+final class GuardedCallSites {
+    private static final PhaseAttachmentKey<GuardedCallSites> KEY = new PhaseAttachmentKey<>();
+
+    private final Map<ExecutableElement, Set<Site>> sites = new ConcurrentHashMap<>();
+
+    private GuardedCallSites() {}
+
+    static GuardedCallSites get(CompilationContext ctxt) {
+        GuardedCallSites guardedCallSites = ctxt.getAttachment(KEY);
+        if (guardedCallSites == null) {
+            guardedCallSites = new GuardedCallSites();
+            GuardedCallSites appearing = ctxt.putAttachmentIfAbsent(KEY, guardedCallSites);
+            if (appearing != null) {
+                guardedCallSites = appearing;
+            }
+        }
+        return guardedCallSites;
+    }
+
+    static GuardedCallSites getPrevious(CompilationContext ctxt) {
+        return ctxt.getPreviousPhaseAttachment(KEY);
+    }
+
+    /**
+     * Record that a call site was guarded.
+     *
+     * @param rootElement the element whose body contains the call site (must not be {@code null})
+     * @param element the element of the call site, which differs from the root element for inlined call sites (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     */
+    void add(ExecutableElement rootElement, ExecutableElement element, int bci) {
+        sites.computeIfAbsent(rootElement, k -> ConcurrentHashMap.newKeySet()).add(new Site(element, bci));
+    }
+
+    /**
+     * Determine whether a call site was guarded.
+     *
+     * @param rootElement the element whose body contains the call site (must not be {@code null})
+     * @param element the element of the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return {@code true} if the call site was guarded, or {@code false} otherwise
+     */
+    boolean contains(ExecutableElement rootElement, ExecutableElement element, int bci) {
+        Set<Site> set = sites.get(rootElement);
+        return set != null && set.contains(new Site(element, bci));
+    }
+
+    record Site(ExecutableElement element, int bci) {}
+}
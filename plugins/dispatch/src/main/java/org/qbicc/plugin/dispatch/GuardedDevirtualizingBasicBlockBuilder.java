@@ -0,0 +1,98 @@
+package org.qbicc.plugin.dispatch;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.AbstractMethodLookup;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.plugin.coreclasses.CoreClasses;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.VoidType;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.InstanceMethodElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * A builder which turns virtual and interface calls with a likely receiver type into a test of the receiver type
+ * which leads to a direct call, falling back to the dispatched call for other receivers. The receiver type is selected
+ * by {@link ReceiverTypes}. The direct call may then be inlined.
+ * <p>
+ * A call site is only guarded once: the dispatched fallback of a site which was guarded by the previous ANALYZE pass
+ * is left as it is (see {@link GuardedCallSites}).
+ */
+public class GuardedDevirtualizingBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.dispatch.devirt");
+
+    private final CompilationContext ctxt;
+    private final ReceiverTypes receiverTypes;
+    private final GuardedCallSites guardedCallSites;
+    private final GuardedCallSites previouslyGuardedCallSites;
+
+    private GuardedDevirtualizingBasicBlockBuilder(final FactoryContext ctxt, final BasicBlockBuilder delegate, final ReceiverTypes receiverTypes) {
+        super(delegate);
+        this.ctxt = getContext();
+        this.receiverTypes = receiverTypes;
+        guardedCallSites = GuardedCallSites.get(this.ctxt);
+        previouslyGuardedCallSites = GuardedCallSites.getPrevious(this.ctxt);
+    }
+
+    public static BasicBlockBuilder createIfNeeded(final FactoryContext ctxt, final BasicBlockBuilder delegate) {
+        ReceiverTypes receiverTypes = ReceiverTypes.get(delegate.getContext());
+        if (receiverTypes == null) {
+            // no information from the previous phase
+            return delegate;
+        } else {
+            return new GuardedDevirtualizingBasicBlockBuilder(ctxt, delegate, receiverTypes);
+        }
+    }
+
+    @Override
+    public Value call(Value targetPtr, Value receiver, List<Value> arguments) {
+        if (targetPtr instanceof AbstractMethodLookup lookup) {
+            InstanceMethodElement target = lookup.getMethod();
+            ExecutableElement rootElement = getRootElement();
+            ExecutableElement element = element();
+            int bci = bytecodeIndex();
+            if (previouslyGuardedCallSites != null && previouslyGuardedCallSites.contains(rootElement, element, bci)) {
+                // this is the fallback of a guard; keep it marked for the next pass
+                guardedCallSites.add(rootElement, element, bci);
+                return super.call(targetPtr, receiver, arguments);
+            }
+            LoadedTypeDefinition guardType = receiverTypes.getGuardType(element, bci, target);
+            if (guardType != null) {
+                MethodElement exact = receiverTypes.getGuardedTarget(guardType, target);
+                guardedCallSites.add(rootElement, element, bci);
+                log.debugf("Guarding call to %s::%s with receiver type %s", target.getEnclosingType().getDescriptor(), target.getName(), guardType.getDescriptor());
+                return guardedCall(targetPtr, receiver, arguments, target, guardType, exact);
+            }
+        }
+        return super.call(targetPtr, receiver, arguments);
+    }
+
+    private Value guardedCall(Value targetPtr, Value receiver, List<Value> arguments, InstanceMethodElement target, LoadedTypeDefinition guardType, MethodElement exact) {
+        BasicBlockBuilder fb = getFirstBuilder();
+        LiteralFactory lf = getLiteralFactory();
+        BlockLabel direct = new BlockLabel();
+        BlockLabel dispatched = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        ValueType returnType = target.getType().getReturnType();
+        Value typeId = load(instanceFieldOf(decodeReference(receiver), CoreClasses.get(ctxt).getObjectTypeIdField()));
+        if_(isEq(typeId, lf.literalOfType(guardType.getObjectType())), direct, dispatched, Map.of());
+        begin(direct);
+        Value directResult = fb.call(lf.literalOf(exact), bitCast(receiver, guardType.getObjectType().getReference()), arguments);
+        goto_(resume, returnType instanceof VoidType ? Map.of() : Map.of(Slot.result(), directResult));
+        begin(dispatched);
+        Value dispatchedResult = super.call(targetPtr, receiver, arguments);
+        goto_(resume, returnType instanceof VoidType ? Map.of() : Map.of(Slot.result(), dispatchedResult));
+        begin(resume);
+        return returnType instanceof VoidType ? emptyVoid() : addParam(resume, Slot.result(), returnType);
+    }
+}
@@ -0,0 +1,21 @@
+package org.qbicc.plugin.dispatch;
+
+/**
+ * The strategy used to dispatch interface method invocations.
+ */
+public enum InterfaceDispatch {
+    /**
+     * Each class has a dictionary of the itables of the interfaces it implements, which is searched linearly for
+     * the interface's type ID on every invocation ("searched itables" in the terminology of [Alpern et al 2001]).
+     * The tables are compact, but the cost of a dispatch grows with the number of interfaces a class implements.
+     */
+    SEARCHED,
+    /**
+     * Every interface selector (method name and descriptor) is assigned a color, such that no class implements two
+     * selectors of the same color, and each class has a single table indexed by color ("selector coloring" in the
+     * terminology of [Dixon et al 1989]).  Every dispatch is a constant number of loads, but each class which
+     * implements any interface carries a table as wide as the number of colors.
+     */
+    COLORED,
+    ;
+}
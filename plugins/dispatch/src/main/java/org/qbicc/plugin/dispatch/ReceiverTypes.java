@@ -0,0 +1,149 @@
+package org.qbicc.plugin.dispatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.facts.Facts;
+import org.qbicc.facts.core.ExecutableReachabilityFacts;
+import org.qbicc.plugin.profile.ExecutionProfile;
+import org.qbicc.plugin.reachability.ReachabilityInfo;
+import org.qbicc.plugin.reachability.TypeReachabilityFacts;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.InstanceMethodElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * The classes which may be found on the heap at run time, as determined by the reachability analysis of the ADD phase,
+ * used to select the receiver type of guarded devirtualization.
+ * <p>
+ * The receiver type of a virtual or interface call site is its dominant receiver type in the
+ * {@linkplain ExecutionProfile execution profile}, if there is one. Otherwise, it is the only class on the heap which
+ * is a subtype of the enclosing type of the called method, if there is only one such class.
+ */
+public final class ReceiverTypes {
+    private static final AttachmentKey<ReceiverTypes> KEY = new AttachmentKey<>();
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.dispatch.devirt");
+
+    /**
+     * The minimum share of the profiled receivers of a call site, in percent, which must have the same type.
+     */
+    private static final int DOMINANT_PERCENT = 90;
+
+    private final CompilationContext ctxt;
+    private final ExecutionProfile profile;
+    private final List<LoadedTypeDefinition> classes;
+    // the on-heap classes by internal name, or empty if the name is ambiguous
+    private final Map<String, Optional<LoadedTypeDefinition>> classesByName;
+    private final Map<LoadedTypeDefinition, Optional<LoadedTypeDefinition>> onlySubclasses = new ConcurrentHashMap<>();
+
+    private ReceiverTypes(CompilationContext ctxt, List<LoadedTypeDefinition> classes) {
+        this.ctxt = ctxt;
+        profile = ExecutionProfile.get(ctxt);
+        this.classes = classes;
+        Map<String, Optional<LoadedTypeDefinition>> classesByName = new HashMap<>();
+        for (LoadedTypeDefinition ltd : classes) {
+            classesByName.merge(ltd.getInternalName(), Optional.of(ltd), (a, b) -> Optional.empty());
+        }
+        this.classesByName = classesByName;
+    }
+
+    /**
+     * Record the classes which were found on the heap by the ADD phase.  This must run after the ADD phase and before
+     * the reachability information is cleared for the ANALYZE phase.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void snapshot(CompilationContext ctxt) {
+        Facts facts = Facts.get(ctxt);
+        List<LoadedTypeDefinition> classes = new ArrayList<>();
+        ReachabilityInfo.get(ctxt).visitReachableTypes(ltd -> {
+            if (! ltd.isInterface() && ! ltd.isAbstract() && facts.isDiscovered(ltd, TypeReachabilityFacts.IS_ON_HEAP)) {
+                classes.add(ltd);
+            }
+        });
+        ctxt.putAttachment(KEY, new ReceiverTypes(ctxt, List.copyOf(classes)));
+    }
+
+    static ReceiverTypes get(CompilationContext ctxt) {
+        return ctxt.getAttachment(KEY);
+    }
+
+    /**
+     * Select the receiver type of a guarded call.
+     *
+     * @param element the element containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @param target the called method (must not be {@code null})
+     * @return the receiver type, or {@code null} if the call should not be guarded
+     */
+    LoadedTypeDefinition getGuardType(ExecutableElement element, int bci, InstanceMethodElement target) {
+        LoadedTypeDefinition declaring = target.getEnclosingType().load();
+        LoadedTypeDefinition candidate;
+        if (! profile.isEmpty() && bci >= 0) {
+            candidate = getDominantReceiver(element, bci);
+        } else {
+            candidate = onlySubclasses.computeIfAbsent(declaring, this::findOnlySubclass).orElse(null);
+        }
+        return candidate != null && candidate.isSubtypeOf(declaring) && getGuardedTarget(candidate, target) != null ? candidate : null;
+    }
+
+    /**
+     * Get the method which is called when a call to the given target has a receiver of the given class.
+     *
+     * @param receiverType the receiver class (must not be {@code null})
+     * @param target the called method (must not be {@code null})
+     * @return the exact target, or {@code null} if it is unknown or could not be called directly
+     */
+    MethodElement getGuardedTarget(LoadedTypeDefinition receiverType, InstanceMethodElement target) {
+        MethodElement exact = receiverType.resolveMethodElementVirtual(receiverType.getContext(), target.getName(), target.getDescriptor());
+        // direct calls may only be added to methods which were invoked in the previous phase
+        if (exact == null || exact.isAbstract() || ! Facts.get(ctxt).hadFact(exact, ExecutableReachabilityFacts.IS_INVOKED)) {
+            return null;
+        }
+        return exact;
+    }
+
+    private LoadedTypeDefinition getDominantReceiver(ExecutableElement element, int bci) {
+        Map<String, Long> counts = profile.getReceiverCounts(element, bci);
+        long total = 0;
+        long max = 0;
+        String dominant = null;
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            long count = entry.getValue().longValue();
+            total += count;
+            if (count > max && ! entry.getKey().equals("*")) {
+                max = count;
+                dominant = entry.getKey();
+            }
+        }
+        if (dominant == null || max * 100 < total * DOMINANT_PERCENT) {
+            return null;
+        }
+        LoadedTypeDefinition ltd = classesByName.getOrDefault(dominant, Optional.empty()).orElse(null);
+        if (ltd == null) {
+            log.debugf("Dominant receiver type %s of call site %s@%d is not on the heap", dominant, element, Integer.valueOf(bci));
+        }
+        return ltd;
+    }
+
+    private Optional<LoadedTypeDefinition> findOnlySubclass(LoadedTypeDefinition declaring) {
+        LoadedTypeDefinition found = null;
+        for (LoadedTypeDefinition ltd : classes) {
+            if (ltd.isSubtypeOf(declaring)) {
+                if (found != null) {
+                    return Optional.empty();
+                }
+                found = ltd;
+            }
+        }
+        return Optional.ofNullable(found);
+    }
+}
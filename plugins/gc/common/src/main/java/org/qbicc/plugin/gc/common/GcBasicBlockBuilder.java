@@ -39,26 +39,15 @@ public class GcBasicBlockBuilder extends DelegatingBasicBlockBuilder {
     @Override
     public Value new_(final ClassObjectType type, final Value typeId, final Value size, final Value align) {
         AbstractGc gc = AbstractGc.get(ctxt);
-        LiteralFactory lf = ctxt.getLiteralFactory();
-        Value refVal = null;
-        boolean stackAlloc = false;
-        if (typeId instanceof TypeIdLiteral tl && tl.getValue() instanceof ClassObjectType cot) {
-            // We can only even attempt stack allocation if the typeId is a literal (ie, known precisely at compile time).
-            if (cot.isSubtypeOf(gc.getStackObjectType()) /*|| objectDoesNotEscape && objectIsSmallEnough */) {
-                StructType structType = Layout.get(ctxt).getInstanceLayoutInfo(cot.getDefinition()).getStructType();
-                refVal = encodeReference(stackAllocate(structType, lf.literalOf(1), align), type.getReference());
-                // zero initialize the allocated storage
-                MethodElement method = gc.getZeroMethod();
-                call(lf.literalOf(method), List.of(refVal, size));
-                stackAlloc = true;
-            }
-        }
-        if (refVal == null) {
-            MethodElement method = gc.getAllocateMethod();
-            refVal = notNull(bitCast(call(lf.literalOf(method), List.of(size)), type.getReference()));
+        // We can only even attempt stack allocation if the typeId is a literal (ie, known precisely at compile time).
+        // Non-escaping allocations of other types are moved to the stack by escape analysis before they get here.
+        if (typeId instanceof TypeIdLiteral tl && tl.getValue() instanceof ClassObjectType cot && cot.isSubtypeOf(gc.getStackObjectType())) {
+            return StackAllocation.allocateObject(this, type, typeId);
         }
-
-        BasicHeaderInitializer.initializeObjectHeader(ctxt, this, decodeReference(refVal), typeId, stackAlloc);
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        MethodElement method = gc.getAllocateMethod();
+        Value refVal = notNull(bitCast(call(lf.literalOf(method), List.of(size)), type.getReference()));
+        BasicHeaderInitializer.initializeObjectHeader(ctxt, this, decodeReference(refVal), typeId, false);
         return refVal;
     }
 
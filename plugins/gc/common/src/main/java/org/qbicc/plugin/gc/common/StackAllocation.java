@@ -0,0 +1,160 @@
+package org.qbicc.plugin.gc.common;
+
+import java.util.List;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.plugin.coreclasses.BasicHeaderInitializer;
+import org.qbicc.plugin.coreclasses.CoreClasses;
+import org.qbicc.plugin.layout.Layout;
+import org.qbicc.type.ArrayType;
+import org.qbicc.type.ClassObjectType;
+import org.qbicc.type.PrimitiveArrayObjectType;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.StructType;
+import org.qbicc.type.TypeSystem;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+
+/**
+ * Allocation of objects and arrays in the current stack frame, independently of the GC algorithm in use.
+ * <p>
+ * A stack-allocated object is zeroed by the GC's zero method and carries the stack-allocated header bit, so that the
+ * GC never tries to move or free it. The caller is responsible for proving that the object does not outlive the frame
+ * and that the allocation is not repeated without bound (for example in a loop).
+ * <p>
+ * The GC neither scans nor updates references held by a stack-allocated object, so only classes which declare no
+ * reference fields and primitive arrays may be allocated in the frame (see {@link #isAllocatable}). The reference
+ * fields of the object header are only ever written by the monitor runtime, so the caller is also responsible for
+ * proving that the object is never passed to a call.
+ */
+public final class StackAllocation {
+    private StackAllocation() {}
+
+    /**
+     * Determine whether an instance of the given class may be allocated in the current frame, which is the case when
+     * the class has no reference fields beyond those of the object header.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param type the class type (must not be {@code null})
+     * @return {@code true} if the instance may be allocated in the frame, or {@code false} otherwise
+     */
+    public static boolean isAllocatable(CompilationContext ctxt, ClassObjectType type) {
+        return countReferences(Layout.get(ctxt).getInstanceLayoutInfo(type.getDefinition()).getStructType()) == countHeaderReferences(ctxt);
+    }
+
+    /**
+     * Determine whether a primitive array of the given type may be allocated in the current frame, which is the case
+     * when the array has no reference fields beyond those of the object header.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param arrayType the array type (must not be {@code null})
+     * @return {@code true} if the array may be allocated in the frame, or {@code false} otherwise
+     */
+    public static boolean isAllocatable(CompilationContext ctxt, PrimitiveArrayObjectType arrayType) {
+        return countReferences(getArrayStructType(ctxt, arrayType)) == countHeaderReferences(ctxt);
+    }
+
+    /**
+     * Get the size of an instance of the given class.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param type the class type (must not be {@code null})
+     * @return the instance size in bytes
+     */
+    public static long getObjectSize(CompilationContext ctxt, ClassObjectType type) {
+        return Layout.get(ctxt).getInstanceLayoutInfo(type.getDefinition()).getStructType().getSize();
+    }
+
+    /**
+     * Get the size of a primitive array of the given length.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param arrayType the array type (must not be {@code null})
+     * @param length the array length
+     * @return the array size in bytes
+     */
+    public static long getArraySize(CompilationContext ctxt, PrimitiveArrayObjectType arrayType, long length) {
+        return getArrayStructType(ctxt, arrayType).getSize() + length * arrayType.getElementType().getSize();
+    }
+
+    /**
+     * Allocate and initialize an object in the current frame.
+     *
+     * @param bbb the block builder (must not be {@code null})
+     * @param type the class type (must not be {@code null})
+     * @param typeId the type ID value (must not be {@code null})
+     * @return the reference to the new object (not {@code null})
+     */
+    public static Value allocateObject(BasicBlockBuilder bbb, ClassObjectType type, Value typeId) {
+        CompilationContext ctxt = bbb.getContext();
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        StructType structType = Layout.get(ctxt).getInstanceLayoutInfo(type.getDefinition()).getStructType();
+        Value refVal = bbb.encodeReference(bbb.stackAllocate(structType, lf.literalOf(1), lf.literalOf(structType.getAlign())), type.getReference());
+        zero(bbb, refVal, structType.getSize());
+        BasicHeaderInitializer.initializeObjectHeader(ctxt, bbb, bbb.decodeReference(refVal), typeId, true);
+        return refVal;
+    }
+
+    /**
+     * Allocate and initialize a primitive array of fixed length in the current frame.
+     *
+     * @param bbb the block builder (must not be {@code null})
+     * @param arrayType the array type (must not be {@code null})
+     * @param length the array length
+     * @return the reference to the new array (not {@code null})
+     */
+    public static Value allocateArray(BasicBlockBuilder bbb, PrimitiveArrayObjectType arrayType, int length) {
+        CompilationContext ctxt = bbb.getContext();
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        StructType structType = getArrayStructType(ctxt, arrayType);
+        Value refVal = allocateArrayStorage(bbb, structType, getArraySize(ctxt, arrayType, length), arrayType.getReference());
+        LoadedTypeDefinition ltd = CoreClasses.get(ctxt).getArrayContentField(arrayType).getEnclosingType().load();
+        BasicHeaderInitializer.initializeArrayHeader(ctxt, bbb, bbb.decodeReference(refVal), lf.literalOfType(ltd.getClassType()), lf.literalOf(length), true);
+        return refVal;
+    }
+
+    private static Value allocateArrayStorage(BasicBlockBuilder bbb, StructType structType, long size, ReferenceType refType) {
+        CompilationContext ctxt = bbb.getContext();
+        TypeSystem ts = ctxt.getTypeSystem();
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        // the array content is a flexible member, so allocate the storage as bytes
+        Value ptrVal = bbb.stackAllocate(ts.getArrayType(ts.getUnsignedInteger8Type(), size), lf.literalOf(1), lf.literalOf(structType.getAlign()));
+        Value refVal = bbb.encodeReference(bbb.bitCast(ptrVal, structType.getPointer()), refType);
+        zero(bbb, refVal, size);
+        return refVal;
+    }
+
+    private static void zero(BasicBlockBuilder bbb, Value refVal, long size) {
+        LiteralFactory lf = bbb.getLiteralFactory();
+        bbb.call(lf.literalOf(AbstractGc.get(bbb.getContext()).getZeroMethod()), List.of(refVal, lf.literalOf(size)));
+    }
+
+    private static StructType getArrayStructType(CompilationContext ctxt, PrimitiveArrayObjectType arrayType) {
+        LoadedTypeDefinition ltd = CoreClasses.get(ctxt).getArrayContentField(arrayType).getEnclosingType().load();
+        return Layout.get(ctxt).getInstanceLayoutInfo(ltd).getStructType();
+    }
+
+    private static long countHeaderReferences(CompilationContext ctxt) {
+        LoadedTypeDefinition jlo = ctxt.getBootstrapClassContext().findDefinedType("java/lang/Object").load();
+        return countReferences(Layout.get(ctxt).getInstanceLayoutInfo(jlo).getStructType());
+    }
+
+    private static long countReferences(ValueType type) {
+        if (type instanceof ReferenceType) {
+            return 1;
+        } else if (type instanceof StructType st) {
+            long cnt = 0;
+            for (StructType.Member member : st.getMembers()) {
+                cnt += countReferences(member.getType());
+            }
+            return cnt;
+        } else if (type instanceof ArrayType at) {
+            return at.getElementCount() * countReferences(at.getElementType());
+        } else {
+            return 0;
+        }
+    }
+}
@@ -1,26 +1,73 @@
 package org.qbicc.plugin.gc.common.safepoint;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 import org.eclipse.collections.api.factory.Maps;
+import org.qbicc.graph.Add;
 import org.qbicc.graph.BasicBlock;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.BlockEarlyTermination;
 import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.BlockParameter;
 import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.If;
+import org.qbicc.graph.IsGe;
+import org.qbicc.graph.IsGt;
+import org.qbicc.graph.IsLe;
+import org.qbicc.graph.IsLt;
+import org.qbicc.graph.Node;
 import org.qbicc.graph.Slot;
+import org.qbicc.graph.Terminator;
 import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.IntegerLiteral;
 import org.qbicc.graph.literal.LiteralFactory;
 import org.qbicc.runtime.SafePointBehavior;
+import org.qbicc.type.SignedIntegerType;
 import org.qbicc.type.VoidType;
 import org.qbicc.type.definition.element.ExecutableElement;
 
 /**
  * Block builder which places safepoint polls.
+ * <p>
+ * Polling methods poll before returning or throwing, and on each loop back edge. The loop information of
+ * {@link org.qbicc.graph.schedule} is not available until the method body is complete, so a back edge is detected
+ * as a jump to a block from which the current block is reached through the forward edges seen so far. The last edge
+ * of every cycle to be built is always such a jump, while a jump to a join block which was already started (for
+ * example from the second arm of an {@code if}) is not. Back edges of counted loops (loops whose induction variable is incremented by a constant step) are handled specially:
+ * <ul>
+ *     <li>If the loop has a constant initial value and a constant bound which limit it to at most
+ *     {@value #MAX_UNPOLLED_TRIP_COUNT} iterations, the poll is omitted entirely.</li>
+ *     <li>Otherwise, if the step is odd, the loop is strip-mined: the poll is only reached once in every
+ *     {@value #STRIP_LENGTH} iterations, when the low bits of the induction variable are all zero.</li>
+ * </ul>
  */
 public final class SafePointPlacementBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    /**
+     * The largest trip count of a counted loop whose back edge does not poll.
+     */
+    static final int MAX_UNPOLLED_TRIP_COUNT = 256;
+    /**
+     * The number of iterations of a strip-mined loop between polls (must be a power of two).
+     */
+    static final int STRIP_LENGTH = 1024;
+
     private final SafePointBehavior ourBehavior;
+    private final Set<BlockLabel> started = new HashSet<>();
+    /**
+     * The source blocks of every forward edge to each block, by block label.
+     */
+    private final Map<BlockLabel, Set<BlockLabel>> forwardPredecessors = new HashMap<>();
+    /**
+     * The arguments common to every forward edge to each block, by block label.
+     */
+    private final Map<BlockLabel, Map<Slot, Value>> entryArguments = new HashMap<>();
 
     private SafePointPlacementBasicBlockBuilder(BasicBlockBuilder delegate, SafePointBehavior behavior) {
         super(delegate);
@@ -55,6 +102,70 @@ public final class SafePointPlacementBasicBlockBuilder extends DelegatingBasicBl
         return super.throw_(value);
     }
 
+    @Override
+    public Node begin(BlockLabel blockLabel) {
+        started.add(blockLabel.lastHandle());
+        return super.begin(blockLabel);
+    }
+
+    @Override
+    public <T> BasicBlock begin(BlockLabel blockLabel, T arg, BiConsumer<T, BasicBlockBuilder> maker) {
+        started.add(blockLabel.lastHandle());
+        return super.begin(blockLabel, arg, maker);
+    }
+
+    @Override
+    public BasicBlock goto_(BlockLabel resumeLabel, Map<Slot, Value> targetArguments) {
+        if (ourBehavior == SafePointBehavior.POLLING) {
+            BlockLabel current = currentLabel();
+            if (isBackEdge(current, resumeLabel)) {
+                return loopBackEdge(current, resumeLabel, targetArguments);
+            }
+            recordForwardEdge(current, resumeLabel, targetArguments);
+        }
+        return super.goto_(resumeLabel, targetArguments);
+    }
+
+    @Override
+    public BasicBlock if_(Value condition, BlockLabel trueTarget, BlockLabel falseTarget, Map<Slot, Value> targetArguments) {
+        if (ourBehavior == SafePointBehavior.POLLING) {
+            BlockLabel current = currentLabel();
+            boolean backEdge = false;
+            for (BlockLabel target : List.of(trueTarget, falseTarget)) {
+                if (isBackEdge(current, target)) {
+                    backEdge = true;
+                } else {
+                    recordForwardEdge(current, target, targetArguments);
+                }
+            }
+            if (backEdge) {
+                pollSafePoint();
+            }
+        }
+        return super.if_(condition, trueTarget, falseTarget, targetArguments);
+    }
+
+    @Override
+    public BasicBlock switch_(Value value, int[] checkValues, BlockLabel[] targets, BlockLabel defaultTarget, Map<Slot, Value> targetArguments) {
+        if (ourBehavior == SafePointBehavior.POLLING) {
+            BlockLabel current = currentLabel();
+            boolean backEdge = false;
+            Set<BlockLabel> allTargets = new LinkedHashSet<>(List.of(targets));
+            allTargets.add(defaultTarget);
+            for (BlockLabel target : allTargets) {
+                if (isBackEdge(current, target)) {
+                    backEdge = true;
+                } else {
+                    recordForwardEdge(current, target, targetArguments);
+                }
+            }
+            if (backEdge) {
+                pollSafePoint();
+            }
+        }
+        return super.switch_(value, checkValues, targets, defaultTarget, targetArguments);
+    }
+
     @Override
     public Value call(Value targetPtr, Value receiver, List<Value> arguments) {
         SafePointBehavior calleeBehavior = targetPtr.safePointBehavior();
@@ -145,9 +256,276 @@ public final class SafePointPlacementBasicBlockBuilder extends DelegatingBasicBl
                 return addParam(resumeLabel, Slot.result(), result.getType());
             }
         }
+        if (ourBehavior == SafePointBehavior.POLLING) {
+            BlockLabel current = currentLabel();
+            boolean backEdge = false;
+            if (isBackEdge(current, resumeLabel)) {
+                backEdge = true;
+            } else {
+                recordForwardEdge(current, resumeLabel, targetArguments);
+            }
+            if (isBackEdge(current, catchLabel)) {
+                backEdge = true;
+            } else {
+                // the catch edge carries an implicit exception argument, so its arguments are not known
+                recordForwardEdge(current, catchLabel, null);
+            }
+            if (backEdge) {
+                pollSafePoint();
+            }
+        }
         return super.invoke(targetPtr, receiver, arguments, catchLabel, resumeLabel, targetArguments);
     }
 
+    @Override
+    public BasicBlock invokeNoReturn(Value targetPtr, Value receiver, List<Value> arguments, BlockLabel catchLabel, Map<Slot, Value> targetArguments) {
+        if (ourBehavior == SafePointBehavior.POLLING) {
+            BlockLabel current = currentLabel();
+            if (isBackEdge(current, catchLabel)) {
+                pollSafePoint();
+            } else {
+                recordForwardEdge(current, catchLabel, null);
+            }
+        }
+        return super.invokeNoReturn(targetPtr, receiver, arguments, catchLabel, targetArguments);
+    }
+
+    private BlockLabel currentLabel() {
+        return getBlockEntry().getPinnedBlockLabel().lastHandle();
+    }
+
+    /**
+     * Determine whether a jump closes a cycle, which is the case when the target block reaches the current block
+     * through forward edges.
+     *
+     * @param current the label of the current block
+     * @param target the target label
+     * @return {@code true} if the jump is a back edge, or {@code false} if it is a forward edge
+     */
+    private boolean isBackEdge(BlockLabel current, BlockLabel target) {
+        target = target.lastHandle();
+        if (! started.contains(target)) {
+            return false;
+        }
+        ArrayDeque<BlockLabel> work = new ArrayDeque<>();
+        Set<BlockLabel> visited = new HashSet<>();
+        work.add(current);
+        while (! work.isEmpty()) {
+            BlockLabel label = work.removeFirst();
+            if (label == target) {
+                return true;
+            }
+            if (visited.add(label)) {
+                work.addAll(forwardPredecessors.getOrDefault(label, Set.of()));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a forward edge.
+     *
+     * @param current the label of the current block
+     * @param target the target label
+     * @param targetArguments the arguments passed along the edge, or {@code null} if they are not known
+     */
+    private void recordForwardEdge(BlockLabel current, BlockLabel target, Map<Slot, Value> targetArguments) {
+        target = target.lastHandle();
+        forwardPredecessors.computeIfAbsent(target, k -> new HashSet<>()).add(current);
+        Map<Slot, Value> existing = entryArguments.get(target);
+        if (targetArguments == null) {
+            entryArguments.put(target, new HashMap<>());
+        } else if (existing == null) {
+            entryArguments.put(target, new HashMap<>(targetArguments));
+        } else {
+            // only keep the arguments which are the same along every forward edge
+            existing.entrySet().removeIf(e -> ! e.getValue().equals(targetArguments.get(e.getKey())));
+        }
+    }
+
+    private BasicBlock loopBackEdge(BlockLabel current, BlockLabel header, Map<Slot, Value> targetArguments) {
+        // look for an induction variable of the loop
+        for (Map.Entry<Slot, Value> entry : targetArguments.entrySet()) {
+            Slot slot = entry.getKey();
+            if (entry.getValue() instanceof Add add && add.getType() instanceof SignedIntegerType type) {
+                IntegerLiteral step;
+                Value base;
+                if (add.getRightInput() instanceof IntegerLiteral lit) {
+                    step = lit;
+                    base = add.getLeftInput();
+                } else if (add.getLeftInput() instanceof IntegerLiteral lit) {
+                    step = lit;
+                    base = add.getRightInput();
+                } else {
+                    continue;
+                }
+                BlockParameter param = headerParameterOf(base, header);
+                if (step.isZero() || param == null || ! param.getSlot().equals(slot)) {
+                    continue;
+                }
+                long tripCount = tripCount(current, header, param, type, step.longValue());
+                if (0 <= tripCount && tripCount <= MAX_UNPOLLED_TRIP_COUNT) {
+                    // provably short loop
+                    return super.goto_(header, targetArguments);
+                }
+                if ((step.longValue() & 1) != 0) {
+                    // an odd step visits every residue, so the poll is reached once per strip
+                    LiteralFactory lf = getLiteralFactory();
+                    BlockLabel pollLabel = new BlockLabel();
+                    Value stripIndex = and(add, lf.literalOf(type, STRIP_LENGTH - 1));
+                    super.if_(isEq(stripIndex, lf.literalOf(type, 0)), pollLabel, header, targetArguments);
+                    begin(pollLabel);
+                    pollSafePoint();
+                    return super.goto_(header, targetArguments);
+                }
+            }
+        }
+        pollSafePoint();
+        return super.goto_(header, targetArguments);
+    }
+
+    /**
+     * Find the parameter of the loop header which the given value was passed on from along forward edges.
+     *
+     * @param value the value
+     * @param header the loop header label
+     * @return the header parameter, or {@code null} if the value is not (a copy of) a parameter of the header
+     */
+    private BlockParameter headerParameterOf(Value value, BlockLabel header) {
+        Set<BlockLabel> visited = new HashSet<>();
+        while (value instanceof BlockParameter bp) {
+            BlockLabel owner = bp.getPinnedBlockLabel().lastHandle();
+            if (owner == header) {
+                return bp;
+            }
+            Map<Slot, Value> args = entryArguments.get(owner);
+            if (! visited.add(owner) || args == null) {
+                return null;
+            }
+            value = args.get(bp.getSlot());
+        }
+        return null;
+    }
+
+    /**
+     * Compute the maximum trip count of a counted loop.
+     *
+     * @param current the label of the block containing the back edge
+     * @param header the loop header label
+     * @param param the induction variable parameter of the loop header
+     * @param type the induction variable type
+     * @param step the induction variable step
+     * @return the maximum trip count, or -1 if it cannot be determined
+     */
+    private long tripCount(BlockLabel current, BlockLabel header, BlockParameter param, SignedIntegerType type, long step) {
+        if (header == current || ! header.hasTarget()) {
+            // the header is not yet terminated, so its exit condition is not known
+            return -1;
+        }
+        Map<Slot, Value> args = entryArguments.get(header);
+        if (args == null || ! (args.get(param.getSlot()) instanceof IntegerLiteral initLit)) {
+            return -1;
+        }
+        Terminator t = BlockLabel.requireTargetOf(header).getTerminator();
+        if (! (t instanceof If ifNode)) {
+            return -1;
+        }
+        BlockLabel body = loopEntry(current, header);
+        boolean continueOnTrue;
+        if (body == ifNode.getTrueBranchLabel().lastHandle()) {
+            continueOnTrue = true;
+        } else if (body == ifNode.getFalseBranchLabel().lastHandle()) {
+            continueOnTrue = false;
+        } else {
+            return -1;
+        }
+        // normalize the loop condition to "param <op> bound", where lt/le are -2/-1 and gt/ge are 2/1
+        Value cond = ifNode.getCondition();
+        int op;
+        Value left, right;
+        if (cond instanceof IsLt c) {
+            op = -2; left = c.getLeftInput(); right = c.getRightInput();
+        } else if (cond instanceof IsLe c) {
+            op = -1; left = c.getLeftInput(); right = c.getRightInput();
+        } else if (cond instanceof IsGt c) {
+            op = 2; left = c.getLeftInput(); right = c.getRightInput();
+        } else if (cond instanceof IsGe c) {
+            op = 1; left = c.getLeftInput(); right = c.getRightInput();
+        } else {
+            return -1;
+        }
+        IntegerLiteral boundLit;
+        if (left.equals(param) && right instanceof IntegerLiteral lit) {
+            boundLit = lit;
+        } else if (right.equals(param) && left instanceof IntegerLiteral lit) {
+            // "bound <op> param" is "param <reversed op> bound"
+            boundLit = lit;
+            op = -op;
+        } else {
+            return -1;
+        }
+        if (! continueOnTrue) {
+            // the negation of lt is ge, le is gt, and so on
+            op = op < 0 ? op + 3 : op - 3;
+        }
+        long init = initLit.longValue();
+        long bound = boundLit.longValue();
+        // the last value of the induction variable inside of the loop
+        long last;
+        if (step > 0 && op < 0) {
+            last = op == -2 ? bound - 1 : bound;
+            if (last > type.getMaxValue() - step) {
+                // the increment might overflow, which makes the loop unbounded
+                return -1;
+            }
+            return last < init ? 0 : (last - init) / step + 1;
+        } else if (step < 0 && op > 0) {
+            last = op == 2 ? bound + 1 : bound;
+            if (last < type.getMinValue() - step) {
+                return -1;
+            }
+            return last > init ? 0 : (init - last) / -step + 1;
+        } else {
+            return -1;
+        }
+    }
+
+    /**
+     * Find the successor of the loop header through which the block containing the back edge is reached.
+     *
+     * @param current the label of the block containing the back edge
+     * @param header the loop header label
+     * @return the successor label, or {@code null} if it is not unique or could not be determined
+     */
+    private BlockLabel loopEntry(BlockLabel current, BlockLabel header) {
+        ArrayDeque<BlockLabel> work = new ArrayDeque<>();
+        Set<BlockLabel> visited = new HashSet<>();
+        BlockLabel found = null;
+        work.add(current);
+        while (! work.isEmpty()) {
+            BlockLabel label = work.removeFirst();
+            if (! visited.add(label)) {
+                continue;
+            }
+            Set<BlockLabel> preds = forwardPredecessors.get(label);
+            if (preds == null) {
+                // reached the method entry or a block entered by an unrecorded edge
+                return null;
+            }
+            for (BlockLabel pred : preds) {
+                if (pred == header) {
+                    if (found != null && found != label) {
+                        return null;
+                    }
+                    found = label;
+                } else {
+                    work.addLast(pred);
+                }
+            }
+        }
+        return found;
+    }
+
     private BlockEarlyTermination mayNotCall(final Value targetPtr) {
         getContext().error(getLocation(), "Method with safepoint behavior %s may not call a method (%s) with behavior %s", ourBehavior, targetPtr, targetPtr.safePointBehavior());
         return new BlockEarlyTermination(unreachable());
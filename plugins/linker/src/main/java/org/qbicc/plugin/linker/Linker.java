@@ -3,6 +3,7 @@ package org.qbicc.plugin.linker;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -48,8 +49,13 @@ public final class Linker {
         List<LoadedTypeDefinition> types = new ArrayList<>(objectPathsByType.keySet());
         types.sort(Comparator.comparingInt(def -> def.typeId().getTypeIdValueElse(Integer.MAX_VALUE)));
         List<Path> sortedPaths = new ArrayList<>(types.size());
+        // several types may share one object file
+        Set<Path> seen = new HashSet<>(types.size());
         for (LoadedTypeDefinition type : types) {
-            sortedPaths.add(objectPathsByType.get(type));
+            Path path = objectPathsByType.get(type);
+            if (seen.add(path)) {
+                sortedPaths.add(path);
+            }
         }
         return sortedPaths;
     }
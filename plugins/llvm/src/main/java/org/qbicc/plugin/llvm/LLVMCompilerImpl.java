@@ -2,15 +2,23 @@ package org.qbicc.plugin.llvm;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.context.Location;
+import org.qbicc.driver.BuildFingerprints;
 import org.qbicc.driver.Driver;
 import org.qbicc.machine.tool.CCompilerInvoker;
 import org.qbicc.machine.tool.CToolChain;
+import org.qbicc.machine.tool.Tool;
 import org.qbicc.machine.tool.ToolMessageHandler;
 import org.qbicc.machine.tool.process.InputSource;
 import org.qbicc.machine.tool.process.OutputDestination;
@@ -29,6 +37,8 @@ public class LLVMCompilerImpl implements LLVMCompiler {
     private final LlcInvoker llcInvoker;
     private final CCompilerInvoker ccInvoker;
     private final boolean compileOutput;
+    private final LLVMObjectCache cache;
+    private final String cacheIdentity;
 
     public LLVMCompilerImpl(final CompilationContext ctxt, final LLVMConfiguration config, final LLVMModuleGenerator generator) {
         useCcForIr = config.isWasm();
@@ -55,18 +65,48 @@ public class LLVMCompilerImpl implements LLVMCompiler {
             }
         }
         this.compileOutput = config.isCompileOutput();
+        Path cacheDirectory = config.getObjectCacheDirectory();
+        if (cacheDirectory != null && compileOutput && ccInvoker != null && (useCcForIr || llcInvoker != null)) {
+            cache = LLVMObjectCache.get(ctxt, cacheDirectory);
+            cacheIdentity = createCacheIdentity(ctxt, config);
+        } else {
+            cache = null;
+            cacheIdentity = null;
+        }
     }
 
     @Override
     public void compileModule(final CompilationContext ctxt, LoadedTypeDefinition typeDefinition, LLVMModuleGenerator moduleGenerator) {
         final Path directory = ctxt.getOutputDirectory(typeDefinition);
-        final Path objectFile = ctxt.getOutputFile(typeDefinition, ctxt.getPlatform().objectType().objectSuffix());
-        final Path irFile = ctxt.getOutputFile(typeDefinition, "ll");
-        final Path asmFile = ctxt.getOutputFile(typeDefinition, "s");
-        final ProgramModule programModule = ctxt.getOrAddProgramModule(typeDefinition);
+        final String objectSuffix = ctxt.getPlatform().objectType().objectSuffix();
+        compileUnit(ctxt, List.of(ctxt.getOrAddProgramModule(typeDefinition)), moduleGenerator, directory, ctxt.getOutputFile(typeDefinition, objectSuffix),
+            ctxt.getOutputFile(typeDefinition, "ll"), ctxt.getOutputFile(typeDefinition, "s"), Location.builder().setType(typeDefinition).build());
+    }
+
+    /**
+     * Compile several program modules into a single object file.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param index the index of the partition, used to name the output files
+     * @param programModules the program modules of the partition, in link order (must not be {@code null} or empty)
+     * @param moduleGenerator the module generator (must not be {@code null})
+     */
+    public void compilePartition(final CompilationContext ctxt, int index, List<ProgramModule> programModules, LLVMModuleGenerator moduleGenerator) {
+        final Path directory = ctxt.getOutputDirectory().resolve("partitions").resolve("partition" + index);
+        final String objectSuffix = ctxt.getPlatform().objectType().objectSuffix();
+        final List<LoadedTypeDefinition> members = new ArrayList<>(programModules.size());
+        for (ProgramModule programModule : programModules) {
+            members.add(programModule.getTypeDefinition().load());
+        }
+        LLVMInfo.get(ctxt).setPartition(members);
+        compileUnit(ctxt, programModules, moduleGenerator, directory, directory.resolveSibling(directory.getFileName() + "." + objectSuffix),
+            directory.resolveSibling(directory.getFileName() + ".ll"), directory.resolveSibling(directory.getFileName() + ".s"), Location.builder().setType(members.get(0)).build());
+    }
+
+    private void compileUnit(final CompilationContext ctxt, List<ProgramModule> programModules, LLVMModuleGenerator moduleGenerator, Path directory, Path objectFile, Path irFile, Path asmFile, Location location) {
         final InputSource generatorSource = InputSource.from(writer -> {
             try (final BufferedWriter bw = new BufferedWriter(writer)) {
-                moduleGenerator.processProgramModule(programModule, bw, irFile);
+                moduleGenerator.processProgramModules(programModules, bw, irFile);
             }
         }, StandardCharsets.UTF_8);
         if (! compileOutput) {
@@ -81,16 +121,31 @@ public class LLVMCompilerImpl implements LLVMCompiler {
         try {
             Files.createDirectories(directory.getParent());
         } catch (IOException e) {
-            ctxt.error(Location.builder().setType(typeDefinition).build(), "Failed to create directory %s: %s", directory, e.toString());
+            ctxt.error(location, "Failed to create directory %s: %s", directory, e.toString());
             return;
         }
-        if (emitIr) {
+        String cacheKey = null;
+        if (emitIr || cache != null) {
+            MessageDigest digest = cache == null ? null : cache.newDigest(cacheIdentity);
             try {
-                generatorSource.transferTo(OutputDestination.of(irFile));
+                writeIrFile(moduleGenerator, programModules, irFile, digest);
             } catch (IOException e) {
                 ctxt.error(Location.builder().setSourceFilePath(irFile.toString()).build(), "Error writing LLVM IR file: %s", e.toString());
                 return;
             }
+            if (cache != null) {
+                cacheKey = cache.keyOf(digest);
+                BuildFingerprints fingerprints = BuildFingerprints.get(ctxt);
+                if (fingerprints != null) {
+                    fingerprints.recordModule(ctxt.getOutputDirectory().relativize(objectFile).toString(), cacheKey);
+                }
+                if (cache.retrieve(cacheKey, objectFile)) {
+                    // the IR is byte-identical to a previous compilation; skip the tools
+                    deleteTemporaryIrFile(irFile);
+                    addObjectFilePath(ctxt, programModules, objectFile);
+                    return;
+                }
+            }
             if (useCcForIr) {
                 ccInvoker.setSource(InputSource.from(irFile));
             } else {
@@ -122,8 +177,10 @@ public class LLVMCompilerImpl implements LLVMCompiler {
                 // whatever the problem was, it wasn't reported, so add the additional error here
                 ctxt.error(Location.builder().setSourceFilePath(irFile.toString()).build(), "`llc` invocation has failed: %s", e.toString());
             }
+            deleteTemporaryIrFile(irFile);
             return;
         }
+        deleteTemporaryIrFile(irFile);
         if (emitAssembly && ! useCcForIr) {
             // now compile the assembly
             ccInvoker.setSource(InputSource.from(asmFile));
@@ -135,7 +192,57 @@ public class LLVMCompilerImpl implements LLVMCompiler {
                 return;
             }
         }
-        Linker.get(ctxt).addObjectFilePath(typeDefinition, objectFile);
+        if (cacheKey != null) {
+            cache.store(cacheKey, objectFile);
+        }
+        addObjectFilePath(ctxt, programModules, objectFile);
+    }
+
+    private static void addObjectFilePath(CompilationContext ctxt, List<ProgramModule> programModules, Path objectFile) {
+        Linker linker = Linker.get(ctxt);
+        for (ProgramModule programModule : programModules) {
+            linker.addObjectFilePath(programModule.getTypeDefinition().load(), objectFile);
+        }
+    }
+
+    private static void writeIrFile(LLVMModuleGenerator moduleGenerator, List<ProgramModule> programModules, Path irFile, MessageDigest digest) throws IOException {
+        try (OutputStream os = Files.newOutputStream(irFile)) {
+            OutputStream target = digest == null ? os : new DigestOutputStream(os, digest);
+            try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8))) {
+                moduleGenerator.processProgramModules(programModules, bw, irFile);
+            }
+        }
+    }
+
+    private void deleteTemporaryIrFile(Path irFile) {
+        if (cache != null && ! emitIr) {
+            // the IR file was only written to compute the cache key
+            try {
+                Files.deleteIfExists(irFile);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private String createCacheIdentity(CompilationContext ctxt, LLVMConfiguration config) {
+        // everything other than the IR itself which can affect the content of the object file
+        StringBuilder b = new StringBuilder();
+        b.append("platform=").append(ctxt.getPlatform()).append('\n');
+        b.append("wasm=").append(useCcForIr).append('\n');
+        b.append("asm=").append(emitAssembly).append('\n');
+        b.append("pie=").append(config.isPie()).append('\n');
+        if (llcInvoker != null) {
+            LlvmToolChain llvmToolChain = llcInvoker.getTool();
+            b.append("llvm=").append(llvmToolChain.getImplementationName()).append(' ').append(llvmToolChain.getVersion()).append('\n');
+            for (String option : config.getLlcOptions()) {
+                b.append("llc-option=").append(option).append('\n');
+            }
+        }
+        if (useCcForIr || emitAssembly) {
+            Tool cTool = ccInvoker.getTool();
+            b.append("cc=").append(cTool.getImplementationName()).append(' ').append(cTool.getVersion()).append('\n');
+        }
+        return b.toString();
     }
 
     private static CCompilerInvoker createCCompilerInvoker(CompilationContext context) {
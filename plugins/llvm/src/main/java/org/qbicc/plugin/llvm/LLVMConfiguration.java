@@ -1,5 +1,6 @@
 package org.qbicc.plugin.llvm;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,6 +11,11 @@ import org.qbicc.machine.arch.Platform;
  * Configuration of the LLVM plugin used by classes within the plugin.
  */
 public final class LLVMConfiguration {
+    /**
+     * The partition count value which selects a partition count based on the number of available processors.
+     */
+    public static final int PARTITIONS_AUTO = -1;
+
     private final Platform platform;
     private final int majorVersion;
     private final boolean pie;
@@ -19,6 +25,8 @@ public final class LLVMConfiguration {
     private final boolean compileOutput;
     private final List<String> llcOptions;
     private final ReferenceStrategy referenceStrategy;
+    private final Path objectCacheDirectory;
+    private final int partitions;
 
     LLVMConfiguration(Builder builder) {
         platform = Assert.checkNotNullParam("builder.platform", builder.platform);
@@ -35,6 +43,8 @@ public final class LLVMConfiguration {
         }
         compileOutput = builder.compileOutput;
         referenceStrategy = builder.referenceStrategy;
+        objectCacheDirectory = builder.objectCacheDirectory;
+        partitions = builder.partitions;
     }
 
     public Platform getPlatform() {
@@ -77,6 +87,24 @@ public final class LLVMConfiguration {
         return referenceStrategy;
     }
 
+    /**
+     * Get the directory of the persistent compiled object cache.
+     *
+     * @return the cache directory, or {@code null} if object caching is disabled
+     */
+    public Path getObjectCacheDirectory() {
+        return objectCacheDirectory;
+    }
+
+    /**
+     * Get the number of compilation units that program modules are packed into.
+     *
+     * @return the partition count, {@code 0} to compile each program module separately, or {@link #PARTITIONS_AUTO}
+     */
+    public int getPartitions() {
+        return partitions;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
@@ -91,6 +119,8 @@ public final class LLVMConfiguration {
         private boolean compileOutput;
         private List<String> llcOptions;
         private ReferenceStrategy referenceStrategy = ReferenceStrategy.POINTER_AS1;
+        private Path objectCacheDirectory;
+        private int partitions;
 
         Builder() {}
 
@@ -185,6 +215,25 @@ public final class LLVMConfiguration {
             return this;
         }
 
+        public Path getObjectCacheDirectory() {
+            return objectCacheDirectory;
+        }
+
+        public Builder setObjectCacheDirectory(Path objectCacheDirectory) {
+            this.objectCacheDirectory = objectCacheDirectory;
+            return this;
+        }
+
+        public int getPartitions() {
+            return partitions;
+        }
+
+        public Builder setPartitions(int partitions) {
+            Assert.checkMinimumParameter("partitions", PARTITIONS_AUTO, partitions);
+            this.partitions = partitions;
+            return this;
+        }
+
         public LLVMConfiguration build() {
             return new LLVMConfiguration(this);
         }
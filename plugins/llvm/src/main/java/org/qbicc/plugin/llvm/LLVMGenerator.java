@@ -2,6 +2,7 @@ package org.qbicc.plugin.llvm;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.function.Consumer;
 
 import org.qbicc.context.CompilationContext;
@@ -22,20 +23,47 @@ public class LLVMGenerator implements Consumer<CompilationContext>, ValueVisitor
     public void accept(final CompilationContext compilationContext) {
         LLVMModuleGenerator generator = new LLVMModuleGenerator(compilationContext, config);
         List<ProgramModule> allProgramModules = compilationContext.getAllProgramModules();
-        Iterator<ProgramModule> iterator = allProgramModules.iterator();
-        compilationContext.runParallelTask(ctxt -> {
-            final LLVMCompilerImpl compiler = new LLVMCompilerImpl(ctxt, config, generator);
-            for (;;) {
-                ProgramModule programModule;
-                synchronized (iterator) {
-                    if (! iterator.hasNext()) {
-                        return;
+        if (config.getPartitions() != 0) {
+            List<List<ProgramModule>> partitions = LLVMModulePartitioner.partition(compilationContext, allProgramModules, config.getPartitions());
+            ListIterator<List<ProgramModule>> iterator = partitions.listIterator();
+            compilationContext.runParallelTask(ctxt -> {
+                final LLVMCompilerImpl compiler = new LLVMCompilerImpl(ctxt, config, generator);
+                for (;;) {
+                    List<ProgramModule> partition;
+                    int index;
+                    synchronized (iterator) {
+                        if (! iterator.hasNext()) {
+                            return;
+                        }
+                        index = iterator.nextIndex();
+                        partition = iterator.next();
                     }
-                    programModule = iterator.next();
+                    if (partition.size() == 1) {
+                        compiler.compileModule(ctxt, partition.get(0).getTypeDefinition().load(), generator);
+                    } else {
+                        compiler.compilePartition(ctxt, index, partition, generator);
+                    }
+                }
+            });
+        } else {
+            Iterator<ProgramModule> iterator = allProgramModules.iterator();
+            compilationContext.runParallelTask(ctxt -> {
+                final LLVMCompilerImpl compiler = new LLVMCompilerImpl(ctxt, config, generator);
+                for (;;) {
+                    ProgramModule programModule;
+                    synchronized (iterator) {
+                        if (! iterator.hasNext()) {
+                            return;
+                        }
+                        programModule = iterator.next();
+                    }
+                    compiler.compileModule(ctxt, programModule.getTypeDefinition().load(), generator);
                 }
-                compiler.compileModule(ctxt, programModule.getTypeDefinition().load(), generator);
-            }
-        });
+            });
+        }
+        if (config.getObjectCacheDirectory() != null) {
+            LLVMObjectCache.get(compilationContext, config.getObjectCacheDirectory()).reportStats();
+        }
     }
 
     public int getLlvmMajor() {
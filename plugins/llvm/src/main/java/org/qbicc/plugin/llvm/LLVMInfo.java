@@ -14,6 +14,7 @@ public final class LLVMInfo {
 
     private final CompilationContext ctxt;
     private final Map<LoadedTypeDefinition, List<InvocationNode>> statePointIds = new ConcurrentHashMap<>();
+    private final Map<LoadedTypeDefinition, List<LoadedTypeDefinition>> partitions = new ConcurrentHashMap<>();
 
     private LLVMInfo(CompilationContext ctxt) {
         this.ctxt = ctxt;
@@ -40,4 +41,25 @@ public final class LLVMInfo {
             throw new IllegalStateException("State point IDs set twice");
         }
     }
+
+    /**
+     * Get the types whose program modules were compiled into the same object file as the given type, in the
+     * order that they appear in that object file.
+     *
+     * @param def the type definition (must not be {@code null})
+     * @return the list of partition members (not {@code null})
+     */
+    public List<LoadedTypeDefinition> getPartition(LoadedTypeDefinition def) {
+        List<LoadedTypeDefinition> partition = partitions.get(def);
+        return partition == null ? List.of(def) : partition;
+    }
+
+    public void setPartition(List<LoadedTypeDefinition> members) {
+        List<LoadedTypeDefinition> partition = List.copyOf(members);
+        for (LoadedTypeDefinition member : partition) {
+            if (partitions.putIfAbsent(member, partition) != null) {
+                throw new IllegalStateException("Partition set twice");
+            }
+        }
+    }
 }
@@ -72,13 +72,21 @@ final class LLVMModuleDebugInfo {
     private final LLValue file;
     private final MetadataTuple globals;
 
-    LLVMModuleDebugInfo(ProgramModule programModule, final Module module, final CompilationContext ctxt) {
-        this.module = module;
-        this.ctxt = ctxt;
-
+    /**
+     * Add the module-wide debug information flags. This must be done exactly once per module, before any
+     * compile unit is added.
+     *
+     * @param module the module (must not be {@code null})
+     */
+    static void addModuleFlags(final Module module) {
         module.addFlag(ModuleFlagBehavior.Warning, "Debug Info Version", Types.i32, Values.intConstant(3));
         module.addFlag(ModuleFlagBehavior.Warning, "Dwarf Version", Types.i32, Values.intConstant(4));
         module.metadataTuple("llvm.ident").elem(null, module.metadataTuple().elem(null, metadataString("qbicc")).asRef());
+    }
+
+    LLVMModuleDebugInfo(ProgramModule programModule, final Module module, final CompilationContext ctxt) {
+        this.module = module;
+        this.ctxt = ctxt;
 
         final DefinedTypeDefinition typeDefinition = programModule.getTypeDefinition();
         final String fullPath = typeDefinition.getInternalName() + ".java";
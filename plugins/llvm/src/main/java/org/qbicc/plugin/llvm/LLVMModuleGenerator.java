@@ -3,8 +3,11 @@ package org.qbicc.plugin.llvm;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import io.smallrye.common.constraint.Assert;
 import org.qbicc.context.CompilationContext;
@@ -45,6 +48,7 @@ import org.qbicc.type.TypeSystem;
 import org.qbicc.type.UnsignedIntegerType;
 import org.qbicc.type.ValueType;
 import org.qbicc.type.VariadicType;
+import org.qbicc.type.definition.DefinedTypeDefinition;
 import org.qbicc.type.definition.MethodBody;
 import org.qbicc.type.definition.element.ConstructorElement;
 import org.qbicc.type.definition.element.ExecutableElement;
@@ -70,6 +74,19 @@ final class LLVMModuleGenerator {
     }
 
     public void processProgramModule(final ProgramModule programModule, BufferedWriter writer, Path irFile) {
+        processProgramModules(List.of(programModule), writer, irFile);
+    }
+
+    /**
+     * Emit a single LLVM module containing the content of all of the given program modules.
+     * The program modules must not define any symbols in common.
+     *
+     * @param programModules the program modules, in link order (must not be {@code null} or empty)
+     * @param writer the writer for the IR output (must not be {@code null})
+     * @param irFile the path of the IR file (must not be {@code null})
+     */
+    public void processProgramModules(final List<ProgramModule> programModules, BufferedWriter writer, Path irFile) {
+        Assert.checkNotEmptyParam("programModules", programModules);
         final Platform platform = context.getPlatform();
         final Module module = Module.newModule();
         TypeSystem ts = context.getTypeSystem();
@@ -91,8 +108,20 @@ final class LLVMModuleGenerator {
                 .vendor(platform.vendor().llvmName())
                 .os(platform.os().llvmName() + platform.osVersion());
         module.sourceFileName(irFile.toString());
-        final LLVMModuleNodeVisitor moduleVisitor = new LLVMModuleNodeVisitor(this, programModule, module, context, config);
-        final LLVMModuleDebugInfo debugInfo = new LLVMModuleDebugInfo(programModule, module, context);
+        final Set<DefinedTypeDefinition> definedTypes = new HashSet<>();
+        final List<GlobalXtor> constructors = new ArrayList<>();
+        final List<GlobalXtor> destructors = new ArrayList<>();
+        for (ProgramModule programModule : programModules) {
+            definedTypes.add(programModule.getTypeDefinition());
+            constructors.addAll(programModule.constructors());
+            destructors.addAll(programModule.destructors());
+        }
+        final LLVMModuleNodeVisitor moduleVisitor = new LLVMModuleNodeVisitor(this, definedTypes, module, context, config);
+        LLVMModuleDebugInfo.addModuleFlags(module);
+        final List<LLVMModuleDebugInfo> debugInfos = new ArrayList<>(programModules.size());
+        for (ProgramModule programModule : programModules) {
+            debugInfos.add(new LLVMModuleDebugInfo(programModule, module, context));
+        }
 
         if (picLevel != 0) {
             module.addFlag(ModuleFlagBehavior.Max, "PIC Level", Types.i32, Values.intConstant(picLevel));
@@ -108,37 +137,80 @@ final class LLVMModuleGenerator {
         decl.param(Types.metadata).param(Types.metadata).param(Types.metadata);
 
         // declare global ctors and dtors
-        processXtors(programModule.constructors(), "llvm.global_ctors", module, moduleVisitor);
-        processXtors(programModule.destructors(), "llvm.global_dtors", module, moduleVisitor);
+        processXtors(constructors, "llvm.global_ctors", module, moduleVisitor);
+        processXtors(destructors, "llvm.global_dtors", module, moduleVisitor);
 
-        for (Declaration item : programModule.declarations()) {
-            String name = item.getName();
-            Linkage linkage = map(item.getLinkage());
-            if (item instanceof FunctionDeclaration fn) {
-                decl = module.declare(name).linkage(linkage);
-                FunctionType fnType = fn.getValueType();
-                decl.returns(moduleVisitor.map(fnType.getReturnType()));
-                int cnt = fnType.getParameterCount();
-                for (int i = 0; i < cnt; i++) {
-                    ValueType type = fnType.getParameterType(i);
-                    if (type instanceof VariadicType) {
-                        if (i < cnt - 1) {
-                            throw new IllegalStateException("Variadic type as non-final parameter type");
+        final Set<String> definedNames;
+        if (programModules.size() == 1) {
+            // a program module never declares what it defines
+            definedNames = Set.of();
+        } else {
+            definedNames = new HashSet<>();
+            for (ProgramModule programModule : programModules) {
+                for (ModuleSection section : programModule.sections()) {
+                    for (SectionObject item : section.contents()) {
+                        if (isEmitted(item)) {
+                            definedNames.add(item.getName());
                         }
-                        decl.variadic();
-                    } else {
-                        decl.param(moduleVisitor.map(type));
                     }
                 }
-            } else if (item instanceof DataDeclaration) {
-                Global obj = module.global(moduleVisitor.map(item.getValueType())).linkage(Linkage.EXTERNAL);
-                ThreadLocalMode tlm = item.getThreadLocalMode();
-                if (tlm != null) {
-                    obj.threadLocal(map(tlm));
+            }
+        }
+        final Set<String> declaredNames = new HashSet<>();
+        for (ProgramModule programModule : programModules) {
+            for (Declaration item : programModule.declarations()) {
+                String name = item.getName();
+                if (definedNames.contains(name) || ! declaredNames.add(name)) {
+                    // defined elsewhere in this module, or already declared
+                    continue;
+                }
+                Linkage linkage = map(item.getLinkage());
+                if (item instanceof FunctionDeclaration fn) {
+                    decl = module.declare(name).linkage(linkage);
+                    FunctionType fnType = fn.getValueType();
+                    decl.returns(moduleVisitor.map(fnType.getReturnType()));
+                    int cnt = fnType.getParameterCount();
+                    for (int i = 0; i < cnt; i++) {
+                        ValueType type = fnType.getParameterType(i);
+                        if (type instanceof VariadicType) {
+                            if (i < cnt - 1) {
+                                throw new IllegalStateException("Variadic type as non-final parameter type");
+                            }
+                            decl.variadic();
+                        } else {
+                            decl.param(moduleVisitor.map(type));
+                        }
+                    }
+                } else if (item instanceof DataDeclaration) {
+                    Global obj = module.global(moduleVisitor.map(item.getValueType())).linkage(Linkage.EXTERNAL);
+                    ThreadLocalMode tlm = item.getThreadLocalMode();
+                    if (tlm != null) {
+                        obj.threadLocal(map(tlm));
+                    }
+                    obj.asGlobal(item.getName());
                 }
-                obj.asGlobal(item.getName());
             }
         }
+        for (int i = 0; i < programModules.size(); i ++) {
+            ProgramModule programModule = programModules.get(i);
+            moduleVisitor.startProgramModule(i);
+            processSections(programModule, module, moduleVisitor, debugInfos.get(i));
+            final List<InvocationNode> statePointIds = moduleVisitor.getStatePointIds();
+            LLVMInfo.get(context).setStatePointIds(programModule.getTypeDefinition().load(), statePointIds);
+        }
+        try {
+            module.writeTo(writer);
+        } catch (IOException e) {
+            context.error(Location.builder().setClassInternalName(programModules.get(0).getTypeDefinition().getInternalName()).build(), "Failed to emit LLVM output: %s", e.toString());
+        }
+    }
+
+    private boolean isEmitted(SectionObject item) {
+        return ! (item instanceof Function fn) || Facts.get(context).hadFact(fn.getOriginalElement(), ExecutableReachabilityFacts.IS_INVOKED);
+    }
+
+    private void processSections(final ProgramModule programModule, final Module module, final LLVMModuleNodeVisitor moduleVisitor, final LLVMModuleDebugInfo debugInfo) {
+        final Platform platform = context.getPlatform();
         for (ModuleSection section : programModule.sections()) {
             String sectionName = section.getName();
             final Segment segment = section.getSection().getSegment();
@@ -147,7 +219,7 @@ final class LLVMModuleGenerator {
                 Linkage linkage = map(item.getLinkage());
                 if (item instanceof Function fn) {
                     ExecutableElement element = fn.getOriginalElement();
-                    if (! Facts.get(context).hadFact(element, ExecutableReachabilityFacts.IS_INVOKED)) {
+                    if (! isEmitted(fn)) {
                         // not reachable; do not emit
                         continue;
                     }
@@ -223,13 +295,6 @@ final class LLVMModuleGenerator {
                 }
             }
         }
-        final List<InvocationNode> statePointIds = moduleVisitor.getStatePointIds();
-        LLVMInfo.get(context).setStatePointIds(programModule.getTypeDefinition().load(), statePointIds);
-        try {
-            module.writeTo(writer);
-        } catch (IOException e) {
-            context.error(Location.builder().setClassInternalName(programModule.getTypeDefinition().getInternalName()).build(), "Failed to emit LLVM output: %s", e.toString());
-        }
     }
 
     private void processXtors(final List<GlobalXtor> xtors, final String xtorName, Module module, LLVMModuleNodeVisitor moduleVisitor) {
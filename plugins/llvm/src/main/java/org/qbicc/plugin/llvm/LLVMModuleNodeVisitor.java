@@ -8,6 +8,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import io.smallrye.common.constraint.Assert;
 import org.qbicc.context.CompilationContext;
@@ -53,7 +54,6 @@ import org.qbicc.machine.llvm.Struct;
 import org.qbicc.machine.llvm.Types;
 import org.qbicc.machine.llvm.Values;
 import org.qbicc.machine.llvm.impl.LLVM;
-import org.qbicc.object.ProgramModule;
 import org.qbicc.plugin.coreclasses.CoreClasses;
 import org.qbicc.type.ArrayObjectType;
 import org.qbicc.type.ArrayType;
@@ -78,13 +78,14 @@ import org.qbicc.type.ValueType;
 import org.qbicc.type.VariadicType;
 import org.qbicc.type.VoidType;
 import org.qbicc.type.WordType;
+import org.qbicc.type.definition.DefinedTypeDefinition;
 import org.qbicc.type.definition.element.ExecutableElement;
 
 final class LLVMModuleNodeVisitor implements LiteralVisitor<Void, LLValue> {
     static final LLValue ptr_as1 = ptr(1);
 
     final LLVMModuleGenerator generator;
-    final ProgramModule programModule;
+    final Set<DefinedTypeDefinition> definedTypes;
     final Module module;
     final CompilationContext ctxt;
     final LLVMConfiguration config;
@@ -100,14 +101,15 @@ final class LLVMModuleNodeVisitor implements LiteralVisitor<Void, LLValue> {
     final Map<String, LLValue> resultDeclsByName = new HashMap<>();
     final Map<ValueType, LLValue> resultDeclTypes = new HashMap<>();
     final Map<ExecutableElement, Function> decls = new HashMap<>();
-    final List<InvocationNode> statePointIds = new ArrayList<>();
+    List<InvocationNode> statePointIds = new ArrayList<>();
+    long statePointIdBase;
     final LLValue refType;
     final LLValue relocateDeclType;
     LLValue relocateDecl;
 
-    LLVMModuleNodeVisitor(final LLVMModuleGenerator generator, ProgramModule programModule, final Module module, final CompilationContext ctxt, final LLVMConfiguration config) {
+    LLVMModuleNodeVisitor(final LLVMModuleGenerator generator, Set<DefinedTypeDefinition> definedTypes, final Module module, final CompilationContext ctxt, final LLVMConfiguration config) {
         this.generator = generator;
-        this.programModule = programModule;
+        this.definedTypes = definedTypes;
         this.module = module;
         this.ctxt = ctxt;
         this.config = config;
@@ -252,7 +254,7 @@ final class LLVMModuleNodeVisitor implements LiteralVisitor<Void, LLValue> {
     }
 
     void declare(final ExecutableElement element) {
-        if (element.getEnclosingType() == programModule.getTypeDefinition()) {
+        if (definedTypes.contains(element.getEnclosingType())) {
             // it belongs to us; no declaration is needed
             return;
         }
@@ -663,13 +665,25 @@ final class LLVMModuleNodeVisitor implements LiteralVisitor<Void, LLValue> {
         return relocateDeclType;
     }
 
-    public int getNextStatePointId(final InvocationNode callNode) {
+    public long getNextStatePointId(final InvocationNode callNode) {
         final int id = statePointIds.size();
         statePointIds.add(callNode);
-        return id;
+        return statePointIdBase | id;
     }
 
     public List<InvocationNode> getStatePointIds() {
         return statePointIds;
     }
+
+    /**
+     * Start numbering state points for the next program module of a module which contains several program modules.
+     * The index of the program module is stored in the upper 32 bits of each state point ID, so that the stack map
+     * can be correlated back to the per-type state point ID list.
+     *
+     * @param index the index of the program module within the LLVM module
+     */
+    void startProgramModule(final int index) {
+        statePointIds = new ArrayList<>();
+        statePointIdBase = (long) index << 32;
+    }
 }
@@ -0,0 +1,125 @@
+package org.qbicc.plugin.llvm;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.object.Function;
+import org.qbicc.object.ModuleSection;
+import org.qbicc.object.ProgramModule;
+import org.qbicc.object.SectionObject;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
+
+/**
+ * A partitioner which packs program modules into a smaller number of size-balanced LLVM compilation units.
+ * <p>
+ * Partitions are made of program modules which are contiguous in link order, so that the layout of the linked
+ * image (and therefore the ordering of the call site table) is the same as it would be with one compilation unit per
+ * type. Program modules which define a symbol in common (for example, private data with the same name) are never
+ * placed into the same partition.
+ */
+final class LLVMModulePartitioner {
+    private LLVMModulePartitioner() {}
+
+    /**
+     * Partition the given program modules.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param programModules the program modules to partition (must not be {@code null})
+     * @param partitions the requested number of partitions, or {@link LLVMConfiguration#PARTITIONS_AUTO}
+     * @return the list of partitions, in link order (not {@code null})
+     */
+    static List<List<ProgramModule>> partition(CompilationContext ctxt, List<ProgramModule> programModules, int partitions) {
+        if (partitions == LLVMConfiguration.PARTITIONS_AUTO) {
+            // enough units to keep every compiler thread busy until the end
+            partitions = Runtime.getRuntime().availableProcessors() * 4;
+        }
+        DefinedTypeDefinition defaultTypeDefinition = ctxt.getDefaultTypeDefinition();
+        List<List<ProgramModule>> result = new ArrayList<>(partitions + 1);
+        List<ProgramModule> sorted = new ArrayList<>(programModules.size());
+        for (ProgramModule programModule : programModules) {
+            if (programModule.getTypeDefinition() == defaultTypeDefinition) {
+                // always compiled on its own
+                result.add(List.of(programModule));
+            } else {
+                sorted.add(programModule);
+            }
+        }
+        sorted.sort(Comparator.comparingInt(pm -> pm.getTypeDefinition().load().typeId().getTypeIdValueElse(Integer.MAX_VALUE)));
+        long[] sizes = new long[sorted.size()];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i ++) {
+            total += sizes[i] = sizeOf(sorted.get(i));
+        }
+        long target = Math.max(1, total / Math.max(1, partitions));
+        List<ProgramModule> current = new ArrayList<>();
+        Set<String> currentNames = new HashSet<>();
+        long currentSize = 0;
+        for (int i = 0; i < sizes.length; i ++) {
+            ProgramModule programModule = sorted.get(i);
+            Set<String> names = definedNames(programModule);
+            if (! current.isEmpty() && (currentSize >= target || ! disjoint(currentNames, names))) {
+                result.add(List.copyOf(current));
+                current.clear();
+                currentNames.clear();
+                currentSize = 0;
+            }
+            current.add(programModule);
+            currentNames.addAll(names);
+            currentSize += sizes[i];
+        }
+        if (! current.isEmpty()) {
+            result.add(List.copyOf(current));
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the size of the generated code for a program module by counting its scheduled nodes and data items.
+     *
+     * @param programModule the program module (must not be {@code null})
+     * @return the estimated size
+     */
+    private static long sizeOf(ProgramModule programModule) {
+        long size = 1;
+        for (ModuleSection section : programModule.sections()) {
+            for (SectionObject item : section.contents()) {
+                size ++;
+                if (item instanceof Function fn) {
+                    MethodBody body = fn.getBody();
+                    List<BasicBlock> blocks = body == null ? null : body.getEntryBlock().allBlocks();
+                    if (blocks != null) {
+                        for (BasicBlock block : blocks) {
+                            size += block.getInstructions().size();
+                        }
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private static Set<String> definedNames(ProgramModule programModule) {
+        Set<String> names = new HashSet<>();
+        for (ModuleSection section : programModule.sections()) {
+            for (SectionObject item : section.contents()) {
+                names.add(item.getName());
+            }
+        }
+        return names;
+    }
+
+    private static boolean disjoint(Set<String> a, Set<String> b) {
+        for (String name : b) {
+            if (a.contains(name)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1353,7 +1353,7 @@ final class LLVMNodeVisitor implements NodeVisitor<List<Value>, LLValue, Instruc
         }
         spCall.comment(statepointReason.getReason());
         // record the statepoint so that we can correlate the stack map info back to nodes
-        int statepointId = moduleVisitor.getNextStatePointId(node);
+        long statepointId = moduleVisitor.getNextStatePointId(node);
         CallSiteInfo.get(ctxt).mapStatepointIdToNode(statepointId, node);
         invocationNodes.add(node);
         spCall.arg(i64, intConstant(statepointId));
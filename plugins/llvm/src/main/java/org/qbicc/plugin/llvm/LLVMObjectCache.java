@@ -0,0 +1,147 @@
+package org.qbicc.plugin.llvm;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.smallrye.common.constraint.Assert;
+import org.jboss.logging.Logger;
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+
+/**
+ * A persistent, content-addressed cache of compiled object files.
+ * <p>
+ * Entries are keyed on a digest of the emitted LLVM IR along with an identity string which captures everything else
+ * that can affect the compiled output (tool versions, target platform, and tool options). Because the key is derived
+ * from content alone, the cache directory may be shared between builds, including concurrently running builds:
+ * entries are written to a temporary file and atomically moved into place.
+ * <p>
+ * Cached objects are always copied out rather than linked, because later stages (such as stack map stripping)
+ * modify the object files in the output directory in place.
+ */
+final class LLVMObjectCache {
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.llvm.cache");
+    private static final AttachmentKey<LLVMObjectCache> KEY = new AttachmentKey<>();
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path directory;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private LLVMObjectCache(Path directory) {
+        this.directory = directory;
+    }
+
+    static LLVMObjectCache get(CompilationContext ctxt, Path directory) {
+        Assert.checkNotNullParam("directory", directory);
+        LLVMObjectCache cache = ctxt.getAttachment(KEY);
+        if (cache == null) {
+            cache = new LLVMObjectCache(directory.toAbsolutePath());
+            LLVMObjectCache appearing = ctxt.putAttachmentIfAbsent(KEY, cache);
+            if (appearing != null) {
+                cache = appearing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Create a new digest for computing a cache key, pre-seeded with the given compilation identity.
+     *
+     * @param identity the identity of the tool chain and options used to compile (must not be {@code null})
+     * @return the new digest (not {@code null})
+     */
+    MessageDigest newDigest(String identity) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(identity.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return digest;
+    }
+
+    /**
+     * Get the cache key corresponding to the given completed digest.
+     *
+     * @param digest the digest (must not be {@code null})
+     * @return the key (not {@code null})
+     */
+    String keyOf(MessageDigest digest) {
+        return HEX.formatHex(digest.digest());
+    }
+
+    /**
+     * Attempt to copy the cached object for the given key to the given path.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param objectFile the destination object file path (must not be {@code null})
+     * @return {@code true} if the cached object was found and copied, or {@code false} if the object must be compiled
+     */
+    boolean retrieve(String key, Path objectFile) {
+        Path entry = entryPath(key);
+        if (Files.isRegularFile(entry)) {
+            try {
+                Files.copy(entry, objectFile, StandardCopyOption.REPLACE_EXISTING);
+                hits.incrementAndGet();
+                return true;
+            } catch (IOException e) {
+                log.debugf(e, "Failed to retrieve cached object %s", entry);
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Store a freshly compiled object into the cache. Failure to store is not fatal to the build.
+     *
+     * @param key the cache key (must not be {@code null})
+     * @param objectFile the compiled object file (must not be {@code null})
+     */
+    void store(String key, Path objectFile) {
+        Path entry = entryPath(key);
+        Path tmp = null;
+        try {
+            Files.createDirectories(entry.getParent());
+            tmp = Files.createTempFile(entry.getParent(), key, ".tmp");
+            Files.copy(objectFile, tmp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            tmp = null;
+        } catch (IOException e) {
+            log.debugf(e, "Failed to store object %s in cache", objectFile);
+        } finally {
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    void reportStats() {
+        long hits = this.hits.get();
+        long misses = this.misses.get();
+        log.debugf("Object cache %s: %,d hit(s), %,d miss(es)", directory, Long.valueOf(hits), Long.valueOf(misses));
+    }
+
+    private Path entryPath(String key) {
+        // fan out to keep directory sizes reasonable
+        return directory.resolve(key.substring(0, 2)).resolve(key + ".o");
+    }
+}
@@ -63,9 +63,25 @@ public final class LLVMStackMapCollector {
                     entry = objFileIterator.next();
                 }
                 final LoadedTypeDefinition typeDefinition = entry.getKey();
-                final List<InvocationNode> callSitesById = info.getStatePointIds(typeDefinition);
-                if (callSitesById == null) {
-                    throw new IllegalStateException("Missing statepoint IDs");
+                // an object file may hold several program modules; the first member collects for all of them
+                final List<LoadedTypeDefinition> members = info.getPartition(typeDefinition);
+                if (members.get(0) != typeDefinition) {
+                    continue;
+                }
+                final int memberCnt = members.size();
+                final List<List<InvocationNode>> callSitesById = new ArrayList<>(memberCnt);
+                // the function indices of each member are offset by the functions of the members before it
+                final int[] fnIndexBases = new int[memberCnt];
+                int fnIndexBase = 0;
+                for (int i = 0; i < memberCnt; i ++) {
+                    final LoadedTypeDefinition member = members.get(i);
+                    final List<InvocationNode> ids = info.getStatePointIds(member);
+                    if (ids == null) {
+                        throw new IllegalStateException("Missing statepoint IDs");
+                    }
+                    callSitesById.add(ids);
+                    fnIndexBases[i] = fnIndexBase;
+                    fnIndexBase += ctxt.getOrAddProgramModule(member).getFunctionCount();
                 }
                 final Path objFile = entry.getValue();
                 try (ObjectFile objectFile = objFileProvider.openObjectFile(objFile)) {
@@ -74,12 +90,13 @@ public final class LLVMStackMapCollector {
                         ByteBuffer stackMapData = stackMapSection.getSectionContent();
                         StackMap.parse(stackMapData, new StackMapVisitor() {
 
-                            // per-unit
-                            private final List<CallSiteTable.CallSiteEntry> callSites = new ArrayList<>();
+                            // per-unit, per-member
+                            private final List<List<CallSiteTable.CallSiteEntry>> callSites = newLists(memberCnt);
 
                             // per-function
                             private long fnIndex;
                             private long stackSize;
+                            private int fnMember;
                             private final List<CallSiteTable.CallSiteEntry> fnCallSites = new ArrayList<>();
 
                             // per-call-site
@@ -161,11 +178,15 @@ public final class LLVMStackMapCollector {
                                 }
                                 final CallSiteTable.LiveValueInfo lvi = cst.intern(valueInfos);
                                 valueInfos.clear();
-                                final Node node = callSitesById.get(Math.toIntExact(patchPointId));
+                                // the upper half of the ID is the index of the member which emitted the statepoint
+                                final int member = (int) (patchPointId >>> 32);
+                                final Node node = callSitesById.get(member).get((int) patchPointId);
                                 // todo: Replace the `address` argument with a Literal which represents the relocation with offset;
                                 // the address is actually a relocation... but we can cheat and just grab the function itself by index
-                                Function functionAddress = ctxt.getOrAddProgramModule(typeDefinition).getFunction((int) fnIndex);
-                                fnCallSites.add(new CallSiteTable.CallSiteEntry(functionAddress, (int) fnIndex, offset, getSourceCodeEntry(node), lvi));
+                                final int localFnIndex = (int) fnIndex - fnIndexBases[member];
+                                Function functionAddress = ctxt.getOrAddProgramModule(members.get(member)).getFunction(localFnIndex);
+                                fnMember = member;
+                                fnCallSites.add(new CallSiteTable.CallSiteEntry(functionAddress, localFnIndex, offset, getSourceCodeEntry(node), lvi));
                             }
 
                             public void endFunction(long fnIndex) {
@@ -174,17 +195,20 @@ public final class LLVMStackMapCollector {
                                     return;
                                 }
                                 fnCallSites.sort(Comparator.comparingInt(CallSiteTable.CallSiteEntry::index).thenComparingLong(CallSiteTable.CallSiteEntry::offset));
-                                callSites.addAll(fnCallSites);
+                                callSites.get(fnMember).addAll(fnCallSites);
                                 fnCallSites.clear();
                             }
 
                             public void end() {
-                                if (callSites.isEmpty()) {
-                                    // don't emit anything
-                                    return;
+                                for (int i = 0; i < memberCnt; i ++) {
+                                    final List<CallSiteTable.CallSiteEntry> memberCallSites = callSites.get(i);
+                                    if (memberCallSites.isEmpty()) {
+                                        // don't emit anything
+                                        continue;
+                                    }
+                                    cst.registerEntries(members.get(i), memberCallSites);
+                                    memberCallSites.clear();
                                 }
-                                cst.registerEntries(typeDefinition, callSites);
-                                callSites.clear();
                             }
                         });
                     }
@@ -195,6 +219,14 @@ public final class LLVMStackMapCollector {
         });
     }
 
+    private static <E> List<List<E>> newLists(int count) {
+        List<List<E>> lists = new ArrayList<>(count);
+        for (int i = 0; i < count; i ++) {
+            lists.add(new ArrayList<>());
+        }
+        return lists;
+    }
+
     public static void execute(final CompilationContext ctxt) {
         new LLVMStackMapCollector(ctxt).collect();
     }
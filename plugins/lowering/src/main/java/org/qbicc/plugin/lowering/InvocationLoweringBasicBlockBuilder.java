@@ -294,10 +294,8 @@ public class InvocationLoweringBasicBlockBuilder extends DelegatingBasicBlockBui
         return fb.load(memberOf(bitCast(vtable, info.getType().getPointer()), info.getType().getMember(index)));
     }
 
-    // Current implementation strategy is "searched itables" in the terminology of [Alpern et al 2001].
     @Override
     public Value lookupInterfaceMethod(Value reference, InstanceMethodElement target) {
-        final BasicBlockBuilder fb = getFirstBuilder();
         LiteralFactory lf = getLiteralFactory();
         DispatchTables dt = DispatchTables.get(ctxt);
         DispatchTables.ITableInfo info = dt.getITableInfo(target.getEnclosingType().load());
@@ -305,6 +303,58 @@ public class InvocationLoweringBasicBlockBuilder extends DelegatingBasicBlockBui
             // No realized invocation targets are possible for this method!
             return lf.nullLiteralOfType(target.getType().getPointer());
         }
+        return switch (dt.getInterfaceDispatch()) {
+            case SEARCHED -> lookupInterfaceMethodSearched(reference, target, info);
+            case COLORED -> lookupInterfaceMethodColored(reference, target);
+        };
+    }
+
+    // "Selector coloring" in the terminology of [Dixon et al 1989]: a constant-time lookup in a per-class table.
+    // A color is shared by selectors of unrelated interfaces, so the entry found for a receiver which does not
+    // implement the interface may be one of its own, unrelated methods. The verifier does not prevent this because
+    // it treats interface types as Object (JVMS 4.10.1.2), so the receiver is checked against the interface first,
+    // raising IncompatibleClassChangeError as the searched path does; the check folds away when the static type
+    // of the receiver already implements the interface.
+    private Value lookupInterfaceMethodColored(Value reference, InstanceMethodElement target) {
+        final BasicBlockBuilder fb = getFirstBuilder();
+        LiteralFactory lf = getLiteralFactory();
+        DispatchTables dt = DispatchTables.get(ctxt);
+        int color = dt.getSelectorColor(target);
+        if (color == -1) {
+            // No class implements this method
+            return lf.nullLiteralOfType(target.getType().getPointer());
+        }
+        GlobalVariableElement rootRows = dt.getSelectorRowsGlobal();
+        if (!rootRows.getEnclosingType().equals(originalElement.getEnclosingType())) {
+            ProgramModule programModule = ctxt.getOrAddProgramModule(originalElement.getEnclosingType());
+            programModule.declareData(null, rootRows.getName(), rootRows.getType());
+        }
+        // Use the receiver's typeId to get the selector row for its class, then index it by the selector's color
+        Value typeId = fb.load(instanceFieldOf(fb.decodeReference(reference), CoreClasses.get(ctxt).getObjectTypeIdField()));
+        Value implemented = fb.instanceOf(reference, target.getEnclosingType().load().getObjectType(), 0);
+        if (!implemented.isDefEq(lf.literalOf(true))) {
+            BlockLabel failLabel = new BlockLabel();
+            BlockLabel passLabel = new BlockLabel();
+            if_(implemented, passLabel, failLabel, Map.of());
+            try {
+                begin(failLabel);
+                MethodElement method = RuntimeMethodFinder.get(ctxt).getMethod("raiseIncompatibleClassChangeError");
+                callNoReturn(lf.literalOf(method), List.of());
+            } catch (BlockEarlyTermination ignored) {
+                // ignore; continue to generate passLabel block
+            }
+            begin(passLabel);
+        }
+        Value row = fb.load(elementOf(lf.literalOf(rootRows), typeId));
+        Value entry = fb.load(fb.elementOf(row, lf.literalOf(ctxt.getTypeSystem().getSignedInteger32Type(), color)));
+        return fb.bitCast(entry, target.getType().getPointer());
+    }
+
+    // "Searched itables" in the terminology of [Alpern et al 2001].
+    private Value lookupInterfaceMethodSearched(Value reference, InstanceMethodElement target, DispatchTables.ITableInfo info) {
+        final BasicBlockBuilder fb = getFirstBuilder();
+        LiteralFactory lf = getLiteralFactory();
+        DispatchTables dt = DispatchTables.get(ctxt);
 
         ProgramModule programModule = ctxt.getOrAddProgramModule(originalElement.getEnclosingType());
         GlobalVariableElement rootITables = dt.getITablesGlobal();
@@ -4,13 +4,12 @@ import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.Node;
 
-import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CallSiteInfo {
-    // This is a rough estimate based on number of callsites for an app with empty main().
-    // A better way would be to collect this stat during compilation and use it to initialize the list capacity.
-    private static final int INITIAL_LIST_SIZE = 100000;
-    private final ArrayList<Node> nodeList = new ArrayList<>(INITIAL_LIST_SIZE);
+    // Keyed by the full statepoint ID, whose upper 32 bits may hold the index of a partition member module.
+    private final Map<Long, Node> nodeMap = new ConcurrentHashMap<>();
     public static final AttachmentKey<CallSiteInfo> KEY = new AttachmentKey<>();
 
     private CallSiteInfo() {}
@@ -19,16 +18,9 @@ public class CallSiteInfo {
         return ctxt.computeAttachmentIfAbsent(KEY, CallSiteInfo::new);
     }
 
-    public void mapStatepointIdToNode(int statepointId, Node node) {
-        synchronized (nodeList) {
-            if (statepointId >= nodeList.size()) {
-                for (int i = nodeList.size(); i <= statepointId; i++) {
-                    nodeList.add(i, null);
-                }
-            }
-            nodeList.set(statepointId, node);
-        }
+    public void mapStatepointIdToNode(long statepointId, Node node) {
+        nodeMap.put(Long.valueOf(statepointId), node);
     }
 
-    public Node getNodeForStatepointId(int id) { return nodeList.get(id); }
+    public Node getNodeForStatepointId(long id) { return nodeMap.get(Long.valueOf(id)); }
 }
@@ -13,11 +13,13 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.ToIntFunction;
 
 import io.smallrye.common.constraint.Assert;
+import org.jboss.logging.Logger;
 import org.eclipse.collections.api.factory.primitive.ObjectIntMaps;
 import org.eclipse.collections.api.factory.primitive.ShortObjectMaps;
 import org.eclipse.collections.api.map.primitive.MutableObjectIntMap;
 import org.eclipse.collections.api.map.primitive.MutableShortObjectMap;
 import org.eclipse.collections.api.map.primitive.ObjectIntMap;
+import org.eclipse.collections.impl.list.mutable.primitive.ByteArrayList;
 import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
 import org.eclipse.collections.impl.list.mutable.primitive.ShortArrayList;
 import org.qbicc.context.AttachmentKey;
@@ -60,6 +62,7 @@ import org.qbicc.type.definition.element.NamedElement;
  */
 public final class CallSiteTable {
     private static final AttachmentKey<CallSiteTable> KEY = new AttachmentKey<>();
+    private static final Logger statsLog = Logger.getLogger("org.qbicc.plugin.methodinfo.stats");
 
     private final Map<ExecutableElement, SubprogramEntry> subprogramEntries = new ConcurrentHashMap<>();
     private final Map<LoadedTypeDefinition, List<CallSiteEntry>> entries = new ConcurrentHashMap<>();
@@ -99,10 +102,21 @@ public final class CallSiteTable {
      * @param ctxt the compilation context (must not be {@code null})
      */
     public static void writeCallSiteTable(CompilationContext ctxt) {
-        get(ctxt).doWrite();
+        get(ctxt).doWrite(false);
     }
 
-    private void doWrite() {
+    /**
+     * Write the call site table data to a program module during {@code GENERATE}, encoding the source code
+     * information table as a compact byte stream which is decoded by the stack walker on first use.
+     * The back end must then perform any required compilation.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void writeCompactCallSiteTable(CompilationContext ctxt) {
+        get(ctxt).doWrite(true);
+    }
+
+    private void doWrite(boolean compact) {
         final LiteralFactory lf = ctxt.getLiteralFactory();
         final TypeSystem ts = ctxt.getTypeSystem();
         // TODO: this should be lowered directly to assembly or an object file
@@ -159,20 +173,39 @@ public final class CallSiteTable {
         StructType sceType = (StructType) ctxt.getBootstrapClassContext().resolveTypeFromClassName("org/qbicc/runtime/stackwalk", "CallSiteTable$struct_source");
         List<Literal> sceLiterals = new ArrayList<>(sourceCodeEntries.size());
         MutableObjectIntMap<SourceCodeEntry> sourceCodeIndexes = ObjectIntMaps.mutable.empty();
-        for (SourceCodeEntry entry : sourceCodeEntries.values()) {
-            getSceIndex(sceType, entry, sceLiterals, sourceCodeIndexes, subprogramIndexes);
+        final ByteArrayList sourceStream = new ByteArrayList();
+        if (compact) {
+            emitSourceStream(sourceStream, sourceCodeIndexes, subprogramIndexes);
+        } else {
+            for (SourceCodeEntry entry : sourceCodeEntries.values()) {
+                getSceIndex(sceType, entry, sceLiterals, sourceCodeIndexes, subprogramIndexes);
+            }
         }
         final Literal sceLiteral = lf.literalOf(ts.getArrayType(sceType, sceLiterals.size()), sceLiterals);
+        final Literal sourceStreamLiteral = lf.literalOf(ts.getArrayType(ts.getUnsignedInteger8Type(), sourceStream.size()), sourceStream.toArray());
+        final Literal sourceStreamSizeLiteral = lf.literalOf(ts.getUnsignedInteger64Type(), sourceStream.size());
         // ----
-        // compute the call site table
+        // compute the call site and function tables
         // ----
         StructType csType = (StructType) ctxt.getBootstrapClassContext().resolveTypeFromClassName("org/qbicc/runtime/stackwalk", "CallSiteTable$struct_call_site");
+        StructType csfType = (StructType) ctxt.getBootstrapClassContext().resolveTypeFromClassName("org/qbicc/runtime/stackwalk", "CallSiteTable$struct_call_site_function");
         final ArrayList<Map.Entry<LoadedTypeDefinition, List<CallSiteEntry>>> callSiteListList = new ArrayList<>(entries.entrySet());
         // estimate size
         List<Literal> csLiterals = new ArrayList<>(callSiteListList.size() * 16);
+        List<Literal> csfLiterals = new ArrayList<>(callSiteListList.size() * 4);
         callSiteListList.sort(Comparator.comparingInt(e -> e.getKey().getTypeId()));
         for (Map.Entry<LoadedTypeDefinition, List<CallSiteEntry>> entry : callSiteListList) {
+            // the entries of each function are contiguous
+            Function function = null;
+            int fnStart = 0;
             for (CallSiteEntry callSiteEntry : entry.getValue()) {
+                if (callSiteEntry.fnAddress() != function) {
+                    if (function != null) {
+                        csfLiterals.add(emitCallSiteFunctionEntry(csfType, function, fnStart, csLiterals.size() - fnStart));
+                    }
+                    function = callSiteEntry.fnAddress();
+                    fnStart = csLiterals.size();
+                }
                 csLiterals.add(emitCallSiteEntry(csType, callSiteEntry, sourceCodeIndexes::get, key -> {
                     final int lvo = lvtOffsets.getIfAbsent(key, -1);
                     if (lvo == -1) {
@@ -181,9 +214,14 @@ public final class CallSiteTable {
                     return lvo;
                 }));
             }
+            if (function != null) {
+                csfLiterals.add(emitCallSiteFunctionEntry(csfType, function, fnStart, csLiterals.size() - fnStart));
+            }
         }
         final Literal csLiteral = lf.literalOf(ts.getArrayType(csType, csLiterals.size()), csLiterals);
         final Literal csSizeLiteral = lf.literalOf(ts.getUnsignedInteger64Type(), csLiterals.size());
+        final Literal csfLiteral = lf.literalOf(ts.getArrayType(csfType, csfLiterals.size()), csfLiterals);
+        final Literal csfSizeLiteral = lf.literalOf(ts.getUnsignedInteger64Type(), csfLiterals.size());
         final Literal fileNamesLiteral = lf.literalOf(ts.getArrayType(stringType, fileNamesList.size()), fileNamesList);
         final Literal methodNamesLiteral = lf.literalOf(ts.getArrayType(stringType, methodNamesList.size()), methodNamesList);
         final Literal methodTypesLiteral = lf.literalOf(ts.getArrayType(methodTypeType, methodTypesList.size()), methodTypesList);
@@ -194,7 +232,11 @@ public final class CallSiteTable {
         final ModuleSection moduleSection = programModule.inSection(ctxt.getImplicitSection());
         final FieldElement callSiteTbl = cstTypeDef.findField("call_site_tbl");
         final FieldElement callSiteTblSize = cstTypeDef.findField("call_site_tbl_size");
+        final FieldElement callSiteFnTbl = cstTypeDef.findField("call_site_fn_tbl");
+        final FieldElement callSiteFnTblSize = cstTypeDef.findField("call_site_fn_tbl_size");
         final FieldElement sourceTbl = cstTypeDef.findField("source_tbl");
+        final FieldElement sourceStreamField = cstTypeDef.findField("source_stream");
+        final FieldElement sourceStreamSize = cstTypeDef.findField("source_stream_size");
         final FieldElement subprogramTbl = cstTypeDef.findField("subprogram_tbl");
         final FieldElement lviTbl = cstTypeDef.findField("lvi_tbl");
         final FieldElement fileNameRefs = cstTypeDef.findField("file_name_refs");
@@ -206,9 +248,21 @@ public final class CallSiteTable {
         final Data cstEnd = moduleSection.addData(callSiteTblSize, callSiteTblSize.getName(), csSizeLiteral);
         cstEnd.setLinkage(Linkage.EXTERNAL);
         cstEnd.setConstant(true);
+        final Data csft = moduleSection.addData(callSiteFnTbl, callSiteFnTbl.getName(), csfLiteral);
+        csft.setLinkage(Linkage.EXTERNAL);
+        csft.setConstant(true);
+        final Data csftEnd = moduleSection.addData(callSiteFnTblSize, callSiteFnTblSize.getName(), csfSizeLiteral);
+        csftEnd.setLinkage(Linkage.EXTERNAL);
+        csftEnd.setConstant(true);
         final Data sce = moduleSection.addData(sourceTbl, sourceTbl.getName(), sceLiteral);
         sce.setLinkage(Linkage.EXTERNAL);
         sce.setConstant(true);
+        final Data ss = moduleSection.addData(sourceStreamField, sourceStreamField.getName(), sourceStreamLiteral);
+        ss.setLinkage(Linkage.EXTERNAL);
+        ss.setConstant(true);
+        final Data ssEnd = moduleSection.addData(sourceStreamSize, sourceStreamSize.getName(), sourceStreamSizeLiteral);
+        ssEnd.setLinkage(Linkage.EXTERNAL);
+        ssEnd.setConstant(true);
         final Data se = moduleSection.addData(subprogramTbl, subprogramTbl.getName(), seLiteral);
         se.setLinkage(Linkage.EXTERNAL);
         se.setConstant(true);
@@ -218,6 +272,72 @@ public final class CallSiteTable {
         moduleSection.addData(fileNameRefs, fileNameRefs.getName(), fileNamesLiteral).setLinkage(Linkage.EXTERNAL);
         moduleSection.addData(methodNameRefs, methodNameRefs.getName(), methodNamesLiteral).setLinkage(Linkage.EXTERNAL);
         moduleSection.addData(methodTypeRefs, methodTypeRefs.getName(), methodTypesLiteral).setLinkage(Linkage.EXTERNAL);
+        if (statsLog.isDebugEnabled()) {
+            reportStats(sourceCodeIndexes.size(), sourceStream.size(), csLiterals.size(), csfLiterals.size(), seLiterals.size(), sal.size());
+        }
+    }
+
+    private void reportStats(int sourceCnt, int sourceStreamSize, int callSiteCnt, int functionCnt, int subprogramCnt, int lviCnt) {
+        // the source table has four 32-bit members
+        final long fixedSourceSize = sourceCnt * 16L;
+        statsLog.debugf("Method data: %,d call sites in %,d functions (%,d bytes), %,d subprograms, %,d live value info words (%,d bytes)",
+            Integer.valueOf(callSiteCnt), Integer.valueOf(functionCnt), Long.valueOf(callSiteCnt * 12L + functionCnt * 16L),
+            Integer.valueOf(subprogramCnt), Integer.valueOf(lviCnt), Long.valueOf(lviCnt * 2L));
+        if (sourceStreamSize == 0) {
+            statsLog.debugf("  %,d source entries: %,d bytes fixed-width", Integer.valueOf(sourceCnt), Long.valueOf(fixedSourceSize));
+        } else {
+            statsLog.debugf("  %,d source entries: %,d bytes compact (%,d bytes fixed-width, %.1f%% saved)", Integer.valueOf(sourceCnt),
+                Integer.valueOf(sourceStreamSize), Long.valueOf(fixedSourceSize), Double.valueOf(100.0 * (fixedSourceSize - sourceStreamSize) / fixedSourceSize));
+        }
+    }
+
+    /**
+     * Encode the source code information table into a byte stream. The stream starts with the entry count, and each
+     * entry is encoded as four variable-length values: the differences of the subprogram index, line number, and
+     * bytecode index from those of the previous entry, and the distance to the entry's inlined-at entry (or zero if it
+     * was not inlined). Sorting the entries by subprogram and line keeps most differences small, and inlining chains
+     * which share a prefix share the entries of that prefix.
+     * <p>
+     * The format must be kept in sync with {@code org.qbicc.runtime.stackwalk.CallSiteTable.decodeSourceTable}.
+     *
+     * @param output the output stream (must not be {@code null})
+     * @param scMap the map to populate with the index of each entry (must not be {@code null})
+     * @param seMap the subprogram index map (must not be {@code null})
+     */
+    private void emitSourceStream(ByteArrayList output, MutableObjectIntMap<SourceCodeEntry> scMap, ObjectIntMap<SubprogramEntry> seMap) {
+        List<SourceCodeEntry> list = new ArrayList<>(sourceCodeEntries.values());
+        list.sort(Comparator.<SourceCodeEntry>comparingInt(e -> seMap.get(e.se())).thenComparingInt(SourceCodeEntry::line).thenComparingInt(SourceCodeEntry::bci));
+        for (SourceCodeEntry entry : list) {
+            scMap.put(entry, scMap.size());
+        }
+        writeVarInt(output, list.size());
+        int prevSubprogram = 0;
+        int prevLine = 0;
+        int prevBci = 0;
+        for (int i = 0; i < list.size(); i ++) {
+            SourceCodeEntry entry = list.get(i);
+            int subprogram = seMap.get(entry.se());
+            writeVarInt(output, zigZag(subprogram - prevSubprogram));
+            writeVarInt(output, zigZag(entry.line() - prevLine));
+            writeVarInt(output, zigZag(entry.bci() - prevBci));
+            SourceCodeEntry inlinedAt = entry.inlinedAt();
+            writeVarInt(output, inlinedAt == null ? 0 : zigZag(scMap.getOrThrow(inlinedAt) - i) + 1);
+            prevSubprogram = subprogram;
+            prevLine = entry.line();
+            prevBci = entry.bci();
+        }
+    }
+
+    private static long zigZag(int val) {
+        return Integer.toUnsignedLong(val << 1 ^ val >> 31);
+    }
+
+    private static void writeVarInt(ByteArrayList output, long val) {
+        while (val >= 0x80) {
+            output.add((byte) (val | 0x80));
+            val >>>= 7;
+        }
+        output.add((byte) val);
     }
 
     private <T extends VmObject> int lookUpItem(final MutableObjectIntMap<T> table, final List<Literal> literals, final T obj) {
@@ -407,29 +527,46 @@ public final class CallSiteTable {
 
     public Literal emitCallSiteEntry(StructType callSiteType, CallSiteEntry entry, ToIntFunction<SourceCodeEntry> sceLookup, ToIntFunction<LiveValueInfo> lviLookup) {
         final List<StructType.Member> members = callSiteType.getMembers();
-        final StructType.Member ipMember = members.get(0);
+        final StructType.Member offsetMember = members.get(0);
         final StructType.Member srcIndexMember = members.get(1);
         final StructType.Member lviIndexMember = members.get(2);
-        assert ipMember.getName().equals("ip") && ipMember.getType() instanceof PointerType;
+        assert offsetMember.getName().equals("offset") && offsetMember.getType() instanceof UnsignedIntegerType;
         assert srcIndexMember.getName().equals("source_idx") && srcIndexMember.getType() instanceof UnsignedIntegerType;
         assert lviIndexMember.getName().equals("lvi_idx") && lviIndexMember.getType() instanceof UnsignedIntegerType;
         final LiteralFactory lf = ctxt.getLiteralFactory();
-        final UnsignedIntegerType uintptr_t = ipMember.getType(PointerType.class).getSameSizedUnsignedInteger();
-        final Function function = entry.fnAddress();
-        // add declaration
-        ctxt.getOrAddProgramModule(ctxt.getDefaultTypeDefinition()).declareFunction(function);
-        final TypeSystem ts = ctxt.getTypeSystem();
-        final UnsignedIntegerType u8 = ts.getUnsignedInteger8Type();
-        final Literal ipLiteral = lf.offsetFromLiteral(lf.bitcastLiteral(lf.literalOf(function), u8.getPointer()), lf.literalOf(uintptr_t, entry.offset));
+        if (entry.offset() >>> 32 != 0) {
+            throw new IllegalStateException("Call site offset out of range");
+        }
+        final IntegerLiteral offsetLiteral = lf.literalOf(offsetMember.getType(IntegerType.class), entry.offset());
         final IntegerLiteral srcIndexLiteral = lf.literalOf(srcIndexMember.getType(IntegerType.class), sceLookup.applyAsInt(entry.sci()));
         final IntegerLiteral lviIndexLiteral = lf.literalOf(lviIndexMember.getType(IntegerType.class), lviLookup.applyAsInt(entry.lvi()));
         return lf.literalOf(callSiteType, Map.of(
-            ipMember, ipLiteral,
+            offsetMember, offsetLiteral,
             srcIndexMember, srcIndexLiteral,
             lviIndexMember, lviIndexLiteral
         ));
     }
 
+    public Literal emitCallSiteFunctionEntry(StructType functionType, Function function, int callSiteIdx, int callSiteCnt) {
+        final List<StructType.Member> members = functionType.getMembers();
+        final StructType.Member startMember = members.get(0);
+        final StructType.Member callSiteIdxMember = members.get(1);
+        final StructType.Member callSiteCntMember = members.get(2);
+        assert startMember.getName().equals("start") && startMember.getType() instanceof PointerType;
+        assert callSiteIdxMember.getName().equals("call_site_idx") && callSiteIdxMember.getType() instanceof UnsignedIntegerType;
+        assert callSiteCntMember.getName().equals("call_site_cnt") && callSiteCntMember.getType() instanceof UnsignedIntegerType;
+        final LiteralFactory lf = ctxt.getLiteralFactory();
+        // add declaration
+        ctxt.getOrAddProgramModule(ctxt.getDefaultTypeDefinition()).declareFunction(function);
+        final TypeSystem ts = ctxt.getTypeSystem();
+        final Literal startLiteral = lf.bitcastLiteral(lf.literalOf(function), ts.getUnsignedInteger8Type().getPointer());
+        return lf.literalOf(functionType, Map.of(
+            startMember, startLiteral,
+            callSiteIdxMember, lf.literalOf(callSiteIdxMember.getType(IntegerType.class), callSiteIdx),
+            callSiteCntMember, lf.literalOf(callSiteCntMember.getType(IntegerType.class), callSiteCnt)
+        ));
+    }
+
     public Literal emitSubprogramEntry(StructType subprogramType, SubprogramEntry entry, ToIntFunction<VmString> fileNameLookup, ToIntFunction<VmString> methodNameLookup, ToIntFunction<VmObject> methodTypeLookup) {
         // strongly dependent on layout, but this allows the structure to be defined in userspace
         final List<StructType.Member> members = subprogramType.getMembers();
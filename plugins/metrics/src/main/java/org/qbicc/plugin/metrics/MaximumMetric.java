@@ -0,0 +1,35 @@
+package org.qbicc.plugin.metrics;
+
+/**
+ * A metric which records the largest value observed, such as a peak queue depth.  The value of a parent is the
+ * largest value of any of its children.
+ */
+public final class MaximumMetric extends Metric<MaximumMetric> {
+    MaximumMetric(String name, MaximumMetric parent) {
+        super(name, parent);
+    }
+
+    @Override
+    MaximumMetric constructChild(String name) {
+        return new MaximumMetric(name, this);
+    }
+
+    /**
+     * Record an observed value, raising the value of this metric if the observed value is larger.
+     *
+     * @param value the observed value
+     */
+    public void observe(long value) {
+        maxRawValue(value);
+    }
+
+    @Override
+    String getDescription() {
+        return "Maximum";
+    }
+
+    @Override
+    public StringBuilder getFormattedValue(StringBuilder target) {
+        return target.append(Long.toUnsignedString(getRawValue()));
+    }
+}
@@ -100,6 +100,21 @@ public abstract class Metric<M extends Metric<M>> {
         }
     }
 
+    final void maxRawValue(long value) {
+        long old = cnt.get();
+        while (Long.compareUnsigned(value, old) > 0) {
+            long witness = cnt.compareAndExchange(old, value);
+            if (witness == old) {
+                break;
+            }
+            old = witness;
+        }
+        M parent = getParent();
+        if (parent != null) {
+            parent.maxRawValue(value);
+        }
+    }
+
     /**
      * Get all the existent children of this metric.  The children are of the same type as this instance.
      *
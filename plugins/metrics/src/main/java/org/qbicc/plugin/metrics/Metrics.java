@@ -1,5 +1,10 @@
 package org.qbicc.plugin.metrics;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -15,8 +20,9 @@ public final class Metrics {
     private final Map<String, MemorySizeMetric> memorySizes = new ConcurrentHashMap<>();
     private final Map<String, CountMetric> counts = new ConcurrentHashMap<>();
     private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, MaximumMetric> maximums = new ConcurrentHashMap<>();
 
-    private Metrics() {}
+    Metrics() {}
 
     public static Metrics get(CompilationContext ctxt) {
         Metrics metrics = ctxt.getAttachment(KEY);
@@ -72,10 +78,25 @@ public final class Metrics {
         return metric;
     }
 
+    public MaximumMetric getOrCreateRootMaximumMetric(String name) {
+        Assert.checkNotNullParam("name", name);
+        MaximumMetric metric = maximums.get(name);
+        if (metric == null) {
+            // avoid creating a capturing lambda by using putIfAbsent instead of computeIfAbsent
+            metric = new MaximumMetric(name, null);
+            MaximumMetric appearing = maximums.putIfAbsent(name, metric);
+            if (appearing != null) {
+                metric = appearing;
+            }
+        }
+        return metric;
+    }
+
     public StringBuilder formatAll(StringBuilder target) {
         formatAllOf(target, timers);
         formatAllOf(target, memorySizes);
         formatAllOf(target, counts);
+        formatAllOf(target, maximums);
         return target;
     }
 
@@ -95,6 +116,77 @@ public final class Metrics {
         }
     }
 
+    /**
+     * Format all metrics as a JSON object.  The object has one member for each kind of metric, whose value is an
+     * array of the root metrics of that kind.  Each metric is an object containing its name, raw value, formatted
+     * value, and an array of its children; metrics are sorted by name at each level.
+     *
+     * @param target the string builder (must not be {@code null})
+     * @return the same string builder
+     */
+    public StringBuilder formatAllAsJson(StringBuilder target) {
+        target.append('{');
+        formatAllAsJsonOf(target, "timers", timers).append(',');
+        formatAllAsJsonOf(target, "sizes", memorySizes).append(',');
+        formatAllAsJsonOf(target, "counts", counts).append(',');
+        formatAllAsJsonOf(target, "maximums", maximums);
+        return target.append('}');
+    }
+
+    private StringBuilder formatAllAsJsonOf(StringBuilder target, String kind, Map<String, ? extends Metric<?>> map) {
+        appendJsonString(target, kind).append(':');
+        return formatJsonArray(target, map.values());
+    }
+
+    private StringBuilder formatJsonArray(StringBuilder target, Collection<? extends Metric<?>> metrics) {
+        List<? extends Metric<?>> sorted = new ArrayList<>(metrics);
+        sorted.sort(Comparator.comparing(Metric::getName));
+        target.append('[');
+        Iterator<? extends Metric<?>> iterator = sorted.iterator();
+        while (iterator.hasNext()) {
+            formatJsonMetric(target, iterator.next());
+            if (iterator.hasNext()) {
+                target.append(',');
+            }
+        }
+        return target.append(']');
+    }
+
+    private void formatJsonMetric(StringBuilder target, Metric<?> metric) {
+        target.append('{');
+        appendJsonString(target, "name").append(':');
+        appendJsonString(target, metric.getName()).append(',');
+        appendJsonString(target, "value").append(':').append(Long.toUnsignedString(metric.getRawValue())).append(',');
+        appendJsonString(target, "formatted").append(':');
+        appendJsonString(target, metric.getFormattedValue()).append(',');
+        appendJsonString(target, "children").append(':');
+        formatJsonArray(target, metric.getChildren());
+        target.append('}');
+    }
+
+    private static StringBuilder appendJsonString(StringBuilder target, String str) {
+        target.append('"');
+        int len = str.length();
+        for (int i = 0; i < len; i ++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"' -> target.append('\\').append('"');
+                case '\\' -> target.append('\\').append('\\');
+                case '\n' -> target.append('\\').append('n');
+                case '\r' -> target.append('\\').append('r');
+                case '\t' -> target.append('\\').append('t');
+                default -> {
+                    if (c < 0x20) {
+                        target.append(String.format("\\u%04x", Integer.valueOf(c)));
+                    } else {
+                        target.append(c);
+                    }
+                }
+            }
+        }
+        return target.append('"');
+    }
+
     @SuppressWarnings("StringRepeatCanBeUsed")
     private void tab(StringBuilder target, int count) {
         // do not use String.repeat() to avoid creating transient objects
@@ -0,0 +1,24 @@
+package org.qbicc.plugin.metrics;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+public class MetricsJsonTestCase {
+    @Test
+    public void testJson() {
+        Metrics metrics = new Metrics();
+        CountMetric nodes = metrics.getOrCreateRootCountMetric("nodes");
+        nodes.getOrAddChild("b\"q").add(2);
+        nodes.getOrAddChild("a").add(3);
+        metrics.getOrCreateRootMaximumMetric("peak").observe(7);
+        assertEquals("{\"timers\":[],\"sizes\":[],\"counts\":[{\"name\":\"nodes\",\"value\":5,\"formatted\":\"5\",\"children\":["
+            + "{\"name\":\"a\",\"value\":3,\"formatted\":\"3\",\"children\":[]},"
+            + "{\"name\":\"b\\\"q\",\"value\":2,\"formatted\":\"2\",\"children\":[]}]}],"
+            + "\"maximums\":[{\"name\":\"peak\",\"value\":7,\"formatted\":\"7\",\"children\":[]}]}",
+            metrics.formatAllAsJson(new StringBuilder()).toString());
+    }
+}
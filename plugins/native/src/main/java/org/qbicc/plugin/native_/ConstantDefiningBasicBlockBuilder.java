@@ -5,7 +5,6 @@ import java.io.IOException;
 import org.qbicc.context.ClassContext;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.context.Location;
-import org.qbicc.driver.Driver;
 import org.qbicc.graph.BasicBlockBuilder;
 import org.qbicc.graph.CastValue;
 import org.qbicc.graph.DelegatingBasicBlockBuilder;
@@ -16,6 +15,7 @@ import org.qbicc.graph.literal.ConstantLiteral;
 import org.qbicc.graph.literal.LiteralFactory;
 import org.qbicc.graph.literal.StaticFieldLiteral;
 import org.qbicc.machine.probe.CProbe;
+import org.qbicc.machine.probe.CProbeBatcher;
 import org.qbicc.plugin.constants.Constants;
 import org.qbicc.plugin.core.ConditionEvaluation;
 import org.qbicc.runtime.CNative;
@@ -79,10 +79,10 @@ public class ConstantDefiningBasicBlockBuilder extends DelegatingBasicBlockBuild
         ClassContext classContext = fieldElement.getEnclosingType().getContext();
         /* Capture location during the ADD phase since constants are defined lazily. */
         Location location = getLocation();
-        constants.registerConstant(fieldElement, () -> {
-            CProbe.Builder builder = CProbe.builder();
-            // get the element's info
-            String name = fieldElement.getName();
+        CProbe.Builder builder = CProbe.builder();
+        // get the element's info
+        String name = fieldElement.getName();
+        {
             boolean nameOverridden = false;
             // process enclosing type first
             ProbeUtils.ProbeProcessor pp = new ProbeUtils.ProbeProcessor(classContext, fieldElement.getEnclosingType());
@@ -125,14 +125,16 @@ public class ConstantDefiningBasicBlockBuilder extends DelegatingBasicBlockBuild
                     }
             }
             pp.accept(builder);
-            // todo: recursively process enclosing types (requires InnerClasses support)
-            builder.probeConstant(name, location.getSourceFilePath(), location.getLineNumber());
-            // run the probe
-            CProbe probe = builder.build();
+        }
+        // todo: recursively process enclosing types (requires InnerClasses support)
+        String constantName = name;
+        // submit the probe now so that it can be batched with the other constants which share its includes
+        CProbeBatcher.Request request = NativeProbes.submit(ctxt, builder, b -> b.probeConstant(constantName, location.getSourceFilePath(), location.getLineNumber()));
+        constants.registerConstant(fieldElement, () -> {
             LiteralFactory lf = ctxt.getLiteralFactory();
             CProbe.Result result;
             try {
-                result = probe.run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), null);
+                result = request.getResult(null);
                 if (result == null) {
                     // constant is undefined
                     return lf.undefinedLiteralOfType(fieldElement.getType());
@@ -141,7 +143,7 @@ public class ConstantDefiningBasicBlockBuilder extends DelegatingBasicBlockBuild
                 // constant is undefined either way
                 return lf.undefinedLiteralOfType(fieldElement.getType());
             }
-            CProbe.ConstantInfo constantInfo = result.getConstantInfo(name);
+            CProbe.ConstantInfo constantInfo = result.getConstantInfo(constantName);
             // compute the type and raw value
             return constantInfo.getValueAsLiteralOfType(ctxt.getTypeSystem(), lf, fieldElement.getType());
         });
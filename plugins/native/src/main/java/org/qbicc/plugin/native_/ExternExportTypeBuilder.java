@@ -6,7 +6,6 @@ import java.util.List;
 import org.jboss.logging.Logger;
 import org.qbicc.context.ClassContext;
 import org.qbicc.context.CompilationContext;
-import org.qbicc.driver.Driver;
 import org.qbicc.machine.probe.CProbe;
 import org.qbicc.object.Data;
 import org.qbicc.object.DataDeclaration;
@@ -361,11 +360,9 @@ public class ExternExportTypeBuilder implements DefinedTypeDefinition.Builder.De
                     pp.processAnnotation(annotation);
                 }
                 pp.accept(builder);
-                builder.probeMacroFunctionName(origMethod.getName(), origMethod.getSourceFileName(), 0);
-                CProbe probe = builder.build();
                 CProbe.Result result;
                 try {
-                    result = probe.run(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), null);
+                    result = NativeProbes.submit(ctxt, builder, b -> b.probeMacroFunctionName(origMethod.getName(), origMethod.getSourceFileName(), 0)).getResult(null);
                     if (result == null) {
                         return null;
                     }
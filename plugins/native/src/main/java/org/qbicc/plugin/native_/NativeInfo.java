@@ -334,10 +334,8 @@ final class NativeInfo {
                                 return ts.getPoisonType();
                             }
                             CProbe.Type probeType = tb.build();
-                            pb.probeType(probeType);
-                            CProbe probe = pb.build();
                             try {
-                                CProbe.Result result = probe.run(toolChain, ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), ctxt);
+                                CProbe.Result result = NativeProbes.submit(ctxt, pb, b -> b.probeType(probeType)).getResult(ctxt);
                                 if (result != null) {
                                     CProbe.Type.Info typeInfo = result.getTypeInfo(probeType);
                                     long size = typeInfo.getSize();
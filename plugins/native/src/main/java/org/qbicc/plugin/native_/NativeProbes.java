@@ -0,0 +1,49 @@
+package org.qbicc.plugin.native_;
+
+import java.util.function.Consumer;
+
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.driver.Driver;
+import org.qbicc.machine.probe.CProbe;
+import org.qbicc.machine.probe.CProbeBatcher;
+
+/**
+ * The shared probe batching service for native interop probes.
+ */
+public final class NativeProbes {
+    private static final AttachmentKey<CProbeBatcher> KEY = new AttachmentKey<>();
+
+    private NativeProbes() {}
+
+    static CProbeBatcher getBatcher(CompilationContext ctxt) {
+        CProbeBatcher batcher = ctxt.getAttachment(KEY);
+        if (batcher == null) {
+            batcher = new CProbeBatcher(ctxt.getAttachment(Driver.C_TOOL_CHAIN_KEY), ctxt.getAttachment(Driver.OBJ_PROVIDER_TOOL_KEY), ctxt.getAttachment(Driver.C_PROBE_CACHE_KEY));
+            CProbeBatcher appearing = ctxt.putAttachmentIfAbsent(KEY, batcher);
+            if (appearing != null) {
+                batcher = appearing;
+            }
+        }
+        return batcher;
+    }
+
+    /**
+     * Submit a probe request to the shared batcher.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @param preamble the builder holding the preprocessor directives of the probe (must not be {@code null})
+     * @param probe the action which adds the probed items to a builder (must not be {@code null})
+     * @return the request (not {@code null})
+     */
+    static CProbeBatcher.Request submit(CompilationContext ctxt, CProbe.Builder preamble, Consumer<CProbe.Builder> probe) {
+        return getBatcher(ctxt).submit(preamble, probe);
+    }
+
+    public static void reportStats(CompilationContext ctxt) {
+        CProbeBatcher batcher = ctxt.getAttachment(KEY);
+        if (batcher != null) {
+            batcher.reportStats();
+        }
+    }
+}
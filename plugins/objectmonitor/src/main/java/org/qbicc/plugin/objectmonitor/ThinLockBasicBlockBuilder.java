@@ -0,0 +1,77 @@
+package org.qbicc.plugin.objectmonitor;
+
+import static org.qbicc.graph.atomic.AccessModes.*;
+
+import java.util.List;
+import java.util.Map;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.CmpAndSwap;
+import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.plugin.coreclasses.RuntimeMethodFinder;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.definition.element.InstanceFieldElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * A graph factory which acquires and releases uncontended thin locks inline for the monitorenter and monitorexit
+ * bytecodes, and calls the {@linkplain ThinLocking runtime} for everything else.
+ * <p>
+ * A thin lock is acquired by swapping the current thread into the monitor word of the object if it is {@code null},
+ * and released by swapping {@code null} into the monitor word if it holds the current thread. The release is a swap
+ * because a contending thread may replace the owner in the monitor word to have the lock inflated.
+ */
+public class ThinLockBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    private final CompilationContext ctxt;
+    private final InstanceFieldElement monitorField;
+    private final MethodElement monitorEnterMethod;
+    private final MethodElement monitorExitMethod;
+
+    public ThinLockBasicBlockBuilder(FactoryContext fc, BasicBlockBuilder delegate) {
+        super(delegate);
+        ctxt = getContext();
+        monitorField = ThinLocking.getMonitorField(ctxt);
+        RuntimeMethodFinder methodFinder = RuntimeMethodFinder.get(ctxt);
+        monitorEnterMethod = methodFinder.getMethod(ThinLocking.THIN_LOCKS, "monitorEnter");
+        monitorExitMethod = methodFinder.getMethod(ThinLocking.THIN_LOCKS, "monitorExit");
+    }
+
+    public Node monitorEnter(final Value object) {
+        BasicBlockBuilder fb = getFirstBuilder();
+        LiteralFactory lf = getLiteralFactory();
+        BlockLabel slowPath = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        ReferenceType wordType = (ReferenceType) monitorField.getType();
+        Value word = fb.instanceFieldOf(fb.decodeReference(object), monitorField);
+        Value owner = fb.bitCast(fb.load(fb.currentThread(), SingleUnshared), wordType);
+        Value result = fb.cmpAndSwap(word, lf.nullLiteralOfType(wordType), owner, SingleAcquire, SingleOpaque, CmpAndSwap.Strength.STRONG);
+        Value success = fb.extractMember(result, CmpAndSwap.getResultType(ctxt, wordType).getMember(1));
+        fb.if_(success, resume, slowPath, Map.of());
+        fb.begin(slowPath);
+        fb.call(lf.literalOf(monitorEnterMethod), List.of(object));
+        fb.goto_(resume, Map.of());
+        return fb.begin(resume);
+    }
+
+    public Node monitorExit(final Value object) {
+        BasicBlockBuilder fb = getFirstBuilder();
+        LiteralFactory lf = getLiteralFactory();
+        BlockLabel slowPath = new BlockLabel();
+        BlockLabel resume = new BlockLabel();
+        ReferenceType wordType = (ReferenceType) monitorField.getType();
+        Value word = fb.instanceFieldOf(fb.decodeReference(object), monitorField);
+        Value owner = fb.bitCast(fb.load(fb.currentThread(), SingleUnshared), wordType);
+        Value result = fb.cmpAndSwap(word, owner, lf.nullLiteralOfType(wordType), SingleOpaque, SingleRelease, CmpAndSwap.Strength.STRONG);
+        Value success = fb.extractMember(result, CmpAndSwap.getResultType(ctxt, wordType).getMember(1));
+        fb.if_(success, resume, slowPath, Map.of());
+        fb.begin(slowPath);
+        fb.call(lf.literalOf(monitorExitMethod), List.of(object));
+        fb.goto_(resume, Map.of());
+        return fb.begin(resume);
+    }
+}
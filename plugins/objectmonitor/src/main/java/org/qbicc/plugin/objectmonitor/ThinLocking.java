@@ -0,0 +1,64 @@
+package org.qbicc.plugin.objectmonitor;
+
+import java.util.List;
+
+import org.qbicc.context.ClassContext;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.plugin.coreclasses.RuntimeMethodFinder;
+import org.qbicc.plugin.intrinsics.InstanceIntrinsic;
+import org.qbicc.plugin.intrinsics.Intrinsics;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.InstanceFieldElement;
+import org.qbicc.type.definition.element.MethodElement;
+import org.qbicc.type.descriptor.BaseTypeDescriptor;
+import org.qbicc.type.descriptor.ClassTypeDescriptor;
+import org.qbicc.type.descriptor.MethodDescriptor;
+
+/**
+ * Thin locking support.  Every use of the monitor word of an object is redirected to the thin lock runtime
+ * {@code org.qbicc.runtime.main.ThinLocks}, which is also the slow path of {@link ThinLockBasicBlockBuilder}.
+ */
+public final class ThinLocking {
+    static final String THIN_LOCKS = "org/qbicc/runtime/main/ThinLocks";
+
+    private ThinLocking() {}
+
+    /**
+     * Load the thin lock runtime and replace the methods of {@code java.lang.Object} which use the monitor word.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void register(CompilationContext ctxt) {
+        Intrinsics intrinsics = Intrinsics.get(ctxt);
+        ClassContext classContext = ctxt.getBootstrapClassContext();
+        classContext.findDefinedType(THIN_LOCKS).load();
+
+        ClassTypeDescriptor jloDesc = ClassTypeDescriptor.synthesize(classContext, "java/lang/Object");
+        ClassTypeDescriptor monitorDesc = ClassTypeDescriptor.synthesize(classContext, "org/qbicc/runtime/main/Monitor");
+
+        MethodDescriptor emptyToVoid = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.V, List.of());
+        MethodDescriptor emptyToBool = MethodDescriptor.synthesize(classContext, BaseTypeDescriptor.Z, List.of());
+        MethodDescriptor emptyToMonitor = MethodDescriptor.synthesize(classContext, monitorDesc, List.of());
+
+        intrinsics.registerIntrinsic(jloDesc, "monitorEnter", emptyToVoid, redirect(ctxt, "monitorEnter"));
+        intrinsics.registerIntrinsic(jloDesc, "monitorExit", emptyToVoid, redirect(ctxt, "monitorExit"));
+        intrinsics.registerIntrinsic(jloDesc, "holdsLock", emptyToBool, redirect(ctxt, "holdsLock"));
+        intrinsics.registerIntrinsic(jloDesc, "getMonitor", emptyToMonitor, redirect(ctxt, "getMonitor"));
+    }
+
+    static InstanceFieldElement getMonitorField(CompilationContext ctxt) {
+        LoadedTypeDefinition jlo = ctxt.getBootstrapClassContext().findDefinedType("java/lang/Object").load();
+        InstanceFieldElement field = (InstanceFieldElement) jlo.findField("monitor");
+        if (field == null) {
+            throw new IllegalStateException();
+        }
+        return field;
+    }
+
+    private static InstanceIntrinsic redirect(CompilationContext ctxt, String helperName) {
+        return (builder, instance, targetPtr, arguments) -> {
+            MethodElement helper = RuntimeMethodFinder.get(ctxt).getMethod(THIN_LOCKS, helperName);
+            return builder.call(builder.getLiteralFactory().literalOf(helper), List.of(instance));
+        };
+    }
+}
@@ -1,7 +1,7 @@
 package org.qbicc.plugin.opt;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -24,7 +24,6 @@ import org.qbicc.graph.NodeVisitor;
 import org.qbicc.graph.Return;
 import org.qbicc.graph.Slot;
 import org.qbicc.graph.TailCall;
-import org.qbicc.graph.Terminator;
 import org.qbicc.graph.Throw;
 import org.qbicc.graph.Value;
 import org.qbicc.graph.literal.ExecutableLiteral;
@@ -41,18 +40,23 @@ import org.qbicc.type.definition.element.FunctionElement;
 import org.qbicc.type.definition.element.MethodElement;
 
 /**
- * The inliner.  Every method call is speculatively inlined unless it is specifically annotated otherwise.
+ * The inliner.  Every direct method call is inlined if its cost, as estimated by {@link InliningCostModel}, is below the
+ * threshold of the call site, unless it is specifically annotated otherwise.
  */
 public class InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
     private final CompilationContext ctxt;
-    // todo: this is arbitrary
-    private final float costThreshold = 50.0f;
-    private final int depthThreshold = 10;
-    private int depth = 0;
+    private final InliningCostModel costModel;
+    private final InliningReport report;
+    // the callees currently being inlined, innermost last
+    private final ArrayDeque<ExecutableElement> inlineStack = new ArrayDeque<>();
+    // the number of nodes inlined so far into the root element
+    private int growth = 0;
 
     private InliningBasicBlockBuilder(final FactoryContext ctxt, final BasicBlockBuilder delegate) {
         super(delegate);
         this.ctxt = getContext();
+        costModel = InliningCostModel.get(this.ctxt);
+        report = InliningReport.get(this.ctxt);
     }
 
     public static BasicBlockBuilder createIfNeeded(final FactoryContext ctxt, final BasicBlockBuilder delegate) {
@@ -161,38 +165,55 @@ public class InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
 
     private BasicBlock doInline(Value receiver, ExecutableElement element, List<Value> arguments, BlockLabel catchLabel, Function<Value, BasicBlock> onReturn, Map<Slot, Value> targetArguments) {
         MethodBody body = element.getPreviousMethodBody();
-        if (body != null && depth < depthThreshold) {
+        if (body == null) {
+            return null;
+        }
+        ExecutableElement caller = element();
+        int bci = bytecodeIndex();
+        long callCount = costModel.getCallCount(caller, bci);
+        int cost = costModel.getCost(element, body, receiver, arguments);
+        int threshold = costModel.getThreshold(callCount);
+        InliningReport.Outcome outcome;
+        if (element.equals(getRootElement()) || inlineStack.contains(element)) {
+            outcome = InliningReport.Outcome.RECURSIVE;
+        } else if (inlineStack.size() >= InliningCostModel.MAX_DEPTH) {
+            outcome = InliningReport.Outcome.TOO_DEEP;
+        } else if (element.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE)) {
             // todo: force alwaysInline to true if this is the only possible invocation of the method
-            boolean inline = element.hasAllModifiersOf(ClassFile.I_ACC_ALWAYS_INLINE);
-            if (! inline) {
-                // estimate inlining cost
-                inline = estimateInlineCost(body) < costThreshold;
-            }
-            if (! inline) {
-                // no inlining today
-                return null;
-            }
-            // at this point, we are committed to inlining this call
-            depth ++;
+            outcome = InliningReport.Outcome.FORCED;
+        } else if (cost >= threshold) {
+            outcome = InliningReport.Outcome.TOO_COSTLY;
+        } else if (growth + costModel.getSize(element, body) > InliningCostModel.MAX_GROWTH) {
+            outcome = InliningReport.Outcome.OVER_BUDGET;
+        } else {
+            outcome = InliningReport.Outcome.INLINED;
+        }
+        report.record(getRootElement(), caller, bci, element, callCount, cost, threshold, outcome);
+        if (outcome != InliningReport.Outcome.INLINED && outcome != InliningReport.Outcome.FORCED) {
+            // no inlining today
+            return null;
+        }
+        if (outcome == InliningReport.Outcome.INLINED) {
+            growth += costModel.getSize(element, body);
+        }
+        // at this point, we are committed to inlining this call
+        inlineStack.addLast(element);
+        try {
+            BlockLabel inlinedMethodEntry = new BlockLabel();
+            BasicBlock inlinedBlock = goto_(inlinedMethodEntry, buildArguments(receiver, arguments));
+            ProgramLocatable oldCallSite = setCallSite(inlinedBlock.getTerminator());
             try {
-                BlockLabel inlinedMethodEntry = new BlockLabel();
-                BasicBlock inlinedBlock = goto_(inlinedMethodEntry, buildArguments(receiver, arguments));
-                ProgramLocatable oldCallSite = setCallSite(inlinedBlock.getTerminator());
-                try {
-                    Node.Copier copier = new Node.Copier(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
-                        new Visitor(visitor, onReturn, catchLabel, targetArguments));
-                    copier.copyBlockAs(body.getEntryBlock(), inlinedMethodEntry);
-                    copier.copyProgram();
-                } finally {
-                    setCallSite(oldCallSite);
-                }
-                // goto the inlined block
-                return inlinedBlock;
+                Node.Copier copier = new Node.Copier(body.getEntryBlock(), getFirstBuilder(), ctxt, (ctxt, visitor) ->
+                    new Visitor(visitor, onReturn, catchLabel, targetArguments));
+                copier.copyBlockAs(body.getEntryBlock(), inlinedMethodEntry);
+                copier.copyProgram();
             } finally {
-                depth --;
+                setCallSite(oldCallSite);
             }
-        } else {
-            return null;
+            // goto the inlined block
+            return inlinedBlock;
+        } finally {
+            inlineStack.removeLast();
         }
     }
 
@@ -207,34 +228,6 @@ public class InliningBasicBlockBuilder extends DelegatingBasicBlockBuilder {
         return Map.copyOf(map);
     }
 
-    private int estimateInlineCost(MethodBody body) {
-        // for now, just inline based on method size to have *something*
-        BasicBlock entryBlock = body.getEntryBlock();
-        HashSet<BasicBlock> visited = new HashSet<>();
-        return estimateInlineCost(entryBlock, visited, 0);
-    }
-
-    private int estimateInlineCost(final BasicBlock block, final HashSet<BasicBlock> visited, int costSoFar) {
-        if (visited.add(block)) {
-            // todo: exclude block params, gotos, bitcasts, etc.
-            costSoFar += block.getInstructions().size();
-            if (costSoFar >= costThreshold) {
-                // cancel
-                return Integer.MAX_VALUE;
-            }
-            Terminator t = block.getTerminator();
-            int cnt = t.getSuccessorCount();
-            for (int i = 0; i < cnt; i ++) {
-                costSoFar = estimateInlineCost(t.getSuccessor(i), visited, costSoFar);
-                if (costSoFar >= costThreshold) {
-                    // cancel
-                    return Integer.MAX_VALUE;
-                }
-            }
-        }
-        return costSoFar;
-    }
-
     final class Visitor implements NodeVisitor.Delegating<Node.Copier, Value, Node, BasicBlock> {
         private final NodeVisitor<Node.Copier, Value, Node, BasicBlock> delegate;
         private final Function<Value, BasicBlock> onReturn;
@@ -0,0 +1,219 @@
+package org.qbicc.plugin.opt;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.context.PhaseAttachmentKey;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BitCast;
+import org.qbicc.graph.BlockEntry;
+import org.qbicc.graph.BlockParameter;
+import org.qbicc.graph.Goto;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.plugin.profile.ExecutionProfile;
+import org.qbicc.type.VoidType;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * The cost model of the inliner.
+ * <p>
+ * The cost of inlining a call is the size of the callee, counted in nodes which are likely to produce code, less the
+ * call itself and less the uses of each parameter which receives a constant argument, since those uses are likely to
+ * fold away. A call is inlined when its cost is below a threshold which depends on how often the call site was
+ * executed according to the {@linkplain ExecutionProfile execution profile}, if there is one: call sites which were
+ * never executed only inline trivial methods, and the threshold of the other call sites grows with the logarithm
+ * of their call count relative to the hottest call site of the program.
+ * <p>
+ * The model is kept per phase, and callee summaries are keyed by method body, so that every ANALYZE pass sees the
+ * sizes of the bodies which it actually inlines rather than those of a previous pass.
+ */
+final class InliningCostModel {
+    private static final PhaseAttachmentKey<InliningCostModel> KEY = new PhaseAttachmentKey<>();
+
+    /**
+     * The maximum nesting depth of inlined calls.
+     */
+    static final int MAX_DEPTH = 10;
+    /**
+     * The maximum number of nodes which may be inlined into a single method, excluding forced inlining.
+     */
+    static final int MAX_GROWTH = 1000;
+
+    private static final int DEFAULT_THRESHOLD = 50;
+    private static final int COLD_THRESHOLD = 10;
+    private static final int HOT_THRESHOLD = 250;
+    private static final int CALL_BENEFIT = 5;
+    private static final int CONSTANT_ARGUMENT_BENEFIT = 2;
+
+    private final ExecutionProfile profile;
+    private final Map<MethodBody, CalleeSummary> summaries = new ConcurrentHashMap<>();
+
+    private InliningCostModel(final CompilationContext ctxt) {
+        profile = ExecutionProfile.get(ctxt);
+    }
+
+    static InliningCostModel get(CompilationContext ctxt) {
+        InliningCostModel model = ctxt.getAttachment(KEY);
+        if (model == null) {
+            model = new InliningCostModel(ctxt);
+            InliningCostModel appearing = ctxt.putAttachmentIfAbsent(KEY, model);
+            if (appearing != null) {
+                model = appearing;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Get the number of times that a call site was executed.
+     *
+     * @param element the element containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return the call count, or {@code -1} if it is unknown
+     */
+    long getCallCount(ExecutableElement element, int bci) {
+        return profile.isEmpty() ? -1 : profile.getCallCount(element, bci);
+    }
+
+    /**
+     * Get the inlining threshold of a call site.
+     *
+     * @param callCount the call count of the call site, or {@code -1} if it is unknown
+     * @return the threshold
+     */
+    int getThreshold(long callCount) {
+        if (callCount < 0) {
+            return DEFAULT_THRESHOLD;
+        } else if (callCount == 0) {
+            return COLD_THRESHOLD;
+        }
+        double hotness = Math.log1p(callCount) / Math.log1p(profile.getMaxCallCount());
+        return DEFAULT_THRESHOLD + (int) ((HOT_THRESHOLD - DEFAULT_THRESHOLD) * Math.min(1.0, hotness));
+    }
+
+    /**
+     * Get the size of a callee, in nodes.
+     *
+     * @param callee the callee (must not be {@code null})
+     * @param body the callee body (must not be {@code null})
+     * @return the size
+     */
+    int getSize(ExecutableElement callee, MethodBody body) {
+        return getSummary(callee, body).size;
+    }
+
+    /**
+     * Estimate the cost of inlining a call.
+     *
+     * @param callee the callee (must not be {@code null})
+     * @param body the callee body (must not be {@code null})
+     * @param receiver the call receiver (must not be {@code null})
+     * @param arguments the call arguments (must not be {@code null})
+     * @return the estimated cost
+     */
+    int getCost(ExecutableElement callee, MethodBody body, Value receiver, List<Value> arguments) {
+        CalleeSummary summary = getSummary(callee, body);
+        int cost = summary.size - CALL_BENEFIT;
+        if (isConstant(receiver)) {
+            cost -= CONSTANT_ARGUMENT_BENEFIT * summary.getUseCount(Slot.this_());
+        }
+        for (int i = 0; i < arguments.size(); i ++) {
+            if (isConstant(arguments.get(i))) {
+                cost -= CONSTANT_ARGUMENT_BENEFIT * summary.getUseCount(Slot.funcParam(i));
+            }
+        }
+        return cost;
+    }
+
+    private static boolean isConstant(Value value) {
+        return value instanceof Literal && ! (value.getType() instanceof VoidType);
+    }
+
+    private CalleeSummary getSummary(ExecutableElement callee, MethodBody body) {
+        CalleeSummary summary = summaries.get(body);
+        if (summary == null) {
+            summary = CalleeSummary.compute(body.getEntryBlock());
+            CalleeSummary appearing = summaries.putIfAbsent(body, summary);
+            if (appearing != null) {
+                summary = appearing;
+            }
+        }
+        return summary;
+    }
+
+    static final class CalleeSummary {
+        final int size;
+        final Map<Slot, Integer> useCounts;
+
+        private CalleeSummary(int size, Map<Slot, Integer> useCounts) {
+            this.size = size;
+            this.useCounts = useCounts;
+        }
+
+        int getUseCount(Slot slot) {
+            return useCounts.getOrDefault(slot, Integer.valueOf(0)).intValue();
+        }
+
+        static CalleeSummary compute(BasicBlock entryBlock) {
+            int size = 0;
+            Map<Slot, Integer> useCounts = new HashMap<>();
+            HashSet<BasicBlock> visited = new HashSet<>();
+            ArrayDeque<BasicBlock> queue = new ArrayDeque<>();
+            visited.add(entryBlock);
+            queue.add(entryBlock);
+            BasicBlock block;
+            while ((block = queue.poll()) != null) {
+                for (Node node : block.getInstructions()) {
+                    if (! isFree(node)) {
+                        size ++;
+                    }
+                    countParameterUses(entryBlock, node, useCounts);
+                }
+                Terminator t = block.getTerminator();
+                if (! (t instanceof Goto)) {
+                    size ++;
+                }
+                countParameterUses(entryBlock, t, useCounts);
+                for (Slot slot : t.getOutboundArgumentNames()) {
+                    countParameterUse(entryBlock, t.getOutboundArgument(slot), useCounts);
+                }
+                int cnt = t.getSuccessorCount();
+                for (int i = 0; i < cnt; i ++) {
+                    BasicBlock successor = t.getSuccessor(i);
+                    if (visited.add(successor)) {
+                        queue.add(successor);
+                    }
+                }
+            }
+            return new CalleeSummary(size, Map.copyOf(useCounts));
+        }
+
+        private static boolean isFree(Node node) {
+            // these nodes do not usually produce any code
+            return node instanceof BlockEntry || node instanceof BlockParameter || node instanceof BitCast;
+        }
+
+        private static void countParameterUses(BasicBlock entryBlock, Node node, Map<Slot, Integer> useCounts) {
+            int cnt = node.getValueDependencyCount();
+            for (int i = 0; i < cnt; i ++) {
+                countParameterUse(entryBlock, node.getValueDependency(i), useCounts);
+            }
+        }
+
+        private static void countParameterUse(BasicBlock entryBlock, Value value, Map<Slot, Integer> useCounts) {
+            if (value instanceof BlockParameter bp && bp.getPinnedBlock() == entryBlock) {
+                useCounts.merge(bp.getSlot(), Integer.valueOf(1), Integer::sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.qbicc.plugin.opt;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.context.PhaseAttachmentKey;
+import org.qbicc.plugin.profile.ExecutionProfile.MethodKey;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * The record of the decisions made by the inliner.
+ * <p>
+ * Counts of each outcome are always kept and logged to {@code org.qbicc.plugin.opt.inlining.stats}. When the report is
+ * {@linkplain #enable enabled}, every decision is also kept and written to {@code inlining-report.txt} in the output
+ * directory, as one tab-separated line per call site giving the method being compiled, the method and bytecode index
+ * of the call site, the callee, the profiled call count, the cost and threshold, and the outcome.
+ * <p>
+ * Each ANALYZE pass starts a new report, because every pass inlines again into the bodies produced by the previous one.
+ * The statistics and the report are those of the final ANALYZE pass, and are produced once it is complete.
+ */
+public final class InliningReport {
+    private static final PhaseAttachmentKey<InliningReport> KEY = new PhaseAttachmentKey<>();
+    private static final Logger statsLog = Logger.getLogger("org.qbicc.plugin.opt.inlining.stats");
+
+    private final Map<Outcome, AtomicLong> counts = new EnumMap<>(Outcome.class);
+    private final ConcurrentLinkedQueue<Decision> decisions = new ConcurrentLinkedQueue<>();
+    private volatile boolean enabled;
+
+    private InliningReport() {
+        for (Outcome outcome : Outcome.values()) {
+            counts.put(outcome, new AtomicLong());
+        }
+    }
+
+    static InliningReport get(CompilationContext ctxt) {
+        InliningReport report = ctxt.getAttachment(KEY);
+        if (report == null) {
+            report = new InliningReport();
+            InliningReport appearing = ctxt.putAttachmentIfAbsent(KEY, report);
+            if (appearing != null) {
+                report = appearing;
+            }
+        }
+        return report;
+    }
+
+    private static InliningReport getPrevious(CompilationContext ctxt) {
+        InliningReport report = ctxt.getPreviousPhaseAttachment(KEY);
+        return report == null ? new InliningReport() : report;
+    }
+
+    /**
+     * Start keeping every inlining decision for the report of the current phase.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void enable(CompilationContext ctxt) {
+        get(ctxt).enabled = true;
+    }
+
+    void record(ExecutableElement root, ExecutableElement caller, int bci, ExecutableElement callee, long callCount, int cost, int threshold, Outcome outcome) {
+        counts.get(outcome).incrementAndGet();
+        if (enabled) {
+            decisions.add(new Decision(MethodKey.of(root), MethodKey.of(caller), bci, MethodKey.of(callee), callCount, cost, threshold, outcome));
+        }
+    }
+
+    /**
+     * Log the inlining statistics of the final ANALYZE pass. This must run at the start of the following phase.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void reportStats(CompilationContext ctxt) {
+        if (! statsLog.isDebugEnabled()) return;
+        InliningReport report = getPrevious(ctxt);
+        statsLog.debug("Inlining statistics");
+        statsLog.debug("===================");
+        for (Outcome outcome : Outcome.values()) {
+            statsLog.debugf("  %s: %d call sites", outcome.description, Long.valueOf(report.counts.get(outcome).get()));
+        }
+    }
+
+    /**
+     * Write the inlining report of the final ANALYZE pass to the output directory. This must run at the start of the
+     * following phase.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void writeReport(CompilationContext ctxt) {
+        InliningReport report = getPrevious(ctxt);
+        List<Decision> decisions = new ArrayList<>(report.decisions);
+        decisions.sort(Comparator.comparing((Decision d) -> d.root.toString()).thenComparing(d -> d.caller.toString()).thenComparingInt(Decision::bci).thenComparing(d -> d.callee.toString()));
+        Path path = ctxt.getOutputDirectory().resolve("inlining-report.txt");
+        try {
+            Files.createDirectories(path.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                writer.write("# method\tcall site method\tbci\tcallee\tcall count\tcost\tthreshold\toutcome");
+                writer.newLine();
+                for (Decision d : decisions) {
+                    writer.write(d.root + "\t" + d.caller + "\t" + d.bci + "\t" + d.callee + "\t" + d.callCount + "\t" + d.cost + "\t" + d.threshold + "\t" + d.outcome.name());
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            ctxt.error("Failed to write inlining report \"%s\": %s", path, e);
+        }
+    }
+
+    enum Outcome {
+        INLINED("inlined"),
+        FORCED("inlined due to annotation"),
+        TOO_COSTLY("not inlined due to cost"),
+        TOO_DEEP("not inlined due to depth"),
+        RECURSIVE("not inlined due to recursion"),
+        OVER_BUDGET("not inlined due to caller growth"),
+        ;
+
+        final String description;
+
+        Outcome(String description) {
+            this.description = description;
+        }
+    }
+
+    record Decision(MethodKey root, MethodKey caller, int bci, MethodKey callee, long callCount, int cost, int threshold, Outcome outcome) {}
+}
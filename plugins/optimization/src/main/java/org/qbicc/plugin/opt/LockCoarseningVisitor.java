@@ -0,0 +1,68 @@
+package org.qbicc.plugin.opt;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BitCast;
+import org.qbicc.graph.MonitorEnter;
+import org.qbicc.graph.MonitorExit;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.NodeVisitor;
+import org.qbicc.graph.NotNull;
+import org.qbicc.graph.Value;
+
+/**
+ * A copier which joins adjacent lock regions on the same object, by removing each monitor exit which is immediately
+ * followed by a monitor enter of the same object along with that monitor enter.
+ */
+public class LockCoarseningVisitor implements NodeVisitor.Delegating<Node.Copier, Value, Node, BasicBlock> {
+    private final CompilationContext ctxt;
+    private final NodeVisitor<Node.Copier, Value, Node, BasicBlock> delegate;
+
+    public LockCoarseningVisitor(final CompilationContext ctxt, final NodeVisitor<Node.Copier, Value, Node, BasicBlock> delegate) {
+        this.ctxt = ctxt;
+        this.delegate = delegate;
+    }
+
+    public NodeVisitor<Node.Copier, Value, Node, BasicBlock> getDelegateNodeVisitor() {
+        return delegate;
+    }
+
+    @Override
+    public Node visit(Node.Copier param, MonitorExit original) {
+        if (isFollowedByEnter(original)) {
+            LockElisionReport.get(ctxt).recordCoarsened(param.getBlockBuilder().element());
+            return param.copyNode(original.getDependency());
+        }
+        return getDelegateActionVisitor().visit(param, original);
+    }
+
+    @Override
+    public Node visit(Node.Copier param, MonitorEnter original) {
+        if (original.getDependency() instanceof MonitorExit exit && isSameObject(exit.getInstance(), original.getInstance())) {
+            // the lock is still held
+            LockElisionReport.get(ctxt).recordCoarsened(param.getBlockBuilder().element());
+            return param.copyNode(exit);
+        }
+        return getDelegateActionVisitor().visit(param, original);
+    }
+
+    private static boolean isFollowedByEnter(MonitorExit exit) {
+        for (Node node : exit.getScheduledBlock().getInstructions()) {
+            if (node instanceof MonitorEnter enter && enter.getDependency() == exit && isSameObject(exit.getInstance(), enter.getInstance())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSameObject(Value a, Value b) {
+        return unwrap(a) == unwrap(b);
+    }
+
+    private static Value unwrap(Value value) {
+        while (value instanceof NotNull || value instanceof BitCast) {
+            value = value instanceof NotNull nn ? nn.getInput() : ((BitCast) value).getInput();
+        }
+        return value;
+    }
+}
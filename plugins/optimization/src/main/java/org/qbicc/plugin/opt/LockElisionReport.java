@@ -0,0 +1,84 @@
+package org.qbicc.plugin.opt;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.plugin.profile.ExecutionProfile.MethodKey;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * The counts of the monitor operations which were removed from each method, logged to
+ * {@code org.qbicc.plugin.opt.locks.stats}.
+ */
+public final class LockElisionReport {
+    private static final AttachmentKey<LockElisionReport> KEY = new AttachmentKey<>();
+    private static final Logger statsLog = Logger.getLogger("org.qbicc.plugin.opt.locks.stats");
+
+    private static final int ELIDED = 0;
+    private static final int COARSENED = 1;
+
+    private final Map<ExecutableElement, AtomicIntegerArray> counts = new ConcurrentHashMap<>();
+
+    private LockElisionReport() {}
+
+    public static LockElisionReport get(CompilationContext ctxt) {
+        LockElisionReport report = ctxt.getAttachment(KEY);
+        if (report == null) {
+            report = new LockElisionReport();
+            LockElisionReport appearing = ctxt.putAttachmentIfAbsent(KEY, report);
+            if (appearing != null) {
+                report = appearing;
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Record a monitor operation removed because its object is confined to the current thread.
+     *
+     * @param element the method being compiled (must not be {@code null})
+     */
+    public void recordElided(ExecutableElement element) {
+        counts.computeIfAbsent(element, e -> new AtomicIntegerArray(2)).incrementAndGet(ELIDED);
+    }
+
+    /**
+     * Record a monitor operation removed by joining two adjacent lock regions on the same object.
+     *
+     * @param element the method being compiled (must not be {@code null})
+     */
+    public void recordCoarsened(ExecutableElement element) {
+        counts.computeIfAbsent(element, e -> new AtomicIntegerArray(2)).incrementAndGet(COARSENED);
+    }
+
+    /**
+     * Log the lock elision statistics.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void reportStats(CompilationContext ctxt) {
+        if (! statsLog.isDebugEnabled()) return;
+        LockElisionReport report = get(ctxt);
+        List<Map.Entry<ExecutableElement, AtomicIntegerArray>> entries = new ArrayList<>(report.counts.entrySet());
+        entries.sort(Comparator.comparing(e -> MethodKey.of(e.getKey()).toString()));
+        long elided = 0;
+        long coarsened = 0;
+        statsLog.debug("Lock elision statistics");
+        statsLog.debug("=======================");
+        for (Map.Entry<ExecutableElement, AtomicIntegerArray> entry : entries) {
+            int methodElided = entry.getValue().get(ELIDED);
+            int methodCoarsened = entry.getValue().get(COARSENED);
+            statsLog.debugf("  %s: %d elided, %d coarsened", MethodKey.of(entry.getKey()), Integer.valueOf(methodElided), Integer.valueOf(methodCoarsened));
+            elided += methodElided;
+            coarsened += methodCoarsened;
+        }
+        statsLog.debugf("  Total: %d monitor operations elided, %d coarsened in %d methods", Long.valueOf(elided), Long.valueOf(coarsened), Integer.valueOf(entries.size()));
+    }
+}
@@ -15,6 +15,8 @@ import org.qbicc.graph.BlockParameter;
 import org.qbicc.graph.Call;
 import org.qbicc.graph.InstanceFieldOf;
 import org.qbicc.graph.New;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.NewReferenceArray;
 import org.qbicc.graph.Node;
 import org.qbicc.graph.Value;
 import org.qbicc.type.definition.element.ExecutableElement;
@@ -117,8 +119,16 @@ final class ConnectionGraph {
         setEscapeValue(node, EscapeValue.GLOBAL_ESCAPE);
     }
 
-    void setNewEscapeValue(New new_, EscapeValue escapeValue) {
-        setEscapeValue(new_, escapeValue);
+    void setNewEscapeValue(Value allocation, EscapeValue escapeValue) {
+        assert isAllocation(allocation);
+        setEscapeValue(allocation, escapeValue);
+    }
+
+    /**
+     * Determine whether the given node is an object or array allocation.
+     */
+    static boolean isAllocation(Node node) {
+        return node instanceof New || node instanceof NewArray || node instanceof NewReferenceArray;
     }
 
     boolean addParameter(BlockParameter param) {
@@ -276,7 +286,7 @@ final class ConnectionGraph {
         final List<Value> possibleNewValues = this.escapeValues.entrySet().stream()
             .filter(entry -> entry.getKey() instanceof BlockParameter && entry.getValue().isArgEscape())
             .flatMap(entry -> ((BlockParameter) entry.getKey()).getPossibleValues().stream())
-            .filter(value -> value instanceof New && getEscapeValue(value).isMoreThanArgEscape())
+            .filter(value -> isAllocation(value) && getEscapeValue(value).isMoreThanArgEscape())
             .toList();
 
         // Separate computing from filtering since it modifies the collection itself
@@ -295,10 +305,10 @@ final class ConnectionGraph {
      *
      * This method assumes that only no escape, or argument escape, verified New nodes are passed in.
      */
-    void validateNewNodes(List<New> supported) {
+    void validateNewNodes(List<Value> supported) {
         final List<Node> unsupportedNewNodes = this.escapeValues.entrySet().stream()
             // Find all non-global escape nodes in the connection graph
-            .filter(e -> e.getKey() instanceof New && e.getValue().notGlobalEscape())
+            .filter(e -> isAllocation(e.getKey()) && e.getValue().notGlobalEscape())
             // Find those that are not verified
             .filter(e -> !supported.contains(e.getKey()))
             .map(Map.Entry::getKey)
@@ -31,7 +31,11 @@ import org.qbicc.graph.IsLe;
 import org.qbicc.graph.IsLt;
 import org.qbicc.graph.IsNe;
 import org.qbicc.graph.Load;
+import org.qbicc.graph.MonitorEnter;
+import org.qbicc.graph.MonitorExit;
 import org.qbicc.graph.New;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.NewReferenceArray;
 import org.qbicc.graph.Node;
 import org.qbicc.graph.NodeVisitor;
 import org.qbicc.graph.NotNull;
@@ -77,6 +81,7 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
 
         final AnalysisContext analysisContext = new AnalysisContext(escapeAnalysisState, connectionGraph, ctxt.getBootstrapClassContext());
         analysisContext.process(element, methodBody.getEntryBlock());
+        escapeAnalysisState.addLocalUseSummary(element, LocalUseSummary.compute(methodBody.getEntryBlock()));
     }
 
     static final class AnalysisVisitor implements NodeVisitor<AnalysisContext, Void, Void, Void> {
@@ -95,6 +100,24 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
             return null;
         }
 
+        @Override
+        public Void visit(AnalysisContext param, NewArray node) {
+            if (visitKnown(param, node)) {
+                param.connectionGraph.setNewEscapeValue(node, EscapeValue.NO_ESCAPE);
+            }
+
+            return null;
+        }
+
+        @Override
+        public Void visit(AnalysisContext param, NewReferenceArray node) {
+            if (visitKnown(param, node)) {
+                param.connectionGraph.setNewEscapeValue(node, EscapeValue.NO_ESCAPE);
+            }
+
+            return null;
+        }
+
         @Override
         public Void visit(AnalysisContext param, Store node) {
             if (visitKnown(param, node)) {
@@ -103,7 +126,7 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
 
                 if (pointer instanceof InstanceFieldOf fieldOf && fieldOf.getInstance() instanceof DecodeReference dr) {
                     Value ref = dr.getInput();
-                    if (value instanceof New && ref instanceof BlockParameter bp && bp.isEntryParameter()) {
+                    if (ConnectionGraph.isAllocation(value) && ref instanceof BlockParameter bp && bp.isEntryParameter()) {
                         if (bp.getSlot() == Slot.this_()) {
                             // this.f = new T();
                             param.connectionGraph.setArgEscape(value);
@@ -141,7 +164,7 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
         public Void visit(AnalysisContext param, Return node) {
             if (visitKnown(param, node)) {
                 final Value value = node.getReturnValue();
-                if (value instanceof New || value instanceof BlockParameter) {
+                if (ConnectionGraph.isAllocation(value) || value instanceof BlockParameter) {
                     param.connectionGraph.setArgEscape(value);
                 } else if (value instanceof Call call && !isPrimitive(call.getType())) {
                     for (Value argument : call.getArguments()) {
@@ -161,7 +184,7 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
         public Void visit(AnalysisContext param, Throw node) {
             if (visitKnown(param, node)) {
                 final Value value = node.getThrownValue();
-                if (value instanceof New) {
+                if (ConnectionGraph.isAllocation(value)) {
                     // New allocations thrown assumed to escape as arguments
                     // TODO Could it be possible to only mark as argument escaping those that escape the method?
                     param.connectionGraph.setArgEscape(value);
@@ -171,6 +194,19 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
             return null;
         }
 
+        @Override
+        public Void visit(AnalysisContext param, MonitorEnter node) {
+            // locking an object does not make it escape
+            visitKnown(param, node);
+            return null;
+        }
+
+        @Override
+        public Void visit(AnalysisContext param, MonitorExit node) {
+            visitKnown(param, node);
+            return null;
+        }
+
         @Override
         public Void visit(AnalysisContext param, CheckCast node) {
             if (visitKnown(param, node)) {
@@ -455,10 +491,10 @@ public class EscapeAnalysisIntraMethodAnalysis implements ElementVisitor<Compila
             // Incoming values for phi nodes can only be calculated upon finish.
             connectionGraph.resolveReturnedPhiValues();
 
-            final List<New> notGlobalEscapeNewNodes = this.supported.entrySet().stream()
-                .filter(e -> e.getKey() instanceof New && e.getValue())
+            final List<Value> notGlobalEscapeNewNodes = this.supported.entrySet().stream()
+                .filter(e -> ConnectionGraph.isAllocation(e.getKey()) && e.getValue())
                 .filter(e -> connectionGraph.getEscapeValue(e.getKey()).notGlobalEscape())
-                .map(e -> (New) e.getKey())
+                .map(e -> (Value) e.getKey())
                 .toList();
 
             connectionGraph.validateNewNodes(notGlobalEscapeNewNodes);
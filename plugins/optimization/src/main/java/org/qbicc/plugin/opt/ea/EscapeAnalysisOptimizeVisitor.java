@@ -1,80 +1,170 @@
 package org.qbicc.plugin.opt.ea;
 
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
-import org.qbicc.context.ClassContext;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.BasicBlock;
 import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BitCast;
 import org.qbicc.graph.BlockEntry;
 import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.CheckCast;
+import org.qbicc.graph.DecodeReference;
+import org.qbicc.graph.InstanceFieldOf;
+import org.qbicc.graph.Load;
+import org.qbicc.graph.MonitorEnter;
+import org.qbicc.graph.MonitorExit;
 import org.qbicc.graph.New;
+import org.qbicc.graph.NewArray;
 import org.qbicc.graph.Node;
 import org.qbicc.graph.NodeVisitor;
+import org.qbicc.graph.NotNull;
 import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.Store;
 import org.qbicc.graph.Value;
 import org.qbicc.graph.literal.IntegerLiteral;
-import org.qbicc.graph.literal.LiteralFactory;
-import org.qbicc.plugin.coreclasses.BasicHeaderInitializer;
-import org.qbicc.plugin.layout.Layout;
-import org.qbicc.plugin.layout.LayoutInfo;
-import org.qbicc.type.ClassObjectType;
-import org.qbicc.type.StructType;
-import org.qbicc.type.definition.DefinedTypeDefinition;
-import org.qbicc.type.definition.LoadedTypeDefinition;
-import org.qbicc.type.definition.element.MethodElement;
-
+import org.qbicc.plugin.gc.common.StackAllocation;
+import org.qbicc.plugin.opt.LockElisionReport;
+import org.qbicc.type.definition.element.InstanceFieldElement;
+
+/**
+ * Lower allocations which do not escape their method.
+ * <p>
+ * Objects whose fields are only loaded and stored within the block of the allocation are scalar replaced: the
+ * allocation is removed, and each load is replaced by the value most recently stored to the field (or by zero).
+ * Other objects without reference fields, and primitive arrays of fixed length, are allocated in the stack frame with
+ * {@link StackAllocation} as long as they are small enough, are never passed to a call and are not allocated in a
+ * loop. Allocations which hold references stay on the heap, because the GC does not scan the stack frame for them.
+ * Monitor operations on objects which do not escape their method are removed, because no other thread can ever lock
+ * them.
+ */
 public final class EscapeAnalysisOptimizeVisitor implements NodeVisitor.Delegating<Node.Copier, Value, Node, BasicBlock> {
+    /**
+     * The largest object or array, in bytes, which may be allocated on the stack.
+     */
+    private static final long MAX_STACK_ALLOCATION_SIZE = 256;
+
     private final CompilationContext ctxt;
     private final NodeVisitor<Node.Copier, Value, Node, BasicBlock> delegate;
     private final EscapeAnalysisState escapeAnalysisState;
-    private final MethodElement zeroMethod;
+    // the current field values of each scalar replaced object of the method being copied
+    private final Map<New, Map<InstanceFieldElement, Value>> replacedObjects = new HashMap<>();
 
     public EscapeAnalysisOptimizeVisitor(final CompilationContext ctxt, final NodeVisitor<Node.Copier, Value, Node, BasicBlock> delegate) {
         this.ctxt = ctxt;
         this.delegate = delegate;
         this.escapeAnalysisState = EscapeAnalysisState.getPrevious(ctxt);
+    }
+
+    public NodeVisitor<Node.Copier, Value, Node, BasicBlock> getDelegateNodeVisitor() {
+        return delegate;
+    }
 
-        ClassContext classContext = ctxt.getBootstrapClassContext();
-        DefinedTypeDefinition defined = classContext.findDefinedType("org/qbicc/runtime/gc/nogc/NoGcHelpers");
-        if (defined == null) {
-            throw runtimeMissing();
+    @Override
+    public Value visit(Node.Copier param, New original) {
+        final BasicBlockBuilder bbb = param.getBlockBuilder();
+        if (escapeAnalysisState.isScalarReplaceable(original, bbb.element())) {
+            // Copy dependency so that the field accesses are copied in order
+            param.copyNode(original.getDependency());
+            replacedObjects.put(original, new HashMap<>());
+            // the object itself is never used, only its fields
+            return ctxt.getLiteralFactory().nullLiteralOfType(original.getType());
         }
-        LoadedTypeDefinition loaded = defined.load();
-        int index = loaded.findMethodIndex(e -> e.getName().equals("clear"));
-        if (index == -1) {
-            throw methodMissing();
+        if (isStackAllocate(original, bbb) && StackAllocation.isAllocatable(ctxt, original.getClassObjectType())
+            && StackAllocation.getObjectSize(ctxt, original.getClassObjectType()) <= MAX_STACK_ALLOCATION_SIZE) {
+            // Copy dependency so that stack allocation can be scheduled in the right place
+            param.copyNode(original.getDependency());
+            return StackAllocation.allocateObject(bbb, original.getClassObjectType(), param.copyValue(original.getTypeId()));
         }
-        zeroMethod = loaded.getMethod(index);
+
+        return NodeVisitor.Delegating.super.visit(param, original);
     }
 
-    private static IllegalStateException runtimeMissing() {
-        return new IllegalStateException("The NoGC helpers runtime classes are not present in the bootstrap class path");
+    @Override
+    public Value visit(Node.Copier param, NewArray original) {
+        final BasicBlockBuilder bbb = param.getBlockBuilder();
+        final int length = getFixedLength(original.getSize());
+        if (length >= 0 && isStackAllocate(original, bbb) && StackAllocation.isAllocatable(ctxt, original.getArrayType())
+            && StackAllocation.getArraySize(ctxt, original.getArrayType(), length) <= MAX_STACK_ALLOCATION_SIZE) {
+            param.copyNode(original.getDependency());
+            return StackAllocation.allocateArray(bbb, original.getArrayType(), length);
+        }
+
+        return NodeVisitor.Delegating.super.visit(param, original);
     }
 
-    private static IllegalStateException methodMissing() {
-        return new IllegalStateException("Required method is missing from the NoGC helpers");
+    @Override
+    public Value visit(Node.Copier param, Load original) {
+        final Map<InstanceFieldElement, Value> fields = getReplacedFields(param, original.getPointer());
+        if (fields != null) {
+            param.copyNode(original.getDependency());
+            final Value value = fields.get(((InstanceFieldOf) original.getPointer()).getVariableElement());
+            return value != null ? value : ctxt.getLiteralFactory().zeroInitializerLiteralOfType(original.getType());
+        }
+
+        return NodeVisitor.Delegating.super.visit(param, original);
     }
 
-    public NodeVisitor<Node.Copier, Value, Node, BasicBlock> getDelegateNodeVisitor() {
-        return delegate;
+    @Override
+    public Node visit(Node.Copier param, Store original) {
+        final Map<InstanceFieldElement, Value> fields = getReplacedFields(param, original.getPointer());
+        if (fields != null) {
+            final Node dependency = param.copyNode(original.getDependency());
+            fields.put(((InstanceFieldOf) original.getPointer()).getVariableElement(), param.copyValue(original.getValue()));
+            return dependency;
+        }
+
+        return NodeVisitor.Delegating.super.visit(param, original);
     }
 
     @Override
-    public Value visit(Node.Copier param, New original) {
-        final BasicBlockBuilder bbb = param.getBlockBuilder();
-        if (isStackAllocate(original, bbb)) {
-            // Copy dependency so that stack allocation can be scheduled in the right place
-            param.copyNode(original.getDependency());
-            return stackAllocate(original, bbb);
+    public Node visit(Node.Copier param, MonitorEnter original) {
+        if (isThreadConfined(original.getInstance(), param.getBlockBuilder())) {
+            LockElisionReport.get(ctxt).recordElided(param.getBlockBuilder().element());
+            return param.copyNode(original.getDependency());
         }
 
         return NodeVisitor.Delegating.super.visit(param, original);
     }
 
-    private boolean isStackAllocate(New new_, BasicBlockBuilder bbb) {
-        return escapeAnalysisState.isNotEscapingMethod(new_, bbb.element())
-            && notInLoop(new_);
+    @Override
+    public Node visit(Node.Copier param, MonitorExit original) {
+        if (isThreadConfined(original.getInstance(), param.getBlockBuilder())) {
+            LockElisionReport.get(ctxt).recordElided(param.getBlockBuilder().element());
+            return param.copyNode(original.getDependency());
+        }
+
+        return NodeVisitor.Delegating.super.visit(param, original);
+    }
+
+    private boolean isThreadConfined(Value object, BasicBlockBuilder bbb) {
+        while (object instanceof NotNull || object instanceof BitCast || object instanceof CheckCast) {
+            object = object instanceof NotNull nn ? nn.getInput() : object instanceof BitCast bc ? bc.getInput() : ((CheckCast) object).getInput();
+        }
+        return ConnectionGraph.isAllocation(object) && escapeAnalysisState.isNotEscapingMethod(object, bbb.element());
+    }
+
+    private Map<InstanceFieldElement, Value> getReplacedFields(Node.Copier param, Value pointer) {
+        if (pointer instanceof InstanceFieldOf ifo && ifo.getInstance() instanceof DecodeReference dr && dr.getInput() instanceof New new_
+            && escapeAnalysisState.isScalarReplaceable(new_, param.getBlockBuilder().element())) {
+            // make sure the allocation has been visited before its first field access
+            param.copyValue(new_);
+            return replacedObjects.get(new_);
+        }
+        return null;
+    }
+
+    private static int getFixedLength(Value size) {
+        if (size instanceof IntegerLiteral il && il.longValue() >= 0 && il.longValue() <= Integer.MAX_VALUE) {
+            return il.intValue();
+        }
+        return -1;
+    }
+
+    private boolean isStackAllocate(Node allocation, BasicBlockBuilder bbb) {
+        return escapeAnalysisState.isStackAllocatable(allocation, bbb.element())
+            && notInLoop(allocation);
     }
 
     private boolean notInLoop(Node node) {
@@ -88,28 +178,4 @@ public final class EscapeAnalysisOptimizeVisitor implements NodeVisitor.Delegati
 
         return false;
     }
-
-    private Value stackAllocate(New new_, BasicBlockBuilder bbb) {
-        ClassObjectType type = new_.getClassObjectType();
-
-        // Copied and adjusted from NoGcBasicBlockBuilder
-        Layout layout = Layout.get(ctxt);
-        LayoutInfo info = layout.getInstanceLayoutInfo(type.getDefinition());
-        StructType structType = info.getStructType();
-        LiteralFactory lf = ctxt.getLiteralFactory();
-        IntegerLiteral align = lf.literalOf(structType.getAlign());
-
-        Value ptrVal = bbb.stackAllocate(structType, lf.literalOf(1), align);
-        Value oop = bbb.encodeReference(ptrVal, type.getReference());
-        // zero initialize the object's instance fields
-        initializeObjectFieldsToZero(info, lf, oop, bbb);
-        // initialize object header
-        BasicHeaderInitializer.initializeObjectHeader(ctxt, bbb, bbb.decodeReference(oop), ctxt.getLiteralFactory().literalOfType(type), true);
-
-        return oop;
-    }
-
-    private void initializeObjectFieldsToZero(final LayoutInfo info, final LiteralFactory lf, final Value oop, final BasicBlockBuilder bbb) {
-        bbb.call(lf.literalOf(zeroMethod), List.of(oop, lf.literalOf(info.getStructType().getSize())));
-    }
 }
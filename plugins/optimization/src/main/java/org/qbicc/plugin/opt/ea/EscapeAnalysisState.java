@@ -3,14 +3,19 @@ package org.qbicc.plugin.opt.ea;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.context.PhaseAttachmentKey;
+import org.qbicc.graph.BlockParameter;
 import org.qbicc.graph.Call;
 import org.qbicc.graph.New;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Value;
 import org.qbicc.type.definition.element.ExecutableElement;
 
 final class EscapeAnalysisState {
@@ -18,6 +23,9 @@ final class EscapeAnalysisState {
 
     private final Map<ExecutableElement, List<Call>> callGraph = new ConcurrentHashMap<>();
     private final Map<ExecutableElement, ConnectionGraph> connectionGraphs = new ConcurrentHashMap<>();
+    private final Map<ExecutableElement, LocalUseSummary> localUseSummaries = new ConcurrentHashMap<>();
+    // resolved during LOWER: whether each entry parameter of a method is local, including in its callees
+    private final Map<LocalUseSummary.CallArgument, Boolean> localParameters = new ConcurrentHashMap<>();
 
     ConnectionGraph getConnectionGraph(ExecutableElement element) {
         return connectionGraphs.get(element);
@@ -45,9 +53,68 @@ final class EscapeAnalysisState {
         callGraph.computeIfAbsent(from, k -> new ArrayList<>()).add(to);
     }
 
-    boolean isNotEscapingMethod(New new_, ExecutableElement element) {
+    void addLocalUseSummary(ExecutableElement element, LocalUseSummary summary) {
+        localUseSummaries.put(element, summary);
+    }
+
+    boolean isNotEscapingMethod(Node allocation, ExecutableElement element) {
         final ConnectionGraph connectionGraph = connectionGraphs.get(element);
-        return connectionGraph != null && connectionGraph.getEscapeValue(new_).isNoEscape();
+        return connectionGraph != null && connectionGraph.getEscapeValue(allocation).isNoEscape()
+            && isLocal(element, (Value) allocation, new HashSet<>());
+    }
+
+    /**
+     * Determine whether the given allocation may be moved to the stack frame. In addition to not escaping its method,
+     * the allocation must never be passed to a call, because a callee (such as the monitor runtime) may store a
+     * reference into the object header, which the GC does not scan in the frame.
+     */
+    boolean isStackAllocatable(Node allocation, ExecutableElement element) {
+        final LocalUseSummary summary = localUseSummaries.get(element);
+        final List<LocalUseSummary.CallArgument> calls = summary == null ? null : summary.getCallArguments((Value) allocation);
+        return calls != null && calls.isEmpty() && isNotEscapingMethod(allocation, element);
+    }
+
+    boolean isScalarReplaceable(New new_, ExecutableElement element) {
+        final LocalUseSummary summary = localUseSummaries.get(element);
+        return summary != null && summary.isScalarReplaceable(new_) && isNotEscapingMethod(new_, element);
+    }
+
+    /**
+     * Determine whether the given value is local to its method, including within the methods it is passed to.
+     * Recursive calls are conservatively treated as capturing.
+     */
+    private boolean isLocal(ExecutableElement element, Value value, Set<LocalUseSummary.CallArgument> inProgress) {
+        final LocalUseSummary summary = localUseSummaries.get(element);
+        if (summary == null) {
+            return false;
+        }
+        final List<LocalUseSummary.CallArgument> calls = summary.getCallArguments(value);
+        if (calls == null) {
+            return false;
+        }
+        for (LocalUseSummary.CallArgument call : calls) {
+            if (! isLocalParameter(call, inProgress)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isLocalParameter(LocalUseSummary.CallArgument call, Set<LocalUseSummary.CallArgument> inProgress) {
+        final Boolean known = localParameters.get(call);
+        if (known != null) {
+            return known.booleanValue();
+        }
+        if (! inProgress.add(call)) {
+            return false;
+        }
+        final LocalUseSummary summary = localUseSummaries.get(call.callee());
+        final BlockParameter parameter = summary == null ? null : summary.getEntryParameter(call.slot());
+        // an unused parameter is trivially local
+        final boolean local = summary != null && (parameter == null || isLocal(call.callee(), parameter, inProgress));
+        inProgress.remove(call);
+        localParameters.putIfAbsent(call, Boolean.valueOf(local));
+        return local;
     }
 
     static EscapeAnalysisState get(CompilationContext ctxt) {
@@ -0,0 +1,247 @@
+package org.qbicc.plugin.opt.ea;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BitCast;
+import org.qbicc.graph.BlockParameter;
+import org.qbicc.graph.CheckCast;
+import org.qbicc.graph.DecodeReference;
+import org.qbicc.graph.ElementOf;
+import org.qbicc.graph.InstanceFieldOf;
+import org.qbicc.graph.InvocationNode;
+import org.qbicc.graph.IsEq;
+import org.qbicc.graph.IsNe;
+import org.qbicc.graph.Load;
+import org.qbicc.graph.MonitorEnter;
+import org.qbicc.graph.MonitorExit;
+import org.qbicc.graph.New;
+import org.qbicc.graph.NewArray;
+import org.qbicc.graph.NewReferenceArray;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.NotNull;
+import org.qbicc.graph.OrderedNode;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Store;
+import org.qbicc.graph.Terminator;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.ExecutableLiteral;
+import org.qbicc.type.definition.element.ExecutableElement;
+
+/**
+ * A summary of how the allocations and entry parameters of a method are used.
+ * <p>
+ * The connection graph does not follow every way in which a reference can be captured (for example a reference stored
+ * into a field of a local object, passed as a block argument, or used as the receiver of a call). This summary is a
+ * deliberately simple complement to it: a value is <em>local</em> when its only uses are loads and stores through it,
+ * comparisons, casts, locking, and arguments of direct calls whose corresponding parameter is itself local in the
+ * callee.
+ * Stack allocation requires both the connection graph and this summary to agree.
+ * <p>
+ * An object allocation is additionally <em>scalar replaceable</em> when its only uses are loads and stores of its
+ * instance fields within the block of the allocation, and locking, so that each field can be tracked as a plain value
+ * while the block is copied.
+ */
+final class LocalUseSummary {
+    /**
+     * The call arguments of each local value. Values which are captured are absent.
+     */
+    private final Map<Value, List<CallArgument>> localValues;
+    private final Map<Slot, BlockParameter> entryParameters;
+    private final Set<New> scalarReplaceable;
+
+    private LocalUseSummary(Map<Value, List<CallArgument>> localValues, Map<Slot, BlockParameter> entryParameters, Set<New> scalarReplaceable) {
+        this.localValues = localValues;
+        this.entryParameters = entryParameters;
+        this.scalarReplaceable = scalarReplaceable;
+    }
+
+    /**
+     * Get the calls through which the given value is passed, if the value is otherwise local.
+     *
+     * @param value the allocation or entry parameter
+     * @return the call arguments, or {@code null} if the value is captured or unknown
+     */
+    List<CallArgument> getCallArguments(Value value) {
+        return localValues.get(value);
+    }
+
+    /**
+     * Get the entry parameter of the method for the given slot.
+     *
+     * @param slot the slot (must not be {@code null})
+     * @return the parameter, or {@code null} if there is none
+     */
+    BlockParameter getEntryParameter(Slot slot) {
+        return entryParameters.get(slot);
+    }
+
+    boolean isScalarReplaceable(New new_) {
+        return scalarReplaceable.contains(new_);
+    }
+
+    /**
+     * Compute the summary of a method body.
+     *
+     * @param entryBlock the entry block of the method body (must not be {@code null})
+     * @return the summary (not {@code null})
+     */
+    static LocalUseSummary compute(BasicBlock entryBlock) {
+        Map<Node, List<Node>> users = new HashMap<>();
+        List<Value> candidates = new ArrayList<>();
+        Map<Slot, BlockParameter> entryParameters = new HashMap<>();
+        Set<Node> seen = new HashSet<>();
+        ArrayDeque<Node> nodeQueue = new ArrayDeque<>();
+        Set<BasicBlock> blocks = new HashSet<>();
+        ArrayDeque<BasicBlock> blockQueue = new ArrayDeque<>();
+        blocks.add(entryBlock);
+        blockQueue.add(entryBlock);
+        BasicBlock block;
+        while ((block = blockQueue.poll()) != null) {
+            nodeQueue.addAll(block.getInstructions());
+            Terminator t = block.getTerminator();
+            nodeQueue.add(t);
+            for (Slot slot : t.getOutboundArgumentNames()) {
+                // block arguments are captured
+                Value arg = t.getOutboundArgument(slot);
+                users.computeIfAbsent(arg, LocalUseSummary::newList).add(t);
+                nodeQueue.add(arg);
+            }
+            for (int i = 0; i < t.getSuccessorCount(); i ++) {
+                BasicBlock successor = t.getSuccessor(i);
+                if (blocks.add(successor)) {
+                    blockQueue.add(successor);
+                }
+            }
+        }
+        Node node;
+        while ((node = nodeQueue.poll()) != null) {
+            if (! seen.add(node)) {
+                continue;
+            }
+            if (node instanceof New || node instanceof NewArray || node instanceof NewReferenceArray) {
+                candidates.add((Value) node);
+            } else if (node instanceof BlockParameter bp && bp.getPinnedBlock() == entryBlock) {
+                Slot slot = bp.getSlot();
+                if (slot == Slot.this_() || slot.kind() == Slot.Kind.param) {
+                    entryParameters.put(slot, bp);
+                    candidates.add(bp);
+                }
+            }
+            int cnt = node.getValueDependencyCount();
+            for (int i = 0; i < cnt; i ++) {
+                Value dependency = node.getValueDependency(i);
+                users.computeIfAbsent(dependency, LocalUseSummary::newList).add(node);
+                nodeQueue.add(dependency);
+            }
+            if (node instanceof OrderedNode on) {
+                nodeQueue.add(on.getDependency());
+            }
+        }
+        Map<Value, List<CallArgument>> localValues = new HashMap<>();
+        Set<New> scalarReplaceable = new HashSet<>();
+        for (Value candidate : candidates) {
+            List<CallArgument> calls = new ArrayList<>();
+            if (isLocal(candidate, users, calls)) {
+                localValues.put(candidate, List.copyOf(calls));
+                if (candidate instanceof New new_ && calls.isEmpty() && hasOnlyBlockLocalFieldAccesses(new_, users)) {
+                    scalarReplaceable.add(new_);
+                }
+            }
+        }
+        return new LocalUseSummary(localValues, entryParameters, scalarReplaceable);
+    }
+
+    private static boolean isLocal(Value value, Map<Node, List<Node>> users, List<CallArgument> calls) {
+        for (Node user : users.getOrDefault(value, List.of())) {
+            if (user instanceof BitCast || user instanceof CheckCast || user instanceof NotNull) {
+                // an alias of the same value
+                if (! isLocal((Value) user, users, calls)) {
+                    return false;
+                }
+            } else if (user instanceof DecodeReference dr) {
+                if (! isLocalPointer(dr, users)) {
+                    return false;
+                }
+            } else if (user instanceof IsEq || user instanceof IsNe) {
+                // comparisons do not capture
+            } else if (user instanceof MonitorEnter || user instanceof MonitorExit) {
+                // neither does locking
+            } else if (user instanceof InvocationNode inv && inv.getTarget() instanceof ExecutableLiteral el) {
+                ExecutableElement callee = el.getExecutable();
+                if (inv.getReceiver() == value) {
+                    calls.add(new CallArgument(callee, Slot.this_()));
+                }
+                List<Value> arguments = inv.getArguments();
+                for (int i = 0; i < arguments.size(); i ++) {
+                    if (arguments.get(i) == value) {
+                        calls.add(new CallArgument(callee, Slot.funcParam(i)));
+                    }
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLocalPointer(Value pointer, Map<Node, List<Node>> users) {
+        for (Node user : users.getOrDefault(pointer, List.of())) {
+            if (user instanceof Load load && load.getPointer() == pointer) {
+                // reading through the pointer does not capture it
+            } else if (user instanceof Store store && store.getPointer() == pointer && store.getValue() != pointer) {
+                // neither does writing through it
+            } else if (user instanceof InstanceFieldOf ifo && ifo.getInstance() == pointer
+                || user instanceof ElementOf eo && eo.getArrayPointer() == pointer) {
+                if (! isLocalPointer((Value) user, users)) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasOnlyBlockLocalFieldAccesses(New new_, Map<Node, List<Node>> users) {
+        BasicBlock block = new_.getScheduledBlock();
+        for (Node user : users.getOrDefault(new_, List.of())) {
+            if (user instanceof MonitorEnter || user instanceof MonitorExit) {
+                // the lock of a local object is elided
+                continue;
+            }
+            if (! (user instanceof DecodeReference dr)) {
+                return false;
+            }
+            for (Node fieldUser : users.getOrDefault(dr, List.of())) {
+                if (! (fieldUser instanceof InstanceFieldOf ifo)) {
+                    return false;
+                }
+                for (Node access : users.getOrDefault(ifo, List.of())) {
+                    if (! (access instanceof Load || access instanceof Store) || access.getScheduledBlock() != block) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private static <E> List<E> newList(Object ignored) {
+        return new ArrayList<>();
+    }
+
+    /**
+     * A value passed to a direct call.
+     *
+     * @param callee the callee (must not be {@code null})
+     * @param slot the slot of the callee parameter which receives the value (must not be {@code null})
+     */
+    record CallArgument(ExecutableElement callee, Slot slot) {}
+}
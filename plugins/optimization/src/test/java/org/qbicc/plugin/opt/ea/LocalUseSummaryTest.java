@@ -0,0 +1,169 @@
+package org.qbicc.plugin.opt.ea;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.qbicc.graph.atomic.AccessModes.SinglePlain;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.New;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Value;
+import org.qbicc.test.AbstractCompilerTestCase;
+import org.qbicc.type.ClassObjectType;
+import org.qbicc.type.ValueType;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.MethodBody;
+import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.InstanceFieldElement;
+import org.qbicc.type.definition.element.MethodElement;
+import org.qbicc.type.descriptor.BaseTypeDescriptor;
+import org.qbicc.type.descriptor.ClassTypeDescriptor;
+import org.qbicc.type.descriptor.MethodDescriptor;
+import org.qbicc.type.descriptor.TypeDescriptor;
+import org.qbicc.type.generic.BaseTypeSignature;
+import org.qbicc.type.generic.ClassSignature;
+import org.qbicc.type.generic.MethodSignature;
+import org.qbicc.type.generic.TypeSignature;
+
+/**
+ * Tests of the local use summary, which decides which allocations may be scalar replaced or stack allocated.
+ */
+public final class LocalUseSummaryTest extends AbstractCompilerTestCase {
+
+    MethodElement element;
+    ClassObjectType classType;
+    InstanceFieldElement intField;
+    InstanceFieldElement refField;
+
+    @BeforeEach
+    public void setUpEach() {
+        final DefinedTypeDefinition.Builder typeBuilder = DefinedTypeDefinition.Builder.basic();
+        typeBuilder.setContext(bootClassContext);
+        typeBuilder.setName("TestClass");
+        typeBuilder.setDescriptor(ClassTypeDescriptor.synthesize(bootClassContext, "TestClass"));
+        typeBuilder.setModifiers(ClassFile.ACC_SUPER | ClassFile.ACC_PUBLIC);
+        typeBuilder.setSignature(ClassSignature.synthesize(bootClassContext, null, List.of()));
+        typeBuilder.setSimpleName("TestClass");
+        typeBuilder.setInitializer((index, enclosing, builder) -> builder.build(), 0);
+        final DefinedTypeDefinition enclosingType = typeBuilder.build();
+        classType = ts.generateClassObjectType(enclosingType, null, List.of());
+        intField = makeField(enclosingType, "intField", BaseTypeDescriptor.I, BaseTypeSignature.I, ts.getSignedInteger32Type());
+        refField = makeField(enclosingType, "refField", enclosingType.getDescriptor(), TypeSignature.synthesize(bootClassContext, enclosingType.getDescriptor()), classType.getReference());
+        final MethodElement.Builder builder = MethodElement.builder("testMethod", MethodDescriptor.VOID_METHOD_DESCRIPTOR, 0);
+        builder.setEnclosingType(enclosingType);
+        builder.setSignature(MethodSignature.VOID_METHOD_SIGNATURE);
+        builder.setModifiers(ClassFile.ACC_STATIC);
+        builder.setParameters(List.of());
+        builder.setMethodBodyFactory((index, e) -> {
+            final BasicBlockBuilder bbb = BasicBlockBuilder.simpleBuilder(e);
+            BasicBlock emptyBlock = bbb.unreachable();
+            bbb.finish();
+            return MethodBody.of(
+                emptyBlock,
+                List.of()
+            );
+        }, 0);
+        element = builder.build();
+    }
+
+    private static InstanceFieldElement makeField(DefinedTypeDefinition enclosingType, String name, TypeDescriptor descriptor, TypeSignature signature, ValueType type) {
+        final FieldElement.Builder builder = FieldElement.builder(name, descriptor, 0);
+        builder.setEnclosingType(enclosingType);
+        builder.setSignature(signature);
+        builder.setModifiers(ClassFile.ACC_PRIVATE);
+        builder.setType(type);
+        return (InstanceFieldElement) builder.build();
+    }
+
+    @Test
+    public void testFieldAccessesInBlockAreScalarReplaceable() {
+        final BasicBlockBuilder bbb = makeBlockBuilder();
+        final New obj = newObject(bbb);
+        final Value field = bbb.instanceFieldOf(bbb.decodeReference(obj), intField);
+        bbb.store(field, lf.literalOf(1), SinglePlain);
+        bbb.return_(bbb.load(field, SinglePlain));
+        final LocalUseSummary summary = finish(bbb);
+        assertEquals(List.of(), summary.getCallArguments(obj));
+        assertTrue(summary.isScalarReplaceable(obj));
+    }
+
+    @Test
+    public void testFieldAccessInOtherBlockIsNotScalarReplaceable() {
+        final BasicBlockBuilder bbb = makeBlockBuilder();
+        final New obj = newObject(bbb);
+        final Value field = bbb.instanceFieldOf(bbb.decodeReference(obj), intField);
+        bbb.store(field, lf.literalOf(1), SinglePlain);
+        final BlockLabel next = new BlockLabel();
+        bbb.goto_(next, Map.of());
+        bbb.begin(next);
+        bbb.return_(bbb.load(field, SinglePlain));
+        final LocalUseSummary summary = finish(bbb);
+        // still local, so it may be stack allocated
+        assertEquals(List.of(), summary.getCallArguments(obj));
+        assertFalse(summary.isScalarReplaceable(obj));
+    }
+
+    @Test
+    public void testPassedToCallIsNotScalarReplaceable() {
+        final BasicBlockBuilder bbb = makeBlockBuilder();
+        final New obj = newObject(bbb);
+        bbb.call(lf.literalOf(element), List.of(obj));
+        bbb.return_(bbb.emptyVoid());
+        final LocalUseSummary summary = finish(bbb);
+        // local only if the callee parameter is local, and never stack allocated
+        assertEquals(List.of(new LocalUseSummary.CallArgument(element, Slot.funcParam(0))), summary.getCallArguments(obj));
+        assertFalse(summary.isScalarReplaceable(obj));
+    }
+
+    @Test
+    public void testBlockArgumentIsCaptured() {
+        final BasicBlockBuilder bbb = makeBlockBuilder();
+        final New obj = newObject(bbb);
+        final BlockLabel next = new BlockLabel();
+        bbb.goto_(next, Slot.temp(0), obj);
+        bbb.begin(next);
+        bbb.return_(bbb.addParam(next, Slot.temp(0), classType.getReference()));
+        final LocalUseSummary summary = finish(bbb);
+        assertNull(summary.getCallArguments(obj));
+        assertFalse(summary.isScalarReplaceable(obj));
+    }
+
+    @Test
+    public void testStoredReferenceIsCaptured() {
+        final BasicBlockBuilder bbb = makeBlockBuilder();
+        final New inner = newObject(bbb);
+        final New outer = newObject(bbb);
+        bbb.store(bbb.instanceFieldOf(bbb.decodeReference(outer), refField), inner, SinglePlain);
+        bbb.return_(bbb.emptyVoid());
+        final LocalUseSummary summary = finish(bbb);
+        assertNull(summary.getCallArguments(inner));
+        assertNotNull(summary.getCallArguments(outer));
+        assertTrue(summary.isScalarReplaceable(outer));
+    }
+
+    private BasicBlockBuilder makeBlockBuilder() {
+        final BasicBlockBuilder bbb = BasicBlockBuilder.simpleBuilder(element);
+        bbb.begin(new BlockLabel());
+        return bbb;
+    }
+
+    private New newObject(BasicBlockBuilder bbb) {
+        return (New) bbb.new_(classType, lf.literalOfType(classType), lf.literalOf(16L), lf.literalOf(8L));
+    }
+
+    private static LocalUseSummary finish(BasicBlockBuilder bbb) {
+        bbb.finish();
+        return LocalUseSummary.compute(bbb.getFirstBlock());
+    }
+}
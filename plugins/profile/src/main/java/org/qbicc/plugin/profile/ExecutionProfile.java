@@ -0,0 +1,300 @@
+package org.qbicc.plugin.profile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.type.definition.element.ConstructorElement;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.InitializerElement;
+import org.qbicc.type.definition.element.NamedElement;
+
+/**
+ * An execution profile recorded by a previous run of the program, used to guide optimization.
+ * <p>
+ * A profile is a text file with one record per line. Blank lines and lines starting with {@code #} are ignored.
+ * Each record starts with its kind, followed by the method it belongs to as the internal name of the enclosing
+ * class, the method name and the method descriptor:
+ * <ul>
+ *     <li>{@code entry <class> <name> <descriptor> <count>} gives the number of times the method was entered;</li>
+ *     <li>{@code call <class> <name> <descriptor> <bci> <count>} gives the number of times the call at the given
+ *     bytecode index was executed;</li>
+ *     <li>{@code branch <class> <name> <descriptor> <bci> true|false <count>} gives the number of times the
+ *     conditional branch at the given bytecode index went to its true or false target;</li>
+ *     <li>{@code receiver <class> <name> <descriptor> <bci> <type> <count>} gives the number of times the virtual or
+ *     interface call at the given bytecode index had a receiver of the type with the given internal name, or of any
+ *     type which was not recorded individually if the type is {@code *}.</li>
+ * </ul>
+ * Records of unknown kinds are ignored, so that newer profiles can be read by older compilers.
+ * <p>
+ * A count which is absent from the profile is unknown, and is reported as {@code -1}. Since an instrumented
+ * program records every counter, a count of zero means that the code was reached by the compiler but never executed.
+ */
+public final class ExecutionProfile {
+    private static final AttachmentKey<ExecutionProfile> KEY = new AttachmentKey<>();
+    private static final ExecutionProfile EMPTY = new ExecutionProfile(Map.of(), 0);
+
+    private final Map<MethodKey, MethodProfile> methods;
+    private final long maxCallCount;
+
+    private ExecutionProfile(Map<MethodKey, MethodProfile> methods, long maxCallCount) {
+        this.methods = methods;
+        this.maxCallCount = maxCallCount;
+    }
+
+    /**
+     * Get the execution profile of the compilation.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     * @return the profile, or an empty profile if none was loaded (not {@code null})
+     */
+    public static ExecutionProfile get(CompilationContext ctxt) {
+        return ctxt.getAttachmentOrDefault(KEY, EMPTY);
+    }
+
+    static void set(CompilationContext ctxt, ExecutionProfile profile) {
+        ctxt.putAttachment(KEY, profile);
+    }
+
+    /**
+     * Determine whether this profile contains no data.
+     *
+     * @return {@code true} if the profile is empty, or {@code false} otherwise
+     */
+    public boolean isEmpty() {
+        return methods.isEmpty();
+    }
+
+    /**
+     * Get the number of times that the given method was entered.
+     *
+     * @param element the method (must not be {@code null})
+     * @return the entry count, or {@code -1} if it is unknown
+     */
+    public long getEntryCount(ExecutableElement element) {
+        return getEntryCount(MethodKey.of(element));
+    }
+
+    /**
+     * Get the number of times that the given method was entered.
+     *
+     * @param key the method key (must not be {@code null})
+     * @return the entry count, or {@code -1} if it is unknown
+     */
+    public long getEntryCount(MethodKey key) {
+        MethodProfile profile = methods.get(key);
+        return profile == null ? -1 : profile.entryCount;
+    }
+
+    /**
+     * Get the number of times that a call site was executed.
+     *
+     * @param element the method containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return the call count, or {@code -1} if it is unknown
+     */
+    public long getCallCount(ExecutableElement element, int bci) {
+        return getCallCount(MethodKey.of(element), bci);
+    }
+
+    /**
+     * Get the number of times that a call site was executed.
+     *
+     * @param key the key of the method containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return the call count, or {@code -1} if it is unknown
+     */
+    public long getCallCount(MethodKey key, int bci) {
+        MethodProfile profile = methods.get(key);
+        return profile == null ? -1 : profile.callCounts.getOrDefault(Integer.valueOf(bci), Long.valueOf(-1)).longValue();
+    }
+
+    /**
+     * Get the number of times that a conditional branch went to one of its targets.
+     *
+     * @param element the method containing the branch (must not be {@code null})
+     * @param bci the bytecode index of the branch
+     * @param target {@code true} for the true target, or {@code false} for the false target
+     * @return the branch count, or {@code -1} if it is unknown
+     */
+    public long getBranchCount(ExecutableElement element, int bci, boolean target) {
+        return getBranchCount(MethodKey.of(element), bci, target);
+    }
+
+    /**
+     * Get the number of times that a conditional branch went to one of its targets.
+     *
+     * @param key the key of the method containing the branch (must not be {@code null})
+     * @param bci the bytecode index of the branch
+     * @param target {@code true} for the true target, or {@code false} for the false target
+     * @return the branch count, or {@code -1} if it is unknown
+     */
+    public long getBranchCount(MethodKey key, int bci, boolean target) {
+        MethodProfile profile = methods.get(key);
+        if (profile == null) {
+            return -1;
+        }
+        long[] counts = profile.branchCounts.get(Integer.valueOf(bci));
+        return counts == null ? -1 : counts[target ? 0 : 1];
+    }
+
+    /**
+     * Get the receiver types recorded for a virtual or interface call site.
+     *
+     * @param element the method containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return the count of each receiver type by internal name, with {@code *} for the other types (not {@code null})
+     */
+    public Map<String, Long> getReceiverCounts(ExecutableElement element, int bci) {
+        return getReceiverCounts(MethodKey.of(element), bci);
+    }
+
+    /**
+     * Get the receiver types recorded for a virtual or interface call site.
+     *
+     * @param key the key of the method containing the call site (must not be {@code null})
+     * @param bci the bytecode index of the call site
+     * @return the count of each receiver type by internal name, with {@code *} for the other types (not {@code null})
+     */
+    public Map<String, Long> getReceiverCounts(MethodKey key, int bci) {
+        MethodProfile profile = methods.get(key);
+        if (profile == null) {
+            return Map.of();
+        }
+        Map<String, Long> counts = profile.receiverCounts.get(Integer.valueOf(bci));
+        return counts == null ? Map.of() : Map.copyOf(counts);
+    }
+
+    /**
+     * Get the largest call count of any call site in the profile.
+     *
+     * @return the largest call count
+     */
+    public long getMaxCallCount() {
+        return maxCallCount;
+    }
+
+    /**
+     * Parse a profile.
+     *
+     * @param reader the reader to parse from (must not be {@code null})
+     * @return the parsed profile (not {@code null})
+     * @throws IOException if reading failed
+     * @throws IllegalArgumentException if a record is malformed
+     */
+    public static ExecutionProfile parse(BufferedReader reader) throws IOException {
+        Map<MethodKey, MethodProfile> methods = new HashMap<>();
+        long maxCallCount = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber ++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            try {
+                switch (fields[0]) {
+                    case "entry" -> {
+                        checkFieldCount(fields, 5);
+                        MethodProfile profile = getMethodProfile(methods, fields);
+                        profile.entryCount = Math.max(0, profile.entryCount) + parseCount(fields[4]);
+                    }
+                    case "call" -> {
+                        checkFieldCount(fields, 6);
+                        Integer bci = Integer.valueOf(fields[4]);
+                        long count = parseCount(fields[5]);
+                        long total = getMethodProfile(methods, fields).callCounts.merge(bci, Long.valueOf(count), Long::sum).longValue();
+                        maxCallCount = Math.max(maxCallCount, total);
+                    }
+                    case "branch" -> {
+                        checkFieldCount(fields, 7);
+                        Integer bci = Integer.valueOf(fields[4]);
+                        int target = switch (fields[5]) {
+                            case "true" -> 0;
+                            case "false" -> 1;
+                            default -> throw new IllegalArgumentException("Invalid branch target " + fields[5]);
+                        };
+                        long[] counts = getMethodProfile(methods, fields).branchCounts.computeIfAbsent(bci, k -> new long[] { 0, 0 });
+                        counts[target] += parseCount(fields[6]);
+                    }
+                    case "receiver" -> {
+                        checkFieldCount(fields, 7);
+                        Integer bci = Integer.valueOf(fields[4]);
+                        long count = parseCount(fields[6]);
+                        getMethodProfile(methods, fields).receiverCounts.computeIfAbsent(bci, k -> new HashMap<>()).merge(fields[5], Long.valueOf(count), Long::sum);
+                    }
+                    default -> {
+                        // ignore unknown record kinds
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid profile record on line " + lineNumber + ": " + e.getMessage(), e);
+            }
+        }
+        return new ExecutionProfile(methods, maxCallCount);
+    }
+
+    private static MethodProfile getMethodProfile(Map<MethodKey, MethodProfile> methods, String[] fields) {
+        return methods.computeIfAbsent(new MethodKey(fields[1], fields[2], fields[3]), k -> new MethodProfile());
+    }
+
+    private static void checkFieldCount(String[] fields, int expected) {
+        if (fields.length != expected) {
+            throw new IllegalArgumentException("Expected " + expected + " fields but found " + fields.length);
+        }
+    }
+
+    private static long parseCount(String field) {
+        long count = Long.parseLong(field);
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * The build-independent name of a method.
+     *
+     * @param className the internal name of the enclosing class (must not be {@code null})
+     * @param name the method name (must not be {@code null})
+     * @param descriptor the method descriptor string (must not be {@code null})
+     */
+    public record MethodKey(String className, String name, String descriptor) {
+        /**
+         * Get the key of the given method.
+         *
+         * @param element the method (must not be {@code null})
+         * @return the key (not {@code null})
+         */
+        public static MethodKey of(ExecutableElement element) {
+            String name;
+            if (element instanceof NamedElement ne) {
+                name = ne.getName();
+            } else if (element instanceof ConstructorElement) {
+                name = "<init>";
+            } else if (element instanceof InitializerElement) {
+                name = "<clinit>";
+            } else {
+                throw new IllegalArgumentException("Unknown element type");
+            }
+            return new MethodKey(element.getEnclosingType().getInternalName(), name, element.getDescriptor().toString());
+        }
+
+        @Override
+        public String toString() {
+            return className + ' ' + name + ' ' + descriptor;
+        }
+    }
+
+    static final class MethodProfile {
+        long entryCount = -1;
+        final Map<Integer, Long> callCounts = new HashMap<>();
+        final Map<Integer, long[]> branchCounts = new HashMap<>();
+        final Map<Integer, Map<String, Long>> receiverCounts = new HashMap<>();
+    }
+}
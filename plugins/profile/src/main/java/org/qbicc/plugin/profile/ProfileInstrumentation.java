@@ -0,0 +1,191 @@
+package org.qbicc.plugin.profile;
+
+import static org.qbicc.runtime.main.ProfileCounters.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.collections.impl.list.mutable.primitive.ByteArrayList;
+import org.eclipse.collections.impl.list.mutable.primitive.IntArrayList;
+import org.jboss.logging.Logger;
+import org.qbicc.context.AttachmentKey;
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.object.Data;
+import org.qbicc.object.Linkage;
+import org.qbicc.object.ModuleSection;
+import org.qbicc.plugin.reachability.ReachabilityInfo;
+import org.qbicc.type.TypeSystem;
+import org.qbicc.type.definition.LoadedTypeDefinition;
+import org.qbicc.type.definition.element.FieldElement;
+
+/**
+ * The counters of an instrumented build, which records an {@linkplain ExecutionProfile execution profile} when the
+ * program runs.
+ * <p>
+ * Each counter has a key which is its profile record without the count, for example
+ * {@code call java/util/ArrayList get (I)Ljava/lang/Object; 2}. Each receiver site has a key which is its profile
+ * record without the type and count, and a row of the receiver table in which the runtime records the most frequent
+ * receiver types of the call site. The counter and receiver tables and their keys are emitted as the data of the
+ * {@code @extern} fields of {@code org.qbicc.runtime.main.ProfileCounters}, which writes the profile when the program
+ * exits.
+ */
+public final class ProfileInstrumentation {
+    private static final AttachmentKey<ProfileInstrumentation> KEY = new AttachmentKey<>();
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.profile");
+
+    static final String PROFILE_COUNTERS = "org/qbicc/runtime/main/ProfileCounters";
+
+    private final Map<String, Integer> counters = new HashMap<>();
+    private final List<String> counterKeys = new ArrayList<>();
+    private final Map<String, Integer> receiverSites = new HashMap<>();
+    private final List<String> receiverKeys = new ArrayList<>();
+    private volatile int analyzePasses;
+
+    private ProfileInstrumentation() {}
+
+    static ProfileInstrumentation get(CompilationContext ctxt) {
+        ProfileInstrumentation instrumentation = ctxt.getAttachment(KEY);
+        if (instrumentation == null) {
+            instrumentation = new ProfileInstrumentation();
+            ProfileInstrumentation appearing = ctxt.putAttachmentIfAbsent(KEY, instrumentation);
+            if (appearing != null) {
+                instrumentation = appearing;
+            }
+        }
+        return instrumentation;
+    }
+
+    /**
+     * Get the index of the counter with the given key, allocating it if needed.
+     *
+     * @param key the counter key (must not be {@code null})
+     * @return the index of the counter in the counter table
+     */
+    synchronized int getCounter(String key) {
+        Integer index = counters.get(key);
+        if (index == null) {
+            index = Integer.valueOf(counterKeys.size());
+            counters.put(key, index);
+            counterKeys.add(key);
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Get the index of the first word of the receiver table row of the receiver site with the given key, allocating
+     * it if needed.
+     *
+     * @param key the receiver site key (must not be {@code null})
+     * @return the index of the row in the receiver table
+     */
+    synchronized int getReceiverRow(String key) {
+        Integer index = receiverSites.get(key);
+        if (index == null) {
+            index = Integer.valueOf(receiverKeys.size() * RECEIVER_ROW_SIZE);
+            receiverSites.put(key, index);
+            receiverKeys.add(key);
+        }
+        return index.intValue();
+    }
+
+    /**
+     * Count an ANALYZE pass. This must run before any method body is built in the pass.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void enterAnalyzePass(CompilationContext ctxt) {
+        get(ctxt).analyzePasses ++;
+    }
+
+    /**
+     * Determine whether method bodies are being built by the first ANALYZE pass, which is the only one that instruments
+     * them. Later passes copy the instrumented bodies, keeping their counters.
+     *
+     * @return {@code true} if this is the first ANALYZE pass, or {@code false} otherwise
+     */
+    boolean isFirstAnalyzePass() {
+        return analyzePasses == 1;
+    }
+
+    /**
+     * Load the runtime support of instrumented builds.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void loadRuntimeSupport(CompilationContext ctxt) {
+        ctxt.getBootstrapClassContext().findDefinedType(PROFILE_COUNTERS).load();
+    }
+
+    /**
+     * Emit the counter tables of the instrumented build.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void emitTables(CompilationContext ctxt) {
+        get(ctxt).doEmitTables(ctxt);
+    }
+
+    private synchronized void doEmitTables(CompilationContext ctxt) {
+        LiteralFactory lf = ctxt.getLiteralFactory();
+        TypeSystem ts = ctxt.getTypeSystem();
+        LoadedTypeDefinition countersDef = ctxt.getBootstrapClassContext().findDefinedType(PROFILE_COUNTERS).load();
+        ModuleSection section = ctxt.getOrAddProgramModule(ctxt.getDefaultTypeDefinition()).inSection(ctxt.getImplicitSection());
+        // counters
+        int counterCount = counterKeys.size();
+        addData(section, countersDef, "profile_counters", lf.zeroInitializerLiteralOfType(ts.getArrayType(ts.getUnsignedInteger64Type(), counterCount)), false);
+        addData(section, countersDef, "profile_counter_count", lf.literalOf(ts.getUnsignedInteger64Type(), counterCount), true);
+        addData(section, countersDef, "profile_counter_keys", stringsLiteral(ctxt, counterKeys, null), true);
+        // receivers
+        int receiverCount = receiverKeys.size();
+        addData(section, countersDef, "profile_receivers", lf.zeroInitializerLiteralOfType(ts.getArrayType(ts.getUnsignedInteger64Type(), (long) receiverCount * RECEIVER_ROW_SIZE)), false);
+        addData(section, countersDef, "profile_receiver_count", lf.literalOf(ts.getUnsignedInteger64Type(), receiverCount), true);
+        addData(section, countersDef, "profile_receiver_keys", stringsLiteral(ctxt, receiverKeys, null), true);
+        // type names, indexed by type ID; the first name is used for unknown types
+        List<String> typeNames = new ArrayList<>();
+        typeNames.add("*");
+        IntArrayList typeNameIndexes = new IntArrayList();
+        ReachabilityInfo.get(ctxt).visitReachableTypes(ltd -> {
+            int typeId = ltd.getTypeId();
+            while (typeNameIndexes.size() <= typeId) {
+                typeNameIndexes.add(0);
+            }
+            typeNameIndexes.set(typeId, typeNames.size());
+            typeNames.add(ltd.getInternalName());
+        });
+        IntArrayList offsets = new IntArrayList(typeNames.size());
+        Literal typeNamesLiteral = stringsLiteral(ctxt, typeNames, offsets);
+        List<Literal> typeNameOffsets = new ArrayList<>(typeNameIndexes.size());
+        for (int i = 0; i < typeNameIndexes.size(); i ++) {
+            typeNameOffsets.add(lf.literalOf(ts.getUnsignedInteger32Type(), offsets.get(typeNameIndexes.get(i))));
+        }
+        addData(section, countersDef, "profile_type_names", typeNamesLiteral, true);
+        addData(section, countersDef, "profile_type_name_offsets", lf.literalOf(ts.getArrayType(ts.getUnsignedInteger32Type(), typeNameOffsets.size()), typeNameOffsets), true);
+        addData(section, countersDef, "profile_type_count", lf.literalOf(ts.getUnsignedInteger64Type(), typeNameOffsets.size()), true);
+        log.debugf("Emitted %d profile counters and %d receiver sites", Integer.valueOf(counterCount), Integer.valueOf(receiverCount));
+    }
+
+    private static void addData(ModuleSection section, LoadedTypeDefinition countersDef, String name, Literal value, boolean constant) {
+        FieldElement field = countersDef.findField(name);
+        Data data = section.addData(field, name, value);
+        data.setLinkage(Linkage.EXTERNAL);
+        data.setConstant(constant);
+    }
+
+    private static Literal stringsLiteral(CompilationContext ctxt, List<String> strings, IntArrayList offsets) {
+        ByteArrayList bytes = new ByteArrayList();
+        for (String string : strings) {
+            if (offsets != null) {
+                offsets.add(bytes.size());
+            }
+            bytes.addAll(string.getBytes(StandardCharsets.UTF_8));
+            bytes.add((byte) 0);
+        }
+        TypeSystem ts = ctxt.getTypeSystem();
+        return ctxt.getLiteralFactory().literalOf(ts.getArrayType(ts.getUnsignedInteger8Type(), bytes.size()), bytes.toArray());
+    }
+}
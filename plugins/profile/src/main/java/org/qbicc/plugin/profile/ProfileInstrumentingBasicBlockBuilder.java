@@ -0,0 +1,144 @@
+package org.qbicc.plugin.profile;
+
+import static org.qbicc.graph.atomic.AccessModes.SingleUnshared;
+
+import java.util.List;
+import java.util.Map;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.AbstractMethodLookup;
+import org.qbicc.graph.BasicBlock;
+import org.qbicc.graph.BasicBlockBuilder;
+import org.qbicc.graph.BlockLabel;
+import org.qbicc.graph.DelegatingBasicBlockBuilder;
+import org.qbicc.graph.Node;
+import org.qbicc.graph.Slot;
+import org.qbicc.graph.Value;
+import org.qbicc.graph.literal.ExecutableLiteral;
+import org.qbicc.graph.literal.LiteralFactory;
+import org.qbicc.object.ProgramModule;
+import org.qbicc.plugin.coreclasses.RuntimeMethodFinder;
+import org.qbicc.plugin.profile.ExecutionProfile.MethodKey;
+import org.qbicc.type.definition.element.ExecutableElement;
+import org.qbicc.type.definition.element.FieldElement;
+import org.qbicc.type.definition.element.FunctionElement;
+import org.qbicc.type.definition.element.MethodElement;
+
+/**
+ * A builder which instruments the program to record an {@linkplain ExecutionProfile execution profile}.
+ * <p>
+ * Method entries, calls, and both targets of each conditional branch increment a counter of the
+ * {@linkplain ProfileInstrumentation counter table}, and virtual and interface calls record the type of their receiver.
+ * Functions and the methods of the runtime are not instrumented. Method bodies are only instrumented by the first
+ * ANALYZE pass, because later passes copy the instrumentation along with the rest of the body.
+ */
+public final class ProfileInstrumentingBasicBlockBuilder extends DelegatingBasicBlockBuilder {
+    private final CompilationContext ctxt;
+    private final ProfileInstrumentation instrumentation;
+    private Value counters;
+    private Value receivers;
+    private boolean entered;
+
+    private ProfileInstrumentingBasicBlockBuilder(final FactoryContext ctxt, final BasicBlockBuilder delegate) {
+        super(delegate);
+        this.ctxt = getContext();
+        instrumentation = ProfileInstrumentation.get(this.ctxt);
+    }
+
+    public static BasicBlockBuilder createIfNeeded(final FactoryContext ctxt, final BasicBlockBuilder delegate) {
+        ExecutableElement rootElement = delegate.getRootElement();
+        if (! ProfileInstrumentation.get(delegate.getContext()).isFirstAnalyzePass()
+            || rootElement instanceof FunctionElement || rootElement.getEnclosingType().getInternalName().startsWith("org/qbicc/runtime/")) {
+            return delegate;
+        } else {
+            return new ProfileInstrumentingBasicBlockBuilder(ctxt, delegate);
+        }
+    }
+
+    @Override
+    public Node begin(BlockLabel blockLabel) {
+        Node node = super.begin(blockLabel);
+        if (! entered) {
+            // the first block is the entry block
+            entered = true;
+            increment(getLiteralFactory().literalOf(instrumentation.getCounter("entry " + MethodKey.of(getRootElement()))));
+        }
+        return node;
+    }
+
+    @Override
+    public Value call(Value targetPtr, Value receiver, List<Value> arguments) {
+        countCall(targetPtr, receiver);
+        return super.call(targetPtr, receiver, arguments);
+    }
+
+    @Override
+    public BasicBlock callNoReturn(Value targetPtr, Value receiver, List<Value> arguments) {
+        countCall(targetPtr, receiver);
+        return super.callNoReturn(targetPtr, receiver, arguments);
+    }
+
+    @Override
+    public BasicBlock invokeNoReturn(Value targetPtr, Value receiver, List<Value> arguments, BlockLabel catchLabel, Map<Slot, Value> targetArguments) {
+        countCall(targetPtr, receiver);
+        return super.invokeNoReturn(targetPtr, receiver, arguments, catchLabel, targetArguments);
+    }
+
+    @Override
+    public BasicBlock tailCall(Value targetPtr, Value receiver, List<Value> arguments) {
+        countCall(targetPtr, receiver);
+        return super.tailCall(targetPtr, receiver, arguments);
+    }
+
+    @Override
+    public Value invoke(Value targetPtr, Value receiver, List<Value> arguments, BlockLabel catchLabel, BlockLabel resumeLabel, Map<Slot, Value> targetArguments) {
+        countCall(targetPtr, receiver);
+        return super.invoke(targetPtr, receiver, arguments, catchLabel, resumeLabel, targetArguments);
+    }
+
+    @Override
+    public BasicBlock if_(Value condition, BlockLabel trueTarget, BlockLabel falseTarget, Map<Slot, Value> targetArguments) {
+        int bci = bytecodeIndex();
+        if (bci >= 0) {
+            String key = "branch " + MethodKey.of(element()) + " " + bci;
+            LiteralFactory lf = getLiteralFactory();
+            int trueCounter = instrumentation.getCounter(key + " true");
+            int falseCounter = instrumentation.getCounter(key + " false");
+            increment(select(condition, lf.literalOf(trueCounter), lf.literalOf(falseCounter)));
+        }
+        return super.if_(condition, trueTarget, falseTarget, targetArguments);
+    }
+
+    private void countCall(Value targetPtr, Value receiver) {
+        int bci = bytecodeIndex();
+        if (bci < 0 || targetPtr instanceof ExecutableLiteral el && el.getExecutable().getEnclosingType().internalNameEquals(ProfileInstrumentation.PROFILE_COUNTERS)) {
+            // not a call of the program, or a call of the instrumentation itself
+            return;
+        }
+        String site = MethodKey.of(element()) + " " + bci;
+        LiteralFactory lf = getLiteralFactory();
+        increment(lf.literalOf(instrumentation.getCounter("call " + site)));
+        if (targetPtr instanceof AbstractMethodLookup) {
+            if (receivers == null) {
+                receivers = declare("profile_receivers");
+            }
+            Value row = elementOf(receivers, lf.literalOf(instrumentation.getReceiverRow("receiver " + site)));
+            MethodElement recordReceiver = RuntimeMethodFinder.get(ctxt).getMethod(ProfileInstrumentation.PROFILE_COUNTERS, "recordReceiver");
+            super.call(lf.literalOf(recordReceiver), List.of(row, receiver));
+        }
+    }
+
+    private void increment(Value index) {
+        if (counters == null) {
+            counters = declare("profile_counters");
+        }
+        Value counter = elementOf(counters, index);
+        store(counter, add(load(counter, SingleUnshared), getLiteralFactory().literalOf(ctxt.getTypeSystem().getUnsignedInteger64Type(), 1)), SingleUnshared);
+    }
+
+    private Value declare(String name) {
+        FieldElement field = ctxt.getBootstrapClassContext().findDefinedType(ProfileInstrumentation.PROFILE_COUNTERS).load().findField(name);
+        ProgramModule programModule = ctxt.getOrAddProgramModule(getRootElement());
+        return getLiteralFactory().literalOf(programModule.declareData(field, name, field.getType()));
+    }
+}
@@ -0,0 +1,48 @@
+package org.qbicc.plugin.profile;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import org.jboss.logging.Logger;
+import org.qbicc.context.CompilationContext;
+
+/**
+ * A hook which loads the execution profile of the compilation from a file.
+ */
+public final class ProfileLoader implements Consumer<CompilationContext> {
+    private static final Logger log = Logger.getLogger("org.qbicc.plugin.profile");
+
+    private final Path profilePath;
+
+    /**
+     * Construct a new instance.
+     *
+     * @param profilePath the path of the profile file (must not be {@code null})
+     */
+    public ProfileLoader(Path profilePath) {
+        this.profilePath = profilePath;
+    }
+
+    @Override
+    public void accept(CompilationContext ctxt) {
+        ExecutionProfile profile;
+        try (BufferedReader reader = Files.newBufferedReader(profilePath, StandardCharsets.UTF_8)) {
+            profile = ExecutionProfile.parse(reader);
+        } catch (IOException e) {
+            ctxt.error("Failed to read execution profile \"%s\": %s", profilePath, e);
+            return;
+        } catch (IllegalArgumentException e) {
+            ctxt.error("Failed to parse execution profile \"%s\": %s", profilePath, e.getMessage());
+            return;
+        }
+        if (profile.isEmpty()) {
+            ctxt.warning("Execution profile \"%s\" contains no data", profilePath);
+        }
+        log.debugf("Loaded execution profile from %s", profilePath);
+        ExecutionProfile.set(ctxt, profile);
+    }
+}
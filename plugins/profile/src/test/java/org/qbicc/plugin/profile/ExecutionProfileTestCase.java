@@ -0,0 +1,65 @@
+package org.qbicc.plugin.profile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ */
+public class ExecutionProfileTestCase {
+    @Test
+    public void testParse() throws IOException {
+        ExecutionProfile profile = parse("""
+            # a comment
+
+            entry java/util/ArrayList get (I)Ljava/lang/Object; 1000
+            call java/util/ArrayList get (I)Ljava/lang/Object; 2 990
+            call java/util/ArrayList get (I)Ljava/lang/Object; 2 10
+            call java/util/ArrayList <init> ()V 7 0
+            future java/util/ArrayList get (I)Ljava/lang/Object; ignored
+            """);
+        assertFalse(profile.isEmpty());
+        ExecutionProfile.MethodKey get = new ExecutionProfile.MethodKey("java/util/ArrayList", "get", "(I)Ljava/lang/Object;");
+        ExecutionProfile.MethodKey init = new ExecutionProfile.MethodKey("java/util/ArrayList", "<init>", "()V");
+        assertEquals(1000, profile.getEntryCount(get));
+        assertEquals(1000, profile.getCallCount(get, 2));
+        assertEquals(-1, profile.getCallCount(get, 3));
+        assertEquals(0, profile.getCallCount(init, 7));
+        assertEquals(-1, profile.getEntryCount(init));
+        assertEquals(1000, profile.getMaxCallCount());
+    }
+
+    @Test
+    public void testParseBranchesAndReceivers() throws IOException {
+        ExecutionProfile profile = parse("""
+            branch java/util/HashMap get (Ljava/lang/Object;)Ljava/lang/Object; 6 true 30
+            branch java/util/HashMap get (Ljava/lang/Object;)Ljava/lang/Object; 6 false 70
+            branch java/util/HashMap get (Ljava/lang/Object;)Ljava/lang/Object; 6 true 5
+            receiver java/util/HashMap get (Ljava/lang/Object;)Ljava/lang/Object; 2 java/lang/String 90
+            receiver java/util/HashMap get (Ljava/lang/Object;)Ljava/lang/Object; 2 * 10
+            """);
+        ExecutionProfile.MethodKey get = new ExecutionProfile.MethodKey("java/util/HashMap", "get", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        assertEquals(35, profile.getBranchCount(get, 6, true));
+        assertEquals(70, profile.getBranchCount(get, 6, false));
+        assertEquals(-1, profile.getBranchCount(get, 7, true));
+        assertEquals(Map.of("java/lang/String", Long.valueOf(90), "*", Long.valueOf(10)), profile.getReceiverCounts(get, 2));
+        assertEquals(Map.of(), profile.getReceiverCounts(get, 6));
+    }
+
+    @Test
+    public void testMalformed() {
+        assertThrows(IllegalArgumentException.class, () -> parse("call java/util/ArrayList get (I)Ljava/lang/Object; 2\n"));
+        assertThrows(IllegalArgumentException.class, () -> parse("entry java/util/ArrayList get (I)Ljava/lang/Object; -1\n"));
+        assertThrows(IllegalArgumentException.class, () -> parse("branch java/util/ArrayList get (I)Ljava/lang/Object; 2 maybe 1\n"));
+    }
+
+    private static ExecutionProfile parse(String text) throws IOException {
+        return ExecutionProfile.parse(new BufferedReader(new StringReader(text)));
+    }
+}
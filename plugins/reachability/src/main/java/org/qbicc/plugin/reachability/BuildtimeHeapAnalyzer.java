@@ -3,9 +3,8 @@ package org.qbicc.plugin.reachability;
 import static org.qbicc.graph.atomic.AccessModes.SinglePlain;
 
 import java.util.ArrayDeque;
-import java.util.Collections;
-import java.util.IdentityHashMap;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.Value;
@@ -38,21 +37,45 @@ import org.qbicc.type.definition.element.StaticFieldElement;
  * This class supports reachability analysis by providing the capability of
  * tracing the build-time instantiated heap starting from the static fields
  * of a reachable LoadedTypeDefinition to identify reachable instantiated types.
- * It internally tracks which objects have already been visited and avoids re-visiting
+ * It marks each object it visits with the epoch of the analyzer and avoids re-visiting
  * them, since revisiting an object cannot make additional types reachable.
  * It also does skips over instance fields that cannot add reachable types (primitives,
  * java.lang.Class instances, and java.lang.String instances).
+ * <p>
+ * Traces run on any number of threads at once; each object is traced by the thread which marks it.
+ * When a trace which runs on a thread that is processing the task queue accumulates a large worklist,
+ * half of the worklist is submitted as a task of its own, to be stolen by an idle compiler thread.
  */
 class BuildtimeHeapAnalyzer {
+    private static final AtomicInteger epochs = new AtomicInteger();
+    private static final int SPLIT_THRESHOLD = 1024;
+
     private final CompilationContext ctxt;
-    private final Map<VmObject, Boolean> visited = Collections.synchronizedMap(new IdentityHashMap<>());
+    private volatile int epoch = epochs.incrementAndGet();
+    private final LongAdder objectsTraced = new LongAdder();
+    private final LongAdder bytesTraced = new LongAdder();
+    // summed over all threads, so it exceeds the elapsed time whenever chunks are traced in parallel
+    private final LongAdder threadNanosTracing = new LongAdder();
 
     BuildtimeHeapAnalyzer(CompilationContext ctxt) {
         this.ctxt = ctxt;
     }
 
     void clear() {
-        visited.clear();
+        // a new epoch unmarks every object
+        epoch = epochs.incrementAndGet();
+        objectsTraced.reset();
+        bytesTraced.reset();
+        threadNanosTracing.reset();
+    }
+
+    void reportStats() {
+        long objects = objectsTraced.sum();
+        long bytes = bytesTraced.sum();
+        long nanos = Math.max(1, threadNanosTracing.sum());
+        ReachabilityInfo.LOGGER.debugf("  Heap objects traced:           %s (%s bytes)", Long.valueOf(objects), Long.valueOf(bytes));
+        ReachabilityInfo.LOGGER.debugf("  Heap trace rate per thread:    %d objects/s, %d bytes/s over %d ms of tracing summed across threads",
+            Long.valueOf(objects * 1_000_000_000L / nanos), Long.valueOf(bytes * 1_000_000_000L / nanos), Long.valueOf(nanos / 1_000_000L));
     }
 
     /**
@@ -75,22 +98,43 @@ class BuildtimeHeapAnalyzer {
      * @param root The VmObject which is the starting point for this trace.
      */
     void traceHeap(ReachabilityAnalysis analysis, VmObject root, ExecutableElement rootElement) {
-        if (visited.containsKey(root)) {
+        int epoch = this.epoch;
+        if (!root.mark(epoch)) {
             return;
         }
-        visited.put(root, Boolean.TRUE);
         ArrayDeque<VmObject> worklist = new ArrayDeque<>();
         worklist.add(root);
+        trace(new Chunk(analysis, worklist, rootElement, epoch));
+    }
+
+    private void trace(Chunk chunk) {
+        long start = System.nanoTime();
+        ReachabilityAnalysis analysis = chunk.analysis();
+        ArrayDeque<VmObject> worklist = chunk.worklist();
+        ExecutableElement rootElement = chunk.rootElement();
+        int epoch = chunk.epoch();
+        boolean split = ctxt.isProcessingQueue();
+        long objects = 0;
+        long bytes = 0;
 
         Layout interpreterLayout = Layout.get(ctxt);
         TypeSystem ts = ctxt.getTypeSystem();
         while (!worklist.isEmpty()) {
+            if (split && worklist.size() >= SPLIT_THRESHOLD) {
+                ArrayDeque<VmObject> stolen = new ArrayDeque<>(SPLIT_THRESHOLD >> 1);
+                for (int i = 0; i < SPLIT_THRESHOLD >> 1; i ++) {
+                    stolen.add(worklist.removeLast());
+                }
+                ctxt.submitTask(new Chunk(analysis, stolen, rootElement, epoch), this::trace);
+            }
             VmObject cur = worklist.pop();
 
             if (cur instanceof VmStaticFieldBaseObject) {
                 // skip
                 continue;
             }
+            objects ++;
+            bytes += cur.getMemory().getSize();
 
             if (cur instanceof VmThrowable t) {
                 t.prepareForSerialization();
@@ -105,9 +149,8 @@ class BuildtimeHeapAnalyzer {
                 for (StructType.Member im : memLayout.getStructType().getMembers()) {
                     if (im.getType() instanceof ReferenceType) {
                         VmObject child = cur.getMemory().loadRef(im.getOffset(), SinglePlain);
-                        if (child != null && !visited.containsKey(child)) {
+                        if (child != null && child.mark(epoch)) {
                             worklist.add(child);
-                            visited.put(child, Boolean.TRUE);
                         }
                     } else if (im.getType() instanceof PointerType || im.getType().equals(ts.getSignedInteger64Type())) {
                         Pointer pointer = cur.getMemory().loadPointer(im.getOffset(), SinglePlain);
@@ -132,12 +175,24 @@ class BuildtimeHeapAnalyzer {
                 analysis.processArrayElementType(((ReferenceArrayObjectType) ot).getLeafElementType());
 
                 for (VmObject e : ((VmReferenceArray) cur).getArray()) {
-                    if (e != null && !visited.containsKey(e)) {
+                    if (e != null && e.mark(epoch)) {
                         worklist.add(e);
-                        visited.put(e, Boolean.TRUE);
                     }
                 }
             }
         }
+        objectsTraced.add(objects);
+        bytesTraced.add(bytes);
+        threadNanosTracing.add(System.nanoTime() - start);
     }
+
+    /**
+     * A portion of a trace.
+     *
+     * @param analysis the analysis to inform of reachable elements
+     * @param worklist the objects which are marked but not yet traced
+     * @param rootElement the element from which the trace started
+     * @param epoch the epoch of the trace
+     */
+    private record Chunk(ReachabilityAnalysis analysis, ArrayDeque<VmObject> worklist, ExecutableElement rootElement, int epoch) {}
 }
@@ -1,6 +1,10 @@
 package org.qbicc.plugin.reachability;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -42,6 +46,16 @@ import org.qbicc.type.definition.element.StaticMethodElement;
  *
  *  When a new dispatchable method is discovered, the algorithm inspects all instantiated
  *  classes and either makes the method invokable or deferred.
+ *
+ * The analysis is called concurrently from every compiler thread, so it does not lock. Instead:
+ *   a. when a class is instantiated, it and each of its superclasses are recorded as having an instantiated
+ *      subclass, along with the direct subclass leading to it, so that the common query is a single lookup and the
+ *      search for an instantiated receiver only visits the subclasses which lead to an instantiated class;
+ *   b. deferred methods are kept in concurrent sets keyed by their enclosing type, so that an instantiated class
+ *      only inspects the deferred methods of its own supertypes;
+ *   c. a deferred method is made invokable by whichever thread removes it from its set. A thread which defers a
+ *      method checks for an instantiated receiver again after deferring it, and a thread which instantiates a class
+ *      inspects the deferred methods after recording it, so that one of the two always finds the method.
  */
 public final class RapidTypeAnalysis implements ReachabilityAnalysis {
     private final ReachabilityInfo info;
@@ -52,11 +66,17 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
     // Tracks actually instantiated classes
     private final Set<LoadedTypeDefinition> instantiatedClasses = ConcurrentHashMap.newKeySet();
 
-    // Set of dispatchable, but not yet invokable, instance methods
-    private final Set<MethodElement> deferredDispatchableMethods = ConcurrentHashMap.newKeySet();
+    // Tracks classes which are, or have a subclass which is, instantiated
+    private final Set<LoadedTypeDefinition> instantiatedSubtypes = ConcurrentHashMap.newKeySet();
+
+    // Tracks the direct subclasses of each class which are, or have a subclass which is, instantiated
+    private final Map<LoadedTypeDefinition, Set<LoadedTypeDefinition>> instantiatedSubclasses = new ConcurrentHashMap<>();
 
-    // Set of invoked, but not yet invokable, instance methods
-    private final Set<MethodElement> deferredExactMethods = ConcurrentHashMap.newKeySet();
+    // Dispatchable, but not yet invokable, instance methods by enclosing type
+    private final Map<LoadedTypeDefinition, Set<MethodElement>> deferredDispatchableMethods = new ConcurrentHashMap<>();
+
+    // Invoked, but not yet invokable, instance methods by enclosing type
+    private final Map<LoadedTypeDefinition, Set<MethodElement>> deferredExactMethods = new ConcurrentHashMap<>();
 
     RapidTypeAnalysis(ReachabilityInfo info, CompilationContext ctxt) {
         this.info = info;
@@ -68,7 +88,7 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
      * Implementation of the ReachabilityAnalysis interface
      */
 
-    public synchronized void processArrayElementType(ObjectType elemType) {
+    public void processArrayElementType(ObjectType elemType) {
         if (elemType instanceof ClassObjectType) {
             info.addReachableClass(elemType.getDefinition().load());
         } else if (elemType instanceof InterfaceObjectType) {
@@ -76,22 +96,22 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
         }
     }
 
-    public synchronized void processBuildtimeInstantiatedObjectType(LoadedTypeDefinition ltd, ExecutableElement currentElement) {
+    public void processBuildtimeInstantiatedObjectType(LoadedTypeDefinition ltd, ExecutableElement currentElement) {
         processInstantiatedClass(ltd, true, currentElement);
     }
 
-    public synchronized void processReachableObject(VmObject object, ExecutableElement currentElement) {
+    public void processReachableObject(VmObject object, ExecutableElement currentElement) {
         heapAnalyzer.traceHeap(this, object, currentElement);
     }
 
-    public synchronized void processReachableRuntimeInitializer(final InitializerElement target, ExecutableElement currentElement) {
+    public void processReachableRuntimeInitializer(final InitializerElement target, ExecutableElement currentElement) {
         if (!ctxt.wasEnqueued(target)) {
             ReachabilityInfo.LOGGER.debugf("Adding <rtinit> %s (potentially invoked from %s)", target, currentElement);
             ctxt.enqueue(target);
         }
     }
 
-    public synchronized void processReachableExactInvocation(final InvokableElement target, ExecutableElement currentElement) {
+    public void processReachableExactInvocation(final InvokableElement target, ExecutableElement currentElement) {
         if (target instanceof StaticMethodElement me) {
             Facts.get(ctxt).discover(me, ExecutableReachabilityFacts.IS_INVOKED);
         } else if (target instanceof InstanceMethodElement me) {
@@ -103,15 +123,17 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
             processReachableType(target.getEnclosingType().load(), currentElement);
 
             if (target instanceof MethodElement me && !me.isStatic()) {
-                if (deferredExactMethods.contains(me)) return;
                 LoadedTypeDefinition definingClass = me.getEnclosingType().load();
+                if (isDeferred(deferredExactMethods, definingClass, me)) return;
                 if (!definingClass.isInterface() && !hasInstantiatedSubclass(definingClass)) {
-                    deferredExactMethods.add(me);
-                    ReachabilityInfo.LOGGER.debugf("Deferring method %s (invoked exactly in %s, but no instantiated receiver)", target, currentElement);
-                    return;
-                } else {
-                    info.addInvokableInstanceMethod(me);
+                    defer(deferredExactMethods, definingClass, me);
+                    // check again, in case the receiver was instantiated before the method was deferred
+                    if (!hasInstantiatedSubclass(definingClass) || !undefer(deferredExactMethods, definingClass, me)) {
+                        ReachabilityInfo.LOGGER.debugf("Deferring method %s (invoked exactly in %s, but no instantiated receiver)", target, currentElement);
+                        return;
+                    }
                 }
+                info.addInvokableInstanceMethod(me);
             }
 
             ReachabilityInfo.LOGGER.debugf("Adding %s %s (invoked exactly in %s)", target instanceof ConstructorElement ? "<init>" : "method", target, currentElement);
@@ -119,34 +141,39 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
         }
     }
 
-    public synchronized void processReachableDispatchedInvocation(final MethodElement target, ExecutableElement currentElement) {
+    public void processReachableDispatchedInvocation(final MethodElement target, ExecutableElement currentElement) {
         info.addDispatchableMethod(target);
-        if (!info.isInvokableInstanceMethod(target) && !deferredDispatchableMethods.contains(target)) {
-            if (hasInstantiatedReceiver(target)) {
-                ReachabilityInfo.LOGGER.debugf("Adding dispatched method %s (invoked in %s)", target, currentElement);
-                info.addInvokableInstanceMethod(target);
-                ctxt.enqueue(target);
-            } else {
-                ReachabilityInfo.LOGGER.debugf("Deferring method %s (dispatched to in %s, but no instantiated receiver)", target, currentElement);
-                deferredDispatchableMethods.add(target);
+        LoadedTypeDefinition definingType = target.getEnclosingType().load();
+        if (!info.isInvokableInstanceMethod(target) && !isDeferred(deferredDispatchableMethods, definingType, target)) {
+            if (!hasInstantiatedReceiver(target)) {
+                defer(deferredDispatchableMethods, definingType, target);
+                // check again, in case the receiver was instantiated before the method was deferred
+                if (!hasInstantiatedReceiver(target) || !undefer(deferredDispatchableMethods, definingType, target)) {
+                    ReachabilityInfo.LOGGER.debugf("Deferring method %s (dispatched to in %s, but no instantiated receiver)", target, currentElement);
+                    return;
+                }
             }
+            ReachabilityInfo.LOGGER.debugf("Adding dispatched method %s (invoked in %s)", target, currentElement);
+            info.addInvokableInstanceMethod(target);
+            ctxt.enqueue(target);
         }
     }
 
-    public synchronized void processReachableStaticFieldAccess(final StaticFieldElement field, ExecutableElement currentElement) {
+    public void processReachableStaticFieldAccess(final StaticFieldElement field, ExecutableElement currentElement) {
         if (!info.isAccessedStaticField(field)) {
             processReachableType(field.getEnclosingType().load(), null);
-            info.addAccessedStaticField(field);
-            heapAnalyzer.traceHeap(this, field, currentElement);
+            if (info.addAccessedStaticField(field)) {
+                heapAnalyzer.traceHeap(this, field, currentElement);
+            }
         }
     }
 
-    public synchronized void processReachableType(final LoadedTypeDefinition ltd, ExecutableElement currentElement) {
+    public void processReachableType(final LoadedTypeDefinition ltd, ExecutableElement currentElement) {
         info.addReachableType(ltd);
     }
 
-    public synchronized void processInstantiatedClass(final LoadedTypeDefinition type, boolean onHeapType, ExecutableElement currentElement) {
-        if (instantiatedClasses.contains(type)) return;
+    public void processInstantiatedClass(final LoadedTypeDefinition type, boolean onHeapType, ExecutableElement currentElement) {
+        if (!instantiatedClasses.add(type)) return;
 
         if (onHeapType) {
             ReachabilityInfo.LOGGER.debugf("Adding class %s (heap reachable from %s)", type.getDescriptor(), currentElement);
@@ -157,36 +184,48 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
         }
 
         info.addReachableClass(type);
-        instantiatedClasses.add(type);
-
-        ArrayList<MethodElement> toRemove = new ArrayList<>();
-        for (MethodElement dm : deferredExactMethods ) {
-            if (type.isSubtypeOf(dm.getEnclosingType().load())) {
-                ReachabilityInfo.LOGGER.debugf("\tDeferred exact method %s is now invokable)", dm);
-                toRemove.add(dm);
-                info.addInvokableInstanceMethod(dm);
-                ctxt.enqueue(dm);
+
+        // record the instance all the way up the class hierarchy before inspecting the deferred methods, so that a
+        // method which is deferred too late to be inspected here finds this class when it checks again
+        for (LoadedTypeDefinition sc = type;;) {
+            instantiatedSubtypes.add(sc);
+            LoadedTypeDefinition superClass = sc.getSuperClass();
+            if (superClass == null) {
+                break;
             }
+            instantiatedSubclasses.computeIfAbsent(superClass, t -> ConcurrentHashMap.newKeySet()).add(sc);
+            sc = superClass;
         }
-        toRemove.forEach(deferredExactMethods::remove);
-        toRemove.clear();
-
-        for (MethodElement dm : deferredDispatchableMethods ) {
-            if (type.isSubtypeOf(dm.getEnclosingType().load())) {
-                MethodElement cand = type.resolveMethodElementVirtual(type.getContext(), dm.getName(), dm.getDescriptor());
-                if (cand != null && cand.equals(dm)) {
-                    ReachabilityInfo.LOGGER.debugf("\tDeferred dispatchable method %s is now invokable)", dm);
-                    toRemove.add(dm);
-                    info.addInvokableInstanceMethod(dm);
-                    ctxt.enqueue(dm);
+
+        for (LoadedTypeDefinition st : getSupertypes(type)) {
+            Set<MethodElement> exact = deferredExactMethods.get(st);
+            if (exact != null) {
+                for (MethodElement dm : exact) {
+                    if (exact.remove(dm)) {
+                        ReachabilityInfo.LOGGER.debugf("\tDeferred exact method %s is now invokable)", dm);
+                        info.addInvokableInstanceMethod(dm);
+                        ctxt.enqueue(dm);
+                    }
+                }
+            }
+            Set<MethodElement> dispatchable = deferredDispatchableMethods.get(st);
+            if (dispatchable != null) {
+                for (MethodElement dm : dispatchable) {
+                    MethodElement cand = type.resolveMethodElementVirtual(type.getContext(), dm.getName(), dm.getDescriptor());
+                    if (cand != null && cand.equals(dm) && dispatchable.remove(dm)) {
+                        ReachabilityInfo.LOGGER.debugf("\tDeferred dispatchable method %s is now invokable)", dm);
+                        info.addInvokableInstanceMethod(dm);
+                        ctxt.enqueue(dm);
+                    }
                 }
             }
         }
-        toRemove.forEach(deferredDispatchableMethods::remove);
     }
 
     public void clear() {
         instantiatedClasses.clear();
+        instantiatedSubtypes.clear();
+        instantiatedSubclasses.clear();
         deferredDispatchableMethods.clear();
         deferredExactMethods.clear();
         heapAnalyzer.clear();
@@ -194,36 +233,79 @@ public final class RapidTypeAnalysis implements ReachabilityAnalysis {
 
     public void reportStats() {
         ReachabilityInfo.LOGGER.debugf("  Instantiated classes:          %s", instantiatedClasses.size());
-        ReachabilityInfo.LOGGER.debugf("  Deferred dispatchable methods: %s", deferredDispatchableMethods.size());
-        ReachabilityInfo.LOGGER.debugf("  Deferred exact methods:        %s", deferredExactMethods.size());
+        ReachabilityInfo.LOGGER.debugf("  Deferred dispatchable methods: %s", countDeferred(deferredDispatchableMethods));
+        ReachabilityInfo.LOGGER.debugf("  Deferred exact methods:        %s", countDeferred(deferredExactMethods));
+        heapAnalyzer.reportStats();
     }
 
     /*
      * RTA Helper methods.
      */
     private boolean hasInstantiatedSubclass(LoadedTypeDefinition ltd) {
-        if (instantiatedClasses.contains(ltd)) return true;
-        boolean[] ans = { false };
-        info.visitReachableSubclassesPreOrder(ltd, sc -> {
-            if (instantiatedClasses.contains(sc)) {
-                ans[0] = true;
-            }
-        });
-        return ans[0];
+        return instantiatedSubtypes.contains(ltd);
     }
 
     private boolean hasInstantiatedReceiver(MethodElement target) {
         LoadedTypeDefinition definingType = target.getEnclosingType().load();
         if (instantiatedClasses.contains(definingType)) return true;
-        boolean[] ans = { false };
-        info.visitReachableSubclassesPreOrder(definingType, sc -> {
-            if (instantiatedClasses.contains(sc)) {
-                MethodElement cand = sc.resolveMethodElementVirtual(definingType.getContext(), target.getName(), target.getDescriptor());
-                if (cand != null && cand.equals(target)) {
-                    ans[0] = true;
+        if (!instantiatedSubtypes.contains(definingType)) return false;
+        ArrayDeque<LoadedTypeDefinition> worklist = new ArrayDeque<>();
+        worklist.add(definingType);
+        while (!worklist.isEmpty()) {
+            Set<LoadedTypeDefinition> subclasses = instantiatedSubclasses.get(worklist.pop());
+            if (subclasses != null) {
+                for (LoadedTypeDefinition sc : subclasses) {
+                    if (instantiatedClasses.contains(sc)) {
+                        MethodElement cand = sc.resolveMethodElementVirtual(definingType.getContext(), target.getName(), target.getDescriptor());
+                        if (cand != null && cand.equals(target)) {
+                            return true;
+                        }
+                    }
+                    worklist.add(sc);
                 }
             }
-        });
-        return ans[0];
+        }
+        return false;
+    }
+
+    private static List<LoadedTypeDefinition> getSupertypes(LoadedTypeDefinition type) {
+        List<LoadedTypeDefinition> supertypes = new ArrayList<>();
+        Set<LoadedTypeDefinition> interfaces = new HashSet<>();
+        for (LoadedTypeDefinition sc = type; sc != null; sc = sc.getSuperClass()) {
+            supertypes.add(sc);
+            addInterfaces(sc, interfaces, supertypes);
+        }
+        return supertypes;
+    }
+
+    private static void addInterfaces(LoadedTypeDefinition type, Set<LoadedTypeDefinition> visited, List<LoadedTypeDefinition> supertypes) {
+        for (LoadedTypeDefinition i : type.getInterfaces()) {
+            if (visited.add(i)) {
+                supertypes.add(i);
+                addInterfaces(i, visited, supertypes);
+            }
+        }
+    }
+
+    private static boolean isDeferred(Map<LoadedTypeDefinition, Set<MethodElement>> deferred, LoadedTypeDefinition type, MethodElement me) {
+        Set<MethodElement> set = deferred.get(type);
+        return set != null && set.contains(me);
+    }
+
+    private static void defer(Map<LoadedTypeDefinition, Set<MethodElement>> deferred, LoadedTypeDefinition type, MethodElement me) {
+        deferred.computeIfAbsent(type, t -> ConcurrentHashMap.newKeySet()).add(me);
+    }
+
+    private static boolean undefer(Map<LoadedTypeDefinition, Set<MethodElement>> deferred, LoadedTypeDefinition type, MethodElement me) {
+        Set<MethodElement> set = deferred.get(type);
+        return set != null && set.remove(me);
+    }
+
+    private static int countDeferred(Map<LoadedTypeDefinition, Set<MethodElement>> deferred) {
+        int cnt = 0;
+        for (Set<MethodElement> set : deferred.values()) {
+            cnt += set.size();
+        }
+        return cnt;
     }
 }
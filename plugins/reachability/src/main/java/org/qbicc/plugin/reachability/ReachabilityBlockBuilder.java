@@ -1,6 +1,7 @@
 package org.qbicc.plugin.reachability;
 
 import java.util.HashSet;
+import java.util.List;
 
 import org.qbicc.context.CompilationContext;
 import org.qbicc.facts.Facts;
@@ -30,9 +31,11 @@ import org.qbicc.graph.literal.ConstructorLiteral;
 import org.qbicc.graph.literal.FunctionLiteral;
 import org.qbicc.graph.literal.InitializerLiteral;
 import org.qbicc.graph.literal.InstanceMethodLiteral;
+import org.qbicc.graph.literal.Literal;
 import org.qbicc.graph.literal.ObjectLiteral;
 import org.qbicc.graph.literal.StaticFieldLiteral;
 import org.qbicc.graph.literal.StaticMethodLiteral;
+import org.qbicc.graph.literal.StringLiteral;
 import org.qbicc.graph.literal.TypeIdLiteral;
 import org.qbicc.plugin.coreclasses.RuntimeMethodFinder;
 import org.qbicc.type.ClassObjectType;
@@ -74,12 +77,15 @@ public class ReachabilityBlockBuilder extends DelegatingBasicBlockBuilder {
         final CompilationContext ctxt;
         private final ExecutableElement currentElement;
         private final ReachabilityAnalysis analysis;
+        private final List<Literal> heapLiterals;
         final HashSet<Node> visited = new HashSet<>();
 
         ReachabilityContext(CompilationContext ctxt, ExecutableElement currentElement) {
             this.ctxt = ctxt;
             this.currentElement = currentElement;
-            this.analysis = ReachabilityInfo.get(ctxt).getAnalysis();
+            ReachabilityInfo info = ReachabilityInfo.get(ctxt);
+            this.analysis = info.getAnalysis();
+            this.heapLiterals = info.getHeapLiterals(currentElement);
         }
     }
 
@@ -134,10 +140,17 @@ public class ReachabilityBlockBuilder extends DelegatingBasicBlockBuilder {
 
         @Override
         public Void visit(ReachabilityContext param, ObjectLiteral value) {
+            param.heapLiterals.add(value);
             param.analysis.processReachableObject(value.getValue(), param.currentElement);
             return null;
         }
 
+        @Override
+        public Void visit(ReachabilityContext param, StringLiteral value) {
+            param.heapLiterals.add(value);
+            return null;
+        }
+
         @Override
         public Void visit(ReachabilityContext param, TypeIdLiteral value) {
             if (value.getValue() instanceof ClassObjectType cot) {
@@ -1,19 +1,25 @@
 package org.qbicc.plugin.reachability;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import org.jboss.logging.Logger;
 import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.facts.Facts;
+import org.qbicc.graph.literal.Literal;
 import org.qbicc.plugin.coreclasses.CoreClasses;
 import org.qbicc.type.definition.LoadedTypeDefinition;
 import org.qbicc.type.definition.element.ConstructorElement;
+import org.qbicc.type.definition.element.Element;
 import org.qbicc.type.definition.element.ExecutableElement;
 import org.qbicc.type.definition.element.FieldElement;
 import org.qbicc.type.definition.element.InstanceMethodElement;
@@ -65,6 +71,13 @@ import org.qbicc.type.definition.element.StaticMethodElement;
 public class ReachabilityInfo {
     static final Logger LOGGER = Logger.getLogger("org.qbicc.plugin.reachability");
     private static final AttachmentKey<ReachabilityInfo> KEY = new AttachmentKey<>();
+    /**
+     * An order of elements which does not depend on the order in which they were found.
+     */
+    public static final Comparator<Element> ELEMENT_ORDER = Comparator.<Element, String>comparing(e -> e.getEnclosingType().getInternalName())
+        .thenComparingInt(e -> e.getEnclosingType().load().getTypeId())
+        .thenComparingInt(Element::getIndex)
+        .thenComparing(Object::toString);
 
     // Tracks reachable classes and their (direct) reachable subclasses
     private final Map<LoadedTypeDefinition, Set<LoadedTypeDefinition>> classHierarchy = new ConcurrentHashMap<>();
@@ -79,6 +92,9 @@ public class ReachabilityInfo {
     // Set of static fields that are potentially accessed by reachable code
     private final Set<FieldElement> accessedStaticField = ConcurrentHashMap.newKeySet();
 
+    // The literals which refer to the build-time heap, in the order they were found, for each analyzed method body
+    private final Map<ExecutableElement, List<Literal>> heapLiterals = new ConcurrentHashMap<>();
+
     private final ReachabilityAnalysis analysis;
     private final CompilationContext ctxt;
 
@@ -107,6 +123,7 @@ public class ReachabilityInfo {
         info.dispatchableMethods.clear();
         info.invokableInstanceMethods.clear();
         info.accessedStaticField.clear();
+        info.heapLiterals.clear();
         info.analysis.clear();
     }
 
@@ -250,10 +267,43 @@ public class ReachabilityInfo {
         }
     }
 
+    /**
+     * Visit the accessed static fields, in an order which does not depend on the order in which they were found.
+     *
+     * @param function the function to call for each field (must not be {@code null})
+     */
+    public void visitAccessedStaticFields(Consumer<FieldElement> function) {
+        ArrayList<FieldElement> fields = new ArrayList<>(accessedStaticField);
+        fields.sort(ELEMENT_ORDER);
+        for (FieldElement field : fields) {
+            function.accept(field);
+        }
+    }
+
+    /**
+     * Visit every analyzed method body with the object and string literals which it contains.  The bodies are visited
+     * in an order which does not depend on the order in which they were analyzed, and the literals of each body in
+     * the order in which the analysis found them, so that the build-time heap can be serialized in the same order
+     * by every build.
+     *
+     * @param function the function to call for each body (must not be {@code null})
+     */
+    public void visitHeapLiterals(BiConsumer<ExecutableElement, List<Literal>> function) {
+        ArrayList<ExecutableElement> elements = new ArrayList<>(heapLiterals.keySet());
+        elements.sort(ELEMENT_ORDER);
+        for (ExecutableElement element : elements) {
+            function.accept(element, heapLiterals.get(element));
+        }
+    }
+
     /*
      * Package level methods, to allow a ReachabilityAnalysis to add methods/types to the info
      */
 
+    List<Literal> getHeapLiterals(ExecutableElement element) {
+        return heapLiterals.computeIfAbsent(element, e -> Collections.synchronizedList(new ArrayList<>()));
+    }
+
     ReachabilityAnalysis getAnalysis() {
         return analysis;
     }
@@ -413,11 +463,11 @@ public class ReachabilityInfo {
         }
     }
 
-    void addInvokableInstanceMethod(MethodElement meth) {
-        this.invokableInstanceMethods.add(meth);
+    boolean addInvokableInstanceMethod(MethodElement meth) {
+        return this.invokableInstanceMethods.add(meth);
     }
 
-    void addAccessedStaticField(FieldElement field) {
-        this.accessedStaticField.add(field);
+    boolean addAccessedStaticField(FieldElement field) {
+        return this.accessedStaticField.add(field);
     }
 }
@@ -4,10 +4,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Supplier;
 
 import io.smallrye.common.constraint.Assert;
@@ -83,6 +86,22 @@ import org.qbicc.type.generic.TypeSignature;
 
 import static org.qbicc.graph.atomic.AccessModes.SinglePlain;
 
+/**
+ * The build time heap, which serializes interpreter objects into the initial heap of the image.
+ * <p>
+ * Serialization is safe to perform from any number of compiler threads at once, and happens in two phases.  First,
+ * an object is <em>reserved</em>: exactly one thread wins the right to serialize it and is assigned a sequence number
+ * within the target section and a corresponding data declaration, which any thread may refer to from then on.  Then the
+ * winning thread constructs the object's literal (reserving and constructing the objects it refers to in turn).  The
+ * completed definitions are only added to their sections by {@link #emitEndMarkers}, in sequence number order, so that
+ * the layout of each section does not depend on the order in which threads happened to finish.
+ * <p>
+ * The sequence numbers, and so the names of the objects, follow the order of reservation.  So that this order is the
+ * same for every build, the objects which are known before the LOWER phase are reserved serially and in a
+ * deterministic order by {@link ClassObjectSerializer} and {@link HeapLiteralSerializer}, and the Strings of the method
+ * data are reserved after it by {@link MethodDataStringsSerializer}.  The threads of the LOWER phase then find the
+ * objects of the method bodies already reserved.
+ */
 public class BuildtimeHeap {
     private static final AttachmentKey<BuildtimeHeap> KEY = new AttachmentKey<>();
     private static final Logger slog = Logger.getLogger("org.qbicc.plugin.serialization.stats");
@@ -93,15 +112,15 @@ public class BuildtimeHeap {
     /**
      * For lazy definition of native array types for literals
      */
-    private final HashMap<String, StructType> arrayTypes = new HashMap<>();
+    private final ConcurrentHashMap<String, StructType> arrayTypes = new ConcurrentHashMap<>();
     /**
-     * For interning VmObjects
+     * For interning VmObjects (which have identity semantics)
      */
-    private final IdentityHashMap<VmObject, DataDeclaration> vmObjects = new IdentityHashMap<>();
+    private final ConcurrentHashMap<VmObject, Slot> vmObjects = new ConcurrentHashMap<>();
     /**
      * For interning native memory
      */
-    private final HashMap<GlobalVariableElement, DataDeclaration> nativeMemory = new HashMap<>();
+    private final ConcurrentHashMap<GlobalVariableElement, Slot> nativeMemory = new ConcurrentHashMap<>();
     /**
      * The array of root classes which is intended to be the first object in the initial heap
      */
@@ -120,6 +139,8 @@ public class BuildtimeHeap {
      * The rest of the objects in the initial heap
      */
     private final ModuleSection objectSection;
+    private final HeapSection stringHeap;
+    private final HeapSection objectHeap;
     /**
      * The section where references are stored, where they can be found easily by GC.
      */
@@ -131,7 +152,7 @@ public class BuildtimeHeap {
     /**
      * The values, indexed by typeId to be serialized in the classArrayGlobal
      */
-    private Literal[] rootClasses;
+    private AtomicReferenceArray<Literal> rootClasses;
     /**
      * The mapping from static fields to global variables
      */
@@ -141,9 +162,6 @@ public class BuildtimeHeap {
     private final DataDeclaration stringsEnd;
     private final DataDeclaration refsEnd;
 
-    private int literalCounter = 0;
-    private Data stringsStart;
-    private Data heapStart;
     private Data refsStart;
 
     private BuildtimeHeap(CompilationContext ctxt) {
@@ -166,6 +184,8 @@ public class BuildtimeHeap {
         Section objectSection = Section.defineSection(ctxt, 4, "objects", Segment.DATA, Section.Flag.DATA_ONLY);
         LoadedTypeDefinition objectSectionClass = ctxt.getBootstrapClassContext().findDefinedType("org/qbicc/runtime/main/InitialHeap$ObjectSection").load();
         this.objectSection = ctxt.getOrAddProgramModule(objectSectionClass).inSection(objectSection);
+        stringHeap = new HeapSection(this.stringSection, "qbicc_initial_heap_iss_");
+        objectHeap = new HeapSection(this.objectSection, "qbicc_initial_heap_obj_");
         UnsignedIntegerType u64 = ctxt.getTypeSystem().getUnsignedInteger64Type();
         heapEnd = ctxt.getOrAddProgramModule(objectSectionClass).declareData(null, "qbicc_initial_heap_obj_end", u64);
         stringsEnd = ctxt.getOrAddProgramModule(objectSectionClass).declareData(null, "qbicc_initial_heap_iss_end", u64);
@@ -188,6 +208,7 @@ public class BuildtimeHeap {
         if (!slog.isDebugEnabled()) return;
         BuildtimeHeap heap = ctxt.getAttachment(KEY);
         slog.debugf("The initial heap contains %,d objects.", heap.vmObjects.size());
+        slog.debugf("  %,d objects are in the interned string section and %,d are in the object section.", heap.stringHeap.size(), heap.objectHeap.size());
         HashMap<LoadedTypeDefinition, Integer> instanceCounts = new HashMap<>();
         for (VmObject obj : heap.vmObjects.keySet()) {
             LoadedTypeDefinition ltd = obj.getVmClass().getTypeDefinition();
@@ -202,6 +223,8 @@ public class BuildtimeHeap {
 
     public static void emitEndMarkers(CompilationContext ctxt) {
         BuildtimeHeap bh = get(ctxt);
+        bh.objectHeap.emit();
+        bh.stringHeap.emit();
         IntegerLiteral zero = ctxt.getLiteralFactory().literalOf(ctxt.getTypeSystem().getUnsignedInteger64Type(), 0L);
         bh.objectSection.addData(null, bh.heapEnd.getName(), zero);
         bh.stringSection.addData(null, bh.stringsEnd.getName(), zero);
@@ -213,11 +236,15 @@ public class BuildtimeHeap {
         StructType jlcType = layout.getInstanceLayoutInfo(jlc).getStructType();
         ArrayType rootArrayType = ctxt.getTypeSystem().getArrayType(jlcType, numTypeIds);
         rootClassesDecl = classSection.getProgramModule().declareData(null, "qbicc_jlc_lookup_table", rootArrayType);
-        rootClasses = new Literal[numTypeIds];
+        rootClasses = new AtomicReferenceArray<>(numTypeIds);
     }
 
     void emitRootClassArray() {
-        Data d = classSection.addData(null, rootClassesDecl.getName(), ctxt.getLiteralFactory().literalOf((ArrayType) rootClassesDecl.getValueType(), List.of(rootClasses)));
+        Literal[] values = new Literal[rootClasses.length()];
+        for (int i = 0; i < values.length; i ++) {
+            values[i] = rootClasses.get(i);
+        }
+        Data d = classSection.addData(null, rootClassesDecl.getName(), ctxt.getLiteralFactory().literalOf((ArrayType) rootClassesDecl.getValueType(), List.of(values)));
         d.setLinkage(Linkage.EXTERNAL);
     }
 
@@ -232,8 +259,8 @@ public class BuildtimeHeap {
         VmClass jlcl = jlcl_td.getVmClass();
         VmClassLoader bootLoader = ctxt.getBootstrapClassContext().getClassLoader();
 
-        // Group the reachable classes by their defining loader.
-        HashMap<VmClassLoader, ArrayList<VmClass>> clMap = new HashMap<>();
+        // Group the reachable classes by their defining loader, keeping the loaders in order of first appearance.
+        LinkedHashMap<VmClassLoader, ArrayList<VmClass>> clMap = new LinkedHashMap<>();
         for (VmClass c: reachableClasses) {
             VmClassLoader cl = c.getClassLoader();
             if (cl == null) {
@@ -375,9 +402,11 @@ public class BuildtimeHeap {
         data.setLinkage(Linkage.EXTERNAL);
         data.setDsoLocal();
         if (section == refSection.getSection()) {
-            // the lowest type ID goes first
-            if (refsStart == null || data.getOriginalElement().getEnclosingType().typeId().getTypeIdValue() < refsStart.getOriginalElement().getEnclosingType().typeId().getTypeIdValue()) {
-                refsStart = data;
+            synchronized (this) {
+                // the lowest type ID goes first
+                if (refsStart == null || data.getOriginalElement().getEnclosingType().typeId().getTypeIdValue() < refsStart.getOriginalElement().getEnclosingType().typeId().getTypeIdValue()) {
+                    refsStart = data;
+                }
             }
         }
         return global;
@@ -410,7 +439,7 @@ public class BuildtimeHeap {
         return vmObjects.containsKey(value);
     }
 
-    public synchronized Literal referToSerializedVmObject(VmObject value, NullableType desiredType, ProgramModule from) {
+    public Literal referToSerializedVmObject(VmObject value, NullableType desiredType, ProgramModule from) {
         LiteralFactory lf  = ctxt.getLiteralFactory();
         if (isRootClass(value)) {
             DataDeclaration d = from.declareData(rootClassesDecl);
@@ -423,12 +452,12 @@ public class BuildtimeHeap {
                 return lf.bitcastLiteral(elem, desiredType);
             }
         } else {
-            DataDeclaration objDecl = vmObjects.get(value);
-            if (objDecl == null) {
+            Slot slot = vmObjects.get(value);
+            if (slot == null) {
                 ctxt.warning("Requested VmObject not found in build time heap: " + value);
                 return lf.nullLiteralOfType(desiredType);
             }
-            DataDeclaration decl = from.declareData(objDecl);
+            DataDeclaration decl = from.declareData(slot.decl());
             if (desiredType instanceof ReferenceType rt) {
                 return lf.encodeReferenceLiteral(lf.literalOf(decl), rt);
             } else {
@@ -437,7 +466,7 @@ public class BuildtimeHeap {
         }
     }
 
-    public synchronized void serializeVmObject(VmObject value, boolean toInternedStringSection) {
+    public void serializeVmObject(VmObject value, boolean toInternedStringSection) {
         if (toInternedStringSection) {
             serializeVmObject(value, stringSection);
         } else {
@@ -451,7 +480,7 @@ public class BuildtimeHeap {
         }
         if (isRootClass(value)) {
             int typeId = ((VmClass)value).getTypeDefinition().getTypeId();
-            if (rootClasses[typeId] != null) {
+            if (rootClasses.get(typeId) != null) {
                 return;
             }
         }
@@ -466,17 +495,22 @@ public class BuildtimeHeap {
             }
             if (isRootClass(value)) {
                 int typeId = ((VmClass)value).getTypeDefinition().getTypeId();
-                rootClasses[typeId] = ctxt.getLiteralFactory().zeroInitializerLiteralOfType(value.getObjectType()); // indicate serialization has started
+                if (! rootClasses.compareAndSet(typeId, null, ctxt.getLiteralFactory().zeroInitializerLiteralOfType(value.getObjectType()))) {
+                    // another thread has started serialization
+                    return;
+                }
                 serializeVmObject(concreteType, objLayout, value, classSection, typeId, null); // now serialize and update rootClass[typeId]
             } else {
                 if (into == objectSection && ctxt.getVm().isInternedString(value)) {
                     // Detect when the first reference to an interned String is from some arbitrary heap object and override section
                     into = stringSection;
                 }
-                String name = nextLiteralName(into);
-                DataDeclaration decl = into.getProgramModule().declareData(null, name, objLayout.getStructType());
-                vmObjects.put(value, decl); // record declaration
-                serializeVmObject(concreteType, objLayout, value, into, -1, decl.getName()); // now serialize and define a Data
+                Slot slot = reserve(value, into, objLayout.getStructType());
+                if (slot == null) {
+                    // already reserved
+                    return;
+                }
+                serializeVmObject(concreteType, objLayout, value, into, -1, slot); // now serialize and define a Data
             }
         } else if (ot instanceof ReferenceArrayObjectType) {
             // Could be part of a cyclic object graph; must record the symbol for this array before we serialize its elements
@@ -485,52 +519,65 @@ public class BuildtimeHeap {
             Memory memory = value.getMemory();
             int length = memory.load32(info.getMember(coreClasses.getArrayLengthField()).getOffset(), SinglePlain);
             StructType literalCT = arrayLiteralType(contentsField, length);
-            DataDeclaration decl = into.getProgramModule().declareData(null, nextLiteralName(into), literalCT);
-            vmObjects.put(value, decl); // record declaration
-            serializeRefArray((ReferenceArrayObjectType) ot, literalCT, length, into, decl, (VmArray)value); // now serialize
+            Slot slot = reserve(value, into, literalCT);
+            if (slot == null) {
+                // already reserved
+                return;
+            }
+            serializeRefArray((ReferenceArrayObjectType) ot, literalCT, length, into, slot, (VmArray)value); // now serialize
         } else {
-            // Can't be part of cyclic structure; don't need to record declaration first
-            vmObjects.put(value, serializePrimArray((PrimitiveArrayObjectType) ot, (VmArray)value, into));
+            // Can't be part of cyclic structure, but the declaration still must be reserved so that it is serialized once
+            PrimitiveArrayObjectType at = (PrimitiveArrayObjectType) ot;
+            FieldElement contentsField = coreClasses.getArrayContentField(at);
+            LayoutInfo info = layout.getInstanceLayoutInfo(contentsField.getEnclosingType());
+            int length = value.getMemory().load32(info.getMember(coreClasses.getArrayLengthField()).getOffset(), SinglePlain);
+            StructType literalCT = arrayLiteralType(contentsField, length);
+            Slot slot = reserve(value, into, literalCT);
+            if (slot == null) {
+                // already reserved
+                return;
+            }
+            serializePrimArray(at, literalCT, length, slot, (VmArray)value, into);
         }
     }
 
-    private boolean isRootClass(VmObject value) {
-        return value instanceof VmClass vmClass && !(vmClass instanceof VmReferenceArrayClass) && vmClass.getTypeDefinition().getTypeId() != -1;
+    /**
+     * Reserve the given object for serialization into the given section.
+     *
+     * @param value the object to reserve (must not be {@code null})
+     * @param into the section which will contain the object (must not be {@code null})
+     * @param type the type of the object's literal (must not be {@code null})
+     * @return the reserved slot, or {@code null} if the object was already reserved (possibly by another thread)
+     */
+    private Slot reserve(VmObject value, ModuleSection into, StructType type) {
+        Slot[] reserved = new Slot[1];
+        // the declaration is made while the map bin is locked so that no other thread can observe the object without it
+        vmObjects.computeIfAbsent(value, v -> reserved[0] = heapSection(into).reserve(null, type));
+        return reserved[0];
     }
 
-    private String nextLiteralName(ModuleSection into) {
+    private HeapSection heapSection(ModuleSection into) {
         if (into == objectSection) {
-            return "qbicc_initial_heap_obj_" + (this.literalCounter++);
+            return objectHeap;
         } else {
-            return "qbicc_initial_heap_iss_" + (this.literalCounter++);
+            return stringHeap;
         }
     }
 
-    private Data defineData(ModuleSection into, String name, Literal value) {
-        Data d = into.addData(null, name, value);
-        d.setLinkage(Linkage.EXTERNAL);
-        if (into == objectSection) {
-            if (heapStart == null) {
-                heapStart = d;
-            }
-        } else if (into == stringSection) {
-            if (stringsStart == null) {
-                stringsStart = d;
-            }
-        }
-        return d;
+    private boolean isRootClass(VmObject value) {
+        return value instanceof VmClass vmClass && !(vmClass instanceof VmReferenceArrayClass) && vmClass.getTypeDefinition().getTypeId() != -1;
     }
 
-    public Data getHeapStart() {
-        return heapStart;
+    public DataDeclaration getHeapStart() {
+        return objectHeap.start;
     }
 
     public DataDeclaration getHeapEnd() {
         return heapEnd;
     }
 
-    public Data getStringsStart() {
-        return stringsStart;
+    public DataDeclaration getStringsStart() {
+        return stringHeap.start;
     }
 
     public DataDeclaration getStringsEnd() {
@@ -548,9 +595,8 @@ public class BuildtimeHeap {
     private StructType arrayLiteralType(FieldElement contents, int length) {
         LoadedTypeDefinition ltd = contents.getEnclosingType().load();
         String typeName = ltd.getInternalName() + "_" + length;
-        StructType sizedArrayType = arrayTypes.get(typeName);
-        Layout layout = Layout.get(ctxt);
-        if (sizedArrayType == null) {
+        return arrayTypes.computeIfAbsent(typeName, n -> {
+            Layout layout = Layout.get(ctxt);
             TypeSystem ts = ctxt.getTypeSystem();
             LayoutInfo objLayout = layout.getInstanceLayoutInfo(ltd);
             StructType arrayCT = objLayout.getStructType();
@@ -569,13 +615,11 @@ public class BuildtimeHeap {
                 return Arrays.asList(items);
             };
 
-            sizedArrayType = ts.getStructType(StructType.Tag.STRUCT, typeName, arrayCT.getSize() + sizedContentMem.getSize(), arrayCT.getAlign(), thunk);
-            arrayTypes.put(typeName, sizedArrayType);
-        }
-        return sizedArrayType;
+            return ts.getStructType(StructType.Tag.STRUCT, n, arrayCT.getSize() + sizedContentMem.getSize(), arrayCT.getAlign(), thunk);
+        });
     }
 
-    private void serializeVmObject(LoadedTypeDefinition concreteType, LayoutInfo objLayout, VmObject value, ModuleSection into, int typeId, String name) {
+    private void serializeVmObject(LoadedTypeDefinition concreteType, LayoutInfo objLayout, VmObject value, ModuleSection into, int typeId, Slot slot) {
         Memory memory = value.getMemory();
         LayoutInfo memLayout = layout.getInstanceLayoutInfo(concreteType);
         StructType objType = objLayout.getStructType();
@@ -585,9 +629,9 @@ public class BuildtimeHeap {
 
         // Define it!
         if (typeId == -1) {
-            defineData(into, name, ctxt.getLiteralFactory().literalOf(objType, memberMap));
+            slot.define(ctxt.getLiteralFactory().literalOf(objType, memberMap));
         } else {
-            rootClasses[typeId] = ctxt.getLiteralFactory().literalOf(objType, memberMap);
+            rootClasses.set(typeId, ctxt.getLiteralFactory().literalOf(objType, memberMap));
         }
     }
 
@@ -720,7 +764,7 @@ public class BuildtimeHeap {
         }
     }
 
-    private void serializeRefArray(ReferenceArrayObjectType at, StructType literalCT, int length, ModuleSection into, DataDeclaration sl, VmArray value) {
+    private void serializeRefArray(ReferenceArrayObjectType at, StructType literalCT, int length, ModuleSection into, Slot slot, VmArray value) {
         LoadedTypeDefinition jlo = ctxt.getBootstrapClassContext().findDefinedType("java/lang/Object").load();
         LiteralFactory lf = ctxt.getLiteralFactory();
 
@@ -753,10 +797,10 @@ public class BuildtimeHeap {
         memberMap.put(literalCT.getMember(literalCT.getMemberCount() - 1), lf.literalOf(arrayType, elements));
 
         // Define it with the literal type we generated above
-        defineData(into, sl.getName(), ctxt.getLiteralFactory().literalOf(literalCT, memberMap));
+        slot.define(ctxt.getLiteralFactory().literalOf(literalCT, memberMap));
     }
 
-    private DataDeclaration serializePrimArray(PrimitiveArrayObjectType at, VmArray value, ModuleSection into) {
+    private void serializePrimArray(PrimitiveArrayObjectType at, StructType literalCT, int length, Slot slot, VmArray value, ModuleSection into) {
         LiteralFactory lf = ctxt.getLiteralFactory();
         Layout layout = Layout.get(ctxt);
         FieldElement contentsField = coreClasses.getArrayContentField(at);
@@ -766,8 +810,6 @@ public class BuildtimeHeap {
         StructType objType = objLayout.getStructType();
 
         Memory memory = value.getMemory();
-        int length = memory.load32(objLayout.getMember(coreClasses.getArrayLengthField()).getOffset(), SinglePlain);
-        StructType literalCT = arrayLiteralType(contentsField, length);
 
         Literal arrayContentsLiteral;
         if (contentsField.equals(coreClasses.getByteArrayContentField())) {
@@ -822,20 +864,93 @@ public class BuildtimeHeap {
         // add the actual array contents
         memberMap.put(literalCT.getMember(literalCT.getMemberCount() - 1), arrayContentsLiteral);
 
-        Data arrayData = defineData(into, nextLiteralName(into), ctxt.getLiteralFactory().literalOf(literalCT, memberMap));
-        return arrayData.getDeclaration();
+        slot.define(ctxt.getLiteralFactory().literalOf(literalCT, memberMap));
     }
 
     private DataDeclaration serializeNativeMemory(GlobalVariableElement globalVariable, byte[] bytes, ModuleSection into) {
-        DataDeclaration existing = nativeMemory.get(globalVariable);
+        Slot existing = nativeMemory.get(globalVariable);
         if (existing != null) {
-            return existing;
+            return existing.decl();
+        }
+        ArrayType type = ctxt.getTypeSystem().getArrayType(ctxt.getTypeSystem().getSignedInteger8Type(), bytes.length);
+        Slot[] reserved = new Slot[1];
+        Slot slot = nativeMemory.computeIfAbsent(globalVariable, gv -> reserved[0] = heapSection(into).reserve(gv.getName(), type));
+        if (reserved[0] != null) {
+            slot.define(ctxt.getLiteralFactory().literalOf(type, bytes));
+        }
+        return slot.decl();
+    }
+
+    /**
+     * One of the sections into which objects are serialized.
+     */
+    static final class HeapSection {
+        private final ModuleSection section;
+        private final String prefix;
+        private final AtomicInteger nextSeq = new AtomicInteger();
+        private final ConcurrentLinkedQueue<Definition> definitions = new ConcurrentLinkedQueue<>();
+        /**
+         * The declaration of the object with sequence number zero, which is always the first object in the section.
+         */
+        private volatile DataDeclaration start;
+        private volatile boolean emitted;
+
+        HeapSection(ModuleSection section, String prefix) {
+            this.section = section;
+            this.prefix = prefix;
+        }
+
+        /**
+         * Reserve the next position in this section.
+         *
+         * @param name the name of the object, or {@code null} to generate one from the sequence number
+         * @param type the type of the object (must not be {@code null})
+         * @return the reserved slot (not {@code null})
+         */
+        Slot reserve(String name, ValueType type) {
+            int seq = nextSeq.getAndIncrement();
+            DataDeclaration decl = section.getProgramModule().declareData(null, name == null ? prefix + seq : name, type);
+            if (seq == 0) {
+                start = decl;
+            }
+            return new Slot(this, seq, decl);
+        }
+
+        void define(Slot slot, Literal value) {
+            if (emitted) {
+                // late definition; the order is no longer significant
+                section.addData(null, slot.decl().getName(), value).setLinkage(Linkage.EXTERNAL);
+            } else {
+                definitions.add(new Definition(slot.seq(), slot.decl().getName(), value));
+            }
+        }
+
+        /**
+         * Add all of the completed definitions to the section, in sequence number order.
+         */
+        void emit() {
+            emitted = true;
+            ArrayList<Definition> list = new ArrayList<>(definitions);
+            definitions.clear();
+            list.sort(Comparator.comparingInt(Definition::seq));
+            for (Definition definition : list) {
+                section.addData(null, definition.name(), definition.value()).setLinkage(Linkage.EXTERNAL);
+            }
+        }
+
+        int size() {
+            return nextSeq.get();
         }
-        LiteralFactory lf = ctxt.getLiteralFactory();
-        Literal memoryLiteral = lf.literalOf(ctxt.getTypeSystem().getArrayType(ctxt.getTypeSystem().getSignedInteger8Type(), bytes.length), bytes);
-        Data memoryData = defineData(into, globalVariable.getName(), memoryLiteral);
-        DataDeclaration decl = memoryData.getDeclaration();
-        nativeMemory.put(globalVariable, decl);
-        return decl;
     }
+
+    /**
+     * A reserved position in a heap section.
+     */
+    record Slot(HeapSection heap, int seq, DataDeclaration decl) {
+        void define(Literal value) {
+            heap.define(this, value);
+        }
+    }
+
+    record Definition(int seq, String name, Literal value) {}
 }
@@ -1,6 +1,7 @@
 package org.qbicc.plugin.serialization;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.function.Consumer;
 
 import org.qbicc.context.CompilationContext;
@@ -8,6 +9,7 @@ import org.qbicc.interpreter.VmClass;
 import org.qbicc.plugin.instanceofcheckcast.SupersDisplayTables;
 import org.qbicc.plugin.reachability.ReachabilityInfo;
 import org.qbicc.type.Primitive;
+import org.qbicc.type.definition.LoadedTypeDefinition;
 
 /**
  * Serializes all reachable Class instances to a flat array indexed by typeId.
@@ -15,6 +17,9 @@ import org.qbicc.type.Primitive;
  * Also builds and serializes data structures that allow serialized Class instances
  * to be efficiently found at runtime by (classloader, name). These support Class.forName,
  * ClassLoader.findLoadedClass0, and ClassLoader.findBootstrapClass.
+ *
+ * The classes are serialized in typeId order so that the objects they refer to are laid out
+ * in the same order by every build.
  */
 public class ClassObjectSerializer implements Consumer<CompilationContext> {
     @Override
@@ -23,14 +28,18 @@ public class ClassObjectSerializer implements Consumer<CompilationContext> {
 
         bth.initializeRootClassArray(SupersDisplayTables.get(ctxt).get_number_of_typeids());
 
+        ArrayList<LoadedTypeDefinition> types = new ArrayList<>();
+        ReachabilityInfo.get(ctxt).visitReachableTypes(types::add);
+        types.sort(Comparator.comparingInt(LoadedTypeDefinition::getTypeId));
+
         ArrayList<VmClass> reachable = new ArrayList<>();
 
         // Serialize all the root Class instances
-        ReachabilityInfo.get(ctxt).visitReachableTypes(ltd -> {
+        for (LoadedTypeDefinition ltd : types) {
             VmClass vmClass = ltd.getVmClass();
             bth.serializeVmObject(vmClass, false);
             reachable.add(vmClass);
-        });
+        }
         Primitive.forEach(type -> {
             VmClass vmClass = ctxt.getVm().getPrimitiveClass(type);
             bth.serializeVmObject(vmClass, false);
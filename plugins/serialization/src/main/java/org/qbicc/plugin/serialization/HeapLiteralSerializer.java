@@ -0,0 +1,41 @@
+package org.qbicc.plugin.serialization;
+
+import java.util.function.Consumer;
+
+import org.qbicc.context.CompilationContext;
+import org.qbicc.graph.literal.Literal;
+import org.qbicc.graph.literal.ObjectLiteral;
+import org.qbicc.graph.literal.StringLiteral;
+import org.qbicc.plugin.reachability.ReachabilityInfo;
+import org.qbicc.type.ReferenceType;
+import org.qbicc.type.definition.element.StaticFieldElement;
+
+/**
+ * Serializes the objects which are referred to by the accessed static fields and by the literals of the analyzed
+ * method bodies, before the LOWER phase refers to them from many threads at once.
+ *
+ * The fields and bodies are visited in an order which does not depend on the order in which they were
+ * analyzed, so that the objects are reserved, and therefore named and laid out, in the same order by every build.
+ */
+public class HeapLiteralSerializer implements Consumer<CompilationContext> {
+    @Override
+    public void accept(CompilationContext ctxt) {
+        BuildtimeHeap bth = BuildtimeHeap.get(ctxt);
+        ReachabilityInfo info = ReachabilityInfo.get(ctxt);
+
+        info.visitAccessedStaticFields(field -> {
+            if (field instanceof StaticFieldElement sfe && sfe.getType() instanceof ReferenceType) {
+                bth.getGlobalForStaticField(sfe);
+            }
+        });
+        info.visitHeapLiterals((element, literals) -> {
+            for (Literal literal : literals) {
+                if (literal instanceof ObjectLiteral ol) {
+                    bth.serializeVmObject(ol.getValue(), false);
+                } else if (literal instanceof StringLiteral sl) {
+                    bth.serializeVmObject(ctxt.getVm().intern(sl.getValue()), true);
+                }
+            }
+        });
+    }
+}
@@ -1,5 +1,6 @@
 package org.qbicc.plugin.serialization;
 
+import org.qbicc.context.AttachmentKey;
 import org.qbicc.context.CompilationContext;
 import org.qbicc.graph.BasicBlock;
 import org.qbicc.graph.BasicBlockBuilder;
@@ -8,29 +9,68 @@ import org.qbicc.graph.DelegatingBasicBlockBuilder;
 import org.qbicc.graph.Slot;
 import org.qbicc.graph.Value;
 import org.qbicc.interpreter.Vm;
+import org.qbicc.plugin.reachability.ReachabilityInfo;
 import org.qbicc.type.definition.element.ConstructorElement;
 import org.qbicc.type.definition.element.ExecutableElement;
 import org.qbicc.type.definition.element.FunctionElement;
 import org.qbicc.type.definition.element.InitializerElement;
 import org.qbicc.type.definition.element.MethodElement;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This BBB ensures that all the Strings that will be needed by MethodDataEmitter
  * are interned and serialized to the BuildTimeHeap before the heap is emitted.
+ * <p>
+ * The elements with call sites are only recorded while the method bodies are built, and their Strings are serialized
+ * by {@link #serializeStrings} once the phase is complete, in an order which does not depend on the order in which
+ * the bodies were built.
  */
 public final class MethodDataStringsSerializer extends DelegatingBasicBlockBuilder {
-    private final CompilationContext ctxt;
+    private static final AttachmentKey<Set<ExecutableElement>> KEY = new AttachmentKey<>();
+
+    private final Set<ExecutableElement> elements;
 
     public MethodDataStringsSerializer(final FactoryContext ctxt, final BasicBlockBuilder delegate) {
         super(delegate);
-        this.ctxt = getContext();
+        elements = getElements(getContext());
+    }
+
+    private static Set<ExecutableElement> getElements(CompilationContext ctxt) {
+        Set<ExecutableElement> elements = ctxt.getAttachment(KEY);
+        if (elements == null) {
+            elements = ConcurrentHashMap.newKeySet();
+            Set<ExecutableElement> appearing = ctxt.putAttachmentIfAbsent(KEY, elements);
+            if (appearing != null) {
+                elements = appearing;
+            }
+        }
+        return elements;
     }
 
     private void createMethodDataStrings() {
-        ExecutableElement element = element();
+        elements.add(element());
+    }
+
+    /**
+     * Serialize the Strings of every recorded element.  This must run after the LOWER phase and before the heap
+     * is emitted.
+     *
+     * @param ctxt the compilation context (must not be {@code null})
+     */
+    public static void serializeStrings(CompilationContext ctxt) {
+        ArrayList<ExecutableElement> list = new ArrayList<>(getElements(ctxt));
+        list.sort(ReachabilityInfo.ELEMENT_ORDER);
+        for (ExecutableElement element : list) {
+            serializeMethodDataStrings(ctxt, element);
+        }
+    }
+
+    private static void serializeMethodDataStrings(CompilationContext ctxt, ExecutableElement element) {
         Vm vm = ctxt.getVm();
         BuildtimeHeap heap = BuildtimeHeap.get(ctxt);
 
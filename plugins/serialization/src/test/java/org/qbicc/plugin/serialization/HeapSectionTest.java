@@ -0,0 +1,104 @@
+package org.qbicc.plugin.serialization;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.qbicc.graph.literal.IntegerLiteral;
+import org.qbicc.object.Data;
+import org.qbicc.object.ModuleSection;
+import org.qbicc.object.Section;
+import org.qbicc.object.SectionObject;
+import org.qbicc.object.Segment;
+import org.qbicc.test.AbstractCompilerTestCase;
+import org.qbicc.type.definition.DefinedTypeDefinition;
+import org.qbicc.type.definition.classfile.ClassFile;
+import org.qbicc.type.descriptor.ClassTypeDescriptor;
+import org.qbicc.type.generic.ClassSignature;
+
+/**
+ * Tests of the layout of the sections of the build time heap.
+ */
+public final class HeapSectionTest extends AbstractCompilerTestCase {
+    private static final int COUNT = 1000;
+
+    @Test
+    public void testLayoutIsInSequenceOrder() throws InterruptedException {
+        List<String> layout = layOut("Ordered", new Random(1));
+        assertEquals(COUNT, layout.size());
+        for (int i = 0; i < COUNT; i ++) {
+            assertEquals("obj_" + i + "=" + i, layout.get(i));
+        }
+    }
+
+    @Test
+    public void testLayoutDoesNotDependOnDefinitionOrder() throws InterruptedException {
+        List<String> first = layOut("First", new Random(2));
+        List<String> second = layOut("Second", new Random(3));
+        assertEquals(first, second);
+    }
+
+    @Test
+    public void testLateDefinitionIsAdded() {
+        ModuleSection section = makeSection("Late");
+        BuildtimeHeap.HeapSection heap = new BuildtimeHeap.HeapSection(section, "obj_");
+        heap.emit();
+        BuildtimeHeap.Slot slot = heap.reserve("late", ts.getSignedInteger32Type());
+        slot.define(lf.literalOf(7));
+        assertEquals(List.of("late=7"), describe(section));
+        assertEquals(1, heap.size());
+    }
+
+    /**
+     * Reserve objects serially, then define them on several threads in a random order, and emit them.
+     */
+    private List<String> layOut(String name, Random random) throws InterruptedException {
+        ModuleSection section = makeSection(name);
+        BuildtimeHeap.HeapSection heap = new BuildtimeHeap.HeapSection(section, "obj_");
+        List<BuildtimeHeap.Slot> slots = new ArrayList<>();
+        for (int i = 0; i < COUNT; i ++) {
+            slots.add(heap.reserve(null, ts.getSignedInteger32Type()));
+        }
+        Collections.shuffle(slots, random);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (BuildtimeHeap.Slot slot : slots) {
+            executor.execute(() -> slot.define(lf.literalOf(slot.seq())));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        heap.emit();
+        return describe(section);
+    }
+
+    private static List<String> describe(ModuleSection section) {
+        List<String> layout = new ArrayList<>();
+        for (SectionObject object : section.contents()) {
+            if (object instanceof Data data) {
+                layout.add(data.getName() + "=" + ((IntegerLiteral) data.getValue()).intValue());
+            }
+        }
+        return layout;
+    }
+
+    private static ModuleSection makeSection(String name) {
+        final DefinedTypeDefinition.Builder typeBuilder = DefinedTypeDefinition.Builder.basic();
+        typeBuilder.setContext(bootClassContext);
+        typeBuilder.setName(name);
+        typeBuilder.setDescriptor(ClassTypeDescriptor.synthesize(bootClassContext, name));
+        typeBuilder.setModifiers(ClassFile.ACC_SUPER | ClassFile.ACC_PUBLIC);
+        typeBuilder.setSignature(ClassSignature.synthesize(bootClassContext, null, List.of()));
+        typeBuilder.setSimpleName(name);
+        typeBuilder.setInitializer((index, enclosing, builder) -> builder.build(), 0);
+        final DefinedTypeDefinition type = typeBuilder.build();
+        Section section = Section.defineSection(ctxt, 4, "heap_" + name, Segment.DATA, Section.Flag.DATA_ONLY);
+        return ctxt.getOrAddProgramModule(type).inSection(section);
+    }
+}
@@ -0,0 +1,9 @@
+package org.qbicc.runtime.main;
+
+import org.qbicc.runtime.patcher.PatchClass;
+
+@PatchClass(Object.class)
+final class ObjectAccess {
+    // alias
+    Monitor monitor;
+}
@@ -0,0 +1,169 @@
+package org.qbicc.runtime.main;
+
+import static org.qbicc.runtime.CNative.*;
+import static org.qbicc.runtime.stdc.Stdint.*;
+import static org.qbicc.runtime.stdc.Stdio.*;
+import static org.qbicc.runtime.stdc.Stdlib.*;
+import static org.qbicc.runtime.stdc.String.*;
+
+import org.qbicc.runtime.AutoQueued;
+import org.qbicc.runtime.Hidden;
+import org.qbicc.runtime.NoThrow;
+import org.qbicc.runtime.SafePoint;
+import org.qbicc.runtime.SafePointBehavior;
+
+/**
+ * The execution profile counters of an instrumented program.
+ * <p>
+ * The counters are updated without synchronization, so counts may be lost when threads race; the profile only
+ * needs to be approximately right. The profile is written when the program exits, to the file named by the
+ * {@code QBICC_PROFILE_FILE} environment variable, or to {@code qbicc-profile.txt} in the working directory.
+ */
+public final class ProfileCounters {
+    /**
+     * The number of receiver types recorded for each call site before further receivers are counted as "other".
+     */
+    public static final int RECEIVER_SLOTS = 4;
+
+    /**
+     * The size of the row of each receiver site in the receiver table: a pair of type ID and count for each slot,
+     * followed by the count of other receivers.
+     */
+    public static final int RECEIVER_ROW_SIZE = RECEIVER_SLOTS * 2 + 1;
+
+    /**
+     * The counter table.
+     */
+    @extern
+    static uint64_t[] profile_counters;
+
+    /**
+     * The size of the counter table.
+     */
+    @extern
+    static uint64_t profile_counter_count;
+
+    /**
+     * The key of each counter, as consecutive NUL-terminated strings.
+     */
+    @extern
+    static uint8_t[] profile_counter_keys;
+
+    /**
+     * The receiver table, holding one row of {@link #RECEIVER_ROW_SIZE} words for each receiver site.
+     */
+    @extern
+    static uint64_t[] profile_receivers;
+
+    /**
+     * The number of receiver sites.
+     */
+    @extern
+    static uint64_t profile_receiver_count;
+
+    /**
+     * The key of each receiver site, as consecutive NUL-terminated strings.
+     */
+    @extern
+    static uint8_t[] profile_receiver_keys;
+
+    /**
+     * The names of the reachable types, as consecutive NUL-terminated strings.
+     */
+    @extern
+    static uint8_t[] profile_type_names;
+
+    /**
+     * The offset of the name of each type in the type name table, indexed by type ID.
+     */
+    @extern
+    static uint32_t[] profile_type_name_offsets;
+
+    /**
+     * The size of the type name offset table.
+     */
+    @extern
+    static uint64_t profile_type_count;
+
+    private ProfileCounters() {}
+
+    /**
+     * Record the receiver type of a virtual or interface call.
+     *
+     * @param row the receiver table row of the call site
+     * @param receiver the receiver (must not be {@code null})
+     */
+    @Hidden
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    @AutoQueued
+    public static void recordReceiver(ptr<uint64_t> row, Object receiver) {
+        final long typeId = CompilerIntrinsics.typeIdOf(receiver).longValue();
+        for (int i = 0; i < RECEIVER_SLOTS; i ++) {
+            final ptr<uint64_t> slot = row.plus(i * 2);
+            final long count = slot.plus(1).loadUnshared().longValue();
+            if (count == 0) {
+                slot.storeUnshared(word(typeId));
+                slot.plus(1).storeUnshared(word(1));
+                return;
+            } else if (slot.loadUnshared().longValue() == typeId) {
+                slot.plus(1).storeUnshared(word(count + 1));
+                return;
+            }
+        }
+        final ptr<uint64_t> other = row.plus(RECEIVER_SLOTS * 2);
+        other.storeUnshared(word(other.loadUnshared().longValue() + 1));
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    @export
+    @destructor
+    public static void profile_write() {
+        ptr<@c_const c_char> path = getenv(utf8z("QBICC_PROFILE_FILE"));
+        if (path == null) {
+            path = utf8z("qbicc-profile.txt");
+        }
+        final ptr<FILE> file = fopen(path, utf8z("w"));
+        if (file == null) {
+            fprintf(stderr, utf8z("Failed to write execution profile to %s\n"), path);
+            return;
+        }
+        final ptr<uint64_t> counters = addr_of(profile_counters[0]);
+        ptr<@c_const c_char> key = addr_of(profile_counter_keys[0]).cast();
+        final long counterCount = profile_counter_count.longValue();
+        for (long i = 0; i < counterCount; i ++) {
+            fprintf(file, utf8z("%s %llu\n"), key, counters.plus(i).loadUnshared());
+            key = key.plus(strlen(key).longValue() + 1);
+        }
+        final ptr<uint64_t> receivers = addr_of(profile_receivers[0]);
+        key = addr_of(profile_receiver_keys[0]).cast();
+        final long receiverCount = profile_receiver_count.longValue();
+        for (long i = 0; i < receiverCount; i ++) {
+            final ptr<uint64_t> row = receivers.plus(i * RECEIVER_ROW_SIZE);
+            for (int j = 0; j < RECEIVER_SLOTS; j ++) {
+                final uint64_t count = row.plus(j * 2 + 1).loadUnshared();
+                if (count.longValue() != 0) {
+                    fprintf(file, utf8z("%s %s %llu\n"), key, getTypeName(row.plus(j * 2).loadUnshared().longValue()), count);
+                }
+            }
+            final uint64_t other = row.plus(RECEIVER_SLOTS * 2).loadUnshared();
+            if (other.longValue() != 0) {
+                fprintf(file, utf8z("%s * %llu\n"), key, other);
+            }
+            key = key.plus(strlen(key).longValue() + 1);
+        }
+        fclose(file);
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static ptr<@c_const c_char> getTypeName(long typeId) {
+        if (typeId < 0 || typeId >= profile_type_count.longValue()) {
+            // unknown types are counted with the other receivers
+            return utf8z("*");
+        }
+        final ptr<@c_const uint8_t> names = addr_of(profile_type_names[0]);
+        return names.plus(profile_type_name_offsets[(int) typeId].intValue()).cast();
+    }
+}
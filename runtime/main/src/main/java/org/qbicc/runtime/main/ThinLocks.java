@@ -0,0 +1,207 @@
+package org.qbicc.runtime.main;
+
+import static org.qbicc.runtime.CNative.*;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.qbicc.runtime.AutoQueued;
+import org.qbicc.runtime.Hidden;
+
+/**
+ * Thin object locks.
+ * <p>
+ * The monitor word of an object holds {@code null} while the object is unlocked, the owning thread while the object
+ * is thin-locked, or the {@link Monitor} of the object once the lock is inflated. The compiler acquires and releases
+ * uncontended thin locks inline, and calls the methods of this class for everything else. A thin lock is inflated
+ * when its owner enters it again or waits on it, or when another thread finds it held; an inflated lock is never
+ * deflated.
+ * <p>
+ * Only the owner of a thin lock may inflate it. A thread which finds a thin lock held spins for a while, and then
+ * replaces the owner in the monitor word with a {@link Contention} and parks. This makes the inline release of the
+ * owner fail, so the owner inflates the lock in the slow path (or in any earlier call for the lock) and wakes the
+ * parked threads, which then block on the monitor.
+ */
+public final class ThinLocks {
+    private static final int SPIN_LIMIT = 100;
+
+    private ThinLocks() {}
+
+    /**
+     * Enter the monitor of the given object.  This is the slow path of a {@code monitorenter} whose inline
+     * acquisition of the thin lock failed.
+     *
+     * @param obj the object to lock (must not be {@code null})
+     */
+    @Hidden
+    @AutoQueued
+    public static void monitorEnter(Object obj) {
+        final ptr<Object> word = monitorWordOf(obj);
+        final Thread current = Thread.currentThread();
+        boolean contended = false;
+        int spins = 0;
+        for (;;) {
+            final Object owner = word.loadSingleAcquire();
+            if (owner == null) {
+                if (contended) {
+                    // inflate, so that further contention blocks instead of spinning
+                    final Monitor monitor = new Monitor();
+                    monitor.enter();
+                    if (word.compareAndSwapRelease(null, monitor) == null) {
+                        return;
+                    }
+                    monitor.exit();
+                } else if (word.compareAndSwapAcquire(null, current) == null) {
+                    return;
+                }
+            } else if (owner instanceof Monitor monitor) {
+                monitor.enter();
+                return;
+            } else if (isOwner(owner, current)) {
+                // recursive entry
+                inflate(word).enter();
+                return;
+            } else if (owner instanceof Contention contention) {
+                // another thread already asked the owner to inflate the lock
+                contended = true;
+                contention.await(word);
+            } else {
+                // thin-locked by another thread
+                contended = true;
+                if (spins++ < SPIN_LIMIT) {
+                    Thread.onSpinWait();
+                } else {
+                    // stop spinning and let the owner inflate the lock
+                    final Contention contention = new Contention((Thread) owner);
+                    if (word.compareAndSetAcquire(owner, contention)) {
+                        contention.await(word);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Exit the monitor of the given object.  This is the slow path of a {@code monitorexit} whose inline release of the
+     * thin lock failed.
+     *
+     * @param obj the object to unlock (must not be {@code null})
+     * @throws IllegalMonitorStateException if the current thread does not hold the monitor of the object
+     */
+    @Hidden
+    @AutoQueued
+    public static void monitorExit(Object obj) throws IllegalMonitorStateException {
+        final ptr<Object> word = monitorWordOf(obj);
+        final Thread current = Thread.currentThread();
+        final Object owner = word.loadSingleAcquire();
+        if (owner instanceof Monitor monitor) {
+            monitor.exit();
+        } else if (! isOwner(owner, current)) {
+            throw new IllegalMonitorStateException();
+        } else if (owner != current || ! word.compareAndSetRelease(current, null)) {
+            // another thread is waiting for the lock
+            inflate(word).exit();
+        }
+    }
+
+    /**
+     * Get the monitor of the given object, inflating its lock if the current thread holds it.  This replaces
+     * {@code Object.getMonitor()}, which is used to wait on and notify an object.
+     *
+     * @param obj the object (must not be {@code null})
+     * @return the monitor (not {@code null})
+     */
+    @Hidden
+    public static Monitor getMonitor(Object obj) {
+        final ptr<Object> word = monitorWordOf(obj);
+        for (;;) {
+            final Object owner = word.loadSingleAcquire();
+            if (owner instanceof Monitor monitor) {
+                return monitor;
+            } else if (isOwner(owner, Thread.currentThread())) {
+                return inflate(word);
+            } else if (owner == null) {
+                final Monitor monitor = new Monitor();
+                if (word.compareAndSwapRelease(null, monitor) == null) {
+                    return monitor;
+                }
+            } else {
+                // thin-locked by another thread; the caller does not hold the monitor, so any operation must fail
+                return new Monitor();
+            }
+        }
+    }
+
+    /**
+     * Determine whether the current thread holds the monitor of the given object.  This replaces
+     * {@code Object.holdsLock()}.
+     *
+     * @param obj the object (must not be {@code null})
+     * @return {@code true} if the current thread holds the monitor, or {@code false} if it does not
+     */
+    @Hidden
+    public static boolean holdsLock(Object obj) {
+        final Object owner = monitorWordOf(obj).loadSingleAcquire();
+        return isOwner(owner, Thread.currentThread()) || owner instanceof Monitor monitor && monitor.isHeldByCurrentThread();
+    }
+
+    /**
+     * Inflate a thin lock which is held by the current thread, waking any threads which are waiting for it.
+     *
+     * @param word the monitor word of the object
+     * @return the monitor, held once by the current thread
+     */
+    @Hidden
+    private static Monitor inflate(ptr<Object> word) {
+        final Monitor monitor = new Monitor();
+        monitor.enter();
+        final Thread current = Thread.currentThread();
+        // other threads may only replace the owner with a contention, which no other thread changes
+        final Object owner = word.compareAndSwap(current, monitor);
+        if (owner != current) {
+            word.storeVolatile(monitor);
+            ((Contention) owner).wake();
+        }
+        return monitor;
+    }
+
+    @Hidden
+    private static boolean isOwner(Object owner, Thread current) {
+        return owner == current || owner instanceof Contention contention && contention.owner == current;
+    }
+
+    @Hidden
+    private static ptr<Object> monitorWordOf(Object obj) {
+        final ObjectAccess access = cast(obj);
+        return addr_of(deref(refToPtr(access)).monitor).cast();
+    }
+
+    /**
+     * A request to the owner of a thin lock to inflate it, which holds the threads waiting for the inflation.
+     */
+    static final class Contention {
+        final Thread owner;
+        private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+        Contention(Thread owner) {
+            this.owner = owner;
+        }
+
+        @Hidden
+        void await(ptr<Object> word) {
+            waiters.add(Thread.currentThread());
+            // the owner stores the monitor before it wakes the waiters, so a late waiter does not park
+            while (word.loadVolatile() == this) {
+                LockSupport.park(this);
+            }
+        }
+
+        @Hidden
+        void wake() {
+            Thread waiter;
+            while ((waiter = waiters.poll()) != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
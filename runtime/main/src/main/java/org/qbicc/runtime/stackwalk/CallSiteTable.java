@@ -17,7 +17,8 @@ import org.qbicc.runtime.main.CompilerIntrinsics;
  */
 public final class CallSiteTable {
     /**
-     * The (sorted) instruction table.
+     * The instruction table, grouped by function in the order of the function table, and sorted by offset
+     * within each function.
      */
     @extern
     static struct_call_site[] call_site_tbl;
@@ -28,12 +29,54 @@ public final class CallSiteTable {
     @extern
     static uint64_t call_site_tbl_size;
 
+    /**
+     * The (sorted) table of functions which have call sites.
+     */
+    @extern
+    static struct_call_site_function[] call_site_fn_tbl;
+
+    /**
+     * The size of the function table.
+     */
+    @extern
+    static uint64_t call_site_fn_tbl_size;
+
+    /**
+     * The page index of the function table, built on first use. Entry {@code n} holds the index of the function
+     * which contains the first address of page {@code n}; the final entry holds the index of the last function.
+     */
+    private static volatile ptr<uint32_t> page_tbl;
+    // these are written before page_tbl is published
+    private static long page_base;
+    private static int page_shift;
+    private static int page_cnt;
+
     /**
      * The source code information table.
      */
     @extern
     static struct_source[] source_tbl;
 
+    /**
+     * The compact encoding of the source code information table, or an empty array if the table is not compact.
+     * The stream holds the entry count followed by each entry as four variable-length values: the zig-zag encoded
+     * differences of the subprogram index, line, and bytecode index from the previous entry, and the zig-zag encoded
+     * distance to the inlined-at entry plus one (or zero if the entry was not inlined).
+     */
+    @extern
+    static uint8_t[] source_stream;
+
+    /**
+     * The size of the compact source code information stream.
+     */
+    @extern
+    static uint64_t source_stream_size;
+
+    /**
+     * The decoded source code information table, built on first use when the table is compact.
+     */
+    private static volatile ptr<struct_source> decoded_source_tbl;
+
     /**
      * The subprogram information table.
      */
@@ -70,9 +113,9 @@ public final class CallSiteTable {
     @internal
     public static final class struct_call_site extends object {
         /**
-         * The instruction pointer for this entry.
+         * The offset of the instruction pointer for this entry from the start of its function.
          */
-        public ptr<?> ip;
+        public uint32_t offset;
         /**
          * The index into the source code information table for this entry.
          */
@@ -83,6 +126,25 @@ public final class CallSiteTable {
         public uint32_t lvi_idx;
     }
 
+    /**
+     * An entry in the function table.
+     */
+    @internal
+    public static final class struct_call_site_function extends object {
+        /**
+         * The start address of the function.
+         */
+        public ptr<?> start;
+        /**
+         * The index of the first instruction table entry of the function.
+         */
+        public uint32_t call_site_idx;
+        /**
+         * The number of instruction table entries of the function.
+         */
+        public uint32_t call_site_cnt;
+    }
+
     @internal
     public static final class struct_source extends object {
         public uint32_t subprogram_idx;
@@ -169,17 +231,26 @@ public final class CallSiteTable {
     @SafePoint(SafePointBehavior.ALLOWED)
     @NoThrow
     static ptr<@c_const struct_call_site> findInsnTableEntry(ptr<@c_const ?> ip) {
-        final int size = call_site_tbl_size.intValue();
-
+        final int fnCnt = call_site_fn_tbl_size.intValue();
+        if (fnCnt == 0) {
+            return null;
+        }
         long ip_int = ip.longValue();
-        int low = 0;
-        int high = size - 1;
+        int fn = findFunction(ip_int, fnCnt);
+        if (fn == -1) {
+            // return the closest entry
+            return addr_of(call_site_tbl[0]);
+        }
+        final ptr<@c_const struct_call_site_function> fn_ptr = addr_of(call_site_fn_tbl[fn]);
+        long offset = ip_int - deref(fn_ptr).start.longValue();
+        int low = deref(fn_ptr).call_site_idx.intValue();
+        int high = low + deref(fn_ptr).call_site_cnt.intValue() - 1;
 
         while (low <= high) {
             int mid = (low + high) >>> 1;
-            long midVal = deref(addr_of(call_site_tbl[mid])).ip.longValue();
+            long midVal = Integer.toUnsignedLong(deref(addr_of(call_site_tbl[mid])).offset.intValue());
 
-            final int cmp = Long.compareUnsigned(midVal, ip_int);
+            final int cmp = Long.compareUnsigned(midVal, offset);
             if (cmp < 0) {
                 low = mid + 1;
             } else if (cmp > 0) {
@@ -192,6 +263,84 @@ public final class CallSiteTable {
         return addr_of(call_site_tbl[low]);
     }
 
+    /**
+     * Find the function which contains the given instruction pointer, which is the last function whose start address
+     * is not greater than it. The page index narrows the search to the few functions which overlap a single page.
+     *
+     * @param ip the instruction pointer
+     * @param fnCnt the size of the function table
+     * @return the function table index, or -1 if the instruction pointer is before the first function
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static int findFunction(long ip, int fnCnt) {
+        if (Long.compareUnsigned(ip, deref(addr_of(call_site_fn_tbl[0])).start.longValue()) < 0) {
+            return -1;
+        }
+        ptr<uint32_t> pages = page_tbl;
+        if (pages == null) {
+            pages = buildPageIndex(fnCnt);
+        }
+        int low, high;
+        if (pages == null) {
+            // no memory for the index; search the whole table
+            low = 0;
+            high = fnCnt - 1;
+        } else {
+            long page = (ip - page_base) >>> page_shift;
+            if (page >= page_cnt) {
+                low = high = fnCnt - 1;
+            } else {
+                low = pages.get((int) page).intValue();
+                high = pages.get((int) page + 1).intValue();
+            }
+        }
+        // find the last function in [low, high] which starts at or before ip; the one at low always does
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (Long.compareUnsigned(deref(addr_of(call_site_fn_tbl[mid])).start.longValue(), ip) <= 0) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Build and publish the page index of the function table. The page size is chosen so that there is about one
+     * function per page. If two threads race to build the index, both build the same index and one of them is
+     * leaked.
+     *
+     * @param fnCnt the size of the function table
+     * @return the page index, or {@code null} if it could not be allocated
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static ptr<uint32_t> buildPageIndex(int fnCnt) {
+        long base = deref(addr_of(call_site_fn_tbl[0])).start.longValue();
+        long span = deref(addr_of(call_site_fn_tbl[fnCnt - 1])).start.longValue() - base;
+        int shift = 64 - Long.numberOfLeadingZeros(span / fnCnt);
+        int pageCnt = (int) (span >>> shift) + 1;
+        ptr<uint32_t> pages = malloc(word((pageCnt + 1L) * sizeof(uint32_t.class).longValue()));
+        if (pages == null) {
+            return null;
+        }
+        int fn = 0;
+        for (int page = 0; page <= pageCnt; page ++) {
+            long pageStart = base + ((long) page << shift);
+            while (fn + 1 < fnCnt && Long.compareUnsigned(deref(addr_of(call_site_fn_tbl[fn + 1])).start.longValue(), pageStart) <= 0) {
+                fn ++;
+            }
+            pages.set(page, word(fn));
+        }
+        page_base = base;
+        page_shift = shift;
+        page_cnt = pageCnt;
+        page_tbl = pages;
+        return pages;
+    }
+
     // struct_call_site -> *
 
     @SafePoint(SafePointBehavior.ALLOWED)
@@ -209,7 +358,77 @@ public final class CallSiteTable {
     @SafePoint(SafePointBehavior.ALLOWED)
     @NoThrow
     static ptr<@c_const struct_source> getSourceInfo(int index) {
-        return addr_of(source_tbl[index]);
+        if (source_stream_size.longValue() == 0) {
+            return addr_of(source_tbl[index]);
+        }
+        ptr<struct_source> decoded = decoded_source_tbl;
+        if (decoded == null) {
+            decoded = decodeSourceTable();
+        }
+        return decoded.plus(index);
+    }
+
+    /**
+     * Decode and publish the compact source code information table. If two threads race to decode the table, both
+     * decode the same table and one of them is leaked.
+     *
+     * @return the decoded table (not {@code null})
+     */
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static ptr<struct_source> decodeSourceTable() {
+        final ptr<@c_const uint8_t> stream = addr_of(source_stream[0]);
+        int offset = auto(0);
+        final ptr<int32_t> offsetPtr = addr_of(offset);
+        final int cnt = (int) readVarInt(stream, offsetPtr);
+        if (cnt == 0) {
+            // nothing refers to an entry of an empty table; malloc(0) may return null, so do not call it
+            return addr_of(source_tbl[0]);
+        }
+        final ptr<struct_source> tbl = malloc(word(cnt * sizeof(struct_source.class).longValue()));
+        if (tbl == null) {
+            // no memory to walk the stack with
+            abort();
+        }
+        int subprogram = 0;
+        int line = 0;
+        int bci = 0;
+        for (int i = 0; i < cnt; i ++) {
+            subprogram += unZigZag(readVarInt(stream, offsetPtr));
+            line += unZigZag(readVarInt(stream, offsetPtr));
+            bci += unZigZag(readVarInt(stream, offsetPtr));
+            final long inlinedAt = readVarInt(stream, offsetPtr);
+            final ptr<struct_source> entry = tbl.plus(i);
+            deref(entry).subprogram_idx = word(subprogram);
+            deref(entry).line = word(line);
+            deref(entry).bci = word(bci);
+            deref(entry).inlined_at_source_idx = word(inlinedAt == 0 ? -1 : i + unZigZag(inlinedAt - 1));
+        }
+        decoded_source_tbl = tbl;
+        return tbl;
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static long readVarInt(ptr<@c_const uint8_t> stream, ptr<int32_t> offset) {
+        long result = 0;
+        int shift = 0;
+        int singleByte;
+        do {
+            final int offsetVal = offset.loadPlain().intValue();
+            singleByte = stream.plus(offsetVal).loadPlain().byteValue();
+            offset.storePlain(word(offsetVal + 1));
+            result |= (singleByte & 0x7fL) << shift;
+            shift += 7;
+        } while ((singleByte & 0x80) != 0);
+        return result;
+    }
+
+    @SafePoint(SafePointBehavior.ALLOWED)
+    @NoThrow
+    private static int unZigZag(long val) {
+        final int bits = (int) val;
+        return bits >>> 1 ^ -(bits & 1);
     }
 
     // struct_source -> *
@@ -222,7 +441,7 @@ public final class CallSiteTable {
             // not inlined
             return null;
         }
-        return addr_of(source_tbl[inlinedAt.intValue()]);
+        return getSourceInfo(inlinedAt.intValue());
     }
 
     @SafePoint(SafePointBehavior.ALLOWED)